@@ -0,0 +1,1562 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench;
+
+import edu.ucla.cens.systemlog.ColumnarBatchEncoder;
+import edu.ucla.cens.systemlog.FileTransport;
+import edu.ucla.cens.systemlog.UploadSession;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Stand-alone collector of SystemLog uploads, for upload tests and as
+ * a relay in the lab. Phones, or the engine on a JVM, upload to it as
+ * to the SystemLog server, and it stores what they send in segment
+ * files in a local directory. It needs nothing but the JVM.
+ *
+ * One thread serves all connections through a Selector, so a large
+ * number of devices can stay connected at the same time. Every
+ * connection speaks one of two protocols, told apart by its first
+ * byte:
+ *
+ * <ul>
+ * <li>HTTP/1.1, as spoken by UploadSession to http: destinations:
+ * POSTs with a Content-Length or a chunked body, optionally with
+ * Content-Encoding gzip, on kept-alive connections. The body is the
+ * legacy "data=[...]&amp;batch=" form post, a columnar batch (see
+ * ColumnarBatchEncoder) or records in the lines format, and the
+ * response lists the accepted formats in the X-SystemLog-Formats
+ * header. A GET returns the counters as text.</li>
+ * <li>The frames of SocketTransport, as sent to tcp: destinations,
+ * which start with the length of their content type and therefore
+ * with a zero byte.</li>
+ * </ul>
+ *
+ * Records of form and lines batches are written one JSON record per
+ * line, the form records URL-decoded. A columnar batch is written as
+ * it came, as one line holding the batch object. Segments are named
+ * collector-yyyyMMdd-HHmmss.txt and a new one is started at a batch
+ * boundary once a segment reaches its size. Like the server the
+ * collector remembers the IDs of recent batches and answers 208
+ * (Already Reported) to a batch it has stored before.
+ *
+ * Batches read in one pass over the ready connections are written
+ * together and, with sync set, synced to the disk once before any of
+ * them is acknowledged. An optional delay before each
+ * acknowledgement simulates the round trip time of a slow link.
+ *
+ * For the upload tests the collector can also refuse batches, lose
+ * the acknowledgements of stored ones and close its port for a
+ * while, to bring about the failures the Uploader has to survive.
+ *
+ * Run it with "ant collector", see main() for the options. It prints
+ * the ingest rates every few seconds.
+ *
+ * @author  Hossein Falaki
+ */
+public class Collector
+{
+    /** Formats the collector accepts by default, as the server does */
+    public static final String DEFAULT_FORMATS = "form, "
+        + ColumnarBatchEncoder.FORMAT;
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final String FORM_CONTENT_TYPE =
+        "application/x-www-form-urlencoded";
+    private static final String FILE_PREFIX = "collector-";
+
+    /** Limits of a request head and of a batch body in bytes */
+    private static final int MAX_HEAD = 16 * 1024;
+    private static final int MAX_BODY = 64 * 1024 * 1024;
+
+    /** Size of the socket read buffer and of the file write buffer */
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int WRITE_BUFFER = 256 * 1024;
+
+    /** Number of batch IDs remembered to detect duplicates */
+    private static final int MAX_BATCH_IDS = 100000;
+
+    /** Number of posted batch IDs kept for getBatchIds() */
+    private static final int MAX_POSTED_IDS = 1000;
+
+    /** States of an HTTP request */
+    private static final int HEAD = 0;
+    private static final int BODY = 1;
+    private static final int CHUNK_SIZE = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_END = 4;
+    private static final int TRAILER = 5;
+
+    private final File mDir;
+    private final long mSegmentBytes;
+    private final boolean mSync;
+    private final long mReportInterval;
+    private volatile long mLatency;
+    private volatile String mFormats = DEFAULT_FORMATS;
+
+    private final InetSocketAddress mAddress;
+    private final Selector mSelector;
+    private final Thread mThread;
+    private volatile boolean mStopped;
+
+    /** Whether the port should be open, and whether it is */
+    private volatile boolean mListen = true;
+    private boolean mListening = true;
+
+    /** Numbers of the next batches to refuse and of the next
+     * acknowledgements to lose */
+    private final AtomicInteger mRefuse = new AtomicInteger();
+    private final AtomicInteger mLose = new AtomicInteger();
+
+    /** IDs of the batches posted last, in the order they came */
+    private final ArrayDeque<String> mPosted = new ArrayDeque<String>();
+
+    private final AtomicLong mPosts = new AtomicLong();
+    private final AtomicLong mRecords = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mOpen = new AtomicLong();
+
+    /** IDs of the batches stored last */
+    private final LinkedHashMap<String, Boolean> mBatchIds =
+        new LinkedHashMap<String, Boolean>()
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> e)
+        {
+            return size() > MAX_BATCH_IDS;
+        }
+    };
+
+    // The rest is used only by the selector thread
+
+    /** Listening channel, null while the port is closed */
+    private ServerSocketChannel mServer;
+
+    private final ByteBuffer mReadBuffer =
+        ByteBuffer.allocateDirect(READ_BUFFER);
+
+    /** Acknowledgements waiting for their delay, in the order they
+     * are due */
+    private final ArrayDeque<Response> mDelayed =
+        new ArrayDeque<Response>();
+
+    /** Acknowledgements of batches that are not on the disk yet */
+    private final ArrayDeque<Response> mUncommitted =
+        new ArrayDeque<Response>();
+
+    private final SimpleDateFormat mSDF =
+        new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+
+    /** Current segment, its channel and the number of bytes written
+     * to it */
+    private File mSegment;
+    private FileChannel mChannel;
+    private long mWritten;
+
+    /** Bytes staged for the segment */
+    private final byte[] mStage = new byte[WRITE_BUFFER];
+    private int mStaged;
+
+
+    /**
+     * Constructor - starts a collector on an ephemeral port of the
+     * loopback interface, for tests.
+     *
+     * @param   dir             directory of the segment files
+     * @param   latency         delay before each acknowledgement in
+     *                          milliseconds
+     */
+    public Collector(File dir, long latency) throws IOException
+    {
+        this(new InetSocketAddress("127.0.0.1", 0), dir, latency,
+                DEFAULT_SEGMENT_BYTES, false, 0);
+    }
+
+    /**
+     * Constructor - starts a collector.
+     *
+     * @param   address         address to listen on
+     * @param   dir             directory of the segment files
+     * @param   latency         delay before each acknowledgement in
+     *                          milliseconds
+     * @param   segmentBytes    size in bytes after which a new segment
+     *                          is started
+     * @param   sync            whether to sync the segment before
+     *                          acknowledging
+     * @param   reportInterval  interval of the rate reports in
+     *                          milliseconds, 0 for none
+     */
+    public Collector(InetSocketAddress address, File dir, long latency,
+            long segmentBytes, boolean sync, long reportInterval)
+        throws IOException
+    {
+        mDir = dir;
+        mLatency = latency;
+        mSegmentBytes = segmentBytes;
+        mSync = sync;
+        mReportInterval = reportInterval;
+
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().setReuseAddress(true);
+        mServer.socket().bind(address, 1024);
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mAddress = (InetSocketAddress) mServer.socket()
+            .getLocalSocketAddress();
+
+        mThread = new Thread("Collector")
+        {
+            public void run()
+            {
+                serve();
+            }
+        };
+        mThread.start();
+    }
+
+
+    /**
+     * Returns the URL that uploads should be posted to.
+     *
+     * @return                  upload URL
+     */
+    public String getUrl()
+    {
+        return "http://" + getHostPort() + "/systemlog/logs/put/";
+    }
+
+    /**
+     * Returns the URL of the collector as a tcp: destination.
+     *
+     * @return                  tcp: URL
+     */
+    public String getTcpUrl()
+    {
+        return "tcp://" + getHostPort();
+    }
+
+    public void setLatency(long latency)
+    {
+        mLatency = latency;
+    }
+
+    /**
+     * Sets the formats the collector accepts besides the form post,
+     * and advertises.
+     *
+     * @param   formats         formats in the syntax of the formats
+     *                          header, for example "form, lines"
+     */
+    public void setFormats(String formats)
+    {
+        mFormats = formats;
+    }
+
+    public long getPostCount()
+    {
+        return mPosts.get();
+    }
+
+    public long getRecordCount()
+    {
+        return mRecords.get();
+    }
+
+    public long getByteCount()
+    {
+        return mBytes.get();
+    }
+
+    public long getDuplicateCount()
+    {
+        return mDuplicates.get();
+    }
+
+    public long getRejectedCount()
+    {
+        return mRejected.get();
+    }
+
+    public long getConnectionCount()
+    {
+        return mConnections.get();
+    }
+
+    /**
+     * Answers the next batches with 503 (Service Unavailable) without
+     * storing them.
+     *
+     * @param   count           number of batches to refuse
+     */
+    public void refuse(int count)
+    {
+        mRefuse.set(count);
+    }
+
+    /**
+     * Stores the next batches but closes their connections instead of
+     * acknowledging them, as if the responses were lost.
+     *
+     * @param   count           number of acknowledgements to lose
+     */
+    public void loseResponses(int count)
+    {
+        mLose.set(count);
+    }
+
+    /**
+     * Returns the IDs of the batches posted last, in the order they
+     * came, including the refused and the duplicate ones.
+     *
+     * @return                  batch IDs
+     */
+    public List<String> getBatchIds()
+    {
+        synchronized (mPosted)
+        {
+            return new ArrayList<String>(mPosted);
+        }
+    }
+
+    /**
+     * Closes the port and every connection, as a collector that goes
+     * down would. The batch IDs are kept, so that once the port is
+     * opened again the collector acts like the server after a
+     * restart.
+     */
+    public void closePort()
+    {
+        setListening(false);
+    }
+
+    /**
+     * Opens the port again after closePort().
+     */
+    public void openPort()
+    {
+        setListening(true);
+    }
+
+    /**
+     * Clears the counters and forgets the batches stored so far.
+     */
+    public void reset()
+    {
+        mPosts.set(0);
+        mRecords.set(0);
+        mBytes.set(0);
+        mDuplicates.set(0);
+        mRejected.set(0);
+        mConnections.set(0);
+        synchronized (mPosted)
+        {
+            mPosted.clear();
+        }
+        synchronized (mBatchIds)
+        {
+            mBatchIds.clear();
+        }
+    }
+
+    /**
+     * Stops the collector and closes the segment.
+     */
+    public void stop()
+    {
+        mStopped = true;
+        mSelector.wakeup();
+        try
+        {
+            mThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String toString()
+    {
+        return "posts=" + mPosts + " records=" + mRecords + " bytes="
+            + mBytes + " duplicates=" + mDuplicates + " rejected="
+            + mRejected + " connections=" + mConnections + " open="
+            + mOpen;
+    }
+
+
+    private String getHostPort()
+    {
+        String host = mAddress.getAddress().isAnyLocalAddress()
+            ? "127.0.0.1" : mAddress.getAddress().getHostAddress();
+        return host + ":" + mAddress.getPort();
+    }
+
+    /**
+     * Has the selector thread open or close the port and waits until
+     * it has.
+     */
+    private synchronized void setListening(boolean listen)
+    {
+        mListen = listen;
+        mSelector.wakeup();
+        while ((mListening != listen) && !mStopped)
+        {
+            try
+            {
+                wait(100);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens or closes the port as asked by setListening().
+     */
+    private void updateListening() throws IOException
+    {
+        boolean listen = mListen;
+        if (listen == (mServer != null))
+            return;
+
+        if (listen)
+        {
+            mServer = ServerSocketChannel.open();
+            mServer.socket().setReuseAddress(true);
+            mServer.socket().bind(mAddress, 1024);
+            mServer.configureBlocking(false);
+            mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        }
+        else
+        {
+            for (SelectionKey key : mSelector.keys())
+            {
+                if (key.attachment() != null)
+                    ((Connection) key.attachment()).close();
+            }
+            mServer.close();
+            mServer = null;
+        }
+
+        synchronized (this)
+        {
+            mListening = listen;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Loop of the selector thread.
+     */
+    private void serve()
+    {
+        long lastReport = System.currentTimeMillis();
+        long lastRecords = 0, lastPosts = 0, lastBytes = 0;
+
+        try
+        {
+            while (!mStopped)
+            {
+                long now = System.currentTimeMillis();
+                long timeout = (mReportInterval > 0)
+                    ? Math.max(1, lastReport + mReportInterval - now) : 0;
+                if (!mDelayed.isEmpty())
+                {
+                    long wait = Math.max(1, mDelayed.peek().due - now);
+                    timeout = (timeout == 0) ? wait
+                        : Math.min(timeout, wait);
+                }
+                mSelector.select(timeout);
+                updateListening();
+
+                for (SelectionKey key : mSelector.selectedKeys())
+                {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        ((Connection) key.attachment()).onReady(key);
+                }
+                mSelector.selectedKeys().clear();
+
+                commit();
+                release();
+
+                now = System.currentTimeMillis();
+                if ((mReportInterval > 0)
+                        && (now - lastReport >= mReportInterval))
+                {
+                    double secs = (now - lastReport) / 1000.0;
+                    long records = mRecords.get();
+                    long posts = mPosts.get();
+                    long bytes = mBytes.get();
+                    System.out.println(String.format(Locale.US,
+                                "records/s=%.0f batches/s=%.1f MB/s=%.2f"
+                                + " open=%d duplicates=%d rejected=%d",
+                                (records - lastRecords) / secs,
+                                (posts - lastPosts) / secs,
+                                (bytes - lastBytes) / secs / 1048576,
+                                mOpen.get(), mDuplicates.get(),
+                                mRejected.get()));
+                    lastReport = now;
+                    lastRecords = records;
+                    lastPosts = posts;
+                    lastBytes = bytes;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Collector failed: " + e);
+        }
+        finally
+        {
+            for (SelectionKey key : mSelector.keys())
+            {
+                if (key.attachment() != null)
+                    ((Connection) key.attachment()).close();
+            }
+            try
+            {
+                if (mServer != null)
+                    mServer.close();
+                mSelector.close();
+                closeSegment();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Collector: " + e);
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null)
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(mSelector, SelectionKey.OP_READ,
+                    conn);
+            mConnections.incrementAndGet();
+            mOpen.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the staged records of this pass and syncs them if
+     * required, then queues their acknowledgements for release.
+     */
+    private void commit() throws IOException
+    {
+        if (mUncommitted.isEmpty())
+            return;
+
+        flushStage();
+        if (mSync && (mChannel != null))
+            mChannel.force(false);
+
+        long due = System.currentTimeMillis() + mLatency;
+        Response resp;
+        while ((resp = mUncommitted.poll()) != null)
+        {
+            resp.due = due;
+            mDelayed.add(resp);
+        }
+    }
+
+    /**
+     * Sends the acknowledgements that are due.
+     */
+    private void release()
+    {
+        long now = System.currentTimeMillis();
+        while (!mDelayed.isEmpty() && (mDelayed.peek().due <= now))
+        {
+            Response resp = mDelayed.poll();
+            if (resp.data == null)
+                resp.conn.close();
+            else
+                resp.conn.send(resp.data, resp.close);
+        }
+    }
+
+
+    /**
+     * Stores one batch and returns the status code of its
+     * acknowledgement.
+     *
+     * @param   contentType     content type of the batch
+     * @param   data            buffer holding the body
+     * @param   off             offset of the body
+     * @param   len             length of the body
+     * @param   gzip            whether the body is compressed
+     * @param   framed          whether it came in a frame
+     * @return                  status code
+     */
+    private int onBatch(String contentType, byte[] data, int off, int len,
+            boolean gzip, boolean framed) throws IOException
+    {
+        mPosts.incrementAndGet();
+        mBytes.addAndGet(len);
+        if (gzip)
+        {
+            data = readAll(new GZIPInputStream(
+                        new ByteArrayInputStream(data, off, len)));
+            off = 0;
+            len = data.length;
+        }
+
+        int semi = (contentType == null) ? -1 : contentType.indexOf(';');
+        String type = (semi < 0) ? contentType
+            : contentType.substring(0, semi).trim();
+        String formats = mFormats;
+
+        if (!framed && FORM_CONTENT_TYPE.equalsIgnoreCase(type))
+            return storeForm(data, off, len);
+        if (!framed && ColumnarBatchEncoder.CONTENT_TYPE.equals(type)
+                && hasFormat(formats, ColumnarBatchEncoder.FORMAT))
+            return storeColumnar(data, off, len);
+        if (FileTransport.CONTENT_TYPE.equals(type)
+                && (framed || hasFormat(formats, FileTransport.FORMAT)))
+            return storeLines(data, off, len);
+
+        mRejected.incrementAndGet();
+        return 415;
+    }
+
+    /**
+     * Stores the records of a "data=[...]&amp;batch=" form post. The
+     * records are URL-encoded, so the only unencoded ", " sequences
+     * are the separators between them, and '&amp;' ends the list.
+     */
+    private int storeForm(byte[] data, int off, int len)
+        throws IOException
+    {
+        int end = off + len;
+        int start = indexOf(data, "data=[", off, end);
+        if (start < 0)
+            return 400;
+        start += 6;
+
+        int listEnd = start;
+        while ((listEnd < end) && (data[listEnd] != '&'))
+            listEnd++;
+        if ((listEnd == start) || (data[listEnd - 1] != ']'))
+            return 400;
+        listEnd--;
+
+        String batchId = null;
+        int idStart = indexOf(data, "&batch=", listEnd, end);
+        if (idStart >= 0)
+        {
+            idStart += 7;
+            int idEnd = idStart;
+            while ((idEnd < end) && (data[idEnd] != '&'))
+                idEnd++;
+            batchId = new String(data, idStart, idEnd - idStart, "UTF-8");
+        }
+        int status = checkBatch(batchId);
+        if (status != 0)
+            return status;
+
+        rotateIfFull();
+        long batchStart = mWritten + mStaged;
+        int count = 0;
+        try
+        {
+            int i = start;
+            while (i < listEnd)
+            {
+                int sep = i;
+                while ((sep < listEnd) && !((data[sep] == ',')
+                            && (sep + 1 < listEnd) && (data[sep + 1] == ' ')))
+                    sep++;
+                decodeRecord(data, i, sep);
+                count++;
+                i = sep + 2;
+            }
+        }
+        catch (IOException e)
+        {
+            rollBack(batchStart);
+            throw e;
+        }
+        return stored(batchId, count);
+    }
+
+    /**
+     * Stores a columnar batch as one line. Its record count is the
+     * length of its logger column.
+     */
+    private int storeColumnar(byte[] data, int off, int len)
+        throws IOException
+    {
+        int end = off + len;
+        String batchId = null;
+        int idStart = indexOf(data, "\"batch\":\"", off, end);
+        if (idStart >= 0)
+        {
+            idStart += 9;
+            int idEnd = idStart;
+            while ((idEnd < end) && (data[idEnd] != '"'))
+                idEnd++;
+            batchId = new String(data, idStart, idEnd - idStart, "UTF-8");
+        }
+        int status = checkBatch(batchId);
+        if (status != 0)
+            return status;
+
+        int col = indexOf(data, ",\"logger\":[", off, end);
+        if (col < 0)
+            return 400;
+        int count = 0;
+        for (int i = col + 11; (i < end) && (data[i] != ']'); i++)
+        {
+            if ((count == 0) || (data[i] == ','))
+                count++;
+        }
+
+        // JSON escapes line breaks, the batch is one line already
+        while ((len > 0) && ((data[off + len - 1] == '\n')
+                    || (data[off + len - 1] == '\r')))
+            len--;
+        rotateIfFull();
+        long batchStart = mWritten + mStaged;
+        try
+        {
+            stage(data, off, len);
+            stage((byte) '\n');
+        }
+        catch (IOException e)
+        {
+            rollBack(batchStart);
+            throw e;
+        }
+        return stored(batchId, count);
+    }
+
+    /**
+     * Stores a batch in the lines format as it is. Such batches have
+     * no ID.
+     */
+    private int storeLines(byte[] data, int off, int len)
+        throws IOException
+    {
+        int status = checkBatch(null);
+        if (status != 0)
+            return status;
+
+        int count = 0;
+        for (int i = off; i < off + len; i++)
+        {
+            if (data[i] == '\n')
+                count++;
+        }
+
+        rotateIfFull();
+        long batchStart = mWritten + mStaged;
+        try
+        {
+            stage(data, off, len);
+            if ((len > 0) && (data[off + len - 1] != '\n'))
+            {
+                stage((byte) '\n');
+                count++;
+            }
+        }
+        catch (IOException e)
+        {
+            rollBack(batchStart);
+            throw e;
+        }
+        return stored(null, count);
+    }
+
+    /**
+     * Notes the ID of a posted batch and returns the status it is
+     * answered with without being stored: 503 if it is refused, 208
+     * if it is stored already, or 0 to store it.
+     */
+    private int checkBatch(String batchId)
+    {
+        if (batchId != null)
+        {
+            synchronized (mPosted)
+            {
+                mPosted.add(batchId);
+                if (mPosted.size() > MAX_POSTED_IDS)
+                    mPosted.poll();
+            }
+        }
+
+        if (take(mRefuse))
+        {
+            mRejected.incrementAndGet();
+            return 503;
+        }
+        if (batchId == null)
+            return 0;
+        synchronized (mBatchIds)
+        {
+            if (!mBatchIds.containsKey(batchId))
+                return 0;
+        }
+        mDuplicates.incrementAndGet();
+        return 208;
+    }
+
+    /**
+     * Takes one off a count of batches to fail, if it is above 0.
+     */
+    private static boolean take(AtomicInteger count)
+    {
+        int n;
+        do
+        {
+            n = count.get();
+            if (n <= 0)
+                return false;
+        }
+        while (!count.compareAndSet(n, n - 1));
+        return true;
+    }
+
+    private int stored(String batchId, int count)
+    {
+        if (batchId != null)
+        {
+            synchronized (mBatchIds)
+            {
+                mBatchIds.put(batchId, Boolean.TRUE);
+            }
+        }
+        mRecords.addAndGet(count);
+        return 200;
+    }
+
+    private static boolean hasFormat(String formats, String format)
+    {
+        for (String f : formats.split(","))
+        {
+            if (f.trim().equals(format))
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * URL-decodes one record into the stage and ends its line.
+     */
+    private void decodeRecord(byte[] data, int from, int to)
+        throws IOException
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (mStaged + 2 > mStage.length)
+                flushStage();
+
+            byte b = data[i];
+            if (b == '+')
+            {
+                mStage[mStaged++] = ' ';
+            }
+            else if ((b == '%') && (i + 2 < to))
+            {
+                mStage[mStaged++] = (byte) ((hex(data[i + 1]) << 4)
+                        | hex(data[i + 2]));
+                i += 2;
+            }
+            else
+            {
+                mStage[mStaged++] = b;
+            }
+        }
+        stage((byte) '\n');
+    }
+
+    private static int hex(byte b) throws IOException
+    {
+        if ((b >= '0') && (b <= '9'))
+            return b - '0';
+        if ((b >= 'A') && (b <= 'F'))
+            return b - 'A' + 10;
+        if ((b >= 'a') && (b <= 'f'))
+            return b - 'a' + 10;
+        throw new IOException("Bad escape in form post");
+    }
+
+    private void stage(byte b) throws IOException
+    {
+        if (mStaged == mStage.length)
+            flushStage();
+        mStage[mStaged++] = b;
+    }
+
+    private void stage(byte[] data, int off, int len) throws IOException
+    {
+        if (len > mStage.length - mStaged)
+        {
+            flushStage();
+            if (len > mStage.length)
+            {
+                write(ByteBuffer.wrap(data, off, len));
+                return;
+            }
+        }
+        System.arraycopy(data, off, mStage, mStaged, len);
+        mStaged += len;
+    }
+
+    private void flushStage() throws IOException
+    {
+        if (mStaged == 0)
+            return;
+        write(ByteBuffer.wrap(mStage, 0, mStaged));
+        mStaged = 0;
+    }
+
+    private void write(ByteBuffer buf) throws IOException
+    {
+        if (mChannel == null)
+            openSegment();
+        while (buf.hasRemaining())
+            mWritten += mChannel.write(buf);
+    }
+
+    /**
+     * Drops what was stored of a batch that failed, so the segment
+     * only holds whole batches.
+     */
+    private void rollBack(long batchStart) throws IOException
+    {
+        if (batchStart >= mWritten)
+        {
+            mStaged = (int) (batchStart - mWritten);
+        }
+        else
+        {
+            mStaged = 0;
+            mChannel.truncate(batchStart);
+            mWritten = batchStart;
+        }
+    }
+
+    private void rotateIfFull() throws IOException
+    {
+        if ((mChannel != null) && (mWritten + mStaged >= mSegmentBytes))
+            closeSegment();
+    }
+
+    private void openSegment() throws IOException
+    {
+        // Segments started within the same second are numbered
+        String name = FILE_PREFIX + mSDF.format(new Date());
+        mSegment = new File(mDir, name + ".txt");
+        for (int i = 1; mSegment.exists(); i++)
+            mSegment = new File(mDir, name + "-" + i + ".txt");
+        mChannel = new FileOutputStream(mSegment).getChannel();
+        mWritten = 0;
+    }
+
+    private void closeSegment() throws IOException
+    {
+        flushStage();
+        if (mChannel == null)
+            return;
+        if (mSync)
+            mChannel.force(false);
+        mChannel.close();
+        mChannel = null;
+    }
+
+
+    /**
+     * Acknowledgement of one batch. Without data it closes the
+     * connection instead, for a lost acknowledgement.
+     */
+    private static class Response
+    {
+        final Connection conn;
+        final byte[] data;
+        final boolean close;
+        long due;
+
+        Response(Connection conn, byte[] data, boolean close)
+        {
+            this.conn = conn;
+            this.data = data;
+            this.close = close;
+        }
+    }
+
+
+    /**
+     * State of one client connection. Received bytes are kept in a
+     * buffer that grows to hold a whole body, which is then parsed in
+     * place.
+     */
+    private class Connection
+    {
+        final SocketChannel channel;
+        SelectionKey key;
+
+        byte[] in = new byte[8192];
+        int start, end;
+
+        /** 0 until the first byte, then 'H' for HTTP or 'F' for
+         * frames */
+        int mode;
+
+        /** Set once no more requests are read */
+        boolean closing;
+        boolean closed;
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        boolean closeAfterWrite;
+
+        // Current HTTP request
+        int state = HEAD;
+        int scanned;
+        String method, contentType;
+        boolean keepAlive, chunked, gzip;
+        int contentLength;
+        int chunkRemaining;
+        byte[] body = new byte[0];
+        int bodyLength;
+
+        Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void onReady(SelectionKey key)
+        {
+            try
+            {
+                if (key.isWritable())
+                    flushOut();
+                if (key.isValid() && key.isReadable())
+                    onReadable();
+            }
+            catch (IOException e)
+            {
+                close();
+            }
+        }
+
+        void onReadable() throws IOException
+        {
+            mReadBuffer.clear();
+            int n = channel.read(mReadBuffer);
+            if (n < 0)
+            {
+                close();
+                return;
+            }
+            mReadBuffer.flip();
+            ensureCapacity(n);
+            mReadBuffer.get(in, end, n);
+            end += n;
+
+            while (!closing && (start < end))
+            {
+                if (mode == 0)
+                    mode = (in[start] == 0) ? 'F' : 'H';
+                if (!((mode == 'F') ? parseFrame() : parseHttp()))
+                    break;
+            }
+            if (start == end)
+            {
+                // Do not keep the buffer of a large body while idle
+                start = 0;
+                end = 0;
+                scanned = 0;
+                if (in.length > READ_BUFFER)
+                    in = new byte[8192];
+            }
+        }
+
+        /**
+         * Makes room for n more bytes after end, moving the unread
+         * bytes to the front first.
+         */
+        void ensureCapacity(int n) throws IOException
+        {
+            if (end + n <= in.length)
+                return;
+            if (end - start + n > MAX_BODY + MAX_HEAD)
+                throw new IOException("Request too large");
+
+            int len = end - start;
+            byte[] buf = (len + n <= in.length) ? in
+                : new byte[Math.max(len + n, in.length * 2)];
+            System.arraycopy(in, start, buf, 0, len);
+            in = buf;
+            scanned -= start;
+            start = 0;
+            end = len;
+        }
+
+        /**
+         * Parses one frame of SocketTransport once it is complete.
+         */
+        boolean parseFrame() throws IOException
+        {
+            int avail = end - start;
+            if (avail < 2)
+                return false;
+            int typeLength = ((in[start] & 0xff) << 8)
+                | (in[start + 1] & 0xff);
+            if (avail < 6 + typeLength)
+                return false;
+            int p = start + 2 + typeLength;
+            int length = ((in[p] & 0xff) << 24) | ((in[p + 1] & 0xff) << 16)
+                | ((in[p + 2] & 0xff) << 8) | (in[p + 3] & 0xff);
+            if ((length < 0) || (length > MAX_BODY))
+                throw new IOException("Bad frame length " + length);
+            if (avail < 6 + typeLength + length)
+            {
+                ensureCapacity(6 + typeLength + length - avail);
+                return false;
+            }
+
+            String type = new String(in, start + 2, typeLength, "UTF-8");
+            int status = onBatch(type, in, p + 4, length, false, true);
+            start = p + 4 + length;
+            if (loseResponse(status))
+                return true;
+            mUncommitted.add(new Response(this,
+                        new byte[] {(byte) (status >> 8), (byte) status},
+                        false));
+            return true;
+        }
+
+        /**
+         * Advances the HTTP request by the bytes received.
+         *
+         * @return              false if more bytes are needed
+         */
+        boolean parseHttp() throws IOException
+        {
+            switch (state)
+            {
+            case HEAD:
+                int headEnd = indexOf(in, "\r\n\r\n",
+                        Math.max(start, scanned - 3), end);
+                if (headEnd < 0)
+                {
+                    scanned = end;
+                    if (end - start > MAX_HEAD)
+                        fail(431, "Request Header Fields Too Large");
+                    return false;
+                }
+                parseHead(new String(in, start, headEnd - start,
+                            "ISO-8859-1"));
+                start = headEnd + 4;
+                scanned = start;
+                return true;
+
+            case BODY:
+                if (end - start < contentLength)
+                {
+                    ensureCapacity(contentLength - (end - start));
+                    return false;
+                }
+                onRequest(in, start, contentLength);
+                start += contentLength;
+                return true;
+
+            case CHUNK_SIZE:
+            case TRAILER:
+                int eol = indexOf(in, "\r\n", start, end);
+                if (eol < 0)
+                {
+                    if (end - start > MAX_HEAD)
+                        throw new IOException("Chunk line too long");
+                    return false;
+                }
+                String line = new String(in, start, eol - start,
+                        "ISO-8859-1");
+                start = eol + 2;
+                if (state == TRAILER)
+                {
+                    if (line.length() == 0)
+                        onRequest(body, 0, bodyLength);
+                    return true;
+                }
+
+                int semi = line.indexOf(';');
+                chunkRemaining = Integer.parseInt(((semi < 0) ? line
+                            : line.substring(0, semi)).trim(), 16);
+                if ((chunkRemaining < 0)
+                        || (bodyLength + chunkRemaining > MAX_BODY))
+                    throw new IOException("Bad chunk size");
+                state = (chunkRemaining == 0) ? TRAILER : CHUNK_DATA;
+                if (body.length < bodyLength + chunkRemaining)
+                {
+                    byte[] buf = new byte[Math.max(bodyLength
+                            + chunkRemaining, body.length * 2)];
+                    System.arraycopy(body, 0, buf, 0, bodyLength);
+                    body = buf;
+                }
+                return true;
+
+            case CHUNK_DATA:
+                int n = Math.min(end - start, chunkRemaining);
+                System.arraycopy(in, start, body, bodyLength, n);
+                bodyLength += n;
+                start += n;
+                chunkRemaining -= n;
+                if (chunkRemaining > 0)
+                    return false;
+                state = CHUNK_END;
+                return true;
+
+            case CHUNK_END:
+                if (end - start < 2)
+                    return false;
+                start += 2;
+                state = CHUNK_SIZE;
+                return true;
+            }
+            return false;
+        }
+
+        void parseHead(String head) throws IOException
+        {
+            String[] lines = head.split("\r\n");
+            String[] request = lines[0].split(" ");
+            if (request.length != 3)
+            {
+                fail(400, "Bad Request");
+                return;
+            }
+            method = request[0];
+            keepAlive = request[2].equals("HTTP/1.1");
+            contentType = null;
+            contentLength = -1;
+            chunked = false;
+            gzip = false;
+            boolean expect = false;
+
+            for (int i = 1; i < lines.length; i++)
+            {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim()
+                    .toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("content-type"))
+                    contentType = value;
+                else if (name.equals("content-length"))
+                    contentLength = Integer.parseInt(value);
+                else if (name.equals("transfer-encoding"))
+                    chunked = value.equalsIgnoreCase("chunked");
+                else if (name.equals("content-encoding"))
+                    gzip = value.equalsIgnoreCase("gzip");
+                else if (name.equals("connection"))
+                    keepAlive = !value.equalsIgnoreCase("close");
+                else if (name.equals("expect"))
+                    expect = value.equalsIgnoreCase("100-continue");
+            }
+
+            if (method.equals("GET"))
+            {
+                respond(200, Collector.this.toString() + "\n");
+                return;
+            }
+            if (!method.equals("POST"))
+            {
+                fail(405, "Method Not Allowed");
+                return;
+            }
+            if (!chunked && (contentLength < 0))
+            {
+                fail(411, "Length Required");
+                return;
+            }
+            if (contentLength > MAX_BODY)
+            {
+                fail(413, "Payload Too Large");
+                return;
+            }
+
+            if (expect)
+                send(ascii("HTTP/1.1 100 Continue\r\n\r\n"), false);
+            bodyLength = 0;
+            state = chunked ? CHUNK_SIZE : BODY;
+        }
+
+        void onRequest(byte[] data, int off, int len) throws IOException
+        {
+            state = HEAD;
+            int status = onBatch(contentType, data, off, len, gzip,
+                    false);
+            if (!loseResponse(status))
+                respond(status, reason(status));
+            if (body.length > READ_BUFFER)
+                body = new byte[0];
+        }
+
+        /**
+         * Queues a response, which is released once the batches of
+         * this pass are committed.
+         */
+        void respond(int status, String text) throws IOException
+        {
+            byte[] content = text.getBytes("UTF-8");
+            String head = "HTTP/1.1 " + status + " " + reason(status)
+                + "\r\nContent-Type: text/plain; charset=utf-8"
+                + "\r\nContent-Length: " + content.length
+                + "\r\n" + UploadSession.FORMATS_HEADER + ": " + mFormats
+                + (keepAlive ? "" : "\r\nConnection: close")
+                + "\r\n\r\n";
+            byte[] head8 = ascii(head);
+            byte[] resp = new byte[head8.length + content.length];
+            System.arraycopy(head8, 0, resp, 0, head8.length);
+            System.arraycopy(content, 0, resp, head8.length,
+                    content.length);
+
+            mUncommitted.add(new Response(this, resp, !keepAlive));
+            if (!keepAlive)
+                closing = true;
+        }
+
+        /**
+         * Closes the connection instead of acknowledging a stored
+         * batch if its response is to be lost.
+         */
+        boolean loseResponse(int status)
+        {
+            if (((status != 200) && (status != 208)) || !take(mLose))
+                return false;
+            mUncommitted.add(new Response(this, null, true));
+            closing = true;
+            return true;
+        }
+
+        void fail(int status, String text) throws IOException
+        {
+            keepAlive = false;
+            respond(status, text);
+        }
+
+        void send(byte[] data, boolean closeAfter)
+        {
+            if (closed)
+                return;
+            out.add(ByteBuffer.wrap(data));
+            closeAfterWrite |= closeAfter;
+            try
+            {
+                flushOut();
+            }
+            catch (IOException e)
+            {
+                close();
+            }
+        }
+
+        void flushOut() throws IOException
+        {
+            while (!out.isEmpty())
+            {
+                ByteBuffer buf = out.peek();
+                channel.write(buf);
+                if (buf.hasRemaining())
+                    break;
+                out.poll();
+            }
+
+            if (!out.isEmpty())
+                key.interestOps(SelectionKey.OP_READ
+                        | SelectionKey.OP_WRITE);
+            else if (closeAfterWrite)
+                close();
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close()
+        {
+            if (closed)
+                return;
+            closed = true;
+            closing = true;
+            mOpen.decrementAndGet();
+            key.cancel();
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static String reason(int status)
+    {
+        switch (status)
+        {
+        case 200: return "OK";
+        case 208: return "Already Reported";
+        case 400: return "Bad Request";
+        case 405: return "Method Not Allowed";
+        case 411: return "Length Required";
+        case 413: return "Payload Too Large";
+        case 415: return "Unsupported Media Type";
+        case 431: return "Request Header Fields Too Large";
+        case 503: return "Service Unavailable";
+        default: return "Error";
+        }
+    }
+
+    /**
+     * Returns the position of pattern in data between from and to,
+     * or -1.
+     */
+    private static int indexOf(byte[] data, String pattern, int from,
+            int to)
+    {
+        int n = pattern.length();
+        for (int i = from; i + n <= to; i++)
+        {
+            int j = 0;
+            while ((j < n) && (data[i + j] == pattern.charAt(j)))
+                j++;
+            if (j == n)
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1)
+            out.write(buf, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s)
+    {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+
+    /**
+     * Runs a collector until the JVM is stopped.
+     *
+     * <pre>
+     * -port N          port to listen on, default 8080
+     * -bind ADDR       address to listen on, default all
+     * -dir DIR         directory of the segment files, default
+     *                  "collector"
+     * -formats F       formats to accept besides the form post,
+     *                  default "form, columnar-1"
+     * -latency MS      delay before each acknowledgement
+     * -segment BYTES   size of the segment files, default 64 MB
+     * -sync            sync the segment before acknowledging
+     * -report S        seconds between rate reports, default 10
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int port = 8080;
+        String bind = "0.0.0.0";
+        File dir = new File("collector");
+        String formats = DEFAULT_FORMATS;
+        long latency = 0;
+        long segment = DEFAULT_SEGMENT_BYTES;
+        boolean sync = false;
+        long report = 10;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-sync"))
+                sync = true;
+            else if (i + 1 >= args.length)
+                break;
+            else if (args[i].equals("-port"))
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-bind"))
+                bind = args[++i];
+            else if (args[i].equals("-dir"))
+                dir = new File(args[++i]);
+            else if (args[i].equals("-formats"))
+                formats = args[++i];
+            else if (args[i].equals("-latency"))
+                latency = Long.parseLong(args[++i]);
+            else if (args[i].equals("-segment"))
+                segment = Long.parseLong(args[++i]);
+            else if (args[i].equals("-report"))
+                report = Long.parseLong(args[++i]);
+        }
+
+        dir.mkdirs();
+        final Collector collector = new Collector(
+                new InetSocketAddress(bind, port), dir, latency, segment,
+                sync, report * 1000);
+        collector.setFormats(formats);
+        System.out.println("Collecting " + collector.getUrl() + " and "
+                + collector.getTcpUrl() + " into " + dir);
+
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            public void run()
+            {
+                collector.stop();
+                System.out.println("Collected " + collector);
+            }
+        });
+        collector.mThread.join();
+    }
+}
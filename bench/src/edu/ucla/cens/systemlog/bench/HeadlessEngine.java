@@ -0,0 +1,271 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench;
+
+import edu.ucla.cens.systemlog.Clock;
+import edu.ucla.cens.systemlog.EngineLog;
+import edu.ucla.cens.systemlog.EngineMetrics;
+import edu.ucla.cens.systemlog.FileTransport;
+import edu.ucla.cens.systemlog.LogFields;
+import edu.ucla.cens.systemlog.LogIngest;
+import edu.ucla.cens.systemlog.RoutingTable;
+import edu.ucla.cens.systemlog.UploadPolicy;
+import edu.ucla.cens.systemlog.UploadRouter;
+import edu.ucla.cens.systemlog.UploadStats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Runs the SystemLog engine on a plain JVM, without the Android
+ * service around it: records are logged through LogIngest, flushed
+ * to an SQLite file through JdbcRecordStore, and uploaded by an
+ * UploadRouter to a local Collector, over HTTP or with -tcp over its
+ * socket protocol. Exits with status 1 if the collector did not
+ * store every record exactly once or records were left in the store.
+ *
+ * With -dump plain or -dump gzip the records are routed to a file:
+ * destination instead, so FileTransport writes them to segment files
+ * of -segment bytes as in local mode, and the records in the files
+ * are counted.
+ *
+ * With -fields every other record is logged with typed fields, as by
+ * Log.i(String, String, LogFields); with -dump the records in the
+ * files that carry them as a JSON object are counted too.
+ *
+ * This is the smallest setup the engine needs, and a starting point
+ * for exercising it off the phone.
+ *
+ * @author  Hossein Falaki
+ */
+public class HeadlessEngine
+{
+    private static final String[] LEVELS = {"error", "warning", "info",
+        "debug", "verbose"};
+
+    public static void main(String[] args) throws Exception
+    {
+        int records = 10000;
+        int loggers = 4;
+        int flushEvery = 200;
+        long latency = 20;
+        boolean verbose = false;
+        boolean tcp = false;
+        boolean structured = false;
+        String dump = null;
+        long segment = FileTransport.DEFAULT_SEGMENT_BYTES;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-v"))
+                verbose = true;
+            else if (args[i].equals("-tcp"))
+                tcp = true;
+            else if (args[i].equals("-fields"))
+                structured = true;
+            else if (i + 1 >= args.length)
+                break;
+            else if (args[i].equals("-records"))
+                records = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-loggers"))
+                loggers = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-flush"))
+                flushEvery = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-latency"))
+                latency = Long.parseLong(args[++i]);
+            else if (args[i].equals("-dump"))
+                dump = args[++i];
+            else if (args[i].equals("-segment"))
+                segment = Long.parseLong(args[++i]);
+        }
+
+        if (!verbose)
+        {
+            EngineLog.setSink(new EngineLog.Sink()
+            {
+                public void log(int priority, String tag, String msg,
+                        Throwable tr)
+                {
+                    if (priority >= EngineLog.WARN)
+                        EngineLog.STDERR.log(priority, tag, msg, tr);
+                }
+            });
+        }
+
+        File file = File.createTempFile("systemlog", ".db");
+        file.deleteOnExit();
+        JdbcRecordStore store = new JdbcRecordStore(file.getPath());
+        File collected = createTempDir("systemlog-collector");
+        Collector server = new Collector(collected, latency);
+        EngineMetrics metrics = new EngineMetrics(Clock.SYSTEM);
+        UploadRouter router = new UploadRouter(store, "headless", metrics);
+        LogIngest ingest = new LogIngest(store, Clock.SYSTEM, "headless",
+                metrics);
+
+        System.out.println("records=" + records + " loggers=" + loggers
+                + " flush=" + flushEvery + " latency=" + latency + "ms");
+
+        boolean ok;
+        LogFields fields = new LogFields();
+        try
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++)
+            {
+                if (structured && (i % 2 == 0))
+                    ingest.createEntry("headless record", "Headless",
+                            LEVELS[i % LEVELS.length], 
+                            "logger" + (i % loggers), fields.clear()
+                            .put("i", i).put("share", i / (double) records)
+                            .put("even", true).put("run", "headless")
+                            .toByteArray(), null, -1, 0);
+                else
+                    ingest.createEntry("headless record " + i, "Headless",
+                            LEVELS[i % LEVELS.length],
+                            "logger" + (i % loggers));
+                if ((i + 1) % flushEvery == 0)
+                    ingest.flush();
+            }
+            ingest.flush();
+            long ingested = System.nanoTime();
+            System.out.println("ingest=" + (ingested - start) / 1000000
+                    + "ms");
+
+            if (dump != null)
+            {
+                ok = dump(router, store, records, dump.equals("gzip"),
+                        segment, structured ? (records + 1) / 2 : 0);
+                System.out.println("dump=" + (System.nanoTime() - ingested)
+                        / 1000000 + "ms");
+            }
+            else
+            {
+                router.setRoutes(RoutingTable.parse("url=" + (tcp
+                            ? server.getTcpUrl() : server.getUrl())));
+                ok = upload(router, server, store, records, ingested);
+            }
+            System.out.println("metrics: " + metrics.snapshot());
+        }
+        finally
+        {
+            router.shutdown();
+            server.stop();
+            store.shutdown();
+            deleteOnExit(collected);
+        }
+
+        if (!ok)
+        {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    /**
+     * Uploads the store to the collector and checks that it stored
+     * every record.
+     */
+    private static boolean upload(UploadRouter router,
+            Collector server, JdbcRecordStore store, int records,
+            long ingested)
+    {
+        long delay = router.tryUpload(getConditions());
+        long uploaded = System.nanoTime();
+
+        System.out.println("upload=" + (uploaded - ingested) / 1000000
+                + "ms retry=" + delay + "ms");
+        for (Map.Entry<String, UploadStats> e
+                : router.getLastStats().entrySet())
+            System.out.println(e.getKey() + ": " + e.getValue());
+        System.out.println("collector: " + server + ", left in store: "
+                + store.getRecordCount());
+        return (server.getRecordCount() == records)
+            && (store.getRecordCount() == 0);
+    }
+
+    /**
+     * Dumps the store to segment files in a temporary directory and
+     * checks that they hold every record, and the given number of
+     * records with fields.
+     */
+    private static boolean dump(UploadRouter router, 
+            JdbcRecordStore store, int records, boolean compress, 
+            long segment, int structured) throws IOException
+    {
+        File dir = createTempDir("systemlog-dump");
+
+        router.setRoutes(RoutingTable.parse("url=" + dir.toURI()
+                    + "?gzip=" + compress + "&segment=" + segment));
+        router.tryUpload(getConditions());
+        long dumped = 0;
+        for (UploadStats stats : router.getLastStats().values())
+            dumped += stats.records;
+
+        long lines = 0, withFields = 0, bytes = 0;
+        File[] files = dir.listFiles();
+        for (File file : files)
+        {
+            bytes += file.length();
+            InputStream in = new FileInputStream(file);
+            if (compress)
+                in = new GZIPInputStream(in);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                lines++;
+                if (line.contains("\"fields\":{"))
+                    withFields++;
+            }
+            reader.close();
+        }
+        deleteOnExit(dir);
+
+        System.out.println("dumped=" + dumped + " segments="
+                + files.length + " bytes=" + bytes + " lines=" + lines
+                + " fields=" + withFields + ", left in store: " 
+                + store.getRecordCount());
+        return (lines == records) && (withFields == structured)
+            && (store.getRecordCount() == 0);
+    }
+
+    static File createTempDir(String prefix) throws IOException
+    {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    static void deleteOnExit(File dir)
+    {
+        // Registered first, so deleted last
+        dir.deleteOnExit();
+        for (File file : dir.listFiles())
+            file.deleteOnExit();
+    }
+
+    private static UploadPolicy.Conditions getConditions()
+    {
+        UploadPolicy.Conditions conditions =
+            new UploadPolicy.Conditions();
+        conditions.charging = true;
+        conditions.batteryPercent = 100;
+        conditions.network = UploadPolicy.NETWORK_WIFI;
+        conditions.now = System.currentTimeMillis();
+        return conditions;
+    }
+}
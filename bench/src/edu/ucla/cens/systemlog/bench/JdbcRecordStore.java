@@ -0,0 +1,517 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench;
+
+import edu.ucla.cens.systemlog.LogRecord;
+import edu.ucla.cens.systemlog.RecordCursor;
+import edu.ucla.cens.systemlog.RecordStore;
+import edu.ucla.cens.systemlog.Selections;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * RecordStore of the engine on a plain JVM: an SQLite database,
+ * through JDBC, with the schema of SystemLogDbAdaptor. Selections are
+ * SQL like on the phone, so the engine runs unchanged.
+ *
+ * The connection is opened with the store and stays open until
+ * shutdown(); open() and close() only have to be balanced. Cursors
+ * hold their rows in memory, so they stay valid while the store
+ * changes.
+ *
+ * SQL errors are thrown as RuntimeExceptions, as
+ * android.database.SQLException is on the phone.
+ *
+ * @author  Hossein Falaki
+ */
+public class JdbcRecordStore implements RecordStore
+{
+    private static final String DATABASE_CREATE =
+            "create table if not exists systemlog (_id integer primary "
+           + "key autoincrement, logger text not null, "
+           + "recordtime text not null, logrecord text not null, "
+           + "tag text, level text, timestamp integer, message text, "
+           + "client_time integer, flush_time integer, fields blob)";
+    private static final String LEVEL_INDEX_CREATE =
+            "create index if not exists systemlog_level on systemlog "
+           + "(level, _id)";
+    private static final String LOGGER_INDEX_CREATE =
+            "create index if not exists systemlog_logger on systemlog "
+           + "(logger, _id)";
+    private static final String INFLIGHT_CREATE =
+            "create table if not exists inflight (batch_id text primary "
+           + "key, from_id integer not null, to_id integer not null, "
+           + "created integer not null, selection text, "
+           + "destination text)";
+    private static final String META_CREATE =
+            "create table if not exists meta (key text primary key, "
+           + "value text not null)";
+
+    private static final String INSERT =
+            "insert into systemlog (logger, logrecord, recordtime, tag, "
+           + "level, timestamp, message, client_time, flush_time, fields) "
+           + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String RECORD_COLUMNS = KEY_ROWID + ", "
+        + KEY_LOGGER + ", " + KEY_TIME + ", " + KEY_LOGRECORD + ", "
+        + KEY_TAG + ", " + KEY_LEVEL + ", " + KEY_TIMESTAMP + ", "
+        + KEY_MESSAGE + ", " + KEY_CLIENT_TIME + ", " + KEY_FLUSH_TIME
+        + ", " + KEY_FIELDS;
+
+    private static final String META_GENERATION = "generation";
+
+    private final Connection mDb;
+    private int mOpenCount;
+
+    /** Whether every record is committed on its own */
+    private boolean mCommitEach;
+
+
+    /**
+     * Constructor - opens or creates the database in the given file.
+     *
+     * @param   path        database file
+     * @throws  SQLException if the database cannot be opened
+     */
+    public JdbcRecordStore(String path) throws SQLException
+    {
+        mDb = DriverManager.getConnection("jdbc:sqlite:" + path);
+        execute(DATABASE_CREATE);
+        execute(LEVEL_INDEX_CREATE);
+        execute(LOGGER_INDEX_CREATE);
+        execute(INFLIGHT_CREATE);
+        execute(META_CREATE);
+    }
+
+
+    public synchronized RecordStore open()
+    {
+        mOpenCount++;
+        return this;
+    }
+
+    public synchronized void close()
+    {
+        if (mOpenCount > 0)
+            mOpenCount--;
+    }
+
+    /**
+     * Sets whether insertRecords() commits every record on its own,
+     * as SystemLogDbAdaptor does on the phone, rather than all
+     * records in one transaction.
+     *
+     * @param   commitEach  true to commit every record
+     */
+    public synchronized void setCommitEach(boolean commitEach)
+    {
+        mCommitEach = commitEach;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public synchronized void shutdown() throws SQLException
+    {
+        mDb.close();
+    }
+
+    public synchronized void tickle()
+    {
+        if (queryLong("select count(*) from systemlog") != 0)
+            return;
+
+        execute("drop table systemlog");
+        execute(DATABASE_CREATE);
+        execute(LEVEL_INDEX_CREATE);
+        execute(LOGGER_INDEX_CREATE);
+        execute("delete from inflight");
+        putMeta(META_GENERATION,
+                String.valueOf(System.currentTimeMillis()));
+    }
+
+    /**
+     * Stores the records in one transaction, unlike the phone, which
+     * commits every record on its own, unless setCommitEach() was
+     * called.
+     */
+    public synchronized void insertRecords(List<LogRecord> records,
+            long flushTime)
+    {
+        try
+        {
+            mDb.setAutoCommit(mCommitEach);
+            PreparedStatement insert = mDb.prepareStatement(INSERT);
+            try
+            {
+                for (LogRecord record : records)
+                {
+                    insert.setString(1, record.logger);
+                    insert.setString(2, record.json);
+                    insert.setString(3, record.time);
+                    insert.setString(4, record.tag);
+                    insert.setString(5, record.level);
+                    insert.setLong(6, record.timestamp);
+                    insert.setString(7, record.message);
+                    if (record.clientTime > 0)
+                        insert.setLong(8, record.clientTime);
+                    else
+                        insert.setNull(8, Types.INTEGER);
+                    insert.setLong(9, flushTime);
+                    insert.setBytes(10, record.fields);
+                    insert.executeUpdate();
+                }
+                if (!mCommitEach)
+                    mDb.commit();
+            }
+            finally
+            {
+                insert.close();
+                if (!mDb.getAutoCommit())
+                    mDb.rollback();
+                mDb.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized RecordCursor fetchEntries(String selection)
+    {
+        return query("select " + RECORD_COLUMNS + " from systemlog"
+                + where(selection) + " order by " + KEY_ROWID);
+    }
+
+    public synchronized RecordCursor fetchEntries(String selection,
+            int limit)
+    {
+        return query("select " + RECORD_COLUMNS + " from systemlog"
+                + where(selection) + " order by " + KEY_ROWID
+                + " limit " + limit);
+    }
+
+    public RecordCursor fetchAllEntries()
+    {
+        return fetchEntries(null);
+    }
+
+    public synchronized RecordCursor fetchBacklog(String selection)
+    {
+        return query("select " + KEY_LEVEL + ", count(*), min("
+                + KEY_TIMESTAMP + ") from systemlog" + where(selection)
+                + " group by " + KEY_LEVEL);
+    }
+
+    public synchronized RecordCursor fetchLoggerBacklog(String selection)
+    {
+        return query("select " + KEY_LOGGER + ", count(*) from systemlog"
+                + where(selection) + " group by " + KEY_LOGGER);
+    }
+
+    public synchronized boolean deleteEntry(long rowId)
+    {
+        return update("delete from systemlog where " + KEY_ROWID
+                + " = ?", rowId) > 0;
+    }
+
+    public synchronized long getGeneration()
+    {
+        String value = getMeta(META_GENERATION);
+        if (value != null)
+            return Long.parseLong(value);
+
+        long generation = System.currentTimeMillis();
+        putMeta(META_GENERATION, String.valueOf(generation));
+        return generation;
+    }
+
+    public synchronized String getMeta(String key)
+    {
+        RecordCursor c = query("select value from meta where key = ?",
+                key);
+        try
+        {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+        finally
+        {
+            c.close();
+        }
+    }
+
+    public synchronized void putMeta(String key, String value)
+    {
+        update("insert or replace into meta (key, value) values (?, ?)",
+                key, value);
+    }
+
+    public synchronized void putInflightBatch(String batchId,
+            long fromId, long toId, String selection, String destination)
+    {
+        update("insert or replace into inflight (batch_id, from_id, "
+                + "to_id, created, selection, destination) values "
+                + "(?, ?, ?, ?, ?, ?)", batchId, fromId, toId,
+                System.currentTimeMillis(), selection, destination);
+    }
+
+    public synchronized void deleteInflightBatch(String batchId)
+    {
+        update("delete from inflight where " + KEY_BATCH_ID + " = ?",
+                batchId);
+    }
+
+    public synchronized RecordCursor fetchInflightBatches(
+            String destination, boolean isDefault)
+    {
+        String selection = KEY_DESTINATION + " = ?";
+        if (isDefault)
+            selection += " OR " + KEY_DESTINATION + " IS NULL";
+        return query("select " + KEY_BATCH_ID + ", " + KEY_FROM_ID + ", "
+                + KEY_TO_ID + ", " + KEY_SELECTION + " from inflight where "
+                + selection + " order by " + KEY_FROM_ID, destination);
+    }
+
+    public synchronized boolean completeBatch(String batchId,
+            long fromId, long toId, String selection)
+    {
+        try
+        {
+            mDb.setAutoCommit(false);
+            try
+            {
+                boolean deleted = update("delete from systemlog where "
+                        + Selections.rangeSelection(fromId, toId,
+                            selection)) > 0;
+                deleteInflightBatch(batchId);
+                mDb.commit();
+                return deleted;
+            }
+            finally
+            {
+                if (!mDb.getAutoCommit())
+                    mDb.rollback();
+                mDb.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the number of records in the store.
+     *
+     * @return              number of records
+     */
+    public synchronized long getRecordCount()
+    {
+        return queryLong("select count(*) from systemlog");
+    }
+
+
+    private static String where(String selection)
+    {
+        return (selection == null) ? "" : " where " + selection;
+    }
+
+    private void execute(String sql)
+    {
+        try
+        {
+            Statement s = mDb.createStatement();
+            try
+            {
+                s.execute(sql);
+            }
+            finally
+            {
+                s.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int update(String sql, Object... args)
+    {
+        try
+        {
+            PreparedStatement s = mDb.prepareStatement(sql);
+            try
+            {
+                for (int i = 0; i < args.length; i++)
+                    s.setObject(i + 1, args[i]);
+                return s.executeUpdate();
+            }
+            finally
+            {
+                s.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long queryLong(String sql)
+    {
+        RecordCursor c = query(sql);
+        try
+        {
+            c.moveToFirst();
+            return c.getLong(0);
+        }
+        finally
+        {
+            c.close();
+        }
+    }
+
+    private RecordCursor query(String sql, Object... args)
+    {
+        try
+        {
+            PreparedStatement s = mDb.prepareStatement(sql);
+            try
+            {
+                for (int i = 0; i < args.length; i++)
+                    s.setObject(i + 1, args[i]);
+                ResultSet rs = s.executeQuery();
+                ResultSetMetaData meta = rs.getMetaData();
+                String[] columns = new String[meta.getColumnCount()];
+                for (int i = 0; i < columns.length; i++)
+                    columns[i] = meta.getColumnLabel(i + 1);
+
+                ArrayList<Object[]> rows = new ArrayList<Object[]>();
+                while (rs.next())
+                {
+                    Object[] row = new Object[columns.length];
+                    for (int i = 0; i < row.length; i++)
+                        row[i] = rs.getObject(i + 1);
+                    rows.add(row);
+                }
+                rs.close();
+                return new RowCursor(columns, rows);
+            }
+            finally
+            {
+                s.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Cursor over rows held in memory, with the semantics of an
+     * Android Cursor: it starts before the first row.
+     */
+    private static class RowCursor implements RecordCursor
+    {
+        private final String[] mColumns;
+        private final ArrayList<Object[]> mRows;
+        private int mPosition = -1;
+
+        RowCursor(String[] columns, ArrayList<Object[]> rows)
+        {
+            mColumns = columns;
+            mRows = rows;
+        }
+
+        public int getCount()
+        {
+            return mRows.size();
+        }
+
+        public int getPosition()
+        {
+            return mPosition;
+        }
+
+        public boolean moveToFirst()
+        {
+            return moveToPosition(0);
+        }
+
+        public boolean moveToNext()
+        {
+            return moveToPosition(mPosition + 1);
+        }
+
+        public boolean moveToPosition(int position)
+        {
+            mPosition = Math.max(-1, Math.min(position, mRows.size()));
+            return (mPosition >= 0) && (mPosition < mRows.size());
+        }
+
+        public boolean isAfterLast()
+        {
+            return mPosition >= mRows.size();
+        }
+
+        public int getColumnIndex(String columnName)
+        {
+            for (int i = 0; i < mColumns.length; i++)
+                if (mColumns[i].equalsIgnoreCase(columnName))
+                    return i;
+            return -1;
+        }
+
+        public boolean isNull(int columnIndex)
+        {
+            return mRows.get(mPosition)[columnIndex] == null;
+        }
+
+        public String getString(int columnIndex)
+        {
+            Object value = mRows.get(mPosition)[columnIndex];
+            return (value == null) ? null : value.toString();
+        }
+
+        public int getInt(int columnIndex)
+        {
+            return (int) getLong(columnIndex);
+        }
+
+        public long getLong(int columnIndex)
+        {
+            Object value = mRows.get(mPosition)[columnIndex];
+            if (value == null)
+                return 0;
+            if (value instanceof Number)
+                return ((Number) value).longValue();
+            return Long.parseLong(value.toString());
+        }
+
+        public byte[] getBlob(int columnIndex)
+        {
+            return (byte[]) mRows.get(mPosition)[columnIndex];
+        }
+
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench;
+
+import edu.ucla.cens.systemlog.Clock;
+import edu.ucla.cens.systemlog.EngineLog;
+import edu.ucla.cens.systemlog.EngineMetrics;
+import edu.ucla.cens.systemlog.FlushScheduler;
+import edu.ucla.cens.systemlog.IngestTrace;
+import edu.ucla.cens.systemlog.LogIngest;
+import edu.ucla.cens.systemlog.LogRecord;
+import edu.ucla.cens.systemlog.RoutingTable;
+import edu.ucla.cens.systemlog.UploadPolicy;
+import edu.ucla.cens.systemlog.UploadRouter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Drives the ingest path of the engine from many simulated clients
+ * at once, to find the load a device absorbs before its backlog
+ * grows without bound.
+ *
+ * Each client is a thread that logs through SystemLog.log()'s path:
+ * the message is sanitized and handed to LogIngest. A flusher thread
+ * flushes the buffer the way the service does, when FlushScheduler
+ * says it is full or too old, and an uploader thread keeps uploading
+ * to a local Collector. Options:
+ *
+ * <ul>
+ * <li>-clients N: number of concurrent clients.</li>
+ * <li>-rate R: records per second of each client, 0 for as fast as
+ * possible.</li>
+ * <li>-seconds S: length of the run.</li>
+ * <li>-size D: message length distribution in characters,
+ * "fixed:N", "uniform:MIN-MAX" or "exp:MEAN" (exponential, with a long
+ * tail of large messages).</li>
+ * <li>-levels W: weights of error, warning, info, debug and verbose,
+ * for example "1,2,10,20,0".</li>
+ * <li>-tags N: number of distinct tags of each client.</li>
+ * <li>-burst ON/OFF: clients log in bursts of ON ms separated by OFF
+ * ms of silence, "0/0" for steady logging.</li>
+ * <li>-latency MS: response delay of the collector.</li>
+ * <li>-commit C: "record" to commit every record on its own, as the
+ * phone does, or "batch" to commit each flush in one
+ * transaction.</li>
+ * <li>-capture FILE: captures the records taken in to a trace that
+ * TraceReplay can replay.</li>
+ * </ul>
+ *
+ * Every second a line shows the records ingested, flushed and
+ * uploaded in that second, the buffer and database backlog, and the
+ * heap in use. The summary gives the sustained rates, the ingest
+ * latency percentiles of a single log call, the heap high-water mark
+ * and the backlog left. The load is sustainable if the database
+ * backlog stays bounded.
+ *
+ * @author  Hossein Falaki
+ */
+public class LoadGenerator
+{
+    private static final String[] LEVELS = {"error", "warning", "info",
+        "debug", "verbose"};
+
+    /** Latency samples kept per client, beyond which samples are
+     * replaced at random so that they stay a uniform sample. Small
+     * enough not to distort the heap high-water mark much */
+    private static final int MAX_SAMPLES = 1 << 17;
+
+    /** Flush limits, as in SystemLog */
+    private static final int FLUSH_FILL_THRESHOLD = 200;
+    private static final long FLUSH_MAX_AGE = 2 * 60 * 1000;
+
+
+    /**
+     * Distribution of message lengths.
+     */
+    static class SizeDistribution
+    {
+        private final String mKind;
+        private final int mA, mB;
+
+        SizeDistribution(String spec)
+        {
+            String[] parts = spec.split(":", 2);
+            mKind = parts[0];
+            if (mKind.equals("uniform"))
+            {
+                String[] range = parts[1].split("-");
+                mA = Integer.parseInt(range[0]);
+                mB = Integer.parseInt(range[1]);
+            }
+            else if (mKind.equals("fixed") || mKind.equals("exp"))
+            {
+                mA = Integer.parseInt(parts[1]);
+                mB = mA;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown size "
+                        + "distribution: " + spec);
+            }
+        }
+
+        int next(Random random)
+        {
+            if (mKind.equals("uniform"))
+                return mA + random.nextInt(mB - mA + 1);
+            if (mKind.equals("exp"))
+                return 1 + (int) (-mA * Math.log(1 - random.nextDouble()));
+            return mA;
+        }
+
+        public String toString()
+        {
+            return mKind + ":" + (mKind.equals("uniform")
+                    ? mA + "-" + mB : String.valueOf(mA));
+        }
+    }
+
+    /**
+     * One simulated client.
+     */
+    static class Client extends Thread
+    {
+        private final LogIngest mIngest;
+        private final FlushScheduler mScheduler;
+        private final Object mFlushSignal;
+        private final int mId;
+        private final long mRate;
+        private final SizeDistribution mSizes;
+        private final int[] mLevelWeights;
+        private final int mTags;
+        private final long mBurstOn, mBurstOff;
+        private final long mEnd;
+        private final CountDownLatch mStart;
+        private final Random mRandom;
+
+        long[] samples = new long[1024];
+        long count;
+
+        Client(int id, LogIngest ingest, FlushScheduler scheduler,
+                Object flushSignal, long rate, SizeDistribution sizes,
+                int[] levelWeights, int tags, long burstOn, long burstOff,
+                long end, CountDownLatch start)
+        {
+            super("LoadClient" + id);
+            mId = id;
+            mIngest = ingest;
+            mScheduler = scheduler;
+            mFlushSignal = flushSignal;
+            mRate = rate;
+            mSizes = sizes;
+            mLevelWeights = levelWeights;
+            mTags = tags;
+            mBurstOn = burstOn;
+            mBurstOff = burstOff;
+            mEnd = end;
+            mStart = start;
+            mRandom = new Random(id);
+        }
+
+        public void run()
+        {
+            char[] text = new char[4096];
+            for (int i = 0; i < text.length; i++)
+                text[i] = (char) ('a' + (i * 7 + mId) % 26);
+
+            int weights = 0;
+            for (int w : mLevelWeights)
+                weights += w;
+
+            try
+            {
+                mStart.await();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            long start = System.nanoTime();
+            long interval = (mRate > 0) ? 1000000000L / mRate : 0;
+            long next = start;
+            long sequence = 0;
+
+            while (true)
+            {
+                long now = System.nanoTime();
+                if (now >= mEnd)
+                    break;
+
+                if (mBurstOff > 0)
+                {
+                    long phase = ((now - start) / 1000000)
+                        % (mBurstOn + mBurstOff);
+                    if (phase >= mBurstOn)
+                    {
+                        sleepNanos((mBurstOn + mBurstOff - phase)
+                                * 1000000);
+                        next = System.nanoTime();
+                        continue;
+                    }
+                }
+
+                if (interval > 0)
+                {
+                    if (now < next)
+                        sleepNanos(next - now);
+                    next += interval;
+                }
+
+                int size = Math.min(mSizes.next(mRandom), text.length);
+                String message = new String(text, 0, size);
+                String tag = "Load" + mId + "." + mRandom.nextInt(mTags);
+                String level = pickLevel(weights);
+
+                long t0 = System.nanoTime();
+                mIngest.createEntry(LogRecord.sanitize(message), tag,
+                        level, "load" + mId, "load" + mId, sequence++,
+                        System.currentTimeMillis());
+                long t1 = System.nanoTime();
+                if (mScheduler.onRecord(t1 / 1000000)
+                        == FlushScheduler.RECORD_FLUSH)
+                {
+                    synchronized (mFlushSignal)
+                    {
+                        mFlushSignal.notify();
+                    }
+                }
+                addSample(t1 - t0);
+            }
+        }
+
+        private String pickLevel(int weights)
+        {
+            int pick = mRandom.nextInt(weights);
+            for (int i = 0; i < mLevelWeights.length; i++)
+            {
+                pick -= mLevelWeights[i];
+                if (pick < 0)
+                    return LEVELS[i];
+            }
+            return LEVELS[LEVELS.length - 1];
+        }
+
+        private void addSample(long nanos)
+        {
+            if (count < MAX_SAMPLES)
+            {
+                if (count == samples.length)
+                    samples = Arrays.copyOf(samples, samples.length * 2);
+                samples[(int) count] = nanos;
+            }
+            else
+            {
+                long slot = (long) (mRandom.nextDouble() * (count + 1));
+                if (slot < MAX_SAMPLES)
+                    samples[(int) slot] = nanos;
+            }
+            count++;
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception
+    {
+        int clients = 8;
+        long rate = 0;
+        int seconds = 20;
+        String size = "exp:120";
+        String levels = "1,2,10,20,5";
+        int tags = 4;
+        String burst = "0/0";
+        long latency = 20;
+        String commit = "record";
+        String capture = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals("-clients"))
+                clients = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-rate"))
+                rate = Long.parseLong(args[i + 1]);
+            else if (args[i].equals("-seconds"))
+                seconds = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-size"))
+                size = args[i + 1];
+            else if (args[i].equals("-levels"))
+                levels = args[i + 1];
+            else if (args[i].equals("-tags"))
+                tags = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-burst"))
+                burst = args[i + 1];
+            else if (args[i].equals("-latency"))
+                latency = Long.parseLong(args[i + 1]);
+            else if (args[i].equals("-commit"))
+                commit = args[i + 1];
+            else if (args[i].equals("-capture"))
+                capture = args[i + 1];
+        }
+
+        SizeDistribution sizes = new SizeDistribution(size);
+        String[] weightSpec = levels.split(",");
+        int[] levelWeights = new int[LEVELS.length];
+        for (int i = 0; i < levelWeights.length; i++)
+            levelWeights[i] = (i < weightSpec.length)
+                ? Integer.parseInt(weightSpec[i].trim()) : 0;
+        String[] burstSpec = burst.split("/");
+        long burstOn = Long.parseLong(burstSpec[0]);
+        long burstOff = Long.parseLong(burstSpec[1]);
+
+        EngineLog.setSink(new EngineLog.Sink()
+        {
+            public void log(int priority, String tag, String msg,
+                    Throwable tr)
+            {
+                if (priority >= EngineLog.ERROR)
+                    EngineLog.STDERR.log(priority, tag, msg, tr);
+            }
+        });
+
+        System.out.println("clients=" + clients + " rate="
+                + ((rate == 0) ? "max" : rate + "/s") + " seconds="
+                + seconds + " size=" + sizes + " levels=" + levels
+                + " tags=" + tags + " burst=" + burst + " latency="
+                + latency + "ms commit=" + commit);
+
+        File file = File.createTempFile("systemlog-load", ".db");
+        file.deleteOnExit();
+        final JdbcRecordStore store = new JdbcRecordStore(file.getPath());
+        store.setCommitEach(commit.equals("record"));
+        File collected = HeadlessEngine.createTempDir("systemlog-load");
+        Collector server = new Collector(collected, latency);
+        final EngineMetrics metrics = new EngineMetrics(Clock.SYSTEM);
+        final UploadRouter router = new UploadRouter(store, "load",
+                metrics);
+        router.setRoutes(RoutingTable.parse("url=" + server.getUrl()));
+        router.setPipelineDepth(3);
+        final LogIngest ingest = new LogIngest(store, Clock.SYSTEM, "load",
+                metrics);
+        if (capture != null)
+            ingest.setCapture(new IngestTrace.Writer(
+                        new FileOutputStream(capture), false, 0,
+                        Clock.SYSTEM.elapsedRealtime(),
+                        Clock.SYSTEM.currentTimeMillis()));
+        final FlushScheduler scheduler = new FlushScheduler(
+                FLUSH_FILL_THRESHOLD, FLUSH_MAX_AGE, 60 * 1000,
+                2 * 60 * 1000, 60 * 60 * 1000, 100);
+        final Object flushSignal = new Object();
+
+        CountDownLatch start = new CountDownLatch(1);
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        ArrayList<Client> threads = new ArrayList<Client>();
+        for (int i = 0; i < clients; i++)
+        {
+            Client client = new Client(i, ingest, scheduler, flushSignal,
+                    rate, sizes, levelWeights, tags, burstOn, burstOff,
+                    end, start);
+            client.start();
+            threads.add(client);
+        }
+
+        final AtomicLong running = new AtomicLong(1);
+        Thread flusher = new Thread("LoadFlusher")
+        {
+            public void run()
+            {
+                while (running.get() != 0)
+                {
+                    synchronized (flushSignal)
+                    {
+                        try
+                        {
+                            flushSignal.wait(1000);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                    long now = System.nanoTime() / 1000000;
+                    scheduler.onFlush(now, true);
+                    ingest.flush();
+                }
+            }
+        };
+        Thread uploader = new Thread("LoadUploader")
+        {
+            public void run()
+            {
+                UploadPolicy.Conditions conditions =
+                    new UploadPolicy.Conditions();
+                conditions.charging = true;
+                conditions.batteryPercent = 100;
+                conditions.network = UploadPolicy.NETWORK_WIFI;
+                while (running.get() != 0)
+                {
+                    conditions.now = System.currentTimeMillis();
+                    if (router.tryUpload(conditions) > 0)
+                        sleepNanos(100 * 1000000L);
+                    else if (store.getRecordCount() == 0)
+                        sleepNanos(50 * 1000000L);
+                }
+            }
+        };
+        flusher.start();
+        uploader.start();
+
+        System.out.println(String.format("%5s %10s %10s %10s %9s %9s %8s",
+                    "sec", "ingested/s", "flushed/s", "uploaded/s",
+                    "buffered", "backlog", "heapMB"));
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapHigh = 0;
+        long backlogHigh = 0;
+        long lastIngested = 0, lastFlushed = 0, lastUploaded = 0;
+        long began = System.nanoTime();
+        start.countDown();
+
+        for (int sec = 1; System.nanoTime() < end; sec++)
+        {
+            long tick = began + sec * 1000000000L;
+            while (System.nanoTime() < tick)
+            {
+                heapHigh = Math.max(heapHigh,
+                        runtime.totalMemory() - runtime.freeMemory());
+                sleepNanos(Math.min(50 * 1000000L, tick - System.nanoTime()));
+            }
+
+            long ingested = metrics.ingested.get();
+            long flushed = metrics.flushedRecords.get();
+            long uploaded = metrics.uploadedRecords.get();
+            long backlog = store.getRecordCount();
+            backlogHigh = Math.max(backlogHigh, backlog);
+            System.out.println(String.format(
+                        "%5d %10d %10d %10d %9d %9d %8.1f", sec,
+                        ingested - lastIngested, flushed - lastFlushed,
+                        uploaded - lastUploaded, metrics.getBufferDepth(),
+                        backlog, (runtime.totalMemory()
+                            - runtime.freeMemory()) / 1048576.0));
+            lastIngested = ingested;
+            lastFlushed = flushed;
+            lastUploaded = uploaded;
+        }
+
+        long[] all = new long[0];
+        long calls = 0;
+        for (Client client : threads)
+        {
+            client.join();
+            int n = (int) Math.min(client.count, MAX_SAMPLES);
+            long[] merged = Arrays.copyOf(all, all.length + n);
+            System.arraycopy(client.samples, 0, merged, all.length, n);
+            all = merged;
+            calls += client.count;
+        }
+        double elapsed = (System.nanoTime() - began) / 1e9;
+
+        running.set(0);
+        synchronized (flushSignal)
+        {
+            flushSignal.notify();
+        }
+        flusher.join();
+        router.cancel();
+        uploader.join();
+        ingest.flush();
+        long backlog = store.getRecordCount();
+        IngestTrace.Writer captured = ingest.setCapture(null);
+        if (captured != null)
+            captured.close();
+
+        Arrays.sort(all);
+        System.out.println();
+        System.out.println(String.format("sustained: ingest %.0f rec/s, "
+                    + "upload %.0f rec/s (%.1f KB/s)",
+                    calls / elapsed,
+                    metrics.uploadedRecords.get() / elapsed,
+                    metrics.uploadedBytes.get() / elapsed / 1024));
+        System.out.println(String.format("ingest latency: p50 %s p99 %s "
+                    + "p999 %s max %s", micros(all, 50),
+                    micros(all, 99), micros(all, 99.9),
+                    micros(all, 100)));
+        System.out.println(String.format("heap high-water mark: %.1f MB",
+                    heapHigh / 1048576.0));
+        System.out.println("backlog: peak " + backlogHigh + ", left "
+                + backlog + " of " + calls + " records");
+        System.out.println("server: records=" + server.getRecordCount()
+                + " posts=" + server.getPostCount());
+        System.out.println("metrics: " + metrics.snapshot());
+        if (captured != null)
+            System.out.println("captured to " + capture + ": " + captured);
+
+        router.shutdown();
+        server.stop();
+        store.shutdown();
+        HeadlessEngine.deleteOnExit(collected);
+    }
+
+
+    private static String micros(long[] sorted, double percent)
+    {
+        if (sorted.length == 0)
+            return "-";
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        index = Math.max(0, Math.min(index, sorted.length - 1));
+        return String.format("%.1fus", sorted[index] / 1000.0);
+    }
+
+    private static void sleepNanos(long nanos)
+    {
+        if (nanos <= 0)
+            return;
+        try
+        {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench;
+
+import edu.ucla.cens.systemlog.BatchId;
+import edu.ucla.cens.systemlog.FormEncoder;
+import edu.ucla.cens.systemlog.UploadPipeline;
+import edu.ucla.cens.systemlog.UploadStats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ * Measures upload throughput for different numbers of batches in
+ * flight against a local Collector with injected latency.
+ * A depth of 1 is the stop-and-wait behaviour.
+ *
+ * Usage: PipelineBenchmark [-records N] [-latency ms]
+ *          [-recordsize bytes] [-batchbytes bytes] [-depths 1,2,4]
+ *
+ * @author  Hossein Falaki
+ */
+public class PipelineBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int records = 20000;
+        long latency = 200;
+        int recordSize = 200;
+        int batchBytes = 32 * 1024;
+        String depths = "1,2,4,8";
+
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals("-records"))
+                records = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-latency"))
+                latency = Long.parseLong(args[i + 1]);
+            else if (args[i].equals("-recordsize"))
+                recordSize = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-batchbytes"))
+                batchBytes = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-depths"))
+                depths = args[i + 1];
+        }
+
+        ArrayList<String> data = makeRecords(records, recordSize);
+        File collected = HeadlessEngine.createTempDir("systemlog-pipeline");
+        Collector server = new Collector(collected, latency);
+
+        System.out.println("records=" + records
+                + " recordSize=" + recordSize
+                + " batchBytes=" + batchBytes
+                + " latency=" + latency + "ms");
+        System.out.println(String.format("%6s %10s %12s %8s %12s",
+                    "depth", "elapsed", "records/s", "posts",
+                    "connections"));
+
+        try
+        {
+            for (String d : depths.split(","))
+            {
+                int depth = Integer.parseInt(d.trim());
+                server.reset();
+                long elapsed = run(server.getUrl(), data, depth,
+                        batchBytes);
+
+                if (server.getRecordCount() != records)
+                {
+                    System.out.println("Server received "
+                            + server.getRecordCount() + " of "
+                            + records + " records");
+                }
+
+                System.out.println(String.format(
+                            "%6d %8dms %12.0f %8d %12d",
+                            depth, elapsed,
+                            records * 1000.0 / Math.max(1, elapsed),
+                            server.getPostCount(),
+                            server.getConnectionCount()));
+            }
+        }
+        finally
+        {
+            server.stop();
+            HeadlessEngine.deleteOnExit(collected);
+        }
+    }
+
+
+    /**
+     * Uploads all records through a pipeline of the given depth and
+     * returns the elapsed time in milliseconds.
+     */
+    static long run(String url, ArrayList<String> data, int depth,
+            int batchBytes) throws IOException, InterruptedException
+    {
+        final UploadStats stats = new UploadStats();
+        UploadPipeline pipeline = new UploadPipeline(url, depth, 4096,
+                30000, new UploadPipeline.Listener()
+        {
+            public void onAcknowledged(UploadPipeline.Batch batch)
+            {
+                stats.batches++;
+                stats.records += batch.count;
+            }
+        });
+
+        FormEncoder encoder = new FormEncoder(4096);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        try
+        {
+            int next = 0;
+            while (next < data.size())
+            {
+                buffer.reset();
+                encoder.reset(buffer);
+                encoder.writeRaw("data=[");
+                int first = next;
+                while ((next < data.size())
+                        && ((next == first)
+                            || (encoder.getByteCount() < batchBytes)))
+                {
+                    if (next != first)
+                        encoder.writeRaw(", ");
+                    encoder.writeEncoded(data.get(next));
+                    next++;
+                }
+                String batchId = BatchId.create("bench", 0, first,
+                        next - 1);
+                encoder.writeRaw("]&batch=");
+                encoder.writeRaw(batchId);
+                encoder.flush();
+
+                if (!pipeline.submit(new UploadPipeline.Batch(batchId,
+                                first, next - 1, next - first,
+                                "application/x-www-form-urlencoded",
+                                buffer.toByteArray())))
+                    break;
+            }
+            if (!pipeline.finish())
+                System.out.println("Pipeline failed at batch "
+                        + pipeline.getFailedBatch().firstId);
+        }
+        finally
+        {
+            pipeline.shutdown();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Builds JSON records shaped like the ones created by
+     * SystemLogDbAdaptor.
+     */
+    static ArrayList<String> makeRecords(int count, int messageSize)
+    {
+        Random random = new Random(42);
+        ArrayList<String> list = new ArrayList<String>(count);
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < count; i++)
+        {
+            msg.setLength(0);
+            for (int j = 0; j < messageSize; j++)
+                msg.append((char) (0x20 + random.nextInt(0x5f)));
+            String escaped = msg.toString().replace("\\", "\\\\")
+                .replace("\"", "\\\"");
+            list.add("{\"date\":\"2010-06-01 12:00:00\","
+                    + "\"time_stamp\":" + (1275390000000L + i) + ","
+                    + "\"user\":\"353000000000000\","
+                    + "\"tag\":\"Bench\",\"logger\":\"bench\","
+                    + "\"ver\":\"2.2\",\"message\":\"" + escaped + "\","
+                    + "\"level\":\"info\"}");
+        }
+        return list;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+
+/**
+ * Compares JMH results with the checked-in baseline and fails if a
+ * benchmark got slower by more than a threshold.
+ *
+ * Both files are JMH JSON results (-rf json). The benchmarks have to
+ * report time per operation, where a larger score is worse.
+ * Benchmarks that are missing from either file are listed but do not
+ * fail the check.
+ *
+ * Usage: RegressionCheck baseline.json result.json [threshold%]
+ *
+ * @author  Hossein Falaki
+ */
+public class RegressionCheck
+{
+    /** Slowdown in percent that fails the check by default */
+    private static final double DEFAULT_THRESHOLD = 15;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: RegressionCheck baseline.json "
+                    + "result.json [threshold%]");
+            System.exit(2);
+        }
+        double threshold = (args.length > 2)
+            ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+
+        Map<String, JSONObject> baseline = load(new File(args[0]));
+        Map<String, JSONObject> result = load(new File(args[1]));
+
+        int regressions = 0;
+        System.out.println(String.format("%-60s %12s %12s %8s",
+                    "benchmark", "baseline", "result", "change"));
+        for (Map.Entry<String, JSONObject> e : result.entrySet())
+        {
+            JSONObject now = e.getValue().getJSONObject("primaryMetric");
+            JSONObject base = baseline.containsKey(e.getKey())
+                ? baseline.get(e.getKey()).getJSONObject("primaryMetric")
+                : null;
+
+            if (base == null)
+            {
+                System.out.println(String.format("%-60s %12s %12.3f %8s",
+                            e.getKey(), "-", now.getDouble("score"),
+                            "new"));
+                continue;
+            }
+
+            if (!base.getString("scoreUnit").equals(
+                        now.getString("scoreUnit")))
+            {
+                System.out.println(e.getKey() + ": unit changed from "
+                        + base.getString("scoreUnit") + " to "
+                        + now.getString("scoreUnit"));
+                regressions++;
+                continue;
+            }
+
+            double change = (now.getDouble("score")
+                    / base.getDouble("score") - 1) * 100;
+            boolean slower = change > threshold;
+            if (slower)
+                regressions++;
+            System.out.println(String.format("%-60s %12.3f %12.3f %+7.1f%%%s",
+                        e.getKey(), base.getDouble("score"),
+                        now.getDouble("score"), change,
+                        slower ? " REGRESSION" : ""));
+        }
+
+        for (String key : baseline.keySet())
+        {
+            if (!result.containsKey(key))
+                System.out.println(key + ": not in the result");
+        }
+
+        if (regressions > 0)
+        {
+            System.out.println(regressions + " benchmark(s) more than "
+                    + threshold + "% slower than the baseline");
+            System.exit(1);
+        }
+        System.out.println("No benchmark more than " + threshold
+                + "% slower than the baseline");
+    }
+
+    /**
+     * Reads a JMH result file into a map keyed by the benchmark name
+     * and its parameters.
+     */
+    private static Map<String, JSONObject> load(File file)
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        Reader in = new InputStreamReader(new FileInputStream(file),
+                "UTF-8");
+        try
+        {
+            char[] buf = new char[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                sb.append(buf, 0, n);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        LinkedHashMap<String, JSONObject> map =
+            new LinkedHashMap<String, JSONObject>();
+        JSONArray runs = new JSONArray(sb.toString());
+        for (int i = 0; i < runs.length(); i++)
+        {
+            JSONObject run = runs.getJSONObject(i);
+            String key = run.getString("benchmark");
+            key = key.substring(key.lastIndexOf('.',
+                        key.lastIndexOf('.') - 1) + 1);
+
+            JSONObject params = run.optJSONObject("params");
+            if (params != null)
+            {
+                TreeMap<String, String> sorted =
+                    new TreeMap<String, String>();
+                Iterator<String> it = params.keys();
+                while (it.hasNext())
+                {
+                    String name = it.next();
+                    sorted.put(name, params.getString(name));
+                }
+                key += sorted.toString();
+            }
+            map.put(key, run);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench;
+
+import edu.ucla.cens.systemlog.Clock;
+import edu.ucla.cens.systemlog.EngineLog;
+import edu.ucla.cens.systemlog.EngineMetrics;
+import edu.ucla.cens.systemlog.FlushScheduler;
+import edu.ucla.cens.systemlog.IngestTrace;
+import edu.ucla.cens.systemlog.LogIngest;
+import edu.ucla.cens.systemlog.RoutingTable;
+import edu.ucla.cens.systemlog.UploadPolicy;
+import edu.ucla.cens.systemlog.UploadRouter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Pushes a trace captured by SystemLog (see IngestTrace) through the
+ * engine again: the records are taken in by LogIngest, flushed to an
+ * SQLite file through JdbcRecordStore and uploaded to a local
+ * Collector, so that a burst seen on a phone can be used to
+ * evaluate changes to storage and upload. Options:
+ *
+ * <ul>
+ * <li>-trace FILE: the trace to replay. Required.</li>
+ * <li>-speed S: 1 to replay at the speed of the capture, 2 twice as
+ * fast and so on, 0 for as fast as possible.</li>
+ * <li>-latency MS: response delay of the collector.</li>
+ * <li>-commit C: "record" to commit every record on its own, as the
+ * phone does, or "batch" to commit each flush in one
+ * transaction.</li>
+ * </ul>
+ *
+ * The records are taken in on one thread in the order of the trace,
+ * and flushed when FlushScheduler would flush them on the phone,
+ * with its time running on the clock of the trace: a replay flushes
+ * the same records together at any speed. A flush holds up the
+ * records after it, which are counted as late if that puts them
+ * behind the capture by more than 10 ms. Uploads run on a thread of
+ * their own, as on the phone, and are the only part that depends on
+ * timing. Exits with status 1 if the server did not receive every
+ * record, or records were left in the store.
+ *
+ * @author  Hossein Falaki
+ */
+public class TraceReplay
+{
+    /** Flush limits, as in SystemLog */
+    private static final int FLUSH_FILL_THRESHOLD = 200;
+    private static final long FLUSH_MAX_AGE = 2 * 60 * 1000;
+
+    /** Time to wait for the last uploads after the replay */
+    private static final long DRAIN_TIMEOUT = 60 * 1000;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        String trace = null;
+        double speed = 1;
+        long latency = 20;
+        String commit = "record";
+
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals("-trace"))
+                trace = args[i + 1];
+            else if (args[i].equals("-speed"))
+                speed = Double.parseDouble(args[i + 1]);
+            else if (args[i].equals("-latency"))
+                latency = Long.parseLong(args[i + 1]);
+            else if (args[i].equals("-commit"))
+                commit = args[i + 1];
+        }
+        if (trace == null)
+        {
+            System.err.println("usage: TraceReplay -trace FILE [-speed S]"
+                    + " [-latency MS] [-commit record|batch]");
+            System.exit(2);
+        }
+
+        EngineLog.setSink(new EngineLog.Sink()
+        {
+            public void log(int priority, String tag, String msg,
+                    Throwable tr)
+            {
+                if (priority >= EngineLog.WARN)
+                    EngineLog.STDERR.log(priority, tag, msg, tr);
+            }
+        });
+
+        IngestTrace.Reader reader = new IngestTrace.Reader(
+                new FileInputStream(trace));
+        System.out.println("trace=" + trace + " captured="
+                + new Date(reader.getWallTime()) + " hashed="
+                + reader.isHashed() + " speed="
+                + ((speed <= 0) ? "max" : speed + "x") + " latency="
+                + latency + "ms commit=" + commit);
+
+        File file = File.createTempFile("systemlog-replay", ".db");
+        file.deleteOnExit();
+        final JdbcRecordStore store = new JdbcRecordStore(file.getPath());
+        store.setCommitEach(commit.equals("record"));
+        File collected = HeadlessEngine.createTempDir("systemlog-replay");
+        Collector server = new Collector(collected, latency);
+        EngineMetrics metrics = new EngineMetrics(Clock.SYSTEM);
+        final UploadRouter router = new UploadRouter(store, "replay",
+                metrics);
+        router.setRoutes(RoutingTable.parse("url=" + server.getUrl()));
+        router.setPipelineDepth(3);
+        LogIngest ingest = new LogIngest(store, Clock.SYSTEM, "replay",
+                metrics);
+        FlushScheduler scheduler = new FlushScheduler(
+                FLUSH_FILL_THRESHOLD, FLUSH_MAX_AGE, 60 * 1000,
+                2 * 60 * 1000, 60 * 60 * 1000, 100);
+
+        final AtomicLong running = new AtomicLong(1);
+        Thread uploader = new Thread("ReplayUploader")
+        {
+            public void run()
+            {
+                UploadPolicy.Conditions conditions =
+                    new UploadPolicy.Conditions();
+                conditions.charging = true;
+                conditions.batteryPercent = 100;
+                conditions.network = UploadPolicy.NETWORK_WIFI;
+                while (running.get() != 0)
+                {
+                    conditions.now = System.currentTimeMillis();
+                    if (router.tryUpload(conditions) > 0)
+                        sleepMillis(100);
+                    else if (store.getRecordCount() == 0)
+                        sleepMillis(50);
+                }
+            }
+        };
+        uploader.start();
+
+        IngestTrace.Entry entry = new IngestTrace.Entry();
+        long records = 0, flushes = 0, behind = 0;
+        long wakeup = scheduler.nextWakeup(0);
+        long offset = 0;
+        long began = System.nanoTime();
+
+        while (reader.next(entry))
+        {
+            offset = entry.offset;
+
+            // Wakeups of the phone due before the record
+            while (wakeup <= offset)
+            {
+                scheduler.onWakeup(wakeup);
+                scheduler.onFlush(wakeup, false);
+                ingest.flush();
+                flushes++;
+                wakeup = scheduler.nextWakeup(wakeup);
+            }
+
+            String message = entry.getMessage();
+            if (speed > 0)
+            {
+                long due = began + (long) (offset * 1000000 / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    sleepMillis(wait / 1000000);
+                else if (wait < -10 * 1000000L)
+                    behind++;
+            }
+
+            ingest.createEntry(message, entry.tag, entry.level,
+                    entry.logger);
+            records++;
+            switch (scheduler.onRecord(offset))
+            {
+                case FlushScheduler.RECORD_FLUSH:
+                    scheduler.onFlush(offset, true);
+                    ingest.flush();
+                    flushes++;
+                    break;
+                case FlushScheduler.RECORD_RESCHEDULE:
+                    wakeup = scheduler.nextWakeup(offset);
+                    break;
+            }
+        }
+        reader.close();
+        ingest.flush();
+        long replayed = System.nanoTime();
+
+        long drainEnd = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (((server.getRecordCount() < records)
+                    || (store.getRecordCount() > 0))
+                && (System.currentTimeMillis() < drainEnd))
+            sleepMillis(50);
+        long drained = System.nanoTime();
+        running.set(0);
+        router.cancel();
+        uploader.join();
+
+        double replayTime = (replayed - began) / 1e9;
+        System.out.println(String.format("replayed %d records of %.1f s "
+                    + "in %.1f s (%.0f rec/s), %d flushes, %d records "
+                    + "late by more than 10 ms", records, offset / 1000.0,
+                    replayTime, records / Math.max(replayTime, 0.001),
+                    flushes, behind));
+        System.out.println(String.format("uploads done %.1f s after the "
+                    + "last record", (drained - replayed) / 1e9));
+        System.out.println("server: records=" + server.getRecordCount()
+                + " posts=" + server.getPostCount() + " duplicates="
+                + server.getDuplicateCount() + ", left in store: "
+                + store.getRecordCount());
+        System.out.println("metrics: " + metrics.snapshot());
+
+        boolean ok = (server.getRecordCount() == records)
+            && (store.getRecordCount() == 0);
+        router.shutdown();
+        server.stop();
+        store.shutdown();
+        HeadlessEngine.deleteOnExit(collected);
+
+        if (!ok)
+        {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    private static void sleepMillis(long millis)
+    {
+        if (millis <= 0)
+            return;
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
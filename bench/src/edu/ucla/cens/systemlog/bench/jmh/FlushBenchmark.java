@@ -0,0 +1,133 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench.jmh;
+
+import edu.ucla.cens.systemlog.LogRecord;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of flushing the buffer into an embedded SQLite database with
+ * the schema of SystemLogDbAdaptor.
+ *
+ * The autocommit mode inserts every record in its own transaction,
+ * as SystemLogDbAdaptor.insertRecords() does; the transaction mode inserts
+ * the whole buffer in one. The database is a file, since the cost of
+ * a commit is mostly that of syncing it.
+ *
+ * @author  Hossein Falaki
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FlushBenchmark
+{
+    /** Schema of the log table, as in SystemLogDbAdaptor */
+    private static final String DATABASE_CREATE =
+            "create table systemlog (_id integer primary key "
+           + "autoincrement, logger text not null, "
+           + "recordtime text not null, logrecord text not null, "
+           + "tag text, level text, timestamp integer, message text);";
+    private static final String LEVEL_INDEX_CREATE =
+            "create index systemlog_level on systemlog (level, _id);";
+    private static final String LOGGER_INDEX_CREATE =
+            "create index systemlog_logger on systemlog (logger, _id);";
+
+    private static final String INSERT =
+            "insert into systemlog (logger, logrecord, recordtime, tag, "
+           + "level, timestamp, message) values (?, ?, ?, ?, ?, ?, ?)";
+
+    /** Records per flush */
+    @Param({"50", "200"})
+    public int batch;
+
+    /** How a flush is committed: "autocommit" or "transaction" */
+    @Param({"autocommit", "transaction"})
+    public String commit;
+
+    private File mFile;
+    private Connection mDb;
+    private PreparedStatement mInsert;
+    private ArrayList<LogRecord> mRecords;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        mRecords = Records.create(batch, 200);
+
+        mFile = File.createTempFile("systemlog-bench", ".db");
+        mDb = DriverManager.getConnection("jdbc:sqlite:"
+                + mFile.getPath());
+        Statement st = mDb.createStatement();
+        st.execute(DATABASE_CREATE);
+        st.execute(LEVEL_INDEX_CREATE);
+        st.execute(LOGGER_INDEX_CREATE);
+        st.close();
+        mInsert = mDb.prepareStatement(INSERT);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException
+    {
+        mInsert.close();
+        mDb.close();
+        mFile.delete();
+    }
+
+
+    @Benchmark
+    public int flush() throws SQLException
+    {
+        boolean transaction = commit.equals("transaction");
+        if (transaction)
+            mDb.setAutoCommit(false);
+
+        int count = 0;
+        for (LogRecord record : mRecords)
+        {
+            mInsert.setString(1, record.logger);
+            mInsert.setString(2, record.json);
+            mInsert.setString(3, record.time);
+            mInsert.setString(4, record.tag);
+            mInsert.setString(5, record.level);
+            mInsert.setLong(6, record.timestamp);
+            mInsert.setString(7, record.message);
+            count += mInsert.executeUpdate();
+        }
+
+        if (transaction)
+        {
+            mDb.commit();
+            mDb.setAutoCommit(true);
+        }
+        return count;
+    }
+}
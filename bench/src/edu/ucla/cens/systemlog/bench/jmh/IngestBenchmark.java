@@ -0,0 +1,100 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench.jmh;
+
+import edu.ucla.cens.systemlog.LogRecord;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of taking in one log record, as done on the binder thread of
+ * the logging application: the message sanitizer of SystemLog.log(),
+ * the record encoding of LogIngest.createEntry() and the
+ * insertion into the in-memory buffer.
+ *
+ * @author  Hossein Falaki
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IngestBenchmark
+{
+    /** Buffer size at which the service flushes, see SystemLog */
+    private static final int FLUSH_FILL_THRESHOLD = 200;
+
+    /** Message length in characters */
+    @Param({"80", "1000"})
+    public int length;
+
+    /** Whether the messages hold characters the sanitizer removes */
+    @Param({"false", "true"})
+    public boolean unicode;
+
+    private String mMessage;
+    private SimpleDateFormat mFormat;
+    private ArrayList<LogRecord> mBuffer;
+
+
+    @Setup
+    public void setUp()
+    {
+        mMessage = Records.message(new Random(42), length, unicode);
+        mFormat = Records.timeFormat();
+        mBuffer = new ArrayList<LogRecord>();
+    }
+
+
+    @Benchmark
+    public String sanitize()
+    {
+        return LogRecord.sanitize(mMessage);
+    }
+
+    @Benchmark
+    public LogRecord encode() throws JSONException
+    {
+        return LogRecord.create(System.currentTimeMillis(), mFormat,
+                Records.USER, Records.VER, mMessage, "Gps", "info",
+                "locationtracker");
+    }
+
+    /**
+     * The whole ingest path. The buffer is emptied when it reaches
+     * the size at which the service flushes it.
+     */
+    @Benchmark
+    public int ingest() throws JSONException
+    {
+        if (mBuffer.size() == FLUSH_FILL_THRESHOLD)
+            mBuffer = new ArrayList<LogRecord>();
+
+        String message = LogRecord.sanitize(mMessage);
+        mBuffer.add(LogRecord.create(System.currentTimeMillis(), mFormat,
+                    Records.USER, Records.VER, message, "Gps", "info",
+                    "locationtracker"));
+        return mBuffer.size();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench.jmh;
+
+import edu.ucla.cens.systemlog.LogRecord;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * Synthetic log records shared by the benchmarks. The data only
+ * depends on the seed, so every run measures the same records.
+ *
+ * @author  Hossein Falaki
+ */
+class Records
+{
+    static final String USER = "352099001761481";
+    static final String VER = "2.2";
+
+    private static final String[] LOGGERS = {"ohmage", "locationtracker",
+        "androidsyslog2", "mobility"};
+    private static final String[] TAGS = {"Gps", "Upload", "Survey",
+        "Accel", "Wifi", "Service"};
+    private static final String[] LEVELS = {"error", "warning", "info",
+        "debug", "verbose"};
+
+    private static final String WORDS = "abcdefghijklmnopqrstuvwxyz"
+        + "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,:;=/-_";
+
+    /** Non-ASCII characters as they reach the sanitizer from
+     * applications */
+    private static final String UNICODE = "\u00e9\u00fc\u2013\u4e2d\n\t";
+
+
+    private Records()
+    {
+    }
+
+    /**
+     * Returns a message of the given length. A unicode message has
+     * about one character in twenty that the sanitizer removes.
+     */
+    static String message(Random random, int length, boolean unicode)
+    {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+        {
+            if (unicode && (random.nextInt(20) == 0))
+                sb.append(UNICODE.charAt(random.nextInt(UNICODE.length())));
+            else
+                sb.append(WORDS.charAt(random.nextInt(WORDS.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the format SystemLogDbAdaptor uses for the record time.
+     */
+    static SimpleDateFormat timeFormat()
+    {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    }
+
+    /**
+     * Returns count records with messages of the given length, one
+     * second apart.
+     */
+    static ArrayList<LogRecord> create(int count, int length)
+        throws Exception
+    {
+        Random random = new Random(42);
+        SimpleDateFormat format = timeFormat();
+        ArrayList<LogRecord> records = new ArrayList<LogRecord>(count);
+        long time = 1262304000000L;
+        for (int i = 0; i < count; i++)
+        {
+            records.add(LogRecord.create(time + i * 1000L, format, USER,
+                        VER, message(random, length, false),
+                        TAGS[random.nextInt(TAGS.length)],
+                        LEVELS[random.nextInt(LEVELS.length)],
+                        LOGGERS[random.nextInt(LOGGERS.length)]));
+        }
+        return records;
+    }
+}
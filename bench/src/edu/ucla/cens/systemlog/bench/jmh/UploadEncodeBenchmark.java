@@ -0,0 +1,129 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog.bench.jmh;
+
+import edu.ucla.cens.systemlog.BatchId;
+import edu.ucla.cens.systemlog.ColumnarBatchEncoder;
+import edu.ucla.cens.systemlog.FormEncoder;
+import edu.ucla.cens.systemlog.LogRecord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of encoding one upload batch the way Uploader does, in the
+ * form format of writeBatch() and in the columnar format of
+ * scanColumnarBatch() and writeColumnarBatch(). The records come
+ * from a list instead of a cursor and the batch is written to a
+ * stream that only counts bytes, so only the encoding is measured.
+ *
+ * @author  Hossein Falaki
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UploadEncodeBenchmark
+{
+    /** Buffer size of the encoders, as in Uploader */
+    private static final int STREAM_BUFFER_SIZE = 4096;
+
+    /** Records per batch */
+    @Param({"100", "1000"})
+    public int records;
+
+    private ArrayList<LogRecord> mRecords;
+    private FormEncoder mEncoder;
+    private ColumnarBatchEncoder mColumnarEncoder;
+    private CountingStream mOut;
+
+
+    /**
+     * Discards what is written to it and counts the bytes.
+     */
+    static class CountingStream extends OutputStream
+    {
+        long count;
+
+        public void write(int b)
+        {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        mRecords = Records.create(records, 200);
+        mEncoder = new FormEncoder(STREAM_BUFFER_SIZE);
+        mColumnarEncoder = new ColumnarBatchEncoder(Records.USER,
+                Records.VER, STREAM_BUFFER_SIZE);
+        mOut = new CountingStream();
+    }
+
+
+    @Benchmark
+    public long form() throws IOException
+    {
+        mOut.count = 0;
+        mEncoder.reset(mOut);
+        mEncoder.writeRaw("data=[");
+        for (int i = 0; i < mRecords.size(); i++)
+        {
+            if (i > 0)
+                mEncoder.writeRaw(", ");
+            mEncoder.writeEncoded(mRecords.get(i).json);
+        }
+        mEncoder.writeRaw("]");
+        mEncoder.writeRaw("&batch=");
+        mEncoder.writeRaw(BatchId.create(Records.USER, 1, 1,
+                    mRecords.size()));
+        mEncoder.flush();
+        return mOut.count;
+    }
+
+    @Benchmark
+    public long columnar() throws IOException
+    {
+        mOut.count = 0;
+        mColumnarEncoder.begin();
+        for (LogRecord record : mRecords)
+        {
+            mColumnarEncoder.addRecord(record.timestamp, record.logger,
+                    record.tag, record.level, record.message.length());
+        }
+
+        mColumnarEncoder.writeHead(mOut, BatchId.create(Records.USER, 1,
+                    1, mRecords.size()), 0);
+        for (LogRecord record : mRecords)
+            mColumnarEncoder.writeMessage(record.message);
+        mColumnarEncoder.finish();
+        return mOut.count;
+    }
+}
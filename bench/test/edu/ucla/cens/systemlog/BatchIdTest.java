@@ -0,0 +1,46 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of BatchId.
+ *
+ * @author  Hossein Falaki
+ */
+public class BatchIdTest
+{
+    @Test
+    public void isStableForTheSameBatch()
+    {
+        String id = BatchId.create("imei", 3, 100, 199);
+        assertEquals(id, BatchId.create("imei", 3, 100, 199));
+        assertEquals(id, BatchId.create("imei", 3, 100, 199, null));
+        assertEquals(40, id.length());
+        assertTrue(id, id.matches("[0-9a-f]{40}"));
+    }
+
+    @Test
+    public void differsForEveryPartOfTheKey()
+    {
+        String id = BatchId.create("imei", 3, 100, 199);
+        assertFalse(id.equals(BatchId.create("other", 3, 100, 199)));
+        assertFalse(id.equals(BatchId.create("imei", 4, 100, 199)));
+        assertFalse(id.equals(BatchId.create("imei", 3, 101, 199)));
+        assertFalse(id.equals(BatchId.create("imei", 3, 100, 198)));
+        assertFalse(id.equals(BatchId.create("imei", 3, 100, 199,
+                        "logger = 'a'")));
+        assertFalse(BatchId.create("imei", 3, 100, 199, "logger = 'a'")
+                .equals(BatchId.create("imei", 3, 100, 199,
+                        "logger = 'b'")));
+    }
+}
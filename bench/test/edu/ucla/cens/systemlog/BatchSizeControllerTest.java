@@ -0,0 +1,79 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of the AIMD rule of BatchSizeController.
+ *
+ * @author  Hossein Falaki
+ */
+public class BatchSizeControllerTest
+{
+    private static final int MIN = 1000;
+    private static final int MAX = 10000;
+    private static final int STEP = 500;
+    private static final long LOW_LATENCY = 100;
+
+
+    @Test
+    public void clampsInitialTarget()
+    {
+        assertEquals(MIN, newController(10).getTargetBytes());
+        assertEquals(MAX, newController(MAX * 2).getTargetBytes());
+        assertEquals(MIN, new BatchSizeController(MIN, 10, 5000, STEP,
+                    LOW_LATENCY).getTargetBytes());
+    }
+
+    @Test
+    public void growsByStepAfterFastFullBatches()
+    {
+        BatchSizeController c = newController(4000);
+        c.onSuccess(4000, LOW_LATENCY - 1);
+        assertEquals(4500, c.getTargetBytes());
+        c.onSuccess(5000, 0);
+        assertEquals(5000, c.getTargetBytes());
+        for (int i = 0; i < 100; i++)
+            c.onSuccess(MAX, 0);
+        assertEquals(MAX, c.getTargetBytes());
+    }
+
+    @Test
+    public void keepsTargetAfterSlowOrShortBatches()
+    {
+        BatchSizeController c = newController(4000);
+        c.onSuccess(4000, LOW_LATENCY);
+        assertEquals(4000, c.getTargetBytes());
+        c.onSuccess(3999, 0);
+        assertEquals(4000, c.getTargetBytes());
+    }
+
+    @Test
+    public void halvesTargetAfterFailure()
+    {
+        BatchSizeController c = newController(8000);
+        c.onFailure();
+        assertEquals(4000, c.getTargetBytes());
+        c.onFailure();
+        assertEquals(2000, c.getTargetBytes());
+        c.onFailure();
+        c.onFailure();
+        assertEquals(MIN, c.getTargetBytes());
+        c.onSuccess(MIN, 0);
+        assertEquals(MIN + STEP, c.getTargetBytes());
+    }
+
+
+    private static BatchSizeController newController(int initial)
+    {
+        return new BatchSizeController(MIN, MAX, initial, STEP,
+                LOW_LATENCY);
+    }
+}
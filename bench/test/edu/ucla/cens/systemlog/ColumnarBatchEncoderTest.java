@@ -0,0 +1,150 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+
+/**
+ * Tests of ColumnarBatchEncoder, decoding its output the way a server
+ * would.
+ *
+ * @author  Hossein Falaki
+ */
+public class ColumnarBatchEncoderTest
+{
+    private static final long T0 = 1275390000000L;
+
+    /** More records than the initial column size */
+    private static final int RECORDS = 300;
+
+
+    @Test
+    public void encodesColumnsAndDictionaries() throws Exception
+    {
+        // A tiny buffer makes every write drain
+        ColumnarBatchEncoder encoder =
+            new ColumnarBatchEncoder("imei", "2.2", 1);
+        JSONObject batch = encode(encoder, false);
+
+        assertEquals(ColumnarBatchEncoder.FORMAT,
+                batch.getString("format"));
+        assertEquals("batch-1", batch.getString("batch"));
+        assertEquals("imei", batch.getString("user"));
+        assertEquals("2.2", batch.getString("ver"));
+        assertEquals(-25200000, batch.getInt("tz"));
+        assertEquals(T0, batch.getLong("t0"));
+        assertEquals(3, batch.getJSONArray("loggers").length());
+        assertEquals(2, batch.getJSONArray("levels").length());
+        assertFalse(batch.has("fields"));
+
+        JSONArray loggers = batch.getJSONArray("loggers");
+        JSONArray tags = batch.getJSONArray("tags");
+        JSONArray levels = batch.getJSONArray("levels");
+        for (int i = 0; i < RECORDS; i++)
+        {
+            assertEquals(getLogger(i), loggers.getString(
+                        batch.getJSONArray("logger").getInt(i)));
+            assertEquals(getTag(i), tags.getString(
+                        batch.getJSONArray("tag").getInt(i)));
+            assertEquals(getLevel(i), levels.getString(
+                        batch.getJSONArray("level").getInt(i)));
+            assertEquals(getTime(i) - T0,
+                    batch.getJSONArray("dt").getLong(i));
+            assertEquals(getMessage(i),
+                    batch.getJSONArray("message").getString(i));
+        }
+        assertTrue(encoder.getByteCount() > 0);
+    }
+
+    @Test
+    public void writesFieldsOfStructuredRecords() throws Exception
+    {
+        ColumnarBatchEncoder encoder =
+            new ColumnarBatchEncoder("imei", "2.2", 4096);
+        JSONObject batch = encode(encoder, true);
+
+        JSONArray fields = batch.getJSONArray("fields");
+        assertEquals(RECORDS, fields.length());
+        for (int i = 0; i < RECORDS; i++)
+        {
+            if (i % 3 == 0)
+                assertEquals(i, fields.getJSONObject(i).getLong("n"));
+            else
+                assertTrue(fields.isNull(i));
+        }
+
+        // The next batch starts with empty dictionaries and no fields
+        encoder.begin();
+        encoder.addRecord(T0, "other", "Tag", "error", 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeHead(out, "batch-2", 0);
+        encoder.writeMessage(null);
+        encoder.finish();
+        batch = new JSONObject(out.toString("US-ASCII"));
+        assertEquals(1, batch.getJSONArray("loggers").length());
+        assertEquals("other", batch.getJSONArray("loggers").getString(0));
+        assertEquals("", batch.getJSONArray("message").getString(0));
+        assertFalse(batch.has("fields"));
+    }
+
+
+    private static JSONObject encode(ColumnarBatchEncoder encoder,
+            boolean structured) throws Exception
+    {
+        encoder.begin();
+        for (int i = 0; i < RECORDS; i++)
+        {
+            byte[] fields = (structured && (i % 3 == 0))
+                ? new LogFields().put("n", i).toByteArray() : null;
+            encoder.addRecord(getTime(i), getLogger(i), getTag(i),
+                    getLevel(i), getMessage(i).length(), fields);
+        }
+        assertEquals(RECORDS, encoder.getRecordCount());
+        assertTrue(encoder.getEstimatedSize() > 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeHead(out, "batch-1", -25200000);
+        for (int i = 0; i < RECORDS; i++)
+            encoder.writeMessage(getMessage(i));
+        encoder.finish();
+        assertEquals(out.size(), encoder.getByteCount());
+        return new JSONObject(out.toString("UTF-8"));
+    }
+
+    private static long getTime(int i)
+    {
+        return T0 + 15L * i;
+    }
+
+    private static String getLogger(int i)
+    {
+        return "logger" + (i % 3);
+    }
+
+    private static String getTag(int i)
+    {
+        return "Tag" + (i % 7);
+    }
+
+    private static String getLevel(int i)
+    {
+        return (i % 2 == 0) ? "info" : "error";
+    }
+
+    private static String getMessage(int i)
+    {
+        return "message " + i + " \"quoted\"\t\u00e9\u4e2d";
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+
+/**
+ * Tests of encoding structured fields, checking encodings from other
+ * processes and turning them into JSON.
+ *
+ * @author  Hossein Falaki
+ */
+public class LogFieldsTest
+{
+    @Test
+    public void roundTripsEveryType()
+    {
+        LogFields fields = new LogFields()
+            .put("zero", 0)
+            .put("min", Long.MIN_VALUE)
+            .put("max", Long.MAX_VALUE)
+            .put("negative", -300)
+            .put("ratio", 0.25)
+            .put("nan", Double.NaN)
+            .put("infinite", Double.POSITIVE_INFINITY)
+            .put("yes", true)
+            .put("no", false)
+            .put("text", "a \"quoted\"\\ line\n\u00e9\u4e2d\ud83d\ude00")
+            .put("empty", "")
+            .put("missing", (String) null);
+        assertEquals(11, fields.size());
+
+        JSONObject json = toJson(fields.toByteArray());
+        assertEquals(11, json.length());
+        assertEquals(0, json.getLong("zero"));
+        assertEquals(Long.MIN_VALUE, json.getLong("min"));
+        assertEquals(Long.MAX_VALUE, json.getLong("max"));
+        assertEquals(-300, json.getLong("negative"));
+        assertEquals(0.25, json.getDouble("ratio"), 0);
+        assertTrue(json.isNull("nan"));
+        assertTrue(json.isNull("infinite"));
+        assertTrue(json.getBoolean("yes"));
+        assertFalse(json.getBoolean("no"));
+        assertEquals("a \"quoted\"\\ line\n\u00e9\u4e2d\ud83d\ude00",
+                json.getString("text"));
+        assertEquals("", json.getString("empty"));
+        assertFalse(json.has("missing"));
+    }
+
+    @Test
+    public void writesPlainAscii()
+    {
+        assertAscii(new LogFields().put("k\u00e9y", "\u4e2d\u0001\u007f")
+                .toString());
+    }
+
+    @Test
+    public void cutsKeysAndStrings()
+    {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            longText.append('x');
+        LogFields fields = new LogFields().put(longText.toString(), 1)
+            .put("s", longText.toString());
+
+        JSONObject json = toJson(fields.toByteArray());
+        String key = longText.substring(0, LogFields.MAX_KEY_LENGTH);
+        assertEquals(1, json.getLong(key));
+        assertEquals(LogFields.MAX_STRING_LENGTH,
+                json.getString("s").length());
+    }
+
+    @Test
+    public void keepsSurrogatePairsWhole()
+    {
+        // A pair that would be split by the cut is dropped whole
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LogFields.MAX_STRING_LENGTH - 1; i++)
+            text.append('x');
+        text.append("\ud83d\ude00");
+        String cut = toJson(new LogFields().put("s", text.toString())
+                .toByteArray()).getString("s");
+        assertEquals(LogFields.MAX_STRING_LENGTH - 1, cut.length());
+
+        // An unpaired surrogate is written as '?'
+        assertEquals("a?b", toJson(new LogFields().put("s", "a\ud83db")
+                    .toByteArray()).getString("s"));
+    }
+
+    @Test
+    public void dropsFieldsBeyondLimits()
+    {
+        LogFields fields = new LogFields();
+        for (int i = 0; i < LogFields.MAX_FIELDS + 10; i++)
+            fields.put("f" + i, i);
+        assertEquals(LogFields.MAX_FIELDS, fields.size());
+        assertEquals(LogFields.MAX_FIELDS,
+                toJson(fields.toByteArray()).length());
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LogFields.MAX_STRING_LENGTH; i++)
+            text.append('\u4e2d');
+        fields.clear();
+        for (int i = 0; i < 10; i++)
+            fields.put("s" + i, text.toString());
+        byte[] data = fields.toByteArray();
+        assertTrue(data.length <= LogFields.MAX_BYTES);
+        assertEquals(fields.size(), toJson(data).length());
+        assertTrue(fields.size() < 10);
+    }
+
+    @Test
+    public void rejectsTruncatedEncodings()
+    {
+        LogFields fields = new LogFields();
+        HashSet<Integer> ends = new HashSet<Integer>();
+        ends.add(0);
+        fields.put("n", -123456789L);
+        ends.add(fields.toByteArray().length);
+        fields.put("d", 1.5);
+        ends.add(fields.toByteArray().length);
+        fields.put("b", true);
+        ends.add(fields.toByteArray().length);
+        fields.put("s", "text");
+        ends.add(fields.toByteArray().length);
+
+        byte[] data = fields.toByteArray();
+        for (int length = 0; length <= data.length; length++)
+        {
+            byte[] prefix = new byte[length];
+            System.arraycopy(data, 0, prefix, 0, length);
+            assertEquals("length " + length, ends.contains(length),
+                    LogFields.isValid(prefix));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedEncodings()
+    {
+        assertFalse(LogFields.isValid(null));
+        assertFalse(LogFields.isValid(new byte[LogFields.MAX_BYTES + 1]));
+        // Unknown type
+        assertFalse(LogFields.isValid(new byte[] {9, 1, 'k'}));
+        // Key longer than the data
+        assertFalse(LogFields.isValid(new byte[] {3, 5, 'k'}));
+        // Varint longer than 10 bytes
+        byte[] varint = new byte[14];
+        varint[0] = 1;
+        varint[1] = 1;
+        varint[2] = 'k';
+        for (int i = 3; i < varint.length; i++)
+            varint[i] = (byte) 0x80;
+        varint[varint.length - 1] = 1;
+        assertFalse(LogFields.isValid(varint));
+        // String longer than the data
+        assertFalse(LogFields.isValid(new byte[] {5, 1, 'k', 4, 'a'}));
+        // Too many fields
+        byte[] many = new byte[3 * (LogFields.MAX_FIELDS + 1)];
+        for (int i = 0; i < many.length; i += 3)
+        {
+            many[i] = 3;
+            many[i + 1] = 1;
+            many[i + 2] = 'k';
+        }
+        assertFalse(LogFields.isValid(many));
+    }
+
+    /**
+     * Whatever another process sends, appendJson() either does not
+     * get it or turns it into plain ASCII. Keys may repeat, so the
+     * output is not parsed.
+     */
+    @Test
+    public void appendsAnyValidBlob()
+    {
+        Random random = new Random(42);
+        byte[] seed = new LogFields().put("n", 7).put("d", 2.5)
+            .put("b", false).put("s", "\u00e9t\u00e9").toByteArray();
+        int valid = 0;
+        for (int i = 0; i < 20000; i++)
+        {
+            byte[] data;
+            if (i % 2 == 0)
+            {
+                data = seed.clone();
+                for (int j = random.nextInt(4); j >= 0; j--)
+                    data[random.nextInt(data.length)] =
+                        (byte) random.nextInt(256);
+            }
+            else
+            {
+                data = new byte[random.nextInt(24)];
+                random.nextBytes(data);
+            }
+            if (LogFields.isValid(data))
+            {
+                valid++;
+                StringBuilder sb = new StringBuilder();
+                LogFields.appendJson(data, sb);
+                assertAscii(sb.toString());
+            }
+        }
+        assertTrue(valid > 0);
+    }
+
+
+    private static void assertAscii(String json)
+    {
+        for (int i = 0; i < json.length(); i++)
+        {
+            char c = json.charAt(i);
+            assertTrue(json, (c >= 0x20) && (c < 0x7f));
+        }
+    }
+
+    private static JSONObject toJson(byte[] data)
+    {
+        assertTrue(LogFields.isValid(data));
+        StringBuilder sb = new StringBuilder();
+        LogFields.appendJson(data, sb);
+        return new JSONObject(sb.toString());
+    }
+}
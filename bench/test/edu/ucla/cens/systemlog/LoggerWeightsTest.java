@@ -0,0 +1,142 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucla.cens.systemlog.bench.JdbcRecordStore;
+
+
+/**
+ * Tests that the upload is shared between loggers by their weights
+ * while they all have records waiting.
+ *
+ * @author  Hossein Falaki
+ */
+public class LoggerWeightsTest
+{
+    /** Records of each logger */
+    private static final int RECORDS = 600;
+
+    private File mFile;
+    private JdbcRecordStore mStore;
+    private TestServer mServer;
+    private EngineMetrics mMetrics;
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        EngineLog.setSink(new EngineLog.Sink()
+        {
+            public void log(int priority, String tag, String msg,
+                    Throwable tr)
+            {
+            }
+        });
+        mFile = File.createTempFile("loggerweightstest", ".db");
+        mStore = new JdbcRecordStore(mFile.getPath());
+        mServer = new TestServer();
+        // Columnar batches are too few in this many records for the
+        // shares to show
+        mServer.setFormats("form");
+        mMetrics = new EngineMetrics(Clock.SYSTEM);
+
+        // Same sized records, the chatty logger's logged first
+        LogIngest ingest = new LogIngest(mStore, Clock.SYSTEM, "test",
+                mMetrics);
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            padding.append('x');
+        for (String logger : new String[] {"a", "b"})
+        {
+            for (int i = 0; i < RECORDS; i++)
+                ingest.createEntry(logger + " " + (1000 + i) + " "
+                        + padding, "Test", "info", logger);
+        }
+        ingest.flush();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mServer.stop();
+        mStore.shutdown();
+        mFile.delete();
+        EngineLog.setSink(EngineLog.STDERR);
+    }
+
+    @Test
+    public void sharesEquallyByDefault() throws Exception
+    {
+        upload(newUploader());
+        int b = countBeforeLast("a", "b");
+        assertTrue("b=" + b, (b > RECORDS / 2) && (b < 3 * RECORDS / 2));
+    }
+
+    @Test
+    public void sharesByWeight() throws Exception
+    {
+        Uploader uploader = newUploader();
+        uploader.setLoggerWeight("a", 3);
+        upload(uploader);
+
+        // b gets about a third of the records a gets until a is done
+        int b = countBeforeLast("a", "b");
+        assertTrue("b=" + b, (b > RECORDS / 6) && (b < RECORDS / 2));
+    }
+
+
+    private Uploader newUploader()
+    {
+        return new Uploader(mStore, "test", mServer.getUrl(), mMetrics);
+    }
+
+    private void upload(Uploader uploader) throws IOException
+    {
+        UploadPolicy.Conditions conditions =
+            new UploadPolicy.Conditions();
+        conditions.charging = true;
+        conditions.batteryPercent = 100;
+        conditions.network = UploadPolicy.NETWORK_WIFI;
+        conditions.now = System.currentTimeMillis();
+        assertEquals(0, uploader.tryUpload(conditions));
+        assertEquals(2 * RECORDS, mServer.getMessages().size());
+    }
+
+    /**
+     * Returns the number of records of the other logger that arrived
+     * before the last record of the given one.
+     */
+    private int countBeforeLast(String logger, String other)
+        throws IOException
+    {
+        List<String> messages = mServer.getMessages();
+        int last = -1;
+        for (int i = 0; i < messages.size(); i++)
+        {
+            if (messages.get(i).startsWith(logger + " "))
+                last = i;
+        }
+
+        int count = 0;
+        for (int i = 0; i < last; i++)
+        {
+            if (messages.get(i).startsWith(other + " "))
+                count++;
+        }
+        return count;
+    }
+}
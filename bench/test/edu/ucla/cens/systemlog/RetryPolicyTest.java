@@ -0,0 +1,100 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of the backoff, retry budget and circuit breaker of
+ * RetryPolicy.
+ *
+ * @author  Hossein Falaki
+ */
+public class RetryPolicyTest
+{
+    private static final long BASE = 1000;
+    private static final long MAX = 6000;
+    private static final int BUDGET = 2;
+    private static final int THRESHOLD = 5;
+    private static final long COOLDOWN = 60000;
+
+
+    @Test
+    public void doublesDelayWithJitter()
+    {
+        RetryPolicy policy = newPolicy();
+        long expected = BASE;
+        for (int i = 1; i < THRESHOLD; i++)
+        {
+            long delay = policy.onFailure(0, -1);
+            assertTrue(i + ": " + delay, delay <= expected);
+            assertTrue(i + ": " + delay, delay >= expected / 2);
+            assertEquals(delay, policy.getWaitTime(0));
+            expected = Math.min(MAX, expected * 2);
+        }
+        assertEquals(THRESHOLD - 1, policy.getConsecutiveFailures());
+    }
+
+    @Test
+    public void honorsLongerRetryAfter()
+    {
+        RetryPolicy policy = newPolicy();
+        assertEquals(30000, policy.onFailure(100, 30000));
+        assertEquals(30000, policy.getWaitTime(100));
+        assertEquals(0, policy.getWaitTime(30100));
+
+        // A shorter Retry-After does not shorten the backoff
+        long delay = policy.onFailure(0, 1);
+        assertTrue(delay >= BASE);
+    }
+
+    @Test
+    public void limitsRetriesPerRun()
+    {
+        RetryPolicy policy = newPolicy();
+        assertTrue(policy.takeRetry());
+        assertTrue(policy.takeRetry());
+        assertFalse(policy.takeRetry());
+        policy.startRun();
+        assertTrue(policy.takeRetry());
+    }
+
+    @Test
+    public void opensBreakerAfterConsecutiveFailures()
+    {
+        RetryPolicy policy = newPolicy();
+        for (int i = 1; i < THRESHOLD; i++)
+            policy.onFailure(0, -1);
+        assertFalse(policy.isBreakerOpen(0));
+
+        assertEquals(COOLDOWN, policy.onFailure(0, -1));
+        assertTrue(policy.isBreakerOpen(COOLDOWN - 1));
+        assertFalse(policy.isBreakerOpen(COOLDOWN));
+        policy.startRun();
+        assertFalse(policy.takeRetry());
+
+        // The first failure after the cool-down opens it again
+        assertEquals(COOLDOWN, policy.onFailure(COOLDOWN, -1));
+        assertTrue(policy.isBreakerOpen(COOLDOWN));
+
+        policy.onSuccess();
+        assertFalse(policy.isBreakerOpen(COOLDOWN));
+        assertEquals(0, policy.getWaitTime(COOLDOWN));
+        assertEquals(0, policy.getConsecutiveFailures());
+        assertTrue(policy.takeRetry());
+    }
+
+
+    private static RetryPolicy newPolicy()
+    {
+        return new RetryPolicy(BASE, MAX, BUDGET, THRESHOLD, COOLDOWN);
+    }
+}
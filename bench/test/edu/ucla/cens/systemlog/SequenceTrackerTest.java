@@ -0,0 +1,70 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of the lost, late and restart counts of SequenceTracker.
+ *
+ * @author  Hossein Falaki
+ */
+public class SequenceTrackerTest
+{
+    /** Client IDs of Log and IntentLog in the same process */
+    private static final String LOG_CLIENT = "app/42";
+    private static final String INTENT_CLIENT = "app/42/intent";
+
+
+    /**
+     * Log and IntentLog number their records apart. Interleaved, the
+     * two sequences are counted as two clients, with nothing lost.
+     */
+    @Test
+    public void interleavedClientsLoseNothing()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        for (int i = 0; i < 10; i++)
+        {
+            tracker.onRecord(LOG_CLIENT, 2 * i);
+            tracker.onRecord(INTENT_CLIENT, i);
+            tracker.onRecord(LOG_CLIENT, 2 * i + 1);
+        }
+
+        assertEquals(30, tracker.getReceived());
+        assertEquals(0, tracker.getLost());
+        assertEquals(0, tracker.getLate());
+        assertEquals(0, tracker.getRestarts());
+    }
+
+    @Test
+    public void lateRecordIsCountedBack()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.onRecord(LOG_CLIENT, 0);
+        tracker.onRecord(LOG_CLIENT, 3);
+        assertEquals(2, tracker.getLost());
+
+        tracker.onRecord(LOG_CLIENT, 1);
+        assertEquals(1, tracker.getLost());
+        assertEquals(1, tracker.getLate());
+    }
+
+    @Test
+    public void zeroIsRestart()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.onRecord(LOG_CLIENT, 0);
+        tracker.onRecord(LOG_CLIENT, 1);
+        tracker.onRecord(LOG_CLIENT, 0);
+        assertEquals(1, tracker.getRestarts());
+        assertEquals(0, tracker.getLost());
+        assertEquals(0, tracker.getLate());
+    }
+}
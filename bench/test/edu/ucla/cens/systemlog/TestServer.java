@@ -0,0 +1,127 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import edu.ucla.cens.systemlog.bench.Collector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+
+/**
+ * Collector in a temporary directory for the upload tests, which
+ * reads the messages of the stored records back from its segments.
+ *
+ * @author  Hossein Falaki
+ */
+class TestServer
+{
+    private final File mDir;
+    private final Collector mCollector;
+
+
+    TestServer() throws IOException
+    {
+        mDir = File.createTempFile("systemlog-test", "");
+        mDir.delete();
+        mDir.mkdir();
+        mCollector = new Collector(mDir, 0);
+    }
+
+
+    String getUrl()
+    {
+        return mCollector.getUrl();
+    }
+
+    void setFormats(String formats)
+    {
+        mCollector.setFormats(formats);
+    }
+
+    void loseResponses(int count)
+    {
+        mCollector.loseResponses(count);
+    }
+
+    void refuse(int count)
+    {
+        mCollector.refuse(count);
+    }
+
+    void delayResponses(long millis)
+    {
+        mCollector.setLatency(millis);
+    }
+
+    void closePort()
+    {
+        mCollector.closePort();
+    }
+
+    void openPort()
+    {
+        mCollector.openPort();
+    }
+
+    /** IDs of the posted batches, including duplicates */
+    List<String> getBatchIds()
+    {
+        return mCollector.getBatchIds();
+    }
+
+    /** Messages of the stored records, in the order they arrived */
+    List<String> getMessages() throws IOException
+    {
+        List<String> messages = new ArrayList<String>();
+        File[] segments = mDir.listFiles();
+        Arrays.sort(segments);
+        for (File segment : segments)
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(segment), "UTF-8"));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    // A columnar batch holds a column of messages
+                    JSONObject record = new JSONObject(line);
+                    JSONArray column = record.optJSONArray("message");
+                    if (column == null)
+                    {
+                        messages.add(record.getString("message"));
+                        continue;
+                    }
+                    for (int i = 0; i < column.length(); i++)
+                        messages.add(column.getString(i));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        return messages;
+    }
+
+    void stop()
+    {
+        mCollector.stop();
+        for (File segment : mDir.listFiles())
+            segment.delete();
+        mDir.delete();
+    }
+}
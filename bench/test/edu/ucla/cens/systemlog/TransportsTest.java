@@ -0,0 +1,67 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of choosing a transport by the scheme of a destination URL.
+ *
+ * @author  Hossein Falaki
+ */
+public class TransportsTest
+{
+    @Test
+    public void acceptsKnownSchemes() throws Exception
+    {
+        assertTrue(Transports.open("http://example.com/logs", 1, 1)
+                instanceof UploadSession);
+        assertTrue(Transports.open("HTTPS://example.com/logs", 1, 1)
+                instanceof UploadSession);
+        assertTrue(Transports.open("file:///tmp/systemlog", 1, 1)
+                instanceof FileTransport);
+        assertTrue(Transports.open("tcp://127.0.0.1:9000", 1, 1)
+                instanceof SocketTransport);
+    }
+
+    @Test
+    public void rejectsOtherSchemes()
+    {
+        assertRejected("ftp://example.com/logs");
+        assertRejected("mailto:logs@example.com");
+        assertRejected("jar:file:///tmp/a.jar!/");
+        assertRejected("/tmp/systemlog");
+        assertRejected("http://bad host/");
+    }
+
+    @Test
+    public void acceptsStoredAndDuplicateBatches()
+    {
+        assertTrue(Transports.isAccepted(Transport.ACCEPTED));
+        assertTrue(Transports.isAccepted(Transport.ALREADY_REPORTED));
+        assertFalse(Transports.isAccepted(Transport.UNSUPPORTED_TYPE));
+        assertFalse(Transports.isAccepted(503));
+    }
+
+
+    private static void assertRejected(String url)
+    {
+        try
+        {
+            Transports.check(url);
+            fail("Accepted " + url);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+}
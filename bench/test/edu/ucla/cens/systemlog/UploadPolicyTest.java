@@ -0,0 +1,110 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of parsing upload policies, mostly the durations of age
+ * terms.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadPolicyTest
+{
+    private static final long NOW = 1000L * 1000 * 1000 * 1000;
+
+
+    @Test
+    public void parsesDurationUnits()
+    {
+        assertAge("age>=90s", 90 * 1000L);
+        assertAge("age>=10m", 10 * 60 * 1000L);
+        assertAge("age>=2h", 2 * 60 * 60 * 1000L);
+        assertAge("age>=1d", 24 * 60 * 60 * 1000L);
+    }
+
+    @Test
+    public void takesBareNumberAsSeconds()
+    {
+        assertAge("age>=45", 45 * 1000L);
+        assertAge("age>=0", 0);
+    }
+
+    @Test
+    public void rejectsBadDurations()
+    {
+        assertRejected("levels=all age>=");
+        assertRejected("levels=all age>=m");
+        assertRejected("levels=all age>=10x");
+        assertRejected("levels=all age>=10M");
+        assertRejected("levels=all age>=-5m");
+        assertRejected("levels=all age>=+5m");
+        assertRejected("levels=all age>=1.5h");
+        assertRejected("levels=all age>=99999999999999999d");
+    }
+
+    @Test
+    public void rejectsUnknownTerms()
+    {
+        assertRejected("levels=all sometimes");
+        assertRejected("levels=all battery>=");
+        assertRejected("levels=all window=22:00");
+    }
+
+    @Test
+    public void defaultRulesParse()
+    {
+        UploadPolicy policy = UploadPolicy.parse(UploadPolicy.DEFAULT_RULES);
+        UploadPolicy.Conditions c = getConditions(1000);
+        assertTrue(policy.evaluate(c).isAllowed());
+        c.charging = false;
+        assertFalse(policy.evaluate(c).isAllowed());
+    }
+
+
+    /**
+     * Checks that the rule allows an upload once the oldest record is
+     * exactly the expected age, but not a moment before.
+     */
+    private static void assertAge(String term, long age)
+    {
+        UploadPolicy policy = UploadPolicy.parse("levels=all " + term);
+        assertTrue(term, policy.evaluate(getConditions(age)).isAllowed());
+        if (age > 0)
+            assertFalse(term,
+                    policy.evaluate(getConditions(age - 1)).isAllowed());
+    }
+
+    private static void assertRejected(String spec)
+    {
+        try
+        {
+            UploadPolicy.parse(spec);
+            fail("Accepted " + spec);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    private static UploadPolicy.Conditions getConditions(long oldestAge)
+    {
+        UploadPolicy.Conditions c = new UploadPolicy.Conditions();
+        c.charging = true;
+        c.batteryPercent = 100;
+        c.network = UploadPolicy.NETWORK_WIFI;
+        c.now = NOW;
+        c.addBacklog("info", 10, NOW - oldestAge);
+        return c;
+    }
+}
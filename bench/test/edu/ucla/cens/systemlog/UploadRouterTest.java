@@ -0,0 +1,193 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucla.cens.systemlog.bench.JdbcRecordStore;
+
+
+/**
+ * Tests of UploadRouter with one destination that is slow or failing
+ * and one that is healthy.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadRouterTest
+{
+    /** Records of each destination */
+    private static final int RECORDS = 100;
+
+    private static final long SLOW_WAIT = 200;
+
+    private File mFile;
+    private JdbcRecordStore mStore;
+    private TestServer mBad;
+    private TestServer mGood;
+    private UploadRouter mRouter;
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        EngineLog.setSink(new EngineLog.Sink()
+        {
+            public void log(int priority, String tag, String msg,
+                    Throwable tr)
+            {
+            }
+        });
+        mFile = File.createTempFile("uploadroutertest", ".db");
+        mStore = new JdbcRecordStore(mFile.getPath());
+        mBad = new TestServer();
+        mGood = new TestServer();
+
+        EngineMetrics metrics = new EngineMetrics(Clock.SYSTEM);
+        LogIngest ingest = new LogIngest(mStore, Clock.SYSTEM, "test",
+                metrics);
+        for (int i = 0; i < RECORDS; i++)
+        {
+            ingest.createEntry("bad " + i, "Test", "info", "bad");
+            ingest.createEntry("good " + i, "Test", "info", "good");
+        }
+        ingest.flush();
+
+        mRouter = new UploadRouter(mStore, "test", metrics);
+        mRouter.setSlowDestinationWait(SLOW_WAIT);
+        mRouter.setRoutes(RoutingTable.parse("url=" + mBad.getUrl()
+                    + " logger=bad; url=" + mGood.getUrl()));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mRouter.cancel();
+        mRouter.shutdown();
+        mBad.stop();
+        mGood.stop();
+        mStore.shutdown();
+        mFile.delete();
+        EngineLog.setSink(EngineLog.STDERR);
+    }
+
+    /**
+     * A destination that answers slowly is left uploading in the
+     * background, and the upload returns once the healthy one is
+     * done, asking to come back for the slow one.
+     */
+    @Test
+    public void slowDestinationDoesNotHoldBackOthers() throws Exception
+    {
+        mBad.delayResponses(3000);
+        long start = System.currentTimeMillis();
+        assertEquals(SLOW_WAIT, mRouter.tryUpload(getConditions()));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertStoredOnce(mGood, "good");
+
+        // The slow destination is not started a second time while it
+        // is still uploading.
+        assertEquals(SLOW_WAIT, mRouter.tryUpload(getConditions()));
+        assertEquals(1, mBad.getBatchIds().size());
+
+        mBad.delayResponses(0);
+        long delay = SLOW_WAIT;
+        for (int i = 0; (delay > 0) && (i < 100); i++)
+            delay = mRouter.tryUpload(getConditions());
+        assertEquals(0, delay);
+        assertStoredOnce(mBad, "bad");
+        assertEquals(0, mStore.getRecordCount());
+    }
+
+    /**
+     * A failing destination keeps its retry delay even though the
+     * healthy one has nothing left to do.
+     */
+    @Test
+    public void failingDestinationKeepsItsDelay() throws Exception
+    {
+        mBad.refuse(Integer.MAX_VALUE);
+        long delay = mRouter.tryUpload(getConditions());
+        assertStoredOnce(mGood, "good");
+        assertEquals(0, mBad.getMessages().size());
+        assertTrue(delay > 0);
+        assertEquals(delay, mRouter.getBackoffDelay(), 1000);
+    }
+
+    /**
+     * The listener hears of the slow destination returning after the
+     * upload has, and the cancel of its background upload is not
+     * cleared by the next upload.
+     */
+    @Test
+    public void backgroundUploadKeepsItsCancel() throws Exception
+    {
+        final List<String> running =
+            Collections.synchronizedList(new ArrayList<String>());
+        mRouter.setListener(new UploadRouter.Listener()
+        {
+            public void onUploadStarted(String destination)
+            {
+                running.add(destination);
+            }
+
+            public void onUploadReturned(String destination)
+            {
+                running.remove(destination);
+            }
+        });
+
+        mBad.delayResponses(3000);
+        assertEquals(SLOW_WAIT, mRouter.tryUpload(getConditions()));
+        assertEquals(Arrays.asList(mBad.getUrl()), running);
+
+        mRouter.cancel();
+        mRouter.clearCancel();
+        long end = System.currentTimeMillis() + 2000;
+        while (!running.isEmpty() && (System.currentTimeMillis() < end))
+            Thread.sleep(10);
+        assertTrue(running.isEmpty());
+        assertEquals(RECORDS, mStore.getRecordCount());
+
+        // Cancelled, not failed
+        assertEquals(0, mRouter.getLastStats().get(mBad.getUrl())
+                .failures);
+    }
+
+
+    private static void assertStoredOnce(TestServer server,
+            String prefix) throws IOException
+    {
+        List<String> messages = server.getMessages();
+        assertEquals(RECORDS, messages.size());
+        assertEquals(RECORDS, new HashSet<String>(messages).size());
+        for (String message : messages)
+            assertTrue(message, message.startsWith(prefix + " "));
+    }
+
+    private static UploadPolicy.Conditions getConditions()
+    {
+        UploadPolicy.Conditions conditions =
+            new UploadPolicy.Conditions();
+        conditions.charging = true;
+        conditions.batteryPercent = 100;
+        conditions.network = UploadPolicy.NETWORK_WIFI;
+        conditions.now = System.currentTimeMillis();
+        return conditions;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests of the cancel transitions of UploadScheduler, as used when the
+ * upload policy no longer allows an upload.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadSchedulerTest
+{
+    private static final long TIMEOUT = 5000;
+
+    private BlockingTask mTask;
+    private UploadScheduler mScheduler;
+
+
+    @Before
+    public void setUp()
+    {
+        EngineLog.setSink(new EngineLog.Sink()
+        {
+            public void log(int priority, String tag, String msg,
+                    Throwable tr)
+            {
+            }
+        });
+        mTask = new BlockingTask();
+        mScheduler = new UploadScheduler(mTask,
+                new UploadScheduler.Listener()
+        {
+            public void onBackoff(long delay)
+            {
+            }
+        }, Clock.SYSTEM);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mTask.release.countDown();
+        mScheduler.shutdown();
+        EngineLog.setSink(EngineLog.STDERR);
+    }
+
+    /**
+     * A cancelled upload stays CANCELLED until it returns, and does
+     * not back off even though it asks for a retry.
+     */
+    @Test
+    public void cancelRunningUpload() throws Exception
+    {
+        mTask.delay = 60000;
+        assertTrue(mScheduler.request());
+        assertTrue(mTask.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        mScheduler.cancel();
+        assertEquals(UploadScheduler.STATE_CANCELLED,
+                mScheduler.getState());
+        assertTrue(mTask.cancelled);
+
+        mTask.release.countDown();
+        awaitState(UploadScheduler.STATE_IDLE);
+        assertEquals(1, mScheduler.getCancelCount());
+        assertEquals(1, mScheduler.getRunCount());
+    }
+
+    /**
+     * A request after the cancel, which evaluates the policy again,
+     * runs once the cancelled upload has returned.
+     */
+    @Test
+    public void requestAfterCancelRunsAgain() throws Exception
+    {
+        assertTrue(mScheduler.request());
+        assertTrue(mTask.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        mScheduler.cancel();
+        assertFalse(mScheduler.request());
+        mTask.release.countDown();
+
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while ((mScheduler.getRunCount() < 2)
+                && (System.currentTimeMillis() < end))
+            Thread.sleep(10);
+        assertEquals(2, mScheduler.getRunCount());
+        awaitState(UploadScheduler.STATE_IDLE);
+    }
+
+    /**
+     * A retry that waits for its backoff is dropped, and does not
+     * run when it would have been due.
+     */
+    @Test
+    public void cancelRetryDropsBackoff() throws Exception
+    {
+        mTask.delay = 200;
+        mTask.release.countDown();
+        assertTrue(mScheduler.request());
+        awaitState(UploadScheduler.STATE_BACKING_OFF);
+
+        assertTrue(mScheduler.cancelRetry());
+        assertEquals(UploadScheduler.STATE_IDLE, mScheduler.getState());
+        Thread.sleep(400);
+        assertEquals(1, mScheduler.getRunCount());
+        assertFalse(mScheduler.cancelRetry());
+    }
+
+    /**
+     * Dropping a retry leaves a running upload alone.
+     */
+    @Test
+    public void cancelRetryLeavesRunningUpload() throws Exception
+    {
+        assertTrue(mScheduler.request());
+        assertTrue(mTask.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        assertFalse(mScheduler.cancelRetry());
+        assertEquals(UploadScheduler.STATE_RUNNING, mScheduler.getState());
+        assertFalse(mTask.cancelled);
+    }
+
+
+    private void awaitState(int state) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while ((mScheduler.getState() != state)
+                && (System.currentTimeMillis() < end))
+            Thread.sleep(10);
+        assertEquals(state, mScheduler.getState());
+    }
+
+
+    /**
+     * Task that runs until it is released and returns a set delay.
+     */
+    private static class BlockingTask implements UploadScheduler.Task
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile long delay;
+        volatile boolean cancelled;
+
+        public long run()
+        {
+            started.countDown();
+            // The cancel interrupts the thread, the task still waits
+            // to be released
+            while (release.getCount() > 0)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    // Wait on
+                }
+            }
+            return delay;
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        public void clearCancel()
+        {
+            cancelled = false;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucla.cens.systemlog.bench.JdbcRecordStore;
+
+
+/**
+ * Tests of Uploader against a local server: batch IDs, retries and
+ * exactly-once delivery.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploaderTest
+{
+    private static final int RECORDS = 400;
+
+    private File mFile;
+    private JdbcRecordStore mStore;
+    private TestServer mServer;
+    private EngineMetrics mMetrics;
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        EngineLog.setSink(new EngineLog.Sink()
+        {
+            public void log(int priority, String tag, String msg,
+                    Throwable tr)
+            {
+            }
+        });
+        mFile = File.createTempFile("uploadertest", ".db");
+        mStore = new JdbcRecordStore(mFile.getPath());
+        mServer = new TestServer();
+        mMetrics = new EngineMetrics(Clock.SYSTEM);
+
+        // About 100 KB of records, so the first batch is cut by the
+        // batch size
+        LogIngest ingest = new LogIngest(mStore, Clock.SYSTEM, "test",
+                mMetrics);
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            padding.append('x');
+        for (int i = 0; i < RECORDS; i++)
+            ingest.createEntry("record " + i + " " + padding, "Test",
+                    "info", "logger");
+        ingest.flush();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mServer.stop();
+        mStore.shutdown();
+        mFile.delete();
+        EngineLog.setSink(EngineLog.STDERR);
+    }
+
+    @Test
+    public void uploadsEveryRecordOnce() throws Exception
+    {
+        Uploader uploader = newUploader();
+        assertEquals(0, uploader.tryUpload(getConditions()));
+        assertStoredOnce();
+    }
+
+    /**
+     * The server stores the first batch but the response is lost.
+     * The retry has to carry the same ID and range, although the
+     * failure shrinks the batch size, so the server drops the copy.
+     */
+    @Test
+    public void retryAfterLostResponseKeepsBatchId() throws Exception
+    {
+        mServer.loseResponses(1);
+        Uploader uploader = newUploader();
+        assertEquals(0, uploader.tryUpload(getConditions()));
+
+        List<String> ids = mServer.getBatchIds();
+        assertEquals(ids.get(0), ids.get(1));
+        assertStoredOnce();
+        assertEquals(1, uploader.getLastStats().retries);
+    }
+
+    /**
+     * A batch refused without being stored is sent again with its
+     * ID, and the batches after it are cut at the smaller size.
+     */
+    @Test
+    public void retryAfterRefusalKeepsBatchId() throws Exception
+    {
+        mServer.refuse(1);
+        Uploader uploader = newUploader();
+        assertEquals(0, uploader.tryUpload(getConditions()));
+
+        List<String> ids = mServer.getBatchIds();
+        assertEquals(ids.get(0), ids.get(1));
+        assertStoredOnce();
+    }
+
+    /**
+     * A run that ends on a lost response leaves the batch in flight.
+     * The next run re-sends it with the same ID.
+     */
+    @Test
+    public void nextRunResendsLostBatch() throws Exception
+    {
+        // More failures than the retry budget of a run
+        mServer.loseResponses(10);
+        Uploader uploader = newUploader();
+        assertTrue(uploader.tryUpload(getConditions()) > 0);
+        assertEquals(1, new HashSet<String>(
+                    mServer.getBatchIds()).size());
+
+        mServer.loseResponses(0);
+        assertEquals(0, newUploader().tryUpload(getConditions()));
+        assertStoredOnce();
+    }
+
+    /**
+     * The first batch fails while the pipeline has more batches to
+     * send, which it then refuses. Only batches that were posted
+     * stay in flight; the refused ones are sent as new batches by the
+     * next run.
+     */
+    @Test
+    public void pipelineRefusalLeavesNoBatchInFlight() throws Exception
+    {
+        mServer.refuse(1);
+        Uploader uploader = newUploader();
+        uploader.setPipelineDepth(2);
+        assertTrue(uploader.tryUpload(getConditions()) > 0);
+        List<String> inflight = getInflightIds();
+        assertFalse(inflight.isEmpty());
+        assertTrue(mServer.getBatchIds().containsAll(inflight));
+
+        assertEquals(0, newUploader().tryUpload(getConditions()));
+        assertStoredOnce();
+        assertEquals(0, getInflightIds().size());
+    }
+
+    /**
+     * A post that fails to connect never encodes its batch. The retry
+     * must not take it for the batch the uploader sent last, whose ID
+     * the server answers with 208, or the records of the current
+     * batch in that batch's range are deleted unsent.
+     */
+    @Test
+    public void connectFailureAfterEarlierRunSendsNewBatch()
+        throws Exception
+    {
+        // Form batches get their ID only once the post is connected
+        mServer.setFormats("form");
+        Uploader uploader = newUploader();
+        uploader.setPolicy(UploadPolicy.parse(
+                    "levels=error network=any; levels=all network=wifi"));
+        assertEquals(0, uploader.tryUpload(getConditions()));
+
+        // The error records go on the mobile network, the others
+        // wait for wifi
+        LogIngest ingest = new LogIngest(mStore, Clock.SYSTEM, "test",
+                mMetrics);
+        for (int i = 0; i < 10; i++)
+        {
+            ingest.createEntry("a " + i, "Test", "error", "a");
+            ingest.createEntry("b " + i, "Test", "info", "b");
+        }
+        ingest.flush();
+        UploadPolicy.Conditions mobile = getConditions();
+        mobile.network = UploadPolicy.NETWORK_MOBILE;
+        assertEquals(0, uploader.tryUpload(mobile));
+        assertEquals(10, mStore.getRecordCount());
+
+        // The first post of the next run cannot connect
+        mServer.closePort();
+        Thread opener = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(300);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                mServer.openPort();
+            }
+        };
+        opener.start();
+        assertEquals(0, uploader.tryUpload(getConditions()));
+        opener.join();
+
+        List<String> messages = mServer.getMessages();
+        assertEquals(RECORDS + 20, new HashSet<String>(messages).size());
+        assertEquals(RECORDS + 20, messages.size());
+        assertEquals(0, mStore.getRecordCount());
+    }
+
+
+    private Uploader newUploader()
+    {
+        return new Uploader(mStore, "test", mServer.getUrl(), mMetrics);
+    }
+
+    private List<String> getInflightIds()
+    {
+        ArrayList<String> ids = new ArrayList<String>();
+        RecordCursor c = mStore.fetchInflightBatches(mServer.getUrl(),
+                false);
+        try
+        {
+            int idIndex = c.getColumnIndex(RecordStore.KEY_BATCH_ID);
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+                ids.add(c.getString(idIndex));
+            return ids;
+        }
+        finally
+        {
+            c.close();
+        }
+    }
+
+    private void assertStoredOnce() throws IOException
+    {
+        List<String> messages = mServer.getMessages();
+        assertEquals(RECORDS, new HashSet<String>(messages).size());
+        assertEquals(RECORDS, messages.size());
+        assertEquals(0, mStore.getRecordCount());
+    }
+
+    private static UploadPolicy.Conditions getConditions()
+    {
+        UploadPolicy.Conditions conditions =
+            new UploadPolicy.Conditions();
+        conditions.charging = true;
+        conditions.batteryPercent = 100;
+        conditions.network = UploadPolicy.NETWORK_WIFI;
+        conditions.now = System.currentTimeMillis();
+        return conditions;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Clock and log sink of the engine on the phone.
+ *
+ * @author  Hossein Falaki
+ */
+public final class AndroidPlatform
+{
+    /** Clock that keeps counting in deep sleep, like the alarms */
+    public static final Clock CLOCK = new Clock()
+    {
+        public long elapsedRealtime()
+        {
+            return SystemClock.elapsedRealtime();
+        }
+
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** Writes engine messages to the Android log */
+    public static final EngineLog.Sink LOG_SINK = new EngineLog.Sink()
+    {
+        public void log(int priority, String tag, String msg,
+                Throwable tr)
+        {
+            if (tr != null)
+                msg = msg + '\n' + Log.getStackTraceString(tr);
+            Log.println(priority, tag, msg);
+        }
+    };
+
+
+    private AndroidPlatform()
+    {
+    }
+}
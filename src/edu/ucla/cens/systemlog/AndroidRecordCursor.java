@@ -0,0 +1,89 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import android.database.Cursor;
+
+
+/**
+ * RecordCursor over an Android database cursor.
+ *
+ * @author  Hossein Falaki
+ */
+public class AndroidRecordCursor implements RecordCursor
+{
+    private final Cursor mCursor;
+
+    public AndroidRecordCursor(Cursor cursor)
+    {
+        mCursor = cursor;
+    }
+
+    public int getCount()
+    {
+        return mCursor.getCount();
+    }
+
+    public int getPosition()
+    {
+        return mCursor.getPosition();
+    }
+
+    public boolean moveToFirst()
+    {
+        return mCursor.moveToFirst();
+    }
+
+    public boolean moveToNext()
+    {
+        return mCursor.moveToNext();
+    }
+
+    public boolean moveToPosition(int position)
+    {
+        return mCursor.moveToPosition(position);
+    }
+
+    public boolean isAfterLast()
+    {
+        return mCursor.isAfterLast();
+    }
+
+    public int getColumnIndex(String columnName)
+    {
+        return mCursor.getColumnIndex(columnName);
+    }
+
+    public boolean isNull(int columnIndex)
+    {
+        return mCursor.isNull(columnIndex);
+    }
+
+    public String getString(int columnIndex)
+    {
+        return mCursor.getString(columnIndex);
+    }
+
+    public int getInt(int columnIndex)
+    {
+        return mCursor.getInt(columnIndex);
+    }
+
+    public long getLong(int columnIndex)
+    {
+        return mCursor.getLong(columnIndex);
+    }
+
+    public byte[] getBlob(int columnIndex)
+    {
+        return mCursor.getBlob(columnIndex);
+    }
+
+    public void close()
+    {
+        mCursor.close();
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Derives stable IDs for upload batches.
+ * The ID of a batch depends only on the device, the generation of
+ * the log table and the record ID range of the batch. A batch that
+ * is posted again after a lost response therefore carries the same
+ * ID, which lets the server recognize and drop the duplicate.
+ *
+ * @author  Hossein Falaki
+ */
+public class BatchId
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Returns the ID of the batch with the given range.
+     *
+     * @param   device          device identifier (IMEI)
+     * @param   generation      generation of the log table
+     * @param   firstId         ID of the first record in the batch
+     * @param   lastId          ID of the last record in the batch
+     * @return                  40 character hexadecimal batch ID
+     */
+    public static String create(String device, long generation,
+            long firstId, long lastId)
+    {
+        return create(device, generation, firstId, lastId, null);
+    }
+
+    /**
+     * Returns the ID of a batch that holds only the records of the
+     * given range that match a selection. Batches of different
+     * selections over the same range get different IDs.
+     *
+     * @param   device          device identifier (IMEI)
+     * @param   generation      generation of the log table
+     * @param   firstId         ID of the first record in the batch
+     * @param   lastId          ID of the last record in the batch
+     * @param   selection       selection of the records, or null if
+     *                          the batch holds the whole range
+     * @return                  40 character hexadecimal batch ID
+     */
+    public static String create(String device, long generation,
+            long firstId, long lastId, String selection)
+    {
+        String key = device + ":" + generation + ":" + firstId + ":"
+            + lastId;
+        if (selection != null)
+            key += ":" + selection;
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes("UTF-8"));
+            char[] out = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++)
+            {
+                out[2 * i] = HEX[(digest[i] >> 4) & 0x0f];
+                out[2 * i + 1] = HEX[digest[i] & 0x0f];
+            }
+            return new String(out);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
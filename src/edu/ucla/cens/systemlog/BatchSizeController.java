@@ -0,0 +1,99 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+
+/**
+ * Chooses the size of upload batches in encoded bytes.
+ * The size follows an additive-increase, multiplicative-decrease
+ * (AIMD) rule: every batch that is posted quickly grows the target
+ * by a fixed step, and every failed or timed out post halves it.
+ * The target always stays between the configured minimum and
+ * maximum.
+ *
+ * @author  Hossein Falaki
+ */
+public class BatchSizeController
+{
+    /** Smallest and largest allowed target in bytes */
+    private final int mMinBytes, mMaxBytes;
+
+    /** Bytes added to the target after a fast post */
+    private final int mStep;
+
+    /** Posts that take longer than this do not grow the target */
+    private final long mLowLatency;
+
+    /** Current target in bytes */
+    private int mTarget;
+
+
+    /**
+     * Constructor - creates a controller with the given limits.
+     *
+     * @param   minBytes        smallest batch target in bytes
+     * @param   maxBytes        largest batch target in bytes
+     * @param   initialBytes    starting batch target in bytes
+     * @param   step            additive increase in bytes
+     * @param   lowLatency      latency in milliseconds under which a
+     *                          successful post grows the target
+     */
+    public BatchSizeController(int minBytes, int maxBytes,
+            int initialBytes, int step, long lowLatency)
+    {
+        mMinBytes = minBytes;
+        mMaxBytes = Math.max(minBytes, maxBytes);
+        mStep = step;
+        mLowLatency = lowLatency;
+        mTarget = clamp(initialBytes);
+    }
+
+
+    /**
+     * Returns the number of encoded bytes the next batch should
+     * have. A batch is closed after the record that reaches this
+     * size.
+     *
+     * @return                  batch target in bytes
+     */
+    public synchronized int getTargetBytes()
+    {
+        return mTarget;
+    }
+
+    /**
+     * Reports a successful post.
+     *
+     * @param   bytes           encoded size of the batch
+     * @param   latency         time the post took in milliseconds
+     */
+    public synchronized void onSuccess(long bytes, long latency)
+    {
+        // Only a batch that actually filled the target says
+        // anything about whether a larger one would work.
+        if ((latency < mLowLatency) && (bytes >= mTarget))
+            mTarget = clamp(mTarget + mStep);
+    }
+
+    /**
+     * Reports a failed post. Timeouts and other failures are both
+     * treated as a sign of congestion.
+     */
+    public synchronized void onFailure()
+    {
+        mTarget = clamp(mTarget / 2);
+    }
+
+
+    private int clamp(int target)
+    {
+        if (target < mMinBytes)
+            return mMinBytes;
+        if (target > mMaxBytes)
+            return mMaxBytes;
+        return target;
+    }
+}
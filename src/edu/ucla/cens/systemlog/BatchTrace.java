@@ -0,0 +1,86 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+
+/**
+ * Times of the records of one upload batch, collected as the batch is
+ * read from the store, so the stages after the flush can be timed
+ * once the server has acknowledged it.
+ *
+ * All times are wall clock times in milliseconds, 0 where unknown:
+ * records stored before the times were kept, or logged by clients
+ * that do not send their call time.
+ *
+ * @author  Hossein Falaki
+ */
+public class BatchTrace
+{
+    private final long mReadTime;
+    private long[] mClientTimes = new long[64];
+    private long[] mFlushTimes = new long[64];
+    private int mCount;
+
+
+    /**
+     * Constructor - starts the trace of a batch read at the given
+     * time.
+     *
+     * @param   readTime    time the batch is read for upload
+     */
+    public BatchTrace(long readTime)
+    {
+        mReadTime = readTime;
+    }
+
+
+    /**
+     * Adds the times of one record of the batch.
+     *
+     * @param   clientTime  time of the client call
+     * @param   flushTime   time the record was stored
+     */
+    public void add(long clientTime, long flushTime)
+    {
+        if (mCount == mClientTimes.length)
+        {
+            mClientTimes = grow(mClientTimes);
+            mFlushTimes = grow(mFlushTimes);
+        }
+        mClientTimes[mCount] = clientTime;
+        mFlushTimes[mCount] = flushTime;
+        mCount++;
+    }
+
+    /**
+     * Records the latencies of the stages from the flush to the
+     * acknowledgement, and from the client call to the
+     * acknowledgement, of every record of the batch.
+     *
+     * @param   metrics     metrics to record to
+     * @param   ackTime     time the server acknowledged the batch
+     */
+    public void onAcknowledged(EngineMetrics metrics, long ackTime)
+    {
+        for (int i = 0; i < mCount; i++)
+        {
+            if (mFlushTimes[i] > 0)
+                metrics.flushToRead.record(mReadTime - mFlushTimes[i]);
+            if (mClientTimes[i] > 0)
+                metrics.callToAck.record(ackTime - mClientTimes[i]);
+        }
+        if (mCount > 0)
+            metrics.readToAck.record(ackTime - mReadTime);
+    }
+
+
+    private static long[] grow(long[] array)
+    {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
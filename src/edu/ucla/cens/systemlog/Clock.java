@@ -0,0 +1,43 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+
+/**
+ * Source of time for the engine, so that it runs the same on the
+ * phone and on a plain JVM.
+ *
+ * @author  Hossein Falaki
+ */
+public interface Clock
+{
+    /**
+     * Returns monotonic time in milliseconds, for measuring intervals
+     * and scheduling. On the phone it includes the time spent in deep
+     * sleep.
+     */
+    long elapsedRealtime();
+
+    /**
+     * Returns the wall clock time in milliseconds.
+     */
+    long currentTimeMillis();
+
+
+    /** Clock of a plain JVM */
+    Clock SYSTEM = new Clock()
+    {
+        public long elapsedRealtime()
+        {
+            return System.nanoTime() / 1000000;
+        }
+
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+}
@@ -0,0 +1,444 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Encodes upload batches in the columnar format "columnar-1".
+ *
+ * The legacy format repeats user, ver, logger and tag as keys and
+ * values in every JSON record and then URL-encodes the whole list.
+ * The columnar format writes one JSON object per batch:
+ *
+ * <pre>
+ * {"format":"columnar-1","batch":"...","user":"...","ver":"2.2",
+ *  "tz":-25200000,"t0":1275390000000,
+ *  "loggers":["a"],"tags":["A","B"],"levels":["info","error"],
+ *  "logger":[0,0],"tag":[0,1],"level":[0,1],"dt":[0,15],
+ *  "message":["first","second"]}
+ * </pre>
+ *
+ * Shared fields appear once, loggers, tags and levels are replaced
+ * by indices into per-batch dictionaries and every timestamp is
+ * written as its offset from t0, the time of the first record.
+ *
+ * If any record of the batch is structured, a "fields" column
+ * follows the messages with the typed fields of each record as a
+ * JSON object, or null for records without fields:
+ *
+ * <pre>
+ *  "message":["first","second"],"fields":[null,{"bytes":1024}]}
+ * </pre>
+ *
+ * Encoding takes two passes so that no message is held in memory.
+ * In the first pass addRecord() is called for each record, which
+ * keeps only the small columns and the encoded fields. writeHead()
+ * then writes everything except the messages, the caller streams the
+ * messages in the same order with writeMessage() and finish() writes
+ * the fields.
+ *
+ * @author  Hossein Falaki
+ */
+public class ColumnarBatchEncoder
+{
+    /** Format name advertised by the server */
+    public static final String FORMAT = "columnar-1";
+
+    /** Content type of a columnar post */
+    public static final String CONTENT_TYPE =
+        "application/vnd.systemlog.columnar+json";
+
+    /** Approximate bytes per record besides the message text */
+    private static final int RECORD_OVERHEAD = 16;
+
+    private final String mUser;
+    private final String mVer;
+
+    private final HashMap<String, Integer> mLoggerIndex =
+        new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mTagIndex =
+        new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mLevelIndex =
+        new HashMap<String, Integer>();
+    private final ArrayList<String> mLoggers = new ArrayList<String>();
+    private final ArrayList<String> mTags = new ArrayList<String>();
+    private final ArrayList<String> mLevels = new ArrayList<String>();
+
+    private int[] mLoggerCol = new int[256];
+    private int[] mTagCol = new int[256];
+    private int[] mLevelCol = new int[256];
+    private long[] mTimeCol = new long[256];
+    private byte[][] mFieldsCol = new byte[256][];
+    private int mRecords;
+    private int mStructured;
+    private long mEstimate;
+    private int mMessages;
+
+    /** Output buffer */
+    private final byte[] mBuffer;
+    private final StringBuilder mFieldsBuilder = new StringBuilder();
+    private int mCount;
+    private long mTotal;
+    private OutputStream mOut;
+
+
+    /**
+     * Constructor - creates an encoder for the given device.
+     *
+     * @param   user            device identifier (IMEI)
+     * @param   ver             SystemLog record format version
+     * @param   bufferSize      size of the output buffer in bytes
+     */
+    public ColumnarBatchEncoder(String user, String ver, int bufferSize)
+    {
+        mUser = user;
+        mVer = ver;
+        mBuffer = new byte[Math.max(bufferSize, 16)];
+    }
+
+
+    /**
+     * Starts a new batch.
+     */
+    public void begin()
+    {
+        mLoggerIndex.clear();
+        mTagIndex.clear();
+        mLevelIndex.clear();
+        mLoggers.clear();
+        mTags.clear();
+        mLevels.clear();
+        Arrays.fill(mFieldsCol, 0, mRecords, null);
+        mRecords = 0;
+        mStructured = 0;
+        mMessages = 0;
+        mEstimate = 128 + mUser.length();
+    }
+
+    /**
+     * Adds the fields of one record to the batch. First pass.
+     *
+     * @param   time            record time in milliseconds
+     * @param   logger          logger name
+     * @param   tag             record tag
+     * @param   level           log level
+     * @param   messageLength   length of the message, used only to
+     *                          estimate the batch size
+     */
+    public void addRecord(long time, String logger, String tag,
+            String level, int messageLength)
+    {
+        addRecord(time, logger, tag, level, messageLength, null);
+    }
+
+    /**
+     * Adds the fields of one structured record to the batch. First
+     * pass.
+     *
+     * @param   fields          typed fields encoded by LogFields, or
+     *                          null if the record has none
+     * @see     #addRecord(long, String, String, String, int)
+     */
+    public void addRecord(long time, String logger, String tag,
+            String level, int messageLength, byte[] fields)
+    {
+        if (mRecords == mTimeCol.length)
+        {
+            int size = mRecords * 2;
+            mLoggerCol = grow(mLoggerCol, size);
+            mTagCol = grow(mTagCol, size);
+            mLevelCol = grow(mLevelCol, size);
+            long[] times = new long[size];
+            System.arraycopy(mTimeCol, 0, times, 0, mRecords);
+            mTimeCol = times;
+            byte[][] fieldsCol = new byte[size][];
+            System.arraycopy(mFieldsCol, 0, fieldsCol, 0, mRecords);
+            mFieldsCol = fieldsCol;
+        }
+
+        mLoggerCol[mRecords] = index(mLoggerIndex, mLoggers, logger);
+        mTagCol[mRecords] = index(mTagIndex, mTags, tag);
+        mLevelCol[mRecords] = index(mLevelIndex, mLevels, level);
+        mTimeCol[mRecords] = time;
+        mFieldsCol[mRecords] = fields;
+        mRecords++;
+        mEstimate += messageLength + RECORD_OVERHEAD;
+        if (fields != null)
+        {
+            // The JSON of the fields is about twice their encoding
+            mStructured++;
+            mEstimate += 2 * fields.length;
+        }
+    }
+
+    /**
+     * Returns the number of records added to the current batch.
+     *
+     * @return                  number of records
+     */
+    public int getRecordCount()
+    {
+        return mRecords;
+    }
+
+    /**
+     * Returns the time of the first record of the current batch.
+     *
+     * @return                  time in milliseconds, 0 if the batch
+     *                          is empty
+     */
+    public long getFirstTime()
+    {
+        return (mRecords > 0) ? mTimeCol[0] : 0;
+    }
+
+    /**
+     * Returns an estimate of the encoded size of the current batch,
+     * used to close a batch in the first pass.
+     *
+     * @return                  estimated size in bytes
+     */
+    public long getEstimatedSize()
+    {
+        return mEstimate;
+    }
+
+    /**
+     * Returns the number of bytes written since writeHead().
+     *
+     * @return                  number of encoded bytes
+     */
+    public long getByteCount()
+    {
+        return mTotal + mCount;
+    }
+
+    /**
+     * Writes the batch up to the message column.
+     *
+     * @param   out             stream to write to
+     * @param   batchId         ID of the batch
+     * @param   tzOffset        offset of the device time zone from
+     *                          UTC at t0 in milliseconds
+     */
+    public void writeHead(OutputStream out, String batchId, int tzOffset)
+        throws IOException
+    {
+        mOut = out;
+        mCount = 0;
+        mTotal = 0;
+
+        long t0 = getFirstTime();
+
+        writeAscii("{\"format\":\"" + FORMAT + "\",\"batch\":");
+        writeString(batchId);
+        writeAscii(",\"user\":");
+        writeString(mUser);
+        writeAscii(",\"ver\":");
+        writeString(mVer);
+        writeAscii(",\"tz\":" + tzOffset + ",\"t0\":" + t0);
+
+        writeAscii(",\"loggers\":");
+        writeStrings(mLoggers);
+        writeAscii(",\"tags\":");
+        writeStrings(mTags);
+        writeAscii(",\"levels\":");
+        writeStrings(mLevels);
+
+        writeAscii(",\"logger\":");
+        writeInts(mLoggerCol);
+        writeAscii(",\"tag\":");
+        writeInts(mTagCol);
+        writeAscii(",\"level\":");
+        writeInts(mLevelCol);
+
+        writeAscii(",\"dt\":[");
+        for (int i = 0; i < mRecords; i++)
+        {
+            if (i > 0)
+                put(',');
+            writeAscii(Long.toString(mTimeCol[i] - t0));
+        }
+        writeAscii("],\"message\":[");
+    }
+
+    /**
+     * Writes the next message. Second pass.
+     *
+     * @param   message         message of the next record
+     */
+    public void writeMessage(String message) throws IOException
+    {
+        if (mMessages++ > 0)
+            put(',');
+        writeString((message == null) ? "" : message);
+    }
+
+    /**
+     * Writes the fields of the structured records, if any, closes the
+     * batch and flushes the output.
+     */
+    public void finish() throws IOException
+    {
+        put(']');
+        if (mStructured > 0)
+        {
+            writeAscii(",\"fields\":[");
+            for (int i = 0; i < mRecords; i++)
+            {
+                if (i > 0)
+                    put(',');
+                if (mFieldsCol[i] == null)
+                {
+                    writeAscii("null");
+                }
+                else
+                {
+                    mFieldsBuilder.setLength(0);
+                    LogFields.appendJson(mFieldsCol[i], mFieldsBuilder);
+                    writeAscii(mFieldsBuilder);
+                }
+            }
+            put(']');
+        }
+        put('}');
+        drain();
+        mOut.flush();
+        mOut = null;
+    }
+
+
+    private static int index(HashMap<String, Integer> map,
+            ArrayList<String> list, String value)
+    {
+        if (value == null)
+            value = "";
+
+        Integer idx = map.get(value);
+        if (idx == null)
+        {
+            idx = list.size();
+            map.put(value, idx);
+            list.add(value);
+        }
+        return idx;
+    }
+
+    private static int[] grow(int[] array, int size)
+    {
+        int[] copy = new int[size];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private void writeStrings(ArrayList<String> list) throws IOException
+    {
+        put('[');
+        for (int i = 0; i < list.size(); i++)
+        {
+            if (i > 0)
+                put(',');
+            writeString(list.get(i));
+        }
+        put(']');
+    }
+
+    private void writeInts(int[] column) throws IOException
+    {
+        put('[');
+        for (int i = 0; i < mRecords; i++)
+        {
+            if (i > 0)
+                put(',');
+            writeAscii(Integer.toString(column[i]));
+        }
+        put(']');
+    }
+
+    private void writeAscii(CharSequence s) throws IOException
+    {
+        int len = s.length();
+        for (int i = 0; i < len; i++)
+            put(s.charAt(i));
+    }
+
+    /**
+     * Writes a JSON string literal in UTF-8.
+     */
+    private void writeString(String s) throws IOException
+    {
+        put('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++)
+        {
+            if (mCount + 12 > mBuffer.length)
+                drain();
+
+            char ch = s.charAt(i);
+            if (ch == '"' || ch == '\\')
+            {
+                mBuffer[mCount++] = (byte) '\\';
+                mBuffer[mCount++] = (byte) ch;
+            }
+            else if (ch < 0x20)
+            {
+                writeAscii(String.format("\\u%04x", (int) ch));
+            }
+            else if (ch < 0x80)
+            {
+                mBuffer[mCount++] = (byte) ch;
+            }
+            else if (ch < 0x800)
+            {
+                mBuffer[mCount++] = (byte) (0xc0 | (ch >> 6));
+                mBuffer[mCount++] = (byte) (0x80 | (ch & 0x3f));
+            }
+            else if (Character.isHighSurrogate(ch) && (i + 1 < len)
+                    && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(ch, s.charAt(++i));
+                mBuffer[mCount++] = (byte) (0xf0 | (cp >> 18));
+                mBuffer[mCount++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (ch >= 0xd800 && ch <= 0xdfff)
+            {
+                mBuffer[mCount++] = (byte) '?';
+            }
+            else
+            {
+                mBuffer[mCount++] = (byte) (0xe0 | (ch >> 12));
+                mBuffer[mCount++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+        put('"');
+    }
+
+    private void put(char ch) throws IOException
+    {
+        if (mCount == mBuffer.length)
+            drain();
+        mBuffer[mCount++] = (byte) ch;
+    }
+
+    private void drain() throws IOException
+    {
+        if (mCount > 0)
+        {
+            mOut.write(mBuffer, 0, mCount);
+            mTotal += mCount;
+            mCount = 0;
+        }
+    }
+}
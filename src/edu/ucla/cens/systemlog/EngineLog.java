@@ -0,0 +1,98 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+
+/**
+ * Diagnostic messages of the engine. The messages go to a sink that
+ * the platform installs: the Android log on the phone, standard error
+ * on a plain JVM unless another sink is set.
+ *
+ * Not to be confused with Log, the API applications use to log
+ * through SystemLog.
+ *
+ * @author  Hossein Falaki
+ */
+public final class EngineLog
+{
+    /** Priorities, the same as those of android.util.Log */
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * Receives the messages.
+     */
+    public interface Sink
+    {
+        /**
+         * Writes one message. Called on any thread.
+         *
+         * @param   priority    one of the priority constants
+         * @param   tag         tag of the component
+         * @param   msg         message
+         * @param   tr          exception to log, or null
+         */
+        void log(int priority, String tag, String msg, Throwable tr);
+    }
+
+    /** Writes to standard error */
+    public static final Sink STDERR = new Sink()
+    {
+        public void log(int priority, String tag, String msg,
+                Throwable tr)
+        {
+            char p = (priority == ERROR) ? 'E'
+                : ((priority == WARN) ? 'W' : 'I');
+            System.err.println(p + "/" + tag + ": " + msg);
+            if (tr != null)
+                tr.printStackTrace();
+        }
+    };
+
+    private static volatile Sink sSink = STDERR;
+
+
+    private EngineLog()
+    {
+    }
+
+
+    /**
+     * Sets where messages go.
+     *
+     * @param   sink        the sink
+     */
+    public static void setSink(Sink sink)
+    {
+        sSink = sink;
+    }
+
+    public static void i(String tag, String msg)
+    {
+        sSink.log(INFO, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg)
+    {
+        sSink.log(WARN, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr)
+    {
+        sSink.log(WARN, tag, msg, tr);
+    }
+
+    public static void e(String tag, String msg)
+    {
+        sSink.log(ERROR, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr)
+    {
+        sSink.log(ERROR, tag, msg, tr);
+    }
+}
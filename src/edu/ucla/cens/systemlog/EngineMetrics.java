@@ -0,0 +1,265 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Counters and latency histograms of the engine, so that its
+ * behaviour in the field can be seen: records ingested and dropped,
+ * the depth of the buffer, the time flushes and uploads take, the
+ * bytes, failures and retries of the uploads, and the latency of the
+ * records through each stage from the client call to the server.
+ *
+ * Updates take no lock: counters are atomic and histograms have fixed
+ * buckets, so recording a value costs an atomic add. The values are
+ * read together only by snapshot(), which may see an update to one
+ * counter and not yet to another.
+ *
+ * @author  Hossein Falaki
+ */
+public class EngineMetrics
+{
+    /**
+     * Histogram of durations in milliseconds over fixed buckets whose
+     * bounds double: bucket 0 counts durations below 1 ms, bucket i
+     * those from 2^(i-1) up to 2^i ms, and the last bucket everything
+     * longer.
+     */
+    public static class Histogram
+    {
+        /** Number of buckets, the last starts at about 73 minutes */
+        public static final int BUCKETS = 24;
+
+        private final AtomicLongArray mCounts =
+            new AtomicLongArray(BUCKETS);
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * Records one duration.
+         *
+         * @param   millis      duration in milliseconds
+         */
+        public void record(long millis)
+        {
+            if (millis < 0)
+                millis = 0;
+            int bucket = 64 - Long.numberOfLeadingZeros(millis);
+            mCounts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            mSum.addAndGet(millis);
+
+            long max = mMax.get();
+            while ((millis > max) && !mMax.compareAndSet(max, millis))
+                max = mMax.get();
+        }
+
+        public long getCount()
+        {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                count += mCounts.get(i);
+            return count;
+        }
+
+        /**
+         * Returns an upper bound of a percentile: the upper bound of
+         * the bucket it falls into, or the maximum if that is lower.
+         *
+         * @param   percent     percentile, between 0 and 100
+         * @return              duration in milliseconds, -1 if nothing
+         *                      was recorded
+         */
+        public long getPercentile(int percent)
+        {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                counts[i] = mCounts.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return -1;
+
+            long rank = (long) Math.ceil(percent / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(1L << i, mMax.get());
+            }
+            return mMax.get();
+        }
+
+        /**
+         * Returns the histogram as JSON: count, mean, p50, p90, p99,
+         * max and the counts of the buckets up to the last one used.
+         */
+        JSONObject toJson() throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            long count = getCount();
+            json.put("count", count);
+            json.put("mean", (count == 0) ? 0 : mSum.get() / count);
+            json.put("p50", getPercentile(50));
+            json.put("p90", getPercentile(90));
+            json.put("p99", getPercentile(99));
+            json.put("max", mMax.get());
+
+            int last = BUCKETS - 1;
+            while ((last >= 0) && (mCounts.get(last) == 0))
+                last--;
+            StringBuilder buckets = new StringBuilder();
+            for (int i = 0; i <= last; i++)
+            {
+                if (i > 0)
+                    buckets.append(',');
+                buckets.append(mCounts.get(i));
+            }
+            json.put("buckets", buckets.toString());
+            return json;
+        }
+    }
+
+
+    private final Clock mClock;
+    private final long mStart;
+
+    /** Records accepted into the buffer, and records rejected before
+     * they got there, for example for an unregistered tag */
+    public final AtomicLong ingested = new AtomicLong();
+    public final AtomicLong dropped = new AtomicLong();
+
+    /** Flushes and the records they wrote to the store */
+    public final AtomicLong flushes = new AtomicLong();
+    public final AtomicLong flushedRecords = new AtomicLong();
+
+    /** Upload runs, and what they posted successfully */
+    public final AtomicLong uploads = new AtomicLong();
+    public final AtomicLong uploadedRecords = new AtomicLong();
+    public final AtomicLong uploadedBytes = new AtomicLong();
+    public final AtomicLong uploadedBatches = new AtomicLong();
+
+    /** Failed posts, and those of them retried within their run */
+    public final AtomicLong uploadFailures = new AtomicLong();
+    public final AtomicLong uploadRetries = new AtomicLong();
+
+    /** Time a flush takes to write to the store */
+    public final Histogram flushTime = new Histogram();
+
+    /** Time of an upload run to one destination */
+    public final Histogram uploadTime = new Histogram();
+
+    /** Latency of each record through the stages from the client
+     * call to the acknowledgement of the server: until the service
+     * took it in, until it was stored, until it was read for upload,
+     * and until the server acknowledged its batch, this one once per
+     * batch. callToAck is the whole way. Records whose client did not
+     * send its call time count only in the stages after ingest */
+    public final Histogram callToIngest = new Histogram();
+    public final Histogram ingestToFlush = new Histogram();
+    public final Histogram flushToRead = new Histogram();
+    public final Histogram readToAck = new Histogram();
+    public final Histogram callToAck = new Histogram();
+
+    /** Records lost between the clients and the service */
+    public final SequenceTracker sequences = new SequenceTracker();
+
+
+    /**
+     * Constructor - creates metrics that count from now.
+     *
+     * @param   clock       clock the uptime is measured with
+     */
+    public EngineMetrics(Clock clock)
+    {
+        mClock = clock;
+        mStart = clock.elapsedRealtime();
+    }
+
+
+    /**
+     * Adds the totals of an upload run.
+     *
+     * @param   stats       stats of the run
+     */
+    public void addUpload(UploadStats stats)
+    {
+        uploads.incrementAndGet();
+        uploadedRecords.addAndGet(stats.records);
+        uploadedBytes.addAndGet(stats.bytes);
+        uploadedBatches.addAndGet(stats.batches);
+        uploadFailures.addAndGet(stats.failures);
+        uploadRetries.addAndGet(stats.retries);
+        uploadTime.record(stats.elapsed);
+    }
+
+    /**
+     * Returns the number of records ingested and not flushed yet.
+     *
+     * @return              depth of the buffer
+     */
+    public long getBufferDepth()
+    {
+        return Math.max(0, ingested.get() - flushedRecords.get());
+    }
+
+    /**
+     * Returns all values as one compact JSON object, with the uptime
+     * of the metrics and the ingest rate over it.
+     *
+     * @return              snapshot of the metrics
+     */
+    public String snapshot()
+    {
+        try
+        {
+            long uptime = mClock.elapsedRealtime() - mStart;
+            long count = ingested.get();
+
+            JSONObject json = new JSONObject();
+            json.put("uptime", uptime);
+            json.put("ingested", count);
+            json.put("ingestRate", (uptime <= 0) ? 0
+                    : Math.round(count * 1000.0 / uptime * 100) / 100.0);
+            json.put("dropped", dropped.get());
+            json.put("buffered", getBufferDepth());
+            json.put("flushes", flushes.get());
+            json.put("flushed", flushedRecords.get());
+            json.put("flushTime", flushTime.toJson());
+            json.put("uploads", uploads.get());
+            json.put("uploaded", uploadedRecords.get());
+            json.put("uploadedBytes", uploadedBytes.get());
+            json.put("batches", uploadedBatches.get());
+            json.put("failures", uploadFailures.get());
+            json.put("retries", uploadRetries.get());
+            json.put("uploadTime", uploadTime.toJson());
+
+            JSONObject trace = new JSONObject();
+            trace.put("callToIngest", callToIngest.toJson());
+            trace.put("ingestToFlush", ingestToFlush.toJson());
+            trace.put("flushToRead", flushToRead.toJson());
+            trace.put("readToAck", readToAck.toJson());
+            trace.put("callToAck", callToAck.toJson());
+            trace.put("sequenced", sequences.getReceived());
+            trace.put("lost", sequences.getLost());
+            trace.put("late", sequences.getLate());
+            json.put("trace", trace);
+            return json.toString();
+        }
+        catch (JSONException e)
+        {
+            return "{}";
+        }
+    }
+}
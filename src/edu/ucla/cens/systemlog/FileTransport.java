@@ -0,0 +1,315 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Center for Embedded Networked Sensing
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Transport that writes the batches to files on the card, for
+ * deployments that keep their logs on the phone instead of uploading
+ * them. The destination is a file: URL of a directory, with optional
+ * parameters:
+ *
+ * <pre>
+ * file:///sdcard?gzip=true&amp;segment=8388608&amp;age=3600000
+ * </pre>
+ *
+ * <ul>
+ * <li>gzip: whether to compress the files, default false.</li>
+ * <li>segment: size in bytes after which a new file is started,
+ * default 8 MB.</li>
+ * <li>age: age in milliseconds after which a new file is started,
+ * default one hour.</li>
+ * </ul>
+ *
+ * The batches are taken in the lines format, one JSON record per
+ * line, and written to segment files named
+ * systemlogdump-yyyyMMdd-HHmmss.txt, or .txt.gz if they are
+ * compressed, with a number added to the name if a segment of the
+ * same second exists. A segment is appended to, also by later upload
+ * runs, until it reaches its size or age. Each batch is streamed
+ * through a buffer and synced to the card before it is acknowledged.
+ * A compressed segment holds one gzip member per batch, so it can be
+ * read up to the last acknowledged batch even if the phone died
+ * while writing.
+ *
+ * If writing fails the segment is cut back to its length before the
+ * batch, or abandoned if that fails too. The batch stays in the
+ * store and is written again when it is sent again. A batch
+ * that was written but whose acknowledgement did not reach the store
+ * is written again, so records are dumped at least once.
+ *
+ * @author  Hossein Falaki
+ */
+public class FileTransport implements Transport
+{
+    /** Tag used for log messages */
+    private static final String TAG = "SystemLogFileTransport";
+
+    /** Format and content type of the batches the files take */
+    public static final String FORMAT = "lines";
+    public static final String CONTENT_TYPE =
+        "application/x-systemlog-lines";
+
+    private static final String FILE_PREFIX = "systemlogdump-";
+    private static final String DATE_FORMAT = "yyyyMMdd-HHmmss";
+    public static final long DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_AGE = 60 * 60 * 1000;
+
+    /** Size of the write buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDir;
+    private final boolean mCompress;
+    private final long mSegmentBytes;
+    private final long mSegmentAge;
+    private final String mSuffix;
+    private final SimpleDateFormat mSDF =
+        new SimpleDateFormat(DATE_FORMAT, Locale.US);
+
+    /** Segment being appended to, null to start a new one, and the
+     * wall clock time it was started */
+    private File mSegment;
+    private long mSegmentStart;
+
+    private volatile boolean mAborted;
+    private int mPostCount;
+
+
+    /**
+     * Constructor - creates a transport to the directory of the given
+     * URL and picks up its newest segment.
+     *
+     * @param   url         file: URL of the directory, see above
+     * @throws  IOException if the URL is not a file: URL
+     */
+    public FileTransport(String url) throws IOException
+    {
+        URI uri;
+        try
+        {
+            uri = new URI(url);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        if (uri.getPath() == null)
+            throw new IOException("No directory in " + url);
+
+        HashMap<String, String> params = Transports.parseQuery(uri);
+        mDir = new File(uri.getPath());
+        mCompress = Boolean.parseBoolean(params.get("gzip"));
+        try
+        {
+            mSegmentBytes = params.containsKey("segment")
+                ? Long.parseLong(params.get("segment"))
+                : DEFAULT_SEGMENT_BYTES;
+            mSegmentAge = params.containsKey("age")
+                ? Long.parseLong(params.get("age"))
+                : DEFAULT_SEGMENT_AGE;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Bad number in " + url);
+        }
+        mSuffix = mCompress ? ".txt.gz" : ".txt";
+
+        findSegment();
+    }
+
+
+    public String getFormats()
+    {
+        return FORMAT;
+    }
+
+    public boolean isLocal()
+    {
+        return true;
+    }
+
+    /**
+     * Appends the batch to the current segment, or a new one if it is
+     * full or too old, and syncs the file.
+     */
+    public int send(String contentType, BodyWriter body)
+        throws IOException
+    {
+        if (mAborted)
+            throw new IOException("File transport aborted");
+        if (!CONTENT_TYPE.equals(contentType))
+            return UNSUPPORTED_TYPE;
+
+        long now = System.currentTimeMillis();
+        if ((mSegment == null) || (mSegment.length() >= mSegmentBytes)
+                || (now - mSegmentStart >= mSegmentAge))
+            newSegment(now);
+
+        long length = mSegment.length();
+        FileOutputStream file = new FileOutputStream(mSegment, true);
+        try
+        {
+            OutputStream out = new BufferedOutputStream(
+                    new KeepOpenStream(file), BUFFER_SIZE);
+            if (mCompress)
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            body.writeTo(out);
+
+            // Ends the gzip member, and flushes the buffer into the
+            // file
+            out.close();
+            file.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "Write to " + mSegment + " failed");
+            try
+            {
+                file.getChannel().truncate(length);
+            }
+            catch (IOException te)
+            {
+                mSegment = null;
+            }
+            throw e;
+        }
+        finally
+        {
+            file.close();
+        }
+        mPostCount++;
+        return ACCEPTED;
+    }
+
+    public void abort()
+    {
+        mAborted = true;
+    }
+
+    public String getResponseMessage()
+    {
+        return null;
+    }
+
+    public long getRetryAfter()
+    {
+        return -1;
+    }
+
+    public String getServerFormats()
+    {
+        return FORMAT;
+    }
+
+    public int getPostCount()
+    {
+        return mPostCount;
+    }
+
+    public int getHandshakeCount()
+    {
+        return 0;
+    }
+
+    public int getReconnectCount()
+    {
+        return 0;
+    }
+
+    public void close()
+    {
+    }
+
+
+    /**
+     * Continues the newest segment of the directory, if there is one
+     * of this kind.
+     */
+    private void findSegment()
+    {
+        String[] names = mDir.list();
+        if (names == null)
+            return;
+
+        File newest = null;
+        for (String name : names)
+        {
+            File file = new File(mDir, name);
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(mSuffix)
+                    && ((newest == null) 
+                        || (file.lastModified() > newest.lastModified())))
+                newest = file;
+        }
+        if (newest == null)
+            return;
+
+        try
+        {
+            mSegmentStart = mSDF.parse(newest.getName().substring(
+                        FILE_PREFIX.length(), FILE_PREFIX.length()
+                        + DATE_FORMAT.length())).getTime();
+            mSegment = newest;
+        }
+        catch (ParseException e)
+        {
+            // Not one of ours
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            // Not one of ours
+        }
+    }
+
+    private void newSegment(long now)
+    {
+        // Segments started within the same second are numbered
+        String name = FILE_PREFIX + mSDF.format(new Date(now));
+        mSegment = new File(mDir, name + mSuffix);
+        for (int i = 1; mSegment.exists(); i++)
+            mSegment = new File(mDir, name + "-" + i + mSuffix);
+        mSegmentStart = now;
+    }
+
+
+    /**
+     * Passes everything on but close(), so that the file stays open
+     * for the sync.
+     */
+    private static class KeepOpenStream extends FilterOutputStream
+    {
+        KeepOpenStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+
+/**
+ * Decides when the buffered log records are flushed to the database
+ * and when the service wakes up next to flush and upload.
+ *
+ * The buffer is flushed as soon as it holds a given number of
+ * records, without waiting for a wakeup, and at the latest when its
+ * oldest record reaches a maximum age. Apart from that deadline the
+ * wakeups follow an interval that adapts to the logging rate: it
+ * doubles after every wakeup that found nothing logged since the one
+ * before, up to a maximum, and halves after every wakeup that found
+ * a burst of records, down to a minimum. An idle device is therefore
+ * woken up less and less often, while a busy one has its records
+ * uploaded quickly.
+ *
+ * The scheduler also keeps the numbers needed to tune these limits:
+ * the number of wakeups in the last hour and the percentiles of the
+ * flush latency, the time the oldest record of each flush spent in
+ * the buffer.
+ *
+ * All times are in milliseconds on the clock of the caller, which
+ * has to be monotonic.
+ *
+ * @author  Hossein Falaki
+ */
+public class FlushScheduler
+{
+    /** What the caller has to do after a record was buffered */
+    public static final int RECORD_BUFFERED = 0;
+    public static final int RECORD_FLUSH = 1;
+    public static final int RECORD_RESCHEDULE = 2;
+
+    /** Length of the window wakeups are counted in */
+    private static final long ONE_HOUR = 60 * 60 * 1000;
+
+    /** Number of flush latencies the percentiles are taken over */
+    private static final int LATENCY_SAMPLES = 256;
+
+    private final int mFillThreshold;
+    private final long mMaxAge;
+    private final long mMinInterval, mMaxInterval;
+    private final int mBurstRecords;
+
+    /** Current wakeup interval */
+    private long mInterval;
+
+    /** Time of the next wakeup, 0 if none is scheduled */
+    private long mNextWakeup;
+
+    /** Records in the buffer and time the oldest one was logged */
+    private int mBuffered;
+    private long mOldest;
+
+    /** Records logged since the last wakeup */
+    private int mSinceWakeup;
+
+    /** Times of the wakeups in the last hour */
+    private final LinkedList<Long> mWakeups = new LinkedList<Long>();
+
+    /** Ring of the most recent flush latencies */
+    private final long[] mLatencies = new long[LATENCY_SAMPLES];
+    private int mLatencyCount;
+
+    /** Flushes by cause */
+    private long mFillFlushes, mWakeupFlushes;
+
+
+    /**
+     * Constructor - creates a scheduler that starts out with the
+     * given interval.
+     *
+     * @param   fillThreshold   number of buffered records that
+     *                          triggers a flush
+     * @param   maxAge          longest time a record stays in the
+     *                          buffer
+     * @param   minInterval     shortest interval between wakeups
+     * @param   interval        initial interval between wakeups
+     * @param   maxInterval     longest interval between wakeups
+     * @param   burstRecords    number of records logged between two
+     *                          wakeups that makes the interval shorter
+     */
+    public FlushScheduler(int fillThreshold, long maxAge,
+            long minInterval, long interval, long maxInterval,
+            int burstRecords)
+    {
+        mFillThreshold = fillThreshold;
+        mMaxAge = maxAge;
+        mMinInterval = minInterval;
+        mInterval = interval;
+        mMaxInterval = maxInterval;
+        mBurstRecords = burstRecords;
+    }
+
+
+    /**
+     * Notes that a record has been added to the buffer.
+     *
+     * @param   now         current time
+     * @return              RECORD_FLUSH if the buffer is full and
+     *                      should be flushed now, RECORD_RESCHEDULE if
+     *                      the next wakeup comes too late for the
+     *                      record and has to be moved up, or
+     *                      RECORD_BUFFERED
+     */
+    public synchronized int onRecord(long now)
+    {
+        mSinceWakeup++;
+        if (mBuffered++ == 0)
+            mOldest = now;
+
+        if (mBuffered == mFillThreshold)
+            return RECORD_FLUSH;
+        if ((mBuffered == 1)
+                && ((mNextWakeup == 0) || (mNextWakeup > now + mMaxAge)))
+            return RECORD_RESCHEDULE;
+        return RECORD_BUFFERED;
+    }
+
+    /**
+     * Notes that the buffer is about to be flushed.
+     *
+     * @param   now         current time
+     * @param   full        true if the flush was triggered by the fill
+     *                      threshold rather than by a wakeup
+     */
+    public synchronized void onFlush(long now, boolean full)
+    {
+        if (full)
+            mFillFlushes++;
+        else
+            mWakeupFlushes++;
+
+        if (mBuffered > 0)
+        {
+            mLatencies[mLatencyCount++ % LATENCY_SAMPLES] = now - mOldest;
+            mBuffered = 0;
+        }
+    }
+
+    /**
+     * Notes a wakeup and adapts the interval to the number of records
+     * logged since the previous one.
+     *
+     * @param   now         current time
+     */
+    public synchronized void onWakeup(long now)
+    {
+        mWakeups.add(now);
+        trimWakeups(now);
+
+        if (mSinceWakeup == 0)
+            mInterval = Math.min(mInterval * 2, mMaxInterval);
+        else if (mSinceWakeup >= mBurstRecords)
+            mInterval = Math.max(mInterval / 2, mMinInterval);
+        mSinceWakeup = 0;
+    }
+
+    /**
+     * Returns the time of the next wakeup and remembers it as
+     * scheduled.
+     *
+     * @param   now         current time
+     * @return              time of the next wakeup
+     */
+    public synchronized long nextWakeup(long now)
+    {
+        mNextWakeup = now + mInterval;
+        if (mBuffered > 0)
+            mNextWakeup = Math.max(now,
+                    Math.min(mNextWakeup, mOldest + mMaxAge));
+        return mNextWakeup;
+    }
+
+    /**
+     * Returns the interval between wakeups while nothing is logged.
+     *
+     * @return              interval in milliseconds
+     */
+    public synchronized long getInterval()
+    {
+        return mInterval;
+    }
+
+    /**
+     * Returns the number of wakeups in the last hour.
+     *
+     * @param   now         current time
+     * @return              number of wakeups
+     */
+    public synchronized int getWakeupsPerHour(long now)
+    {
+        trimWakeups(now);
+        return mWakeups.size();
+    }
+
+    /**
+     * Returns a percentile of the latency of the recent flushes.
+     *
+     * @param   percent     percentile, between 0 and 100
+     * @return              latency in milliseconds, -1 if nothing was
+     *                      flushed yet
+     */
+    public synchronized long getLatencyPercentile(int percent)
+    {
+        int count = Math.min(mLatencyCount, LATENCY_SAMPLES);
+        if (count == 0)
+            return -1;
+
+        long[] sorted = new long[count];
+        System.arraycopy(mLatencies, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percent / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    /**
+     * Returns the state of the scheduler in a human readable form.
+     *
+     * @param   now         current time
+     * @return              summary of the scheduler state
+     */
+    public synchronized String toString(long now)
+    {
+        return "interval=" + mInterval / 1000 + "s"
+            + " buffered=" + mBuffered
+            + " wakeups/h=" + getWakeupsPerHour(now)
+            + " flushes(fill/wakeup)=" + mFillFlushes + "/"
+            + mWakeupFlushes
+            + " latency(p50/p90/p99)=" + getLatencyPercentile(50) + "/"
+            + getLatencyPercentile(90) + "/" + getLatencyPercentile(99)
+            + "ms";
+    }
+
+
+    private void trimWakeups(long now)
+    {
+        while (!mWakeups.isEmpty()
+                && (mWakeups.getFirst() <= now - ONE_HOUR))
+            mWakeups.removeFirst();
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+
+/**
+ * Writes application/x-www-form-urlencoded content directly into an
+ * OutputStream through a small, reusable byte buffer.
+ * The encoding is identical to java.net.URLEncoder with UTF-8, but
+ * no intermediate String or byte array is created for the encoded
+ * value. One encoder object can be reused for many posts by
+ * calling reset() with the next output stream.
+ *
+ * @author  Hossein Falaki
+ */
+public class FormEncoder
+{
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    /** Staging buffer for encoded bytes */
+    private final byte[] mBuffer;
+
+    /** Number of valid bytes in the buffer */
+    private int mCount;
+
+    /** Total number of bytes written since the last reset */
+    private long mTotal;
+
+    /** Stream the encoded content is written to */
+    private OutputStream mOut;
+
+
+    /**
+     * Constructor - creates an encoder with a buffer of the given
+     * size.
+     *
+     * @param   bufferSize      size of the staging buffer in bytes
+     */
+    public FormEncoder(int bufferSize)
+    {
+        // Room for at least one fully escaped 4-byte character
+        mBuffer = new byte[Math.max(bufferSize, 16)];
+    }
+
+
+    /**
+     * Points the encoder to a new output stream and clears the byte
+     * counter.
+     *
+     * @param   out             stream to write to
+     */
+    public void reset(OutputStream out)
+    {
+        mOut = out;
+        mCount = 0;
+        mTotal = 0;
+    }
+
+    /**
+     * Returns the number of bytes written since the last reset,
+     * including the bytes still sitting in the buffer.
+     *
+     * @return                  number of encoded bytes
+     */
+    public long getByteCount()
+    {
+        return mTotal + mCount;
+    }
+
+
+    /**
+     * Writes the given string without encoding. The string is
+     * expected to contain only ASCII characters, such as field
+     * names and separators.
+     *
+     * @param   raw             string to write verbatim
+     */
+    public void writeRaw(String raw) throws IOException
+    {
+        int len = raw.length();
+        for (int i = 0; i < len; i++)
+        {
+            if (mCount == mBuffer.length)
+                drain();
+            mBuffer[mCount++] = (byte) raw.charAt(i);
+        }
+    }
+
+    /**
+     * URL-encodes the given string into the stream.
+     *
+     * @param   value           string to encode
+     */
+    public void writeEncoded(CharSequence value) throws IOException
+    {
+        int len = value.length();
+        for (int i = 0; i < len; i++)
+        {
+            // Worst case for one character is 4 escaped bytes
+            if (mCount + 12 > mBuffer.length)
+                drain();
+
+            char ch = value.charAt(i);
+
+            if ((ch >= 'a' && ch <= 'z')
+                    || (ch >= 'A' && ch <= 'Z')
+                    || (ch >= '0' && ch <= '9')
+                    || ch == '.' || ch == '-'
+                    || ch == '*' || ch == '_')
+            {
+                mBuffer[mCount++] = (byte) ch;
+            }
+            else if (ch == ' ')
+            {
+                mBuffer[mCount++] = (byte) '+';
+            }
+            else if (ch < 0x80)
+            {
+                escape(ch);
+            }
+            else if (ch < 0x800)
+            {
+                escape(0xc0 | (ch >> 6));
+                escape(0x80 | (ch & 0x3f));
+            }
+            else if (Character.isHighSurrogate(ch) && (i + 1 < len)
+                    && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(ch, value.charAt(++i));
+                escape(0xf0 | (cp >> 18));
+                escape(0x80 | ((cp >> 12) & 0x3f));
+                escape(0x80 | ((cp >> 6) & 0x3f));
+                escape(0x80 | (cp & 0x3f));
+            }
+            else if (ch >= 0xd800 && ch <= 0xdfff)
+            {
+                // Unpaired surrogate, encoded as '?' like URLEncoder
+                escape('?');
+            }
+            else
+            {
+                escape(0xe0 | (ch >> 12));
+                escape(0x80 | ((ch >> 6) & 0x3f));
+                escape(0x80 | (ch & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Writes the given string as UTF-8 without URL-encoding it, for
+     * content that is not a form, such as the lines format.
+     *
+     * @param   value           string to write
+     */
+    public void writeUtf8(CharSequence value) throws IOException
+    {
+        int len = value.length();
+        for (int i = 0; i < len; i++)
+        {
+            if (mCount + 4 > mBuffer.length)
+                drain();
+
+            char ch = value.charAt(i);
+            if (ch < 0x80)
+            {
+                mBuffer[mCount++] = (byte) ch;
+            }
+            else if (ch < 0x800)
+            {
+                mBuffer[mCount++] = (byte) (0xc0 | (ch >> 6));
+                mBuffer[mCount++] = (byte) (0x80 | (ch & 0x3f));
+            }
+            else if (Character.isHighSurrogate(ch) && (i + 1 < len)
+                    && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(ch, value.charAt(++i));
+                mBuffer[mCount++] = (byte) (0xf0 | (cp >> 18));
+                mBuffer[mCount++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (ch >= 0xd800 && ch <= 0xdfff)
+            {
+                // Unpaired surrogate, '?' like String.getBytes()
+                mBuffer[mCount++] = (byte) '?';
+            }
+            else
+            {
+                mBuffer[mCount++] = (byte) (0xe0 | (ch >> 12));
+                mBuffer[mCount++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Writes any buffered bytes to the underlying stream.
+     */
+    public void flush() throws IOException
+    {
+        drain();
+        mOut.flush();
+    }
+
+
+    private void escape(int b)
+    {
+        mBuffer[mCount++] = (byte) '%';
+        mBuffer[mCount++] = HEX[(b >> 4) & 0x0f];
+        mBuffer[mCount++] = HEX[b & 0x0f];
+    }
+
+    private void drain() throws IOException
+    {
+        if (mCount > 0)
+        {
+            mOut.write(mBuffer, 0, mCount);
+            mTotal += mCount;
+            mCount = 0;
+        }
+    }
+
+}
@@ -0,0 +1,376 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Compact trace of the records taken in by LogIngest, so that a burst
+ * seen on a phone can be pushed through the engine again off the
+ * phone.
+ *
+ * A trace keeps, for each record, the time since the previous one,
+ * its tag, logger, level and message size, and either the message or
+ * only a hash of it. Tags, loggers and levels are written once and
+ * then referred to by number, and numbers are written in as few bytes
+ * as they need, so a record whose message is hashed takes about a
+ * dozen bytes.
+ *
+ * The file is a header (magic, version, flags and the wall clock time
+ * the capture started) followed by the records up to the end of the
+ * file. A capture that was cut off, for example because the process
+ * was killed, reads up to its last complete record.
+ *
+ * @author  Hossein Falaki
+ */
+public class IngestTrace
+{
+    private static final int MAGIC = 0x534c5452;
+    private static final int VERSION = 1;
+
+    /** Flag of a trace that keeps hashes instead of messages */
+    private static final int FLAG_HASHED = 1;
+
+
+    /**
+     * One record of a trace.
+     */
+    public static class Entry
+    {
+        /** Milliseconds since the start of the capture */
+        public long offset;
+        public String tag;
+        public String logger;
+        public String level;
+
+        /** Length of the message */
+        public int size;
+
+        /** Message, null if the trace keeps only its hash */
+        public String message;
+        public long hash;
+
+        /**
+         * Returns the message, or if the trace keeps only its hash a
+         * made up message of the same size that is the same for the
+         * same hash.
+         */
+        public String getMessage()
+        {
+            if (message != null)
+                return message;
+
+            char[] text = new char[size];
+            long h = hash;
+            for (int i = 0; i < size; i++)
+            {
+                h = h * 6364136223846793005L + 1442695040888963407L;
+                text[i] = (char) ('a' + ((h >>> 33) % 26));
+            }
+            return new String(text);
+        }
+    }
+
+
+    /**
+     * Writes a trace. Writes from several threads are kept whole, in
+     * the order they are made.
+     */
+    public static class Writer
+    {
+        private final DataOutputStream mOut;
+        private final boolean mHashed;
+        private final long mMaxBytes;
+        private final HashMap<String, Integer> mStrings =
+            new HashMap<String, Integer>();
+        private final long mStart;
+        private long mLast;
+        private long mCount;
+
+        /**
+         * Constructor - starts a trace on the given stream.
+         *
+         * @param   out         stream the trace is written to
+         * @param   hashed      whether to keep only hashes of the
+         *                      messages
+         * @param   maxBytes    size after which records are no longer
+         *                      written, 0 for no limit
+         * @param   startTime   elapsed time the capture starts at,
+         *                      offsets of records count from it
+         * @param   wallTime    wall clock time the capture starts at
+         */
+        public Writer(OutputStream out, boolean hashed, long maxBytes,
+                long startTime, long wallTime) throws IOException
+        {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mHashed = hashed;
+            mMaxBytes = maxBytes;
+            mStart = startTime;
+            mLast = startTime;
+
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+            mOut.writeByte(hashed ? FLAG_HASHED : 0);
+            mOut.writeLong(wallTime);
+        }
+
+        /**
+         * Adds a record to the trace, unless the trace is full.
+         *
+         * @param   time        elapsed time the record was taken in
+         * @param   tag         message tag
+         * @param   level       log level string
+         * @param   logger      logger name
+         * @param   message     log message
+         * @return              false if the trace is full
+         */
+        public synchronized boolean write(long time, String tag,
+                String level, String logger, String message)
+            throws IOException
+        {
+            if (isFull())
+                return false;
+
+            writeVarLong(Math.max(0, time - mLast));
+            mLast = Math.max(mLast, time);
+            writeString(tag);
+            writeString(logger);
+            writeString(level);
+            writeVarLong(message.length());
+            if (mHashed)
+            {
+                mOut.writeLong(hash(message));
+            }
+            else
+            {
+                byte[] bytes = message.getBytes("UTF-8");
+                writeVarLong(bytes.length);
+                mOut.write(bytes);
+            }
+            mCount++;
+            return true;
+        }
+
+        public synchronized boolean isFull()
+        {
+            return (mMaxBytes > 0) && (mOut.size() >= mMaxBytes);
+        }
+
+        public synchronized long getCount()
+        {
+            return mCount;
+        }
+
+        /**
+         * Returns the number of bytes written, wrapping at 2 GB.
+         */
+        public synchronized int getBytes()
+        {
+            return mOut.size();
+        }
+
+        public synchronized void flush() throws IOException
+        {
+            mOut.flush();
+        }
+
+        public synchronized void close() throws IOException
+        {
+            mOut.close();
+        }
+
+        public synchronized String toString()
+        {
+            return "records=" + mCount + " bytes=" + mOut.size()
+                + " duration=" + (mLast - mStart) + "ms"
+                + (mHashed ? " hashed" : "");
+        }
+
+        /**
+         * Writes a string as its number if it was written before, or
+         * as the next number followed by the string.
+         */
+        private void writeString(String value) throws IOException
+        {
+            if (value == null)
+                value = "";
+            Integer index = mStrings.get(value);
+            if (index != null)
+            {
+                writeVarLong(index);
+                return;
+            }
+            writeVarLong(mStrings.size());
+            mOut.writeUTF(value);
+            mStrings.put(value, mStrings.size());
+        }
+
+        private void writeVarLong(long value) throws IOException
+        {
+            while ((value & ~0x7fL) != 0)
+            {
+                mOut.writeByte((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+    }
+
+
+    /**
+     * Reads a trace.
+     */
+    public static class Reader
+    {
+        private final DataInputStream mIn;
+        private final boolean mHashed;
+        private final long mWallTime;
+        private final ArrayList<String> mStrings = new ArrayList<String>();
+        private long mOffset;
+
+        /**
+         * Constructor - reads the header of a trace.
+         *
+         * @param   in          stream the trace is read from
+         * @throws  IOException if the stream does not hold a trace
+         */
+        public Reader(InputStream in) throws IOException
+        {
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            if (mIn.readInt() != MAGIC)
+                throw new IOException("Not an ingest trace");
+            int version = mIn.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("Unknown trace version " + version);
+            mHashed = (mIn.readUnsignedByte() & FLAG_HASHED) != 0;
+            mWallTime = mIn.readLong();
+        }
+
+        /**
+         * Reads the next record into the given entry.
+         *
+         * @param   entry       entry to fill
+         * @return              false at the end of the trace
+         */
+        public boolean next(Entry entry) throws IOException
+        {
+            try
+            {
+                long delta = readVarLong(true);
+                if (delta < 0)
+                    return false;
+                mOffset += delta;
+                entry.offset = mOffset;
+                entry.tag = readString();
+                entry.logger = readString();
+                entry.level = readString();
+                entry.size = (int) readVarLong(false);
+                if (mHashed)
+                {
+                    entry.hash = mIn.readLong();
+                    entry.message = null;
+                }
+                else
+                {
+                    byte[] bytes = new byte[(int) readVarLong(false)];
+                    mIn.readFully(bytes);
+                    entry.message = new String(bytes, "UTF-8");
+                }
+                return true;
+            }
+            catch (EOFException e)
+            {
+                // The capture was cut off in the middle of a record
+                return false;
+            }
+        }
+
+        public boolean isHashed()
+        {
+            return mHashed;
+        }
+
+        /**
+         * Returns the wall clock time the capture started at.
+         */
+        public long getWallTime()
+        {
+            return mWallTime;
+        }
+
+        public void close() throws IOException
+        {
+            mIn.close();
+        }
+
+        private String readString() throws IOException
+        {
+            int index = (int) readVarLong(false);
+            if (index < mStrings.size())
+                return mStrings.get(index);
+            if (index != mStrings.size())
+                throw new IOException("Bad string reference " + index);
+            String value = mIn.readUTF();
+            mStrings.add(value);
+            return value;
+        }
+
+        /**
+         * Reads a number, or returns -1 at the end of the stream if
+         * that is allowed before it.
+         */
+        private long readVarLong(boolean endAllowed) throws IOException
+        {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = mIn.read();
+                if (b < 0)
+                {
+                    if (endAllowed && (shift == 0))
+                        return -1;
+                    throw new EOFException();
+                }
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Bad number");
+        }
+    }
+
+
+    private IngestTrace()
+    {
+    }
+
+    /**
+     * Returns a 64 bit FNV-1a hash of a message.
+     *
+     * @param   message     message to hash
+     * @return              the hash
+     */
+    public static long hash(String message)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < message.length(); i++)
+        {
+            h ^= message.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -1,8 +1,11 @@
 package edu.ucla.cens.systemlog;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Process;
 
 public class IntentLog 
 {
@@ -22,6 +25,12 @@ public class IntentLog
 			"edu.ucla.cens.systemlog.key_app_name";
 	private static final String KEY_LOG_LEVEL = 
 			"edu.ucla.cens.systemlog.key_log_level";
+	private static final String KEY_CLIENT = 
+			"edu.ucla.cens.systemlog.key_client";
+	private static final String KEY_SEQUENCE = 
+			"edu.ucla.cens.systemlog.key_sequence";
+	private static final String KEY_CLIENT_TIME = 
+			"edu.ucla.cens.systemlog.key_client_time";
 	
     private static final String ERROR_LOGLEVEL = "error";
     private static final String WARNING_LOGLEVEL = "warning";
@@ -33,6 +42,15 @@ public class IntentLog
     private static Context mContext = null;
     private static boolean mPackageInstalled;
 
+    /** Sequence number of the next message, for the service to see
+     * messages that were lost on the way */
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    /** Ends the client ID, which would otherwise be the one of Log.
+     * Log numbers its records apart and they arrive by another way,
+     * so the two have to be told apart */
+    private static final String CLIENT_SUFFIX = "/intent";
+
     public static void initialize(Context context, String appName) 
     {
     	mContext = context.getApplicationContext();
@@ -54,6 +72,10 @@ public class IntentLog
 		i.putExtra(KEY_APP_NAME, mAppName);
 		i.putExtra(KEY_TAG, tag);
 		i.putExtra(KEY_MSG, msg);
+		i.putExtra(KEY_CLIENT, mAppName + "/" + Process.myPid()
+                + CLIENT_SUFFIX);
+		i.putExtra(KEY_SEQUENCE, sSequence.getAndIncrement());
+		i.putExtra(KEY_CLIENT_TIME, System.currentTimeMillis());
 		
 		if (mContext.startService(i) == null ) 
         {
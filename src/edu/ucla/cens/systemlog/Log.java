@@ -3,8 +3,11 @@ package edu.ucla.cens.systemlog;
 import android.content.ComponentName;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.Process;
 import android.os.RemoteException;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 
 
 public class Log
@@ -18,13 +21,38 @@ public class Log
 
     private static String sAppName = DEFAULT_APP_NAME;
 
+    private static int sUploadWeight = 0;
+
     private static String sUserId;
 
+    private static final String ERROR_LOGLEVEL = "error";
+    private static final String WARNING_LOGLEVEL = "warning";
+    private static final String INFO_LOGLEVEL = "info";
+    private static final String DEBUG_LOGLEVEL = "debug";
+    private static final String VERBOSE_LOGLEVEL = "verbose";
+
+    /** Sequence number of the next record sent to SystemLog. Lets
+     * the service count records lost on the way */
+    private static final AtomicLong sSequence = new AtomicLong();
+
     public static void setAppName(String name)
     {
         sAppName = name;
     }
 
+    /**
+     * Sets the upload weight of this application, used when its
+     * tags are registered. While several applications have logs
+     * waiting, each gets a share of the upload proportional to its
+     * weight.
+     *
+     * @param   weight      upload weight, 1 to 100
+     */
+    public static void setUploadWeight(int weight)
+    {
+        sUploadWeight = weight;
+    }
+
 
 		
     public static ServiceConnection SystemLogConnection 
@@ -50,7 +78,11 @@ public class Log
     	{
 	    	try
 	    	{
-	    		sLogger.registerLogger(tag, sAppName);
+	    		if (sUploadWeight > 0)
+	    			sLogger.registerWeightedLogger(tag, sAppName, 
+	    					sUploadWeight);
+	    		else
+	    			sLogger.registerLogger(tag, sAppName);
 	    	} 
 	    	catch (RemoteException re)
 	    	{
@@ -96,6 +128,72 @@ public class Log
     	return res;
     }
 
+    /**
+     * Sends a record to SystemLog with the next sequence number of
+     * this client and the time of the call, so the service can trace
+     * its latency and notice lost records.
+     */
+    private static void send(String tag, String message, String level,
+            long time) throws RemoteException
+    {
+        sLogger.logTraced(tag, message, level, 
+                sAppName + "/" + Process.myPid(),
+                sSequence.getAndIncrement(), time);
+    }
+
+    /**
+     * Sends a structured record with its fields in their binary
+     * encoding, or falls back to the Android log with the fields
+     * written out if SystemLog is not connected.
+     */
+    private static void log(String tag, String message, String level,
+            int priority, LogFields fields)
+    {
+        if (sConnected)
+        {
+            try
+            {
+                long time = System.currentTimeMillis();
+                if (!sLogger.isRegistered(tag))
+                    register(tag);
+
+                sLogger.logStructured(tag, message, level,
+                        fields.toByteArray(),
+                        sAppName + "/" + Process.myPid(),
+                        sSequence.getAndIncrement(), time);
+            }
+            catch (RemoteException re)
+            {
+                android.util.Log.e(TAG, "Remote Exception", re);
+            }
+        }
+        else
+        {
+            android.util.Log.println(priority, tag, message + " " + fields);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the metrics of the SystemLog service.
+     *
+     * @return          metrics as a JSON object, null if not connected
+     */
+    public static String getStats()
+    {
+    	if (sConnected)
+    	{
+	    	try
+	    	{
+	    		return sLogger.getStats();
+	    	}
+	    	catch (RemoteException re)
+	    	{
+	    		android.util.Log.e(TAG, "Remote Exception", re);
+	    	}
+    	}
+    	return null;
+    }
+
 	
     public static void i (String tag, String message)
     {
@@ -103,10 +201,11 @@ public class Log
     	{
 	    	try
 	    	{
+                long time = System.currentTimeMillis();
                 if (!sLogger.isRegistered(tag))
                     register(tag);
 
-	    		sLogger.info(tag, message);
+	    		send(tag, message, INFO_LOGLEVEL, time);
 	    	}
 	    	catch (RemoteException re)
 	    	{
@@ -125,10 +224,11 @@ public class Log
     	{
 	    	try
 	    	{
+                long time = System.currentTimeMillis();
                 if (!sLogger.isRegistered(tag))
                     register(tag);
 
-	    		sLogger.debug(tag, message);
+	    		send(tag, message, DEBUG_LOGLEVEL, time);
 	    	}
 	    	catch (RemoteException re)
 	    	{
@@ -149,10 +249,11 @@ public class Log
     	{
 	    	try
 	    	{
+                long time = System.currentTimeMillis();
                 if (!sLogger.isRegistered(tag))
                     register(tag);
 
-	    		sLogger.error(tag, message + e.getMessage());
+	    		send(tag, message + e.getMessage(), ERROR_LOGLEVEL, time);
 	    	}
 	    	catch (RemoteException re)
 	    	{
@@ -172,10 +273,11 @@ public class Log
     	{
 	    	try
 	    	{
+                long time = System.currentTimeMillis();
                 if (!sLogger.isRegistered(tag))
                     register(tag);
 
-	    		sLogger.error(tag, message);
+	    		send(tag, message, ERROR_LOGLEVEL, time);
 	    	}
 	    	catch (RemoteException re)
 	    	{
@@ -196,10 +298,11 @@ public class Log
     	{
 	    	try
 	    	{
+                long time = System.currentTimeMillis();
                 if (!sLogger.isRegistered(tag))
                     register(tag);
 
-	    		sLogger.verbose(tag, message);
+	    		send(tag, message, VERBOSE_LOGLEVEL, time);
 	    	}
 	    	catch (RemoteException re)
 	    	{
@@ -219,10 +322,11 @@ public class Log
     	{
 	    	try
 	    	{
+                long time = System.currentTimeMillis();
                 if (!sLogger.isRegistered(tag))
                     register(tag);
 
-	    		sLogger.warning(tag, message);
+	    		send(tag, message, WARNING_LOGLEVEL, time);
 	    	}
 	    	catch (RemoteException re)
 	    	{
@@ -235,5 +339,39 @@ public class Log
     	}
     }
 
+    /**
+     * Logs a structured message with typed fields, which are uploaded
+     * as a JSON object next to the message.
+     *
+     * @param   tag         tag of the message
+     * @param   message     log message
+     * @param   fields      fields of the record
+     */
+    public static void i (String tag, String message, LogFields fields)
+    {
+        log(tag, message, INFO_LOGLEVEL, android.util.Log.INFO, fields);
+    }
+
+    public static void d (String tag, String message, LogFields fields)
+    {
+        log(tag, message, DEBUG_LOGLEVEL, android.util.Log.DEBUG, fields);
+    }
+
+    public static void e (String tag, String message, LogFields fields)
+    {
+        log(tag, message, ERROR_LOGLEVEL, android.util.Log.ERROR, fields);
+    }
+
+    public static void v (String tag, String message, LogFields fields)
+    {
+        log(tag, message, VERBOSE_LOGLEVEL, android.util.Log.VERBOSE,
+                fields);
+    }
+
+    public static void w (String tag, String message, LogFields fields)
+    {
+        log(tag, message, WARNING_LOGLEVEL, android.util.Log.WARN, fields);
+    }
+
 
 }
@@ -0,0 +1,531 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+
+/**
+ * Typed key-value fields of a structured log record, such as the
+ * size and duration of a transfer:
+ *
+ * <pre>
+ * Log.i(TAG, "Upload done", new LogFields()
+ *         .put("bytes", size).put("ms", elapsed).put("wifi", true));
+ * </pre>
+ *
+ * Values are integers, doubles, booleans and short strings. The
+ * fields are encoded as they are put into a compact binary form that
+ * crosses the IPC boundary as a byte array, is stored in the log
+ * table as it is and is turned into a JSON object only when the
+ * record is uploaded (see appendJson()). Numbers are never formatted
+ * as text on the logging path.
+ *
+ * Each field is encoded as its type (1 byte), the length of its key
+ * in UTF-8 (1 byte), the key and the value: a zigzag varint for an
+ * integer, 8 big-endian bytes for a double, nothing for a boolean and
+ * a varint length followed by UTF-8 bytes for a string. Keys longer
+ * than MAX_KEY_LENGTH and strings longer than MAX_STRING_LENGTH
+ * characters are cut, and fields beyond MAX_FIELDS or MAX_BYTES are
+ * dropped.
+ *
+ * A LogFields object is not thread safe.
+ *
+ * @author  Hossein Falaki
+ */
+public class LogFields
+{
+    /** Limits of a record's fields */
+    public static final int MAX_FIELDS = 32;
+    public static final int MAX_KEY_LENGTH = 32;
+    public static final int MAX_STRING_LENGTH = 256;
+    public static final int MAX_BYTES = 4096;
+
+    /** Field types */
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_TRUE = 3;
+    private static final int TYPE_FALSE = 4;
+    private static final int TYPE_STRING = 5;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private byte[] mData = new byte[64];
+    private int mLength;
+    private int mCount;
+
+
+    /**
+     * Adds an integer field.
+     *
+     * @param   key         name of the field
+     * @param   value       value of the field
+     * @return              this object
+     */
+    public LogFields put(String key, long value)
+    {
+        int start = mLength;
+        if (startField(TYPE_LONG, key, 10))
+            endField(start, writeVarint((value << 1) ^ (value >> 63)));
+        return this;
+    }
+
+    /**
+     * Adds a double field. NaN and infinite values are uploaded as
+     * null.
+     *
+     * @param   key         name of the field
+     * @param   value       value of the field
+     * @return              this object
+     */
+    public LogFields put(String key, double value)
+    {
+        int start = mLength;
+        if (startField(TYPE_DOUBLE, key, 8))
+        {
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                mData[mLength++] = (byte) (bits >>> shift);
+            endField(start, true);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a boolean field.
+     *
+     * @param   key         name of the field
+     * @param   value       value of the field
+     * @return              this object
+     */
+    public LogFields put(String key, boolean value)
+    {
+        int start = mLength;
+        if (startField(value ? TYPE_TRUE : TYPE_FALSE, key, 0))
+            endField(start, true);
+        return this;
+    }
+
+    /**
+     * Adds a string field, cut to MAX_STRING_LENGTH characters. A null
+     * value adds no field.
+     *
+     * @param   key         name of the field
+     * @param   value       value of the field
+     * @return              this object
+     */
+    public LogFields put(String key, String value)
+    {
+        if (value == null)
+            return this;
+
+        int start = mLength;
+        int length = cutLength(value, MAX_STRING_LENGTH);
+        if (startField(TYPE_STRING, key, 5 + 3 * length))
+        {
+            writeVarint(utf8Length(value, length));
+            writeUtf8(value, length);
+            endField(start, true);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of fields.
+     */
+    public int size()
+    {
+        return mCount;
+    }
+
+    /**
+     * Removes all fields, so the object can be reused.
+     *
+     * @return              this object
+     */
+    public LogFields clear()
+    {
+        mLength = 0;
+        mCount = 0;
+        return this;
+    }
+
+    /**
+     * Returns the encoded fields.
+     *
+     * @return              a copy of the encoding
+     */
+    public byte[] toByteArray()
+    {
+        byte[] data = new byte[mLength];
+        System.arraycopy(mData, 0, data, 0, mLength);
+        return data;
+    }
+
+    /**
+     * Returns the fields as a JSON object.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        appendJson(toByteArray(), sb);
+        return sb.toString();
+    }
+
+
+    /**
+     * Checks that a byte array from another process is a complete
+     * encoding of fields within the limits, so that appendJson() can
+     * read it.
+     *
+     * @param   data        encoded fields
+     * @return              true if it is valid
+     */
+    public static boolean isValid(byte[] data)
+    {
+        if ((data == null) || (data.length > MAX_BYTES))
+            return false;
+
+        int pos = 0, count = 0;
+        while (pos < data.length)
+        {
+            if (++count > MAX_FIELDS)
+                return false;
+            if (pos + 2 > data.length)
+                return false;
+            int type = data[pos++];
+            pos += 1 + (data[pos] & 0xff);
+            if (pos > data.length)
+                return false;
+
+            switch (type)
+            {
+                case TYPE_LONG:
+                    pos = skipVarint(data, pos);
+                    break;
+                case TYPE_DOUBLE:
+                    pos += 8;
+                    break;
+                case TYPE_TRUE:
+                case TYPE_FALSE:
+                    break;
+                case TYPE_STRING:
+                    int end = skipVarint(data, pos);
+                    if (end < 0)
+                        return false;
+                    long length = readVarint(data, pos);
+                    if ((length < 0) || (length > data.length - end))
+                        return false;
+                    pos = end + (int) length;
+                    break;
+                default:
+                    return false;
+            }
+            if ((pos < 0) || (pos > data.length))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Appends encoded fields to a string builder as a JSON object,
+     * {"key":value,...}. Characters outside printable ASCII are
+     * escaped, so the object is plain ASCII.
+     *
+     * @param   data        encoded fields, valid as checked by
+     *                      isValid()
+     * @param   sb          builder to append to
+     */
+    public static void appendJson(byte[] data, StringBuilder sb)
+    {
+        sb.append('{');
+        int pos = 0;
+        while (pos < data.length)
+        {
+            if (pos > 0)
+                sb.append(',');
+            int type = data[pos++];
+            int keyLength = data[pos++] & 0xff;
+            appendString(data, pos, keyLength, sb);
+            pos += keyLength;
+            sb.append(':');
+
+            switch (type)
+            {
+                case TYPE_LONG:
+                    long zigzag = readVarint(data, pos);
+                    sb.append((zigzag >>> 1) ^ -(zigzag & 1));
+                    pos = skipVarint(data, pos);
+                    break;
+                case TYPE_DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++)
+                        bits = (bits << 8) | (data[pos++] & 0xff);
+                    double value = Double.longBitsToDouble(bits);
+                    if (Double.isNaN(value) || Double.isInfinite(value))
+                        sb.append("null");
+                    else
+                        sb.append(value);
+                    break;
+                case TYPE_TRUE:
+                    sb.append("true");
+                    break;
+                case TYPE_FALSE:
+                    sb.append("false");
+                    break;
+                default:
+                    int length = (int) readVarint(data, pos);
+                    pos = skipVarint(data, pos);
+                    appendString(data, pos, length, sb);
+                    pos += length;
+                    break;
+            }
+        }
+        sb.append('}');
+    }
+
+
+    /**
+     * Writes the type and key of a field, if the field fits within
+     * the limits together with a value of at most the given size.
+     */
+    private boolean startField(int type, String key, int valueBytes)
+    {
+        if ((key == null) || (mCount >= MAX_FIELDS))
+            return false;
+
+        int keyLength = cutLength(key, MAX_KEY_LENGTH);
+        int size = 2 + 3 * keyLength + valueBytes;
+        if (mLength + size > mData.length)
+        {
+            byte[] data = new byte[Math.max(2 * mData.length,
+                    mLength + size)];
+            System.arraycopy(mData, 0, data, 0, mLength);
+            mData = data;
+        }
+
+        mData[mLength++] = (byte) type;
+        int keyStart = ++mLength;
+        writeUtf8(key, keyLength);
+        mData[keyStart - 1] = (byte) (mLength - keyStart);
+        return true;
+    }
+
+    /**
+     * Counts the field just written, or takes it back if it went
+     * beyond MAX_BYTES.
+     */
+    private void endField(int start, boolean written)
+    {
+        if (written && (mLength <= MAX_BYTES))
+            mCount++;
+        else
+            mLength = start;
+    }
+
+    private boolean writeVarint(long value)
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            mData[mLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mData[mLength++] = (byte) value;
+        return true;
+    }
+
+    /**
+     * Writes the first length characters of a string as UTF-8. An
+     * unpaired surrogate is written as '?'.
+     */
+    private void writeUtf8(String s, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            char ch = s.charAt(i);
+            if (ch < 0x80)
+            {
+                mData[mLength++] = (byte) ch;
+            }
+            else if (ch < 0x800)
+            {
+                mData[mLength++] = (byte) (0xc0 | (ch >> 6));
+                mData[mLength++] = (byte) (0x80 | (ch & 0x3f));
+            }
+            else if (!isSurrogate(ch))
+            {
+                mData[mLength++] = (byte) (0xe0 | (ch >> 12));
+                mData[mLength++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                mData[mLength++] = (byte) (0x80 | (ch & 0x3f));
+            }
+            else if (Character.isHighSurrogate(ch) && (i + 1 < length)
+                    && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(ch, s.charAt(++i));
+                mData[mLength++] = (byte) (0xf0 | (cp >> 18));
+                mData[mLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                mData[mLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                mData[mLength++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else
+            {
+                mData[mLength++] = (byte) '?';
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes writeUtf8() writes for the first
+     * length characters of a string.
+     */
+    private static int utf8Length(String s, int length)
+    {
+        int bytes = 0;
+        for (int i = 0; i < length; i++)
+        {
+            char ch = s.charAt(i);
+            if (ch < 0x80)
+                bytes += 1;
+            else if (ch < 0x800)
+                bytes += 2;
+            else if (!isSurrogate(ch))
+                bytes += 3;
+            else if (Character.isHighSurrogate(ch) && (i + 1 < length)
+                    && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                bytes += 4;
+                i++;
+            }
+            else
+                bytes += 1;
+        }
+        return bytes;
+    }
+
+    private static boolean isSurrogate(char ch)
+    {
+        return (ch >= 0xd800) && (ch <= 0xdfff);
+    }
+
+    /**
+     * Returns the number of characters of a string to keep, at most
+     * max, without splitting a surrogate pair.
+     */
+    private static int cutLength(String s, int max)
+    {
+        if (s.length() <= max)
+            return s.length();
+        return Character.isHighSurrogate(s.charAt(max - 1))
+            ? max - 1 : max;
+    }
+
+    private static long readVarint(byte[] data, int pos)
+    {
+        long value = 0;
+        for (int shift = 0; (pos < data.length) && (shift < 64);
+                shift += 7)
+        {
+            byte b = data[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                break;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the position after a varint, or -1 if it does not end
+     * within the data or is longer than 10 bytes.
+     */
+    private static int skipVarint(byte[] data, int pos)
+    {
+        for (int i = 0; (i < 10) && (pos < data.length); i++)
+        {
+            if (data[pos++] >= 0)
+                return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * Appends UTF-8 bytes as a quoted JSON string with every
+     * character outside printable ASCII escaped. Malformed bytes are
+     * appended as U+FFFD.
+     */
+    private static void appendString(byte[] data, int pos, int length,
+            StringBuilder sb)
+    {
+        int end = pos + length;
+        sb.append('"');
+        while (pos < end)
+        {
+            int b = data[pos++] & 0xff;
+            int cp, more;
+            if (b < 0x80)
+            {
+                cp = b;
+                more = 0;
+            }
+            else if ((b & 0xe0) == 0xc0)
+            {
+                cp = b & 0x1f;
+                more = 1;
+            }
+            else if ((b & 0xf0) == 0xe0)
+            {
+                cp = b & 0x0f;
+                more = 2;
+            }
+            else if ((b & 0xf8) == 0xf0)
+            {
+                cp = b & 0x07;
+                more = 3;
+            }
+            else
+            {
+                cp = 0xfffd;
+                more = 0;
+            }
+            for (; more > 0; more--)
+            {
+                if ((pos >= end) || ((data[pos] & 0xc0) != 0x80))
+                {
+                    cp = 0xfffd;
+                    break;
+                }
+                cp = (cp << 6) | (data[pos++] & 0x3f);
+            }
+            if (cp > Character.MAX_CODE_POINT)
+                cp = 0xfffd;
+
+            if ((cp == '"') || (cp == '\\'))
+            {
+                sb.append('\\').append((char) cp);
+            }
+            else if ((cp >= 0x20) && (cp < 0x7f))
+            {
+                sb.append((char) cp);
+            }
+            else if (cp < 0x10000)
+            {
+                appendEscape(cp, sb);
+            }
+            else
+            {
+                cp -= 0x10000;
+                appendEscape(0xd800 | (cp >> 10), sb);
+                appendEscape(0xdc00 | (cp & 0x3ff), sb);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void appendEscape(int ch, StringBuilder sb)
+    {
+        sb.append("\\u").append(HEX[(ch >> 12) & 0xf])
+            .append(HEX[(ch >> 8) & 0xf]).append(HEX[(ch >> 4) & 0xf])
+            .append(HEX[ch & 0xf]);
+    }
+}
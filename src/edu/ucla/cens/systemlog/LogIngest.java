@@ -0,0 +1,254 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import org.json.JSONException;
+
+
+/**
+ * Takes in log records and buffers them in memory until they are
+ * flushed to the record store.
+ *
+ * Records are added on the threads of the logging applications and
+ * only wait for the buffer, never for the store: a flush takes the
+ * buffered records and writes them while new records go to a fresh
+ * buffer.
+ *
+ * @author  Hossein Falaki
+ */
+public class LogIngest
+{
+    /** Tag used for log messages */
+    private static final String TAG = "SystemLogIngest";
+
+    private final RecordStore mStore;
+    private final Clock mClock;
+    private final String mDevice;
+    private final EngineMetrics mMetrics;
+    private final SimpleDateFormat mSDF;
+
+    /** Records not yet flushed to the store, in the order they were
+     * logged */
+    private ArrayList<LogRecord> mBuffer = new ArrayList<LogRecord>();
+
+    /** Keeps flushes in order */
+    private final Object mFlushLock = new Object();
+
+    /** Trace the records are captured to, null if not capturing */
+    private IngestTrace.Writer mCapture;
+
+
+    /**
+     * Constructor - creates an ingest that stores records of the
+     * given device.
+     *
+     * @param   store       store the records are flushed to
+     * @param   clock       clock the records are timed with
+     * @param   device      device identifier (IMEI)
+     * @param   metrics     counts the records and times the flushes
+     */
+    public LogIngest(RecordStore store, Clock clock, String device,
+            EngineMetrics metrics)
+    {
+        mStore = store;
+        mClock = clock;
+        mDevice = device;
+        mMetrics = metrics;
+        mSDF = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    }
+
+
+    /**
+     * Constructs a log record with the given fields and adds it to
+     * the buffer.
+     *
+     * @param   message     log message
+     * @param   tag         message tag
+     * @param   level       Log level string
+     * @param   logger      logger name
+     */
+    public void createEntry(String message, String tag, String level,
+            String logger)
+    {
+        createEntry(message, tag, level, logger, null, -1, 0);
+    }
+
+    /**
+     * Constructs a log record with the given fields and the trace of
+     * the client call that logged it, and adds it to the buffer.
+     *
+     * @param   message     log message
+     * @param   tag         message tag
+     * @param   level       Log level string
+     * @param   logger      logger name
+     * @param   client      ID of the client, null if the client does
+     *                      not number its records
+     * @param   sequence    sequence number of the record at the client
+     * @param   clientTime  wall clock time of the client call, 0 if
+     *                      unknown
+     */
+    public void createEntry(String message, String tag, String level,
+            String logger, String client, long sequence, long clientTime)
+    {
+        createEntry(message, tag, level, logger, null, client, sequence,
+                clientTime);
+    }
+
+    /**
+     * Constructs a structured log record with typed fields and the
+     * trace of the client call, and adds it to the buffer. The fields
+     * are kept in their binary encoding; fields that are not a valid
+     * encoding are dropped and the message is kept.
+     *
+     * @param   fields      fields encoded by LogFields, or null
+     * @see     #createEntry(String, String, String, String, String,
+     *          long, long)
+     */
+    public synchronized void createEntry(String message, String tag,
+            String level, String logger, byte[] fields, String client,
+            long sequence, long clientTime)
+    {
+        if ((fields != null) && !LogFields.isValid(fields))
+        {
+            EngineLog.w(TAG, "Dropped invalid fields from " + tag);
+            fields = null;
+        }
+        try
+        {
+            long now = mClock.currentTimeMillis();
+            mBuffer.add(LogRecord.create(now, mSDF, mDevice,
+                        LogRecord.VER, message, tag, level, logger,
+                        fields, clientTime));
+            mMetrics.ingested.incrementAndGet();
+            if (clientTime > 0)
+                mMetrics.callToIngest.record(now - clientTime);
+            if (client != null)
+                mMetrics.sequences.onRecord(client, sequence);
+            if (mCapture != null)
+                capture(message, tag, level, logger);
+        }
+        catch (JSONException e)
+        {
+            mMetrics.dropped.incrementAndGet();
+            EngineLog.e(TAG, "JSON Error", e);
+        }
+    }
+
+    /**
+     * Writes the buffered records to the store.
+     */
+    public void flush()
+    {
+        synchronized (mFlushLock)
+        {
+            ArrayList<LogRecord> records;
+            synchronized (this)
+            {
+                records = mBuffer;
+                mBuffer = new ArrayList<LogRecord>();
+            }
+
+            flushCapture();
+            if (records.isEmpty())
+                return;
+
+            long start = mClock.elapsedRealtime();
+            long flushTime = mClock.currentTimeMillis();
+            mStore.insertRecords(records, flushTime);
+            mMetrics.flushTime.record(mClock.elapsedRealtime() - start);
+            mMetrics.flushes.incrementAndGet();
+            mMetrics.flushedRecords.addAndGet(records.size());
+            for (LogRecord record : records)
+                mMetrics.ingestToFlush.record(flushTime - record.timestamp);
+        }
+    }
+
+    /**
+     * Starts or stops capturing the records taken in to a trace.
+     *
+     * @param   capture     trace to capture to, null to stop
+     * @return              the trace captured to so far, which the
+     *                      caller closes, or null
+     */
+    public synchronized IngestTrace.Writer setCapture(
+            IngestTrace.Writer capture)
+    {
+        IngestTrace.Writer previous = mCapture;
+        mCapture = capture;
+        return previous;
+    }
+
+    /**
+     * Returns the trace the records are captured to, or null.
+     */
+    public synchronized IngestTrace.Writer getCapture()
+    {
+        return mCapture;
+    }
+
+    /**
+     * Returns the number of records waiting for a flush.
+     *
+     * @return              number of buffered records
+     */
+    public synchronized int getBufferedCount()
+    {
+        return mBuffer.size();
+    }
+
+
+    private void capture(String message, String tag, String level,
+            String logger)
+    {
+        try
+        {
+            if (!mCapture.write(mClock.elapsedRealtime(), tag, level,
+                        logger, message))
+            {
+                EngineLog.w(TAG, "Capture full, stopped: " + mCapture);
+                mCapture.close();
+                mCapture = null;
+            }
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "Capture failed, stopped", e);
+            try
+            {
+                mCapture.close();
+            }
+            catch (IOException ce)
+            {
+                // Already failed
+            }
+            mCapture = null;
+        }
+    }
+
+    /**
+     * Flushes the capture, so that a trace cut off by the end of the
+     * process ends at the last flush of the records.
+     */
+    private void flushCapture()
+    {
+        IngestTrace.Writer capture = getCapture();
+        if (capture == null)
+            return;
+        try
+        {
+            capture.flush();
+        }
+        catch (IOException e)
+        {
+            EngineLog.e(TAG, "Could not flush the capture", e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * One log record on its way from the logging application to the
+ * database: its fields and its JSON encoding, as they are stored in
+ * the log table.
+ *
+ * Does not depend on the Android framework, so the ingest path can be
+ * measured on a plain JVM (see the bench project).
+ *
+ * @author  Hossein Falaki
+ */
+public class LogRecord
+{
+    /** Version of the SystemLog JSON record format */
+    public static final String VER = "2.2";
+
+    /** Characters that are not printable ASCII */
+    private static final Pattern NON_PRINTABLE =
+        Pattern.compile("[^\\x20-\\x7e]");
+
+    public final String logger;
+    public final String tag;
+    public final String level;
+    public final String message;
+
+    /** Local time of the record as text, and in milliseconds */
+    public final String time;
+    public final long timestamp;
+
+    /** The record as a JSON object */
+    public final String json;
+
+    /** Wall clock time of the client call in milliseconds, 0 if the
+     * client did not send it. Not part of the JSON record */
+    public final long clientTime;
+
+    /** Typed fields encoded by LogFields, null if the record has
+     * none. Not part of the JSON record until it is uploaded */
+    public final byte[] fields;
+
+
+    private LogRecord(String logger, String tag, String level,
+            String message, String time, long timestamp, String json,
+            byte[] fields, long clientTime)
+    {
+        this.logger = logger;
+        this.tag = tag;
+        this.level = level;
+        this.message = message;
+        this.time = time;
+        this.timestamp = timestamp;
+        this.json = json;
+        this.clientTime = clientTime;
+        this.fields = fields;
+    }
+
+
+    /**
+     * Removes every character that is not printable ASCII from a
+     * message.
+     *
+     * @param   message     message as logged
+     * @return              filtered message
+     */
+    public static String sanitize(String message)
+    {
+        return NON_PRINTABLE.matcher(message).replaceAll("");
+    }
+
+    /**
+     * Creates a record and encodes it as JSON.
+     *
+     * @param   timestamp   time of the record in milliseconds
+     * @param   format      format of the textual time
+     * @param   user        user (device) the record belongs to
+     * @param   ver         version of the record format
+     * @param   message     log message
+     * @param   tag         message tag
+     * @param   level       log level string
+     * @param   logger      logger name
+     * @return              the record
+     * @throws  JSONException if the record cannot be encoded
+     */
+    public static LogRecord create(long timestamp, SimpleDateFormat format,
+            String user, String ver, String message, String tag,
+            String level, String logger) throws JSONException
+    {
+        return create(timestamp, format, user, ver, message, tag, level,
+                logger, 0);
+    }
+
+    /**
+     * Creates a record with the time of the client call that logged
+     * it.
+     *
+     * @param   clientTime  time of the client call in milliseconds, 0
+     *                      if unknown
+     * @see     #create(long, SimpleDateFormat, String, String, String,
+     *          String, String, String)
+     */
+    public static LogRecord create(long timestamp, SimpleDateFormat format,
+            String user, String ver, String message, String tag,
+            String level, String logger, long clientTime)
+        throws JSONException
+    {
+        return create(timestamp, format, user, ver, message, tag, level,
+                logger, null, clientTime);
+    }
+
+    /**
+     * Creates a structured record with typed fields. The fields are
+     * kept in their binary encoding and added to the JSON record only
+     * when it is uploaded.
+     *
+     * @param   fields      fields encoded by LogFields, or null
+     * @param   clientTime  time of the client call in milliseconds, 0
+     *                      if unknown
+     * @see     #create(long, SimpleDateFormat, String, String, String,
+     *          String, String, String)
+     */
+    public static LogRecord create(long timestamp, SimpleDateFormat format,
+            String user, String ver, String message, String tag,
+            String level, String logger, byte[] fields, long clientTime)
+        throws JSONException
+    {
+        String time = format.format(new Date(timestamp));
+
+        JSONObject dataRecord = new JSONObject();
+        dataRecord.put("date", time);
+        dataRecord.put("time_stamp", timestamp);
+        dataRecord.put("user", user);
+        dataRecord.put("tag", tag);
+        dataRecord.put("logger", logger);
+        dataRecord.put("ver", ver);
+        dataRecord.put("message", message);
+        dataRecord.put("level", level);
+
+        return new LogRecord(logger, tag, level, message, time, timestamp,
+                dataRecord.toString(), fields, clientTime);
+    }
+}
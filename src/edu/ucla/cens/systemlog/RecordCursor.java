@@ -0,0 +1,45 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+
+/**
+ * Result of a query of a RecordStore. The methods are those of
+ * android.database.Cursor that the engine uses, and behave the same.
+ *
+ * @author  Hossein Falaki
+ */
+public interface RecordCursor
+{
+    int getCount();
+
+    int getPosition();
+
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    boolean moveToPosition(int position);
+
+    boolean isAfterLast();
+
+    /**
+     * Returns the index of the named column, or -1 if there is none.
+     */
+    int getColumnIndex(String columnName);
+
+    boolean isNull(int columnIndex);
+
+    String getString(int columnIndex);
+
+    int getInt(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    byte[] getBlob(int columnIndex);
+
+    void close();
+}
@@ -0,0 +1,185 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.List;
+
+
+/**
+ * Storage of the log records and of the upload state, as the engine
+ * sees it. On the phone it is the SQLite database of
+ * SystemLogDbAdaptor. Selections are SQL expressions over the columns
+ * below, see Selections.
+ *
+ * The records are kept in a table of the columns KEY_ROWID to
+ * KEY_FIELDS, with IDs in the order the records were stored. The
+ * upload state consists of the batches in flight and a small
+ * key-value table.
+ *
+ * @author  Hossein Falaki
+ */
+public interface RecordStore
+{
+    /** Columns of the record table */
+    String KEY_LOGRECORD = "logrecord";
+    String KEY_LOGGER = "logger";
+    String KEY_TIME = "recordtime";
+    String KEY_ROWID = "_id";
+
+    /** Individual fields of a record, used by the columnar upload
+     * format. They are NULL for records created before version 5 */
+    String KEY_TAG = "tag";
+    String KEY_LEVEL = "level";
+    String KEY_TIMESTAMP = "timestamp";
+    String KEY_MESSAGE = "message";
+
+    /** Times of the client call and of the flush of a record, used to
+     * trace its latency. NULL for records created before version 10,
+     * and the client time also for clients that do not send it */
+    String KEY_CLIENT_TIME = "client_time";
+    String KEY_FLUSH_TIME = "flush_time";
+
+    /** Typed fields of a structured record as encoded by LogFields.
+     * NULL for records without fields and for records created before
+     * version 11 */
+    String KEY_FIELDS = "fields";
+
+    /** Columns of the in-flight batches */
+    String KEY_BATCH_ID = "batch_id";
+    String KEY_FROM_ID = "from_id";
+    String KEY_TO_ID = "to_id";
+
+    /** Selection of the records of an in-flight batch within its
+     * range, NULL if the batch holds every record of the range */
+    String KEY_SELECTION = "selection";
+
+    /** URL an in-flight batch was posted to, NULL for batches posted
+     * before version 9 to the default destination */
+    String KEY_DESTINATION = "destination";
+
+
+    /**
+     * Opens the store. Calls may be nested; the store stays open
+     * until every open() has been matched by close().
+     *
+     * @return              this store
+     */
+    RecordStore open();
+
+    void close();
+
+    /**
+     * Lets the store reset the record IDs if the record table is
+     * empty. The store has to be open.
+     */
+    void tickle();
+
+    /**
+     * Stores records in the given order. Opens the store if needed.
+     *
+     * @param   records     records to store
+     * @param   flushTime   wall clock time of the flush, stored with
+     *                      the records
+     */
+    void insertRecords(List<LogRecord> records, long flushTime);
+
+    /**
+     * Returns the records that match the given selection, in ID
+     * order, with all columns of the record table.
+     *
+     * @param   selection   SQL selection, null for all records
+     * @return              cursor over the matching records
+     */
+    RecordCursor fetchEntries(String selection);
+
+    /**
+     * Returns at most limit records that match the given selection,
+     * in ID order.
+     *
+     * @param   selection   SQL selection, null for all records
+     * @param   limit       maximum number of records
+     * @return              cursor over the matching records
+     */
+    RecordCursor fetchEntries(String selection, int limit);
+
+    RecordCursor fetchAllEntries();
+
+    /**
+     * Returns the number of records and the time of the oldest record
+     * for each log level. Records logged before levels were stored
+     * are counted under a NULL level and time.
+     *
+     * @param   selection   SQL selection, null for all records
+     * @return              cursor over level, count and oldest time
+     */
+    RecordCursor fetchBacklog(String selection);
+
+    /**
+     * Returns the number of records of each logger that match the
+     * given selection.
+     *
+     * @param   selection   SQL selection, null for all records
+     * @return              cursor over logger and count
+     */
+    RecordCursor fetchLoggerBacklog(String selection);
+
+    boolean deleteEntry(long rowId);
+
+    /**
+     * Returns the generation of the record table. The generation
+     * changes every time the IDs start over.
+     *
+     * @return              generation of the record table
+     */
+    long getGeneration();
+
+    String getMeta(String key);
+
+    void putMeta(String key, String value);
+
+    /**
+     * Records that the batch with the given ID and range is about to
+     * be posted. Recording the same batch again has no effect.
+     *
+     * @param   batchId     ID of the batch
+     * @param   fromId      id of the first log record in the batch
+     * @param   toId        id of the last log record in the batch
+     * @param   selection   selection of the records within the
+     *                      range, null for all
+     * @param   destination URL the batch is posted to
+     */
+    void putInflightBatch(String batchId, long fromId, long toId,
+            String selection, String destination);
+
+    void deleteInflightBatch(String batchId);
+
+    /**
+     * Returns the in-flight batches posted to the given destination,
+     * ordered by their first record ID, with the columns
+     * KEY_BATCH_ID, KEY_FROM_ID, KEY_TO_ID and KEY_SELECTION.
+     *
+     * @param   destination URL the batches were posted to
+     * @param   isDefault   also return the batches posted before
+     *                      destinations were recorded
+     * @return              cursor over in-flight batches
+     */
+    RecordCursor fetchInflightBatches(String destination,
+            boolean isDefault);
+
+    /**
+     * Deletes the records of a batch that the server has received,
+     * together with its in-flight entry, atomically.
+     *
+     * @param   batchId     ID of the batch
+     * @param   fromId      id of the first log record to delete
+     * @param   toId        id of the last log record to delete
+     * @param   selection   selection of the records within the
+     *                      range, null for all
+     * @return              true if records were deleted
+     */
+    boolean completeBatch(String batchId, long fromId, long toId,
+            String selection);
+}
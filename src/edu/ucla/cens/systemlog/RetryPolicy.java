@@ -0,0 +1,176 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.Random;
+
+
+/**
+ * Decides when a failed upload should be tried again.
+ *
+ * The delay after each consecutive failure doubles, starting at the
+ * base delay and capped at the maximum delay, and a random jitter
+ * of up to half the delay is subtracted so that many phones do not
+ * retry in lock step. A Retry-After value sent by the server is
+ * used whenever it is longer than the computed delay.
+ *
+ * Each upload run may retry only a limited number of times (the
+ * retry budget). After a number of consecutive failures the circuit
+ * breaker opens and no upload is attempted until the cool-down
+ * period has passed. The first failure after that opens it again.
+ *
+ * @author  Hossein Falaki
+ */
+public class RetryPolicy
+{
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int mRetryBudget;
+    private final int mBreakerThreshold;
+    private final long mBreakerCooldown;
+    private final Random mRandom;
+
+    /** Number of failures since the last successful post */
+    private int mConsecutiveFailures;
+
+    /** Retries left in the current run */
+    private int mRetriesLeft;
+
+    /** Time (ms since epoch) before which no attempt should be made */
+    private long mNextAttemptTime;
+
+    /** Set while the circuit breaker is open */
+    private boolean mBreakerOpen;
+
+
+    /**
+     * Constructor - creates a retry policy.
+     *
+     * @param   baseDelay       delay after the first failure in
+     *                          milliseconds
+     * @param   maxDelay        largest backoff delay in milliseconds
+     * @param   retryBudget     number of retries allowed per run
+     * @param   breakerThreshold number of consecutive failures that
+     *                          opens the circuit breaker
+     * @param   breakerCooldown time the breaker stays open in
+     *                          milliseconds
+     */
+    public RetryPolicy(long baseDelay, long maxDelay, int retryBudget,
+            int breakerThreshold, long breakerCooldown)
+    {
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRetryBudget = retryBudget;
+        mBreakerThreshold = breakerThreshold;
+        mBreakerCooldown = breakerCooldown;
+        mRandom = new Random();
+        mRetriesLeft = retryBudget;
+    }
+
+
+    /**
+     * Called at the beginning of an upload run. Refills the retry
+     * budget.
+     */
+    public synchronized void startRun()
+    {
+        mRetriesLeft = mRetryBudget;
+    }
+
+    /**
+     * Returns how long the caller has to wait before the next
+     * attempt is allowed.
+     *
+     * @param   now             current time in milliseconds
+     * @return                  wait time in milliseconds, 0 if an
+     *                          attempt is allowed now
+     */
+    public synchronized long getWaitTime(long now)
+    {
+        return Math.max(0, mNextAttemptTime - now);
+    }
+
+    /**
+     * Returns true while the circuit breaker is open.
+     *
+     * @param   now             current time in milliseconds
+     * @return                  true if the breaker is open
+     */
+    public synchronized boolean isBreakerOpen(long now)
+    {
+        return mBreakerOpen && (now < mNextAttemptTime);
+    }
+
+    /**
+     * Reports a successful post. Closes the circuit breaker and
+     * resets the backoff.
+     */
+    public synchronized void onSuccess()
+    {
+        mConsecutiveFailures = 0;
+        mNextAttemptTime = 0;
+        mBreakerOpen = false;
+    }
+
+    /**
+     * Reports a failed post and returns the delay before the next
+     * attempt.
+     *
+     * @param   now             current time in milliseconds
+     * @param   retryAfter      delay requested by the server in
+     *                          milliseconds, or -1 if none
+     * @return                  delay before the next attempt in
+     *                          milliseconds
+     */
+    public synchronized long onFailure(long now, long retryAfter)
+    {
+        mConsecutiveFailures++;
+
+        long delay;
+        if (mConsecutiveFailures >= mBreakerThreshold)
+        {
+            mBreakerOpen = true;
+            delay = mBreakerCooldown;
+        }
+        else
+        {
+            int shift = Math.min(mConsecutiveFailures - 1, 30);
+            delay = Math.min(mMaxDelay, mBaseDelay << shift);
+            delay -= (long) (mRandom.nextDouble() * (delay / 2));
+        }
+
+        if (retryAfter > delay)
+            delay = retryAfter;
+
+        mNextAttemptTime = now + delay;
+        return delay;
+    }
+
+    /**
+     * Takes one retry from the budget of the current run.
+     *
+     * @return                  true if a retry is still allowed in
+     *                          this run
+     */
+    public synchronized boolean takeRetry()
+    {
+        if (mBreakerOpen || (mRetriesLeft <= 0))
+            return false;
+
+        mRetriesLeft--;
+        return true;
+    }
+
+    /**
+     * Returns the number of consecutive failed posts.
+     *
+     * @return                  consecutive failures
+     */
+    public synchronized int getConsecutiveFailures()
+    {
+        return mConsecutiveFailures;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Decides which destination each log record is uploaded to.
+ *
+ * A table is a list of routes. Each route names a destination URL
+ * and the records that are uploaded to it. Routes are written one per
+ * line, or separated by ';', as space separated terms:
+ *
+ * <pre>
+ * url=https://example.org/ohmage/put/ logger=ohmage*
+ * url=https://example.org/gps/put/ logger=locationtracker tag=Gps*
+ * url=file:///sdcard/systemlog?gzip=true logger=debug*
+ * </pre>
+ *
+ * <ul>
+ * <li>url=U: destination of the route, by its scheme a server, a
+ * directory or a socket, see Transports. Required.</li>
+ * <li>logger=P: the logger (application) name matches the pattern.</li>
+ * <li>tag=P: the tag matches the pattern.</li>
+ * </ul>
+ *
+ * Patterns are globs: '*' matches any text and '?' any one character.
+ * A route takes the records that match all of its patterns, or all
+ * records if it has none. A record goes to the first route that
+ * takes it. Records that no route takes go to the default
+ * destination.
+ *
+ * @author  Hossein Falaki
+ */
+public class RoutingTable
+{
+    /**
+     * One route of a table.
+     */
+    static class Route
+    {
+        final String text;
+        String url;
+
+        /** SQL selection of the records the route takes, null for
+         * all records */
+        String match;
+
+        Route(String text)
+        {
+            this.text = text;
+        }
+
+        public String toString()
+        {
+            return text;
+        }
+    }
+
+
+    private final ArrayList<Route> mRoutes;
+    private final String mSpec;
+
+
+    private RoutingTable(String spec, ArrayList<Route> routes)
+    {
+        mSpec = spec;
+        mRoutes = routes;
+    }
+
+
+    /**
+     * Parses a routing table.
+     *
+     * @param   spec        routes as described above, empty for a
+     *                      table that sends everything to the default
+     *                      destination
+     * @return              the table
+     * @throws  IllegalArgumentException if a route cannot be parsed
+     */
+    public static RoutingTable parse(String spec)
+    {
+        ArrayList<Route> routes = new ArrayList<Route>();
+        for (String line : spec.split("[;\n]"))
+        {
+            line = line.trim();
+            if ((line.length() == 0) || line.startsWith("#"))
+                continue;
+            routes.add(parseRoute(line));
+        }
+        return new RoutingTable(spec, routes);
+    }
+
+    /**
+     * Returns the records each destination takes, as disjoint SQL
+     * selections that together cover every record.
+     *
+     * @param   defaultUrl  destination of the records no route takes
+     * @return              selection by destination URL, in the order
+     *                      of the table. The selection is null if the
+     *                      destination takes all records
+     */
+    public LinkedHashMap<String, String> getSelections(String defaultUrl)
+    {
+        LinkedHashMap<String, String> selections =
+            new LinkedHashMap<String, String>();
+        StringBuilder taken = new StringBuilder();
+        boolean all = false;
+
+        for (Route route : mRoutes)
+        {
+            String selection = (taken.length() == 0) ? route.match
+                : Selections.andSelection(route.match,
+                        "NOT (" + taken + ")");
+            addSelection(selections, route.url, selection);
+
+            if (route.match == null)
+            {
+                // Later routes and the default destination get
+                // nothing.
+                all = true;
+                break;
+            }
+            if (taken.length() > 0)
+                taken.append(" OR ");
+            taken.append("(").append(route.match).append(")");
+        }
+
+        if (!all)
+        {
+            addSelection(selections, defaultUrl, (taken.length() == 0)
+                    ? null : "NOT (" + taken + ")");
+        }
+        return selections;
+    }
+
+    public String toString()
+    {
+        return mSpec;
+    }
+
+
+    private static void addSelection(LinkedHashMap<String, String> map,
+            String url, String selection)
+    {
+        if (!map.containsKey(url))
+        {
+            map.put(url, selection);
+        }
+        else if ((map.get(url) != null) && (selection != null))
+        {
+            map.put(url, "(" + map.get(url) + ") OR (" + selection + ")");
+        }
+        else
+        {
+            map.put(url, null);
+        }
+    }
+
+    private static Route parseRoute(String text)
+    {
+        Route route = new Route(text);
+        for (String term : text.split("\\s+"))
+        {
+            if (term.startsWith("url="))
+            {
+                route.url = term.substring(4);
+                Transports.check(route.url);
+            }
+            else if (term.startsWith("logger="))
+            {
+                route.match = Selections.andSelection(route.match,
+                        RecordStore.KEY_LOGGER + " GLOB "
+                        + quote(term.substring(7)));
+            }
+            else if (term.startsWith("tag="))
+            {
+                // Records logged before tags were stored have none
+                route.match = Selections.andSelection(route.match,
+                        "coalesce(" + RecordStore.KEY_TAG
+                        + ", '') GLOB " + quote(term.substring(4)));
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown term: "
+                        + term);
+            }
+        }
+
+        if (route.url == null)
+            throw new IllegalArgumentException("Route without url: "
+                    + text);
+        return route;
+    }
+
+    private static String quote(String value)
+    {
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+
+/**
+ * Builds the SQL selections of records that are passed to a
+ * RecordStore.
+ *
+ * @author  Hossein Falaki
+ */
+public final class Selections
+{
+    private Selections()
+    {
+    }
+
+    /**
+     * Returns the SQL selection of the records between the given ID
+     * boundries that also match the given selection.
+     *
+     * @param fromId        id of the first log record
+     * @param toId          id of the last log record
+     * @param selection     selection of the records, null for all
+     * @return              SQL selection
+     */
+    public static String rangeSelection(long fromId, long toId,
+            String selection)
+    {
+        String range = RecordStore.KEY_ROWID + " BETWEEN " + fromId 
+            + " AND " + toId;
+        if (selection == null)
+            return range;
+        return range + " AND (" + selection + ")";
+    }
+
+    /**
+     * Returns the SQL selection of the records with one of the given
+     * log levels.
+     *
+     * @param levels        log levels, null for all records
+     * @return              SQL selection, null for all records
+     */
+    public static String levelSelection(Collection<String> levels)
+    {
+        if (levels == null)
+            return null;
+
+        // Sorted, so that the same levels always give the same
+        // selection and therefore the same batch IDs.
+        StringBuilder sb = new StringBuilder(RecordStore.KEY_LEVEL 
+                + " IN (");
+        String sep = "";
+        for (String level : new TreeSet<String>(levels))
+        {
+            sb.append(sep).append(quote(level));
+            sep = ", ";
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Returns the SQL selection of the records with none of the given
+     * log levels, including records logged before levels were stored.
+     *
+     * @param levels        log levels to leave out
+     * @return              SQL selection
+     */
+    public static String otherLevelSelection(Collection<String> levels)
+    {
+        return RecordStore.KEY_LEVEL + " IS NULL OR NOT (" 
+            + levelSelection(levels) + ")";
+    }
+
+    /**
+     * Returns the SQL selection of the records that match both given
+     * selections.
+     *
+     * @param first         first selection, null for all records
+     * @param second        second selection, null for all records
+     * @return              SQL selection, null for all records
+     */
+    public static String andSelection(String first, String second)
+    {
+        if (first == null)
+            return second;
+        if (second == null)
+            return first;
+        return "(" + first + ") AND (" + second + ")";
+    }
+
+    /**
+     * Returns the SQL selection of the records of the given logger
+     * that also match the given selection.
+     *
+     * @param logger        logger name
+     * @param selection     selection of the records, null for all
+     * @return              SQL selection
+     */
+    public static String loggerSelection(String logger, String selection)
+    {
+        String match = RecordStore.KEY_LOGGER + " = " + quote(logger);
+        if (selection == null)
+            return match;
+        return match + " AND (" + selection + ")";
+    }
+
+    /**
+     * Quotes a string as an SQL literal.
+     */
+    static String quote(String value)
+    {
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Detects records lost between the clients and the service from the
+ * sequence numbers the clients give their records.
+ *
+ * Every client numbers its records from 0. A number more than one
+ * past the last one seen counts the numbers in between as lost. A
+ * number below the last one is either a late record, which was
+ * counted as lost and is counted back, or 0, which means the client
+ * has started over. Records of one client logged from several threads
+ * may arrive slightly out of order, so the loss count is only exact
+ * once the late records have arrived.
+ *
+ * @author  Hossein Falaki
+ */
+public class SequenceTracker
+{
+    /** Number of clients remembered; the least recently seen is
+     * forgotten first */
+    private static final int MAX_CLIENTS = 256;
+
+    private final LinkedHashMap<String, Long> mLast =
+        new LinkedHashMap<String, Long>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> e)
+        {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    private long mReceived, mLost, mLate, mRestarts;
+
+
+    /**
+     * Notes a record of a client.
+     *
+     * @param   client      client ID
+     * @param   sequence    sequence number of the record
+     */
+    public synchronized void onRecord(String client, long sequence)
+    {
+        mReceived++;
+        Long last = mLast.get(client);
+        if ((last == null) || (sequence > last))
+        {
+            if (last != null)
+                mLost += sequence - last - 1;
+            mLast.put(client, sequence);
+        }
+        else if (sequence == 0)
+        {
+            mRestarts++;
+            mLast.put(client, sequence);
+        }
+        else
+        {
+            mLate++;
+            if (mLost > 0)
+                mLost--;
+        }
+    }
+
+    /**
+     * Returns the counts in a human readable form.
+     *
+     * @return              received, lost, late and restarts
+     */
+    public synchronized String toString()
+    {
+        return "received=" + mReceived + " lost=" + mLost
+            + " late=" + mLate + " restarts=" + mRestarts
+            + " clients=" + mLast.size();
+    }
+
+    public synchronized long getLost()
+    {
+        return mLost;
+    }
+
+    public synchronized long getLate()
+    {
+        return mLate;
+    }
+
+    public synchronized long getReceived()
+    {
+        return mReceived;
+    }
+
+    public synchronized long getRestarts()
+    {
+        return mRestarts;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+
+/**
+ * Transport that sends the batches to a collector listening on a TCP
+ * socket, such as a relay on the phone or on the local network. The
+ * destination is a URL tcp://host:port.
+ *
+ * One connection carries all batches of a run. Each batch is a frame
+ * of its content type (as written by DataOutputStream.writeUTF()),
+ * the length of its body as a 4 byte big-endian integer and the body.
+ * The collector answers every frame with a 2 byte big-endian status
+ * code, see Transport. Batches are sent in the lines format, one JSON
+ * record per line. If sending fails on a connection that has already
+ * carried a batch, the transport reconnects and sends the batch once
+ * more, since the collector may have closed an idle connection.
+ *
+ * @author  Hossein Falaki
+ */
+public class SocketTransport implements Transport
+{
+    private final String mHost;
+    private final int mPort;
+    private final int mTimeout;
+    private final boolean mLocal;
+
+    private Socket mSocket;
+    private DataOutputStream mOut;
+    private DataInputStream mIn;
+
+    /** Set once a batch has been acknowledged on the connection */
+    private boolean mConnectionUsed;
+
+    private volatile boolean mAborted;
+    private int mPostCount;
+    private int mReconnectCount;
+
+    /** Buffer the body is written to, to send its length first */
+    private final ByteArrayOutputStream mBody =
+        new ByteArrayOutputStream();
+
+
+    /**
+     * Constructor - creates a transport to the collector of the
+     * given URL. No connection is opened until the first batch.
+     *
+     * @param   url         tcp: URL of the collector
+     * @param   timeout     connect and read timeout in milliseconds
+     * @throws  IOException if the URL has no host or port
+     */
+    public SocketTransport(String url, int timeout) throws IOException
+    {
+        URI uri;
+        try
+        {
+            uri = new URI(url);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        if ((uri.getHost() == null) || (uri.getPort() < 0))
+            throw new IOException("No host or port in " + url);
+
+        mHost = uri.getHost();
+        mPort = uri.getPort();
+        mTimeout = timeout;
+        mLocal = mHost.equals("localhost") || mHost.startsWith("127.")
+            || mHost.equals("[::1]");
+    }
+
+
+    public String getFormats()
+    {
+        return FileTransport.FORMAT;
+    }
+
+    /**
+     * Returns true for a collector on the phone itself.
+     */
+    public boolean isLocal()
+    {
+        return mLocal;
+    }
+
+    public int send(String contentType, BodyWriter body)
+        throws IOException
+    {
+        if (mAborted)
+            throw new IOException("Socket transport aborted");
+        if (!FileTransport.CONTENT_TYPE.equals(contentType))
+            return UNSUPPORTED_TYPE;
+
+        mBody.reset();
+        body.writeTo(mBody);
+        try
+        {
+            return sendOnce(contentType);
+        }
+        catch (IOException e)
+        {
+            disconnect();
+            if (!mConnectionUsed || mAborted)
+                throw e;
+
+            // The collector has most likely closed the connection.
+            // Try once more on a fresh one.
+            mConnectionUsed = false;
+            mReconnectCount++;
+            try
+            {
+                return sendOnce(contentType);
+            }
+            catch (IOException e2)
+            {
+                disconnect();
+                throw e2;
+            }
+        }
+    }
+
+    public void abort()
+    {
+        mAborted = true;
+        Socket socket = mSocket;
+        if (socket != null)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // Closing anyway
+            }
+        }
+    }
+
+    public String getResponseMessage()
+    {
+        return null;
+    }
+
+    public long getRetryAfter()
+    {
+        return -1;
+    }
+
+    public String getServerFormats()
+    {
+        return FileTransport.FORMAT;
+    }
+
+    public int getPostCount()
+    {
+        return mPostCount;
+    }
+
+    public int getHandshakeCount()
+    {
+        return 0;
+    }
+
+    public int getReconnectCount()
+    {
+        return mReconnectCount;
+    }
+
+    public void close()
+    {
+        disconnect();
+    }
+
+
+    private int sendOnce(String contentType) throws IOException
+    {
+        if (mSocket == null)
+        {
+            Socket socket = new Socket();
+            mSocket = socket;
+            socket.connect(new InetSocketAddress(mHost, mPort), mTimeout);
+            socket.setSoTimeout(mTimeout);
+            socket.setTcpNoDelay(true);
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+            mIn = new DataInputStream(new BufferedInputStream(
+                        socket.getInputStream()));
+            if (mAborted)
+                throw new IOException("Socket transport aborted");
+        }
+
+        mOut.writeUTF(contentType);
+        mOut.writeInt(mBody.size());
+        mBody.writeTo(mOut);
+        mOut.flush();
+
+        int status = mIn.readUnsignedShort();
+        mConnectionUsed = true;
+        mPostCount++;
+        return status;
+    }
+
+    private void disconnect()
+    {
+        if (mSocket == null)
+            return;
+        try
+        {
+            mSocket.close();
+        }
+        catch (IOException e)
+        {
+            // Closing anyway
+        }
+        mSocket = null;
+        mOut = null;
+        mIn = null;
+    }
+}
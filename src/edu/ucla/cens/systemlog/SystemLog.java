@@ -1,8 +1,18 @@
 package edu.ucla.cens.systemlog;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 import android.content.BroadcastReceiver;
@@ -10,10 +20,9 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.BatteryManager;
 import android.os.IBinder;
-import android.os.Handler;
-import android.os.Message;
 import android.os.SystemClock;
 import android.os.RemoteException;
 import android.net.ConnectivityManager;
@@ -50,25 +59,102 @@ public class SystemLog extends Service
     private static final String KEY_LOG_LEVEL =
                 "edu.ucla.cens.systemlog.key_log_level";
 
+    /** Trace of a message intent: client ID, sequence number and
+     * time of the call. See ISystemLog.logTraced() */
+    private static final String KEY_CLIENT =
+                "edu.ucla.cens.systemlog.key_client";
+    private static final String KEY_SEQUENCE =
+                "edu.ucla.cens.systemlog.key_sequence";
+    private static final String KEY_CLIENT_TIME =
+                "edu.ucla.cens.systemlog.key_client_time";
+
+    /** Action that replaces the upload policy. The rules are passed
+     * in KEY_POLICY, see UploadPolicy. Without rules the default
+     * policy is restored */
+    private static final String ACTION_SET_UPLOAD_POLICY =
+                "edu.ucla.cens.systemlog.set_upload_policy";
+    private static final String KEY_POLICY =
+                "edu.ucla.cens.systemlog.key_policy";
+
+    /** Action that sets the share of each upload round, in percent,
+     * given to error and warning records. The share is passed in
+     * KEY_PRIORITY_SHARE. Without it the default share is restored */
+    private static final String ACTION_SET_PRIORITY_SHARE =
+                "edu.ucla.cens.systemlog.set_priority_share";
+    private static final String KEY_PRIORITY_SHARE =
+                "edu.ucla.cens.systemlog.key_priority_share";
+
+    /** Action that replaces the routing table. The routes are passed
+     * in KEY_ROUTES, see RoutingTable. Without routes everything is
+     * uploaded to the default server again */
+    private static final String ACTION_SET_ROUTES =
+                "edu.ucla.cens.systemlog.set_routes";
+    private static final String KEY_ROUTES =
+                "edu.ucla.cens.systemlog.key_routes";
+
+    /** Action that starts or stops capturing the records taken in to
+     * a trace file on the sdcard, see IngestTrace. KEY_CAPTURE is
+     * CAPTURE_CONTENT to keep the messages, CAPTURE_HASH to keep only
+     * their size and hash; without it the capture stops. A capture
+     * goes on after the service restarts, in a new file */
+    private static final String ACTION_SET_CAPTURE =
+                "edu.ucla.cens.systemlog.set_capture";
+    private static final String KEY_CAPTURE =
+                "edu.ucla.cens.systemlog.key_capture";
+    private static final String CAPTURE_CONTENT = "content";
+    private static final String CAPTURE_HASH = "hash";
+
+    /** Directory and size limit of capture files */
+    private static final String CAPTURE_PATH = "/sdcard/";
+    private static final long CAPTURE_MAX_BYTES = 16 * 1024 * 1024;
+
+    /** Preferences file and key the upload policy is kept under */
+    private static final String PREFS_NAME = "systemlog";
+    private static final String PREF_UPLOAD_POLICY = "upload_policy";
+    private static final String PREF_PRIORITY_SHARE = "priority_share";
+    private static final String PREF_ROUTES = "routes";
+    private static final String PREF_CAPTURE = "capture";
+
     public static final String UPLOAD_ACTION = "upload";
-	
-	private static final boolean OPERATE_LOCAL = false;
 
-    /** Flag to limit upload to WiFi networks */
-    public static final boolean WIFI_ONLY = false;
-	
+    /** Action of the one-shot alarm that retries a failed upload */
+    private static final String RETRY_ACTION =
+                "edu.ucla.cens.systemlog.retry_upload";
+
+    /** Action used to flush a full buffer on the main thread */
+    private static final String FLUSH_ACTION =
+                "edu.ucla.cens.systemlog.flush";
+
+    /** Number of upload batches kept in flight at the same time */
+    private static final int UPLOAD_PIPELINE_DEPTH = 3;
+
 	/** Version of SystemLog JSON record format */
-	public static final String VER = "2.2";
+	public static final String VER = LogRecord.VER;
 	
-	/** Types of messages used by this service */
-    private static final int UPLOAD_START_MSG = 2;
-    private static final int UPLOAD_END_MSG   = 3;
-
 
     /** Time units */
     private static final long ONE_SECOND = 1000;
     private static final long ONE_MINUTE = 60 * ONE_SECOND;
     private static final long TWO_MINUTES = 2 * ONE_MINUTE;
+
+    /** Limits of the flush scheduler. Records stay buffered for at
+     * most two minutes, as with the old fixed alarm, but an idle
+     * service wakes up as rarely as once an hour */
+    private static final int FLUSH_FILL_THRESHOLD = 200;
+    private static final long FLUSH_MAX_AGE = TWO_MINUTES;
+    private static final long MIN_WAKEUP_INTERVAL = ONE_MINUTE;
+    private static final long MAX_WAKEUP_INTERVAL = 
+        AlarmManager.INTERVAL_HOUR;
+    private static final int BURST_RECORDS = 100;
+
+    /** Plug-ins closer together than this start only one upload */
+    private static final long PLUG_DEBOUNCE = 30 * ONE_SECOND;
+
+    /** The engine metrics are logged as a record of their own at
+     * most this often, and only if something was logged meanwhile */
+    private static final long STATS_INTERVAL = AlarmManager.INTERVAL_HOUR;
+    private static final String STATS_LOGGER = "SystemLog";
+    private static final String STATS_TAG = "SystemLogStats";
     
     private static final String ERROR_LOGLEVEL = "error";
     private static final String WARNING_LOGLEVEL = "warning";
@@ -85,17 +171,47 @@ public class SystemLog extends Service
     /** Holds the IMEI of the device */
     public static  String IMEI;	
 
-	 /** State variable set when a worker thread starts uploading */
-    private boolean mIsUploading;
-    
-    /** Uploader Object */
-    private Uploader mUploader;
-    
-    /** Dumper object */
-    private SystemLogDumper mDumper;
+    /** Uploads to every destination of the routing table */
+    private UploadRouter mUploader;
+
+    /** Runs uploads on a single thread, one at a time */
+    private UploadScheduler mScheduler;
+
+    /** Wake lock hold taken by upload() for an upload that has not
+     * started yet. The upload takes it over on the upload thread */
+    private final AtomicReference<SystemLogWakeLock.Hold> mPendingHold =
+        new AtomicReference<SystemLogWakeLock.Hold>();
+
+    /** Wake lock hold of each destination that is uploading, which a
+     * slow one keeps after the upload task has returned */
+    private final HashMap<String, SystemLogWakeLock.Hold> mRouteHolds =
+        new HashMap<String, SystemLogWakeLock.Hold>();
+
+    /** Decides when the buffer is flushed and the next wakeup */
+    private FlushScheduler mFlushScheduler;
+
+    /** Time of the last plug-in that started an upload */
+    private long mLastPlugTrigger = -PLUG_DEBOUNCE;
+
+    /** Battery broadcasts that started an upload, that did not
+     * change the plugged state, and plug-ins within the debounce
+     * window */
+    private long mPlugTriggers, mSuppressedBatteryTriggers, 
+            mDebouncedPlugTriggers;
 
     /** Database adaptor object */
     private SystemLogDbAdaptor mDbAdaptor;
+
+    /** Buffers the records on their way to the database */
+    private LogIngest mIngest;
+
+    /** Counters and latencies of ingest, flushes and uploads */
+    private EngineMetrics mMetrics;
+
+    /** Time the metrics were last logged, and the number of records
+     * ingested by then */
+    private long mLastStatsTime;
+    private long mLastStatsIngested;
     
     /** telephonyManager object */
     private TelephonyManager mTelManager;
@@ -106,9 +222,16 @@ public class SystemLog extends Service
 
     PendingIntent mUploadSender;
 
+    /** Fires the next upload attempt after a failed upload */
+    PendingIntent mRetrySender;
+
 
-    /** Network info object */
-    NetworkInfo mWiFi;
+    /** Connectivity manager object */
+    ConnectivityManager mConnManager;
+
+    /** Live device state the upload policy is evaluated against */
+    private final UploadPolicy.Conditions mConditions =
+        new UploadPolicy.Conditions();
     
     /** Table that keeps tag to table name associations */
     private HashMap<String, String> mTagMapping;
@@ -218,6 +341,79 @@ public class SystemLog extends Service
 			mTagMapping.put(tag, dbTable);
 			return true;
 		}
+
+		/**
+		 * Registers the given tag and dbTable name with 
+		 * SystemLog, and sets the upload weight of the dbTable.
+		 * 
+		 * @param		tag			tag that will be used for logging
+		 * @param		dbTable		table name on sensorbase.org
+		 * @param		weight		upload weight of the dbTable
+		 * @return					registration result. True if succeeds. 
+		 */ 
+		public boolean registerWeightedLogger (String tag, String dbTable,
+				int weight)
+		{
+			if ((weight < 1) || (weight > Uploader.MAX_LOGGER_WEIGHT))
+				return false;
+
+			mTagMapping.put(tag, dbTable);
+			mUploader.setLoggerWeight(dbTable, weight);
+			return true;
+		}
+
+		/**
+		 * Sends the given log message to be logged with the given
+		 * tag and level, with the trace of the client call.
+		 *
+		 * @param		tag			tag associated with the log message
+		 * @param		message		log message
+		 * @param		level		log level string
+		 * @param		client		ID of the client
+		 * @param		sequence	sequence number of the message
+		 * @param		clientTime	time of the client call
+		 */
+		public boolean logTraced (String tag, String message, 
+				String level, String client, long sequence, 
+				long clientTime)
+		{
+			if (!mLogLevels.contains(level))
+				return false;
+			return log(tag, message, level, client, sequence, 
+					clientTime);
+		}
+
+		/**
+		 * Sends the given structured log message with its typed
+		 * fields, with the trace of the client call.
+		 *
+		 * @param		tag			tag associated with the log message
+		 * @param		message		log message
+		 * @param		level		log level string
+		 * @param		fields		fields encoded by LogFields
+		 * @param		client		ID of the client
+		 * @param		sequence	sequence number of the message
+		 * @param		clientTime	time of the client call
+		 */
+		public boolean logStructured (String tag, String message, 
+				String level, byte[] fields, String client, 
+				long sequence, long clientTime)
+		{
+			if (!mLogLevels.contains(level))
+				return false;
+			return log(tag, message, level, fields, client, sequence,
+					clientTime);
+		}
+
+		/**
+		 * Returns a snapshot of the engine metrics.
+		 *
+		 * @return					metrics as a JSON object
+		 */
+		public String getStats()
+		{
+			return mMetrics.snapshot();
+		}
 	};
 
 
@@ -246,20 +442,34 @@ public class SystemLog extends Service
 
                 // Get Battery status
                 int plugType = intent.getIntExtra("plugged", 0);
-
+                int level = intent.getIntExtra("level", -1);
+                int scale = intent.getIntExtra("scale", 100);
+                updateBattery(plugType > 0, 
+                        (level < 0 || scale <= 0) ? -1 : level * 100 / scale);
+
+                // The broadcast comes with every change of the
+                // battery level or temperature. Only plugging in
+                // starts an upload, the policy timers do the rest.
                 if (plugType > 0)
                 {
-                	mIsPlugged = true;
-
-                    Log.i(TAG, "Phone is plugged.");
-                    Log.i(TAG, "Starting upload.");
-                    upload();
-
+                    if (mIsPlugged)
+                    {
+                        mSuppressedBatteryTriggers++;
+                    }
+                    else
+                    {
+                        mIsPlugged = true;
+                        Log.i(TAG, "Phone is plugged.");
+                        onPlugged();
+                    }
                 }
                 else
                 {
+                    if (mIsPlugged)
+                        Log.i(TAG, "Phone is unplugged.");
 
                 	mIsPlugged = false;
+                    checkRunningUpload();
                 }
 
                 int status = intent.getIntExtra("status",
@@ -269,6 +479,28 @@ public class SystemLog extends Service
             }
         }
     };
+
+    /**
+     * Broadcast receiver for connectivity changes. Keeps the network
+     * state of the upload policy up to date. A network coming up may
+     * allow an upload. Losing the network, or moving to a network the
+     * running upload may not use, cancels the upload instead of
+     * letting it run into timeouts.
+     */
+    private BroadcastReceiver mConnectivityReceiver = new
+        BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent) 
+        {
+            boolean connected = updateNetwork();
+            Log.i(TAG, connected ? "Network changed." 
+                    : "Lost connectivity.");
+            checkRunningUpload();
+            if (connected)
+                upload();
+        }
+    };
     
 	
 	@Override
@@ -291,18 +523,59 @@ public class SystemLog extends Service
             {
                 if (action.equals(UPLOAD_ACTION))
                 {
-                    Log.i(TAG, "Flushing to DB.");
-                    mDbAdaptor.flushDb();
-                    if (mIsPlugged)
+                    try
                     {
+                        long now = SystemClock.elapsedRealtime();
+                        mFlushScheduler.onWakeup(now);
+                        logStats(now);
+                        Log.i(TAG, "Flushing to DB.");
+                        mFlushScheduler.onFlush(now, false);
+                        mIngest.flush();
+                        // The upload policy decides whether anything
+                        // is uploaded.
                         Log.i(TAG, "Asking for an upload.");
                         upload();
+                        scheduleWakeup();
+                        Log.i(TAG, "Flush scheduler: " 
+                                + mFlushScheduler.toString(now));
+                    }
+                    finally
+                    {
+                        // Taken by the alarm receiver. upload() has
+                        // taken the hold of the upload by now.
+                        SystemLogWakeLock.release(
+                                SystemLogWakeLock.REASON_ALARM);
                     }
                 }
+                else if (action.equals(FLUSH_ACTION))
+                {
+                    Log.i(TAG, "Buffer full, flushing to DB.");
+                    mFlushScheduler.onFlush(SystemClock.elapsedRealtime(),
+                            true);
+                    mIngest.flush();
+                }
                 else if(action.equals(ACTION_LOG_MESSAGE))
                 {
                     logIntentMessage(intent);
                 }
+                else if (action.equals(ACTION_SET_UPLOAD_POLICY))
+                {
+                    setUploadPolicy(intent.getStringExtra(KEY_POLICY));
+                }
+                else if (action.equals(ACTION_SET_ROUTES))
+                {
+                    setRoutes(intent.getStringExtra(KEY_ROUTES));
+                }
+                else if (action.equals(ACTION_SET_CAPTURE))
+                {
+                    setCapture(intent.getStringExtra(KEY_CAPTURE));
+                }
+                else if (action.equals(ACTION_SET_PRIORITY_SHARE))
+                {
+                    setPriorityShare(intent.getIntExtra(
+                                KEY_PRIORITY_SHARE, 
+                                Uploader.DEFAULT_PRIORITY_SHARE));
+                }
 
             }
         }
@@ -313,12 +586,21 @@ public class SystemLog extends Service
     public void onDestroy()
     {
         unregisterReceiver(mBatteryInfoReceiver);
+        unregisterReceiver(mConnectivityReceiver);
+        mScheduler.shutdown();
+        SystemLogWakeLock.Hold hold = mPendingHold.getAndSet(null);
+        if (hold != null)
+            hold.release();
+        mUploader.shutdown();
+        stopCapture();
         mAlarmManager.cancel(mUploadSender);
+        mAlarmManager.cancel(mRetrySender);
     }
 	
     @Override
     public void onCreate() {
         super.onCreate();
+        EngineLog.setSink(AndroidPlatform.LOG_SINK);
         Log.i(TAG, "onCreate");
 
         mTagMapping = new HashMap<String, String>();
@@ -327,18 +609,35 @@ public class SystemLog extends Service
             (TelephonyManager)this.getSystemService(
                     Context.TELEPHONY_SERVICE);
         this.IMEI = mTelManager.getDeviceId(); 
-        ConnectivityManager connManager = (ConnectivityManager)
+        mConnManager = (ConnectivityManager)
             getSystemService(CONNECTIVITY_SERVICE);
-        //mWiFi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-
-        mWiFi = connManager.getActiveNetworkInfo();
+        updateNetwork();
 
 
         
-        mIsUploading = false;
         mDbAdaptor = new SystemLogDbAdaptor(this);
-        mUploader = new Uploader(mDbAdaptor, mWiFi);
-        mDumper = new SystemLogDumper(mDbAdaptor);
+        mMetrics = new EngineMetrics(AndroidPlatform.CLOCK);
+        mLastStatsTime = SystemClock.elapsedRealtime();
+        mIngest = new LogIngest(mDbAdaptor, AndroidPlatform.CLOCK, IMEI,
+                mMetrics);
+        mUploader = new UploadRouter(mDbAdaptor, IMEI, mMetrics);
+        mUploader.setPipelineDepth(UPLOAD_PIPELINE_DEPTH);
+        mUploader.setListener(mRouteListener);
+        loadUploadPolicy();
+        loadRoutes();
+        startCapture(getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getString(PREF_CAPTURE, null));
+        mFlushScheduler = new FlushScheduler(FLUSH_FILL_THRESHOLD,
+                FLUSH_MAX_AGE, MIN_WAKEUP_INTERVAL, TWO_MINUTES,
+                MAX_WAKEUP_INTERVAL, BURST_RECORDS);
+        mScheduler = new UploadScheduler(mUploadTask,
+                new UploadScheduler.Listener()
+        {
+            public void onBackoff(long delay)
+            {
+                scheduleRetry(delay);
+            }
+        }, AndroidPlatform.CLOCK);
 
 
         mLogLevels = new ArrayList<String>(Arrays.asList(
@@ -348,23 +647,35 @@ public class SystemLog extends Service
                     DEBUG_LOGLEVEL,
                     VERBOSE_LOGLEVEL));
 
-        // Register for battery updates
+        // Register for battery updates. The sticky broadcast that
+        // comes right away counts as plugging in if the phone is
+        // plugged.
+        mIsPlugged = false;
         registerReceiver(mBatteryInfoReceiver, new IntentFilter(
                     Intent.ACTION_BATTERY_CHANGED));
+        registerReceiver(mConnectivityReceiver, new IntentFilter(
+                    ConnectivityManager.CONNECTIVITY_ACTION));
 
 
-        // Register for a repeating alarm every five minutes
+        // Register for the first wakeup. Every wakeup schedules the
+        // next one.
         Intent alarmIntent = new Intent(SystemLog.this,
                 SystemLogAlarmReceiver.class);
          mUploadSender = PendingIntent.getBroadcast(
                 SystemLog.this, 0, alarmIntent, 0);
-        long firstTime = SystemClock.elapsedRealtime() +
-            (TWO_MINUTES);
 
         mAlarmManager = (AlarmManager)
             getSystemService(ALARM_SERVICE);
-        mAlarmManager.setRepeating(AlarmManager.ELAPSED_REALTIME,
-                firstTime, TWO_MINUTES, mUploadSender);
+        scheduleWakeup();
+
+        // One-shot alarm used to schedule the retry of a failed
+        // upload. The action only makes it distinct from the
+        // wakeup alarm.
+        Intent retryIntent = new Intent(SystemLog.this,
+                SystemLogAlarmReceiver.class);
+        retryIntent.setAction(RETRY_ACTION);
+        mRetrySender = PendingIntent.getBroadcast(
+                SystemLog.this, 0, retryIntent, 0);
 
 
 
@@ -380,17 +691,56 @@ public class SystemLog extends Service
      * @param 		loglevel	log level string 
      */
     private boolean log(String tag, String message, String loglevel)
+    {
+        return log(tag, message, loglevel, null, -1, 0);
+    }
+
+    /**
+     * Private method used internally for logging a message with the
+     * trace of the client call.
+     * 
+     * @param 		tag			tag associated with the log message
+     * @param 		message		log message
+     * @param 		loglevel	log level string 
+     * @param 		client		ID of the client, or null
+     * @param 		sequence	sequence number of the message at the
+     *							client
+     * @param 		clientTime	time of the client call, 0 if unknown
+     */
+    private boolean log(String tag, String message, String loglevel,
+            String client, long sequence, long clientTime)
+    {
+        return log(tag, message, loglevel, null, client, sequence,
+                clientTime);
+    }
+
+    /**
+     * Private method used internally for logging a structured message
+     * with the trace of the client call.
+     * 
+     * @param 		tag			tag associated with the log message
+     * @param 		message		log message
+     * @param 		loglevel	log level string 
+     * @param 		fields		fields encoded by LogFields, or null
+     * @param 		client		ID of the client, or null
+     * @param 		sequence	sequence number of the message at the
+     *							client
+     * @param 		clientTime	time of the client call, 0 if unknown
+     */
+    private boolean log(String tag, String message, String loglevel,
+            byte[] fields, String client, long sequence, long clientTime)
     {
         String logger;
 
         // Filter non-ascii characters.
-        String filteredMsg = message.replaceAll("[^\\x20-\\x7e]", "");
+        String filteredMsg = LogRecord.sanitize(message);
 
         Log.i(TAG, "Received from " + tag + ": " + filteredMsg);
 
         
         if (!mTagMapping.containsKey(tag))
         {
+            mMetrics.dropped.incrementAndGet();
             return false;
         }
         else
@@ -399,7 +749,20 @@ public class SystemLog extends Service
         }
 
 
-        mDbAdaptor.createEntry(filteredMsg, tag, loglevel, logger);
+        mIngest.createEntry(filteredMsg, tag, loglevel, logger, fields,
+                client, sequence, clientTime);
+
+        switch (mFlushScheduler.onRecord(SystemClock.elapsedRealtime()))
+        {
+            case FlushScheduler.RECORD_FLUSH:
+                Intent flushIntent = new Intent(this, SystemLog.class);
+                flushIntent.setAction(FLUSH_ACTION);
+                startService(flushIntent);
+                break;
+            case FlushScheduler.RECORD_RESCHEDULE:
+                scheduleWakeup();
+                break;
+        }
 
         //TODO
         /* Send data to ohmagePhone */
@@ -443,99 +806,519 @@ public class SystemLog extends Service
             mTagMapping.put(tag, appName);
         }
 
-        log(tag, msg, logLevel);
+        log(tag, msg, logLevel, intent.getStringExtra(KEY_CLIENT),
+                intent.getLongExtra(KEY_SEQUENCE, -1),
+                intent.getLongExtra(KEY_CLIENT_TIME, 0));
     }
     
     
     /**
-     * Message handler object.
+     * The upload job run by the scheduler on its upload thread.
      */
-    private final Handler mHandler = new Handler()
+    private final UploadScheduler.Task mUploadTask = 
+        new UploadScheduler.Task()
     {
-        @Override
-        public void handleMessage(Message msg)
+        public long run()
         {
-            if (msg.what == UPLOAD_START_MSG)
+            Log.i(TAG, "Worker thread started upload task");
+            // Retries and merged passes have no hold of their own
+            SystemLogWakeLock.Hold hold = mPendingHold.getAndSet(null);
+            if (hold == null)
+                hold = SystemLogWakeLock.acquire(SystemLog.this,
+                        SystemLogWakeLock.REASON_UPLOAD,
+                        SystemLogWakeLock.UPLOAD_TIMEOUT);
+            try
             {
-                mIsUploading = true;
+                return mUploader.tryUpload(getConditions());
             }
-
-            if (msg.what == UPLOAD_END_MSG)
+            finally
             {
-                mIsUploading = false;
+                hold.release();
             }
         }
 
-    };    
+        public void cancel()
+        {
+            mUploader.cancel();
+        }
+
+        public void clearCancel()
+        {
+            mUploader.clearCancel();
+        }
+    };
 
 
+
+    /**
+     * Takes a wake lock hold for the upload of each destination and
+     * releases it when that upload returns.
+     */
+    private final UploadRouter.Listener mRouteListener =
+        new UploadRouter.Listener()
+    {
+        public void onUploadStarted(String destination)
+        {
+            SystemLogWakeLock.Hold hold = SystemLogWakeLock.acquire(
+                    SystemLog.this, SystemLogWakeLock.REASON_UPLOAD,
+                    SystemLogWakeLock.UPLOAD_TIMEOUT);
+            synchronized (mRouteHolds)
+            {
+                mRouteHolds.put(destination, hold);
+            }
+        }
+
+        public void onUploadReturned(String destination)
+        {
+            SystemLogWakeLock.Hold hold;
+            synchronized (mRouteHolds)
+            {
+                hold = mRouteHolds.remove(destination);
+            }
+            if (hold != null)
+                hold.release();
+        }
+    };
     
     
     /**
-     * Spawns a worker thread to "try" to upload the contents of the
+     * Asks the scheduler to "try" to upload the contents of the
      * database.
-     * Before starting the thread, checks if a worker thread is
-     * already trying to upload. If so, returns. Otherwise a new
-     * thread is spawned and tasked with the upload job.
+     * Returns right away if uploads are backing off after failures.
+     * If an upload is already running the request is merged into
+     * it, otherwise the upload thread starts a new one.
+     *
+     * The wake lock is taken for the new upload here, on the calling
+     * thread, so the phone cannot sleep between the caller releasing
+     * its own hold and the upload thread picking up the upload.
      * 
      */
-    private synchronized void upload()
+    private void upload()
+    {
+        long backoff = mUploader.getBackoffDelay();
+        if (backoff > 0)
+        {
+            Log.i(TAG, "Uploads backing off for " + backoff + " ms");
+            return;
+        }
+
+        SystemLogWakeLock.Hold hold = SystemLogWakeLock.acquire(this,
+                SystemLogWakeLock.REASON_UPLOAD,
+                SystemLogWakeLock.UPLOAD_TIMEOUT);
+        if (!mPendingHold.compareAndSet(null, hold))
+        {
+            // The upload that has not started yet has a hold already
+            hold.release();
+            mScheduler.request();
+            return;
+        }
+        if (!mScheduler.request() && mPendingHold.compareAndSet(hold, null))
+        {
+            // Merged into a running upload, which holds the lock
+            // itself, or the retry is not due yet
+            hold.release();
+        }
+    }
+    
+    /**
+     * Starts an upload when the phone is plugged in, unless it was
+     * plugged in a moment ago, as with a loose cable.
+     */
+    private void onPlugged()
+    {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastPlugTrigger < PLUG_DEBOUNCE)
+        {
+            mDebouncedPlugTriggers++;
+            Log.i(TAG, "Plugged again within " + PLUG_DEBOUNCE / ONE_SECOND
+                    + " s, not starting another upload.");
+            return;
+        }
+
+        mLastPlugTrigger = now;
+        mPlugTriggers++;
+        Log.i(TAG, "Starting upload.");
+        upload();
+    }
+
+    /**
+     * Cancels the upload through the scheduler once the device state
+     * no longer allows it for some destination, and asks for a new
+     * upload, which evaluates the upload policy again. A retry that
+     * waits for its backoff is dropped instead: the retry alarm asks
+     * for an upload when it is due, which evaluates the policy in the
+     * state of then.
+     */
+    private void checkRunningUpload()
+    {
+        if (mUploader.isDisallowed(getConditions()))
+        {
+            mScheduler.cancel();
+            upload();
+        }
+        else
+        {
+            mScheduler.cancelRetry();
+        }
+    }
+
+    private synchronized void updateBattery(boolean charging, 
+            int percent)
+    {
+        mConditions.charging = charging;
+        mConditions.batteryPercent = percent;
+    }
+
+    /**
+     * Reads the state of the active network.
+     *
+     * @return              true if a network is connected
+     */
+    private synchronized boolean updateNetwork()
+    {
+        NetworkInfo info = mConnManager.getActiveNetworkInfo();
+        if ((info == null) || !info.isConnected())
+        {
+            mConditions.network = UploadPolicy.NETWORK_NONE;
+            mConditions.metered = false;
+        }
+        else if (info.getType() == ConnectivityManager.TYPE_WIFI)
+        {
+            mConditions.network = UploadPolicy.NETWORK_WIFI;
+            mConditions.metered = false;
+        }
+        else
+        {
+            // Only Wi-Fi is taken to be free, the platform cannot
+            // tell metered networks apart on older releases.
+            mConditions.network = UploadPolicy.NETWORK_MOBILE;
+            mConditions.metered = true;
+        }
+        return mConditions.network != UploadPolicy.NETWORK_NONE;
+    }
+
+    /**
+     * Returns a snapshot of the current device state.
+     */
+    private synchronized UploadPolicy.Conditions getConditions()
     {
-        if (!mIsUploading)
+        UploadPolicy.Conditions conditions = new UploadPolicy.Conditions();
+        conditions.copyDeviceState(mConditions);
+
+        Calendar cal = Calendar.getInstance();
+        conditions.now = cal.getTimeInMillis();
+        conditions.minuteOfDay = cal.get(Calendar.HOUR_OF_DAY) * 60
+            + cal.get(Calendar.MINUTE);
+        return conditions;
+    }
+
+    /**
+     * Loads the upload policy and the priority share kept in the
+     * preferences, or the defaults.
+     */
+    private void loadUploadPolicy()
+    {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, 
+                MODE_PRIVATE);
+        String rules = prefs.getString(PREF_UPLOAD_POLICY, null);
+        try
         {
-            SystemLogWakeLock.acquireCpuWakeLock(this);
-            Thread uploaderThread = new Thread()
+            if (rules != null)
             {
-                public void run()
-                {
-                    // Send an immediate message to the main thread
-                    // to inform that a worker thread is running.
-                    mHandler.sendMessageAtTime( mHandler.obtainMessage(
-                                UPLOAD_START_MSG), 
-                            SystemClock.uptimeMillis());
-
-                    
-                    Log.i(TAG, "Worker thread started upload task");
-                    if (OPERATE_LOCAL)
-                    {
-                    	mDumper.tryDump();
-                    }
-                    else if (WIFI_ONLY)
-                    {
-                        //if (mWiFi.isConnected())
-                        if( mWiFi != null && mWiFi.getType() == ConnectivityManager.TYPE_WIFI )
-                        {
-                            Log.i(TAG, "Connected to WiFi.");
-                        	mUploader.tryUpload();
-                        }
-                        else
-                            Log.i(TAG, "Not connected to WiFi.");
-                    }
-                    else
-                    {
-                        mUploader.tryUpload();
-                    }
-                    	
+                mUploader.setPolicy(UploadPolicy.parse(rules));
+                Log.i(TAG, "Upload policy: " + rules);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "Ignoring stored upload policy", e);
+        }
 
-                    // Send an immediate message to the main thread to
-                    // inform that the worker thread is finished.
-                    mHandler.sendMessageAtTime( mHandler.obtainMessage(
-                                UPLOAD_END_MSG), 
-                            SystemClock.uptimeMillis());
-                }
-            };
+        mUploader.setPriorityShare(prefs.getInt(PREF_PRIORITY_SHARE,
+                    Uploader.DEFAULT_PRIORITY_SHARE));
+    }
+
+    /**
+     * Replaces the upload policy and keeps it in the preferences.
+     *
+     * @param   rules       policy rules, or null for the default
+     *                      policy
+     */
+    private void setUploadPolicy(String rules)
+    {
+        UploadPolicy policy;
+        try
+        {
+            policy = UploadPolicy.parse((rules == null) 
+                    ? UploadPolicy.DEFAULT_RULES : rules);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "Invalid upload policy: " + e.getMessage());
+            return;
+        }
+
+        SharedPreferences.Editor editor = getSharedPreferences(
+                PREFS_NAME, MODE_PRIVATE).edit();
+        if (rules == null)
+            editor.remove(PREF_UPLOAD_POLICY);
+        else
+            editor.putString(PREF_UPLOAD_POLICY, rules);
+        editor.commit();
+
+        mUploader.setPolicy(policy);
+        Log.i(TAG, "Upload policy set to: " + policy);
+        upload();
+    }
+
+    /**
+     * Loads the routing table kept in the preferences, if any.
+     */
+    private void loadRoutes()
+    {
+        String routes = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+            .getString(PREF_ROUTES, null);
+        try
+        {
+            if (routes != null)
+            {
+                mUploader.setRoutes(RoutingTable.parse(routes));
+                Log.i(TAG, "Upload routes: " + routes);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "Ignoring stored upload routes", e);
+        }
+    }
+
+    /**
+     * Replaces the routing table and keeps it in the preferences.
+     *
+     * @param   routes      routes, or null to upload everything to the
+     *                      default server
+     */
+    private void setRoutes(String routes)
+    {
+        RoutingTable table;
+        try
+        {
+            table = RoutingTable.parse((routes == null) ? "" : routes);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "Invalid upload routes: " + e.getMessage());
+            return;
+        }
 
-            uploaderThread.setPriority(Thread.MIN_PRIORITY);
+        SharedPreferences.Editor editor = getSharedPreferences(
+                PREFS_NAME, MODE_PRIVATE).edit();
+        if (routes == null)
+            editor.remove(PREF_ROUTES);
+        else
+            editor.putString(PREF_ROUTES, routes);
+        editor.commit();
 
-            uploaderThread.start();
+        mUploader.setRoutes(table);
+        Log.i(TAG, "Upload routes set to: " + table);
+        upload();
+    }
 
+    /**
+     * Starts or stops capturing the records taken in, and keeps the
+     * setting in the preferences.
+     *
+     * @param   mode        CAPTURE_CONTENT or CAPTURE_HASH, or null to
+     *                      stop capturing
+     */
+    private void setCapture(String mode)
+    {
+        if ((mode != null) && !mode.equals(CAPTURE_CONTENT)
+                && !mode.equals(CAPTURE_HASH))
+        {
+            Log.e(TAG, "Invalid capture mode: " + mode);
+            return;
         }
+
+        SharedPreferences.Editor editor = getSharedPreferences(
+                PREFS_NAME, MODE_PRIVATE).edit();
+        if (mode == null)
+            editor.remove(PREF_CAPTURE);
         else
+            editor.putString(PREF_CAPTURE, mode);
+        editor.commit();
+
+        stopCapture();
+        startCapture(mode);
+    }
+
+    /**
+     * Starts capturing to a new file named after the current time.
+     *
+     * @param   mode        CAPTURE_CONTENT or CAPTURE_HASH, or null to
+     *                      do nothing
+     */
+    private void startCapture(String mode)
+    {
+        if (mode == null)
+            return;
+
+        String path = CAPTURE_PATH + "systemlog-" 
+            + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date()) + ".trace";
+        try
+        {
+            mIngest.setCapture(new IngestTrace.Writer(
+                        new FileOutputStream(path),
+                        mode.equals(CAPTURE_HASH), CAPTURE_MAX_BYTES,
+                        SystemClock.elapsedRealtime(),
+                        System.currentTimeMillis()));
+            Log.i(TAG, "Capturing (" + mode + ") to " + path);
+        }
+        catch (IOException e)
         {
-            Log.i(TAG, "Upload in already progress ...");
+            Log.e(TAG, "Could not start the capture to " + path, e);
         }
     }
-    
+
+    /**
+     * Stops the capture, if any, and closes its file.
+     */
+    private void stopCapture()
+    {
+        IngestTrace.Writer capture = mIngest.setCapture(null);
+        if (capture == null)
+            return;
+        try
+        {
+            capture.close();
+            Log.i(TAG, "Capture stopped: " + capture);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not close the capture", e);
+        }
+    }
+
+    /**
+     * Sets the share of each upload round given to error and warning
+     * records and keeps it in the preferences.
+     *
+     * @param   percent     share in percent
+     */
+    private void setPriorityShare(int percent)
+    {
+        if ((percent < 1) || (percent > 100))
+        {
+            Log.e(TAG, "Invalid priority share: " + percent);
+            return;
+        }
+
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+            .putInt(PREF_PRIORITY_SHARE, percent).commit();
+        mUploader.setPriorityShare(percent);
+        Log.i(TAG, "Priority share set to " + percent + "%");
+    }
+
+    /**
+     * Schedules a one-shot alarm that triggers the next upload
+     * attempt after the given delay, instead of retrying right away.
+     * The alarm wakes the phone up, and SystemLogAlarmReceiver holds
+     * the alarm wake lock until the upload takes over, so the retry
+     * does not wait for the next time the phone wakes up anyway.
+     *
+     * @param   delay       delay in milliseconds
+     */
+    private void scheduleRetry(long delay)
+    {
+        Log.i(TAG, "Scheduling next upload attempt in " + delay + " ms");
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + delay, mRetrySender);
+    }
+
+    /**
+     * Schedules the next wakeup as decided by the flush scheduler.
+     * The alarm does not wake the phone up, so it is delivered
+     * together with the next wakeup of the system. Long intervals use
+     * an inexact repeating alarm, which the system aligns with the
+     * alarms of other applications. Each wakeup replaces the alarm.
+     */
+    private void scheduleWakeup()
+    {
+        long now = SystemClock.elapsedRealtime();
+        long next = mFlushScheduler.nextWakeup(now);
+        long interval = next - now;
+
+        if (interval >= AlarmManager.INTERVAL_FIFTEEN_MINUTES)
+        {
+            if (interval >= AlarmManager.INTERVAL_HOUR)
+                interval = AlarmManager.INTERVAL_HOUR;
+            else if (interval >= AlarmManager.INTERVAL_HALF_HOUR)
+                interval = AlarmManager.INTERVAL_HALF_HOUR;
+            else
+                interval = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+            mAlarmManager.setInexactRepeating(
+                    AlarmManager.ELAPSED_REALTIME, next, interval,
+                    mUploadSender);
+        }
+        else
+        {
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, next,
+                    mUploadSender);
+        }
+        Log.i(TAG, "Next wakeup in " + (next - now) / ONE_SECOND + " s");
+    }
+
+    /**
+     * Prints the flush scheduler and upload statistics, for
+     * "adb shell dumpsys activity service SystemLog".
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, 
+            String[] args)
+    {
+        long now = SystemClock.elapsedRealtime();
+        writer.println("Flush scheduler: " + mFlushScheduler.toString(now));
+        writer.println("Wakeups in the last hour: " 
+                + mFlushScheduler.getWakeupsPerHour(now));
+        writer.println("Flush latency p50/p90/p99: " 
+                + mFlushScheduler.getLatencyPercentile(50) + "/"
+                + mFlushScheduler.getLatencyPercentile(90) + "/"
+                + mFlushScheduler.getLatencyPercentile(99) + " ms");
+        writer.println("Battery triggers (plug-ins/unchanged/debounced): "
+                + mPlugTriggers + "/" + mSuppressedBatteryTriggers + "/"
+                + mDebouncedPlugTriggers);
+        writer.println("Wake lock: " + SystemLogWakeLock.getStats());
+        writer.println("Metrics: " + mMetrics.snapshot());
+        IngestTrace.Writer capture = mIngest.getCapture();
+        if (capture != null)
+            writer.println("Capture: " + capture);
+        for (Map.Entry<String, UploadStats> e 
+                : mUploader.getLastStats().entrySet())
+            writer.println("Last upload to " + e.getKey() + ": " 
+                    + e.getValue());
+    }
+
+    /**
+     * Logs the engine metrics as a record of SystemLog itself, so
+     * they are uploaded with the other records. Does nothing until
+     * STATS_INTERVAL has passed since the last time, or if nothing
+     * else was logged since, so an idle phone stays idle.
+     *
+     * @param   now         current elapsed realtime
+     */
+    private void logStats(long now)
+    {
+        if ((now - mLastStatsTime < STATS_INTERVAL)
+                || (mMetrics.ingested.get() == mLastStatsIngested))
+            return;
+
+        mIngest.createEntry(mMetrics.snapshot(), STATS_TAG,
+                INFO_LOGLEVEL, STATS_LOGGER);
+        mLastStatsTime = now;
+        mLastStatsIngested = mMetrics.ingested.get();
+    }
+
     public static boolean isPlugged()
     {
     	return mIsPlugged;
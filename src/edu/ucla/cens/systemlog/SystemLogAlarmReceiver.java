@@ -34,9 +34,10 @@ public class SystemLogAlarmReceiver extends BroadcastReceiver
     public void onReceive(Context context, Intent intent)
     {
 
-        Log.i(TAG, "Received repeating alarm.");
+        Log.i(TAG, "Received wakeup alarm.");
         // Acquire a lock
-        SystemLogWakeLock.acquireCpuWakeLock(context);
+        SystemLogWakeLock.acquire(context, SystemLogWakeLock.REASON_ALARM,
+                SystemLogWakeLock.ALARM_TIMEOUT);
 
         Intent newIntent = new Intent(context, SystemLog.class);
         newIntent.setAction(SystemLog.UPLOAD_ACTION);
@@ -15,36 +15,20 @@ import android.database.sqlite.SQLiteStatement;
 import android.os.PowerManager;
 import android.util.Log;
 
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-import java.util.HashSet;
 import java.util.Calendar;
-
-import org.json.JSONObject;
-import org.json.JSONException;
+import java.util.List;
 
 /**
  * Simple  database access helper class. 
  * Interfaces with the SQLite database to store system logs.
  * Written based on sample code provided by Google.
+ * This is the RecordStore of the engine on the phone.
  *
  * @author Hossein Falaki
  */
-public class SystemLogDbAdaptor 
+public class SystemLogDbAdaptor implements RecordStore
 {
 
-    public static final String KEY_LOGRECORD = "logrecord";
-    public static final String KEY_LOGGER = "logger";
-    public static final String KEY_TIME = "recordtime";
-    public static final String KEY_ROWID = "_id";
-
-
-    private static final String IMEI = SystemLog.IMEI;
-    private static final String VER = SystemLog.VER;
-
-
-    private SimpleDateFormat mSDF;
-
     private static final String TAG = "SystemLogDbAdapter";
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
@@ -52,24 +36,61 @@ public class SystemLogDbAdaptor
     private long mDbBirthDate;
 
 
-    private HashSet<ContentValues> mBuffer;
-    private HashSet<ContentValues> mTempBuffer;
-
     private boolean mOpenLock = false;
     private boolean mFlushLock = false;
+
+    /** Number of open() calls not yet matched by close() */
+    private int mOpenCount = 0;
     
     /** Database creation SQL statement */
     private static final String DATABASE_CREATE =
             "create table systemlog (_id integer primary key "
            + "autoincrement, logger text not null, "
-           + "recordtime text not null, logrecord text not null);";
+           + "recordtime text not null, logrecord text not null, "
+           + "tag text, level text, timestamp integer, message text, "
+           + "client_time integer, flush_time integer, fields blob);";
     private static final String DATABASE_DROP = 
         "DROP TABLE IF EXISTS systemlog";
 
+    /** Index over level and ID. Lets a lane of a few levels be read
+     * in ID order without scanning the rest of the backlog */
+    private static final String LEVEL_INDEX_CREATE =
+            "create index if not exists systemlog_level on systemlog "
+           + "(level, _id);";
+
+    /** Index over logger and ID, for reading the records of one
+     * logger a batch at a time */
+    private static final String LOGGER_INDEX_CREATE =
+            "create index if not exists systemlog_logger on systemlog "
+           + "(logger, _id);";
+
+    /** Upload batches that were posted without a definite answer */
+    private static final String INFLIGHT_CREATE =
+            "create table if not exists inflight (batch_id text primary "
+           + "key, from_id integer not null, to_id integer not null, "
+           + "created integer not null, selection text, "
+           + "destination text);";
+    private static final String INFLIGHT_DROP = 
+        "DROP TABLE IF EXISTS inflight";
+
+    /** Key-value table for database wide settings */
+    private static final String META_CREATE =
+            "create table if not exists meta (key text primary key, "
+           + "value text not null);";
+    private static final String META_DROP = 
+        "DROP TABLE IF EXISTS meta";
+
 
     private static final String DATABASE_NAME = "data";
     private static final String DATABASE_TABLE = "systemlog";
-    private static final int DATABASE_VERSION = 3;
+    private static final String INFLIGHT_TABLE = "inflight";
+    private static final String META_TABLE = "meta";
+    private static final int DATABASE_VERSION = 11;
+
+    /** Meta key of the generation of the log table. Record IDs
+     * start over whenever the table is created, so a batch is only
+     * identified by its ID range together with the generation */
+    private static final String META_GENERATION = "generation";
 
     private static final long ONE_MINUTE = 1000 * 60;
     private static final long ONE_HOUR = 60 * ONE_MINUTE;
@@ -95,16 +116,72 @@ public class SystemLogDbAdaptor
         {
         	Log.i(TAG, "Creating database");
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(LEVEL_INDEX_CREATE);
+            db.execSQL(LOGGER_INDEX_CREATE);
+            db.execSQL(INFLIGHT_CREATE);
+            db.execSQL(META_CREATE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, 
                 int newVersion) 
         {
+            if ((oldVersion >= 3) && (oldVersion < DATABASE_VERSION))
+            {
+                // Versions 4 to 11 only add tables, columns and
+                // indices, keep the records
+                Log.i(TAG, "Upgrading database from version " 
+                        + oldVersion + " to " + newVersion);
+                if (oldVersion < 4)
+                {
+                    db.execSQL(INFLIGHT_CREATE);
+                    db.execSQL(META_CREATE);
+                }
+                else
+                {
+                    if (oldVersion < 6)
+                        db.execSQL("ALTER TABLE " + INFLIGHT_TABLE 
+                                + " ADD COLUMN " + KEY_SELECTION 
+                                + " text");
+                    if (oldVersion < 9)
+                        db.execSQL("ALTER TABLE " + INFLIGHT_TABLE 
+                                + " ADD COLUMN " + KEY_DESTINATION 
+                                + " text");
+                }
+                if (oldVersion < 5)
+                {
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE 
+                            + " ADD COLUMN " + KEY_TAG + " text");
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE 
+                            + " ADD COLUMN " + KEY_LEVEL + " text");
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE 
+                            + " ADD COLUMN " + KEY_TIMESTAMP + " integer");
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE 
+                            + " ADD COLUMN " + KEY_MESSAGE + " text");
+                }
+                if (oldVersion < 10)
+                {
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE 
+                            + " ADD COLUMN " + KEY_CLIENT_TIME 
+                            + " integer");
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE 
+                            + " ADD COLUMN " + KEY_FLUSH_TIME 
+                            + " integer");
+                }
+                if (oldVersion < 11)
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE 
+                            + " ADD COLUMN " + KEY_FIELDS + " blob");
+                db.execSQL(LEVEL_INDEX_CREATE);
+                db.execSQL(LOGGER_INDEX_CREATE);
+                return;
+            }
+
             Log.w(TAG, "Upgrading database from version " 
                     + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             db.execSQL(DATABASE_DROP);
+            db.execSQL(INFLIGHT_DROP);
+            db.execSQL(META_DROP);
             onCreate(db);
         }
     }
@@ -119,15 +196,11 @@ public class SystemLogDbAdaptor
     {
         this.mCtx = ctx;
 
-        mBuffer = new HashSet<ContentValues>();
-
         PowerManager pm = (PowerManager)
             ctx.getSystemService(Context.POWER_SERVICE);
         mWL = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
         mWL.setReferenceCounted(false);
 
-        mSDF = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-
         mDbBirthDate = 0L;
 
     }
@@ -136,7 +209,9 @@ public class SystemLogDbAdaptor
      * Open the database.
      * If it cannot be opened, try to create a new instance of the
      * database. If it cannot be created, throw an exception to signal
-     * the failure.
+     * the failure. Calls may be nested, for example by uploads to
+     * several destinations that run at the same time. The database
+     * stays open until every open() has been matched by close().
      * 
      * @return this         (self reference, allowing this to be
      *                      chained in an initialization call)
@@ -145,11 +220,12 @@ public class SystemLogDbAdaptor
      */
     public synchronized SystemLogDbAdaptor open() throws SQLException 
     {
-        if (!mFlushLock)
+        if ((mOpenCount == 0) && !mFlushLock)
         {
             mDbHelper = new DatabaseHelper(mCtx);
             mDb = mDbHelper.getWritableDatabase();
         }
+        mOpenCount++;
         mOpenLock = true;
         return this;
     }
@@ -159,6 +235,9 @@ public class SystemLogDbAdaptor
       */
     public synchronized void close() 
     {
+        if ((mOpenCount == 0) || (--mOpenCount > 0))
+            return;
+
         if (!mFlushLock)
             mDbHelper.close();
         mOpenLock = false;
@@ -201,6 +280,12 @@ public class SystemLogDbAdaptor
 
             Log.i(TAG, "Creating a new table.");
             mDb.execSQL(DATABASE_CREATE);
+            mDb.execSQL(LEVEL_INDEX_CREATE);
+            mDb.execSQL(LOGGER_INDEX_CREATE);
+
+            // IDs start over, so batch IDs need a new generation.
+            mDb.delete(INFLIGHT_TABLE, null, null);
+            setGeneration(curTime);
 
             mDbBirthDate = curTime;
         }
@@ -208,74 +293,42 @@ public class SystemLogDbAdaptor
 
 
     /**
-     * Constructs a log record JSON object with the given message
-     * as the log message field and the given type as the type field. 
-     * Returns the string representation of this new object.
+     * Returns the column values of a record of the log table.
      *
-     * @param   message     log message
-     * @param   tag         message tag
-     * @param   level       Log level string
-     * @param   logger      logger name
+     * @param   record      buffered log record
+     * @param   flushTime   time of the flush
+     * @return              values to insert
      */
-    public synchronized void createEntry(String message, String tag, String level, String logger)
+    private static ContentValues toContentValues(LogRecord record,
+            long flushTime)
     {
-        JSONObject dataRecord = new JSONObject();
-
-        // First thing, get the current time
-        final Calendar cal = Calendar.getInstance();
-        String timeStr = mSDF.format(cal.getTime());
-
-        /*
-        String timeStr = "" +
-            c.get(Calendar.YEAR) + "-" +
-            (c.get(Calendar.MONTH) + 1) + "-" +
-            c.get(Calendar.DAY_OF_MONTH) + " " +
-            c.get(Calendar.HOUR_OF_DAY) + ":" +
-            c.get(Calendar.MINUTE) + ":" +
-            c.get(Calendar.SECOND);
-        */
-
-        try
-        {
-            dataRecord.put("date", timeStr);
-            dataRecord.put("time_stamp", cal.getTimeInMillis());
-            dataRecord.put("user", IMEI);
-            dataRecord.put("tag", tag);
-            dataRecord.put("logger", logger);
-            dataRecord.put("ver", VER);
-            dataRecord.put("message", message);
-            dataRecord.put("level", level);
-        }
-        catch (JSONException e)
-        {
-            Log.e(TAG, "JSON Error", e);
-            return;
-        }
-
-
         ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_LOGGER, logger);
-        initialValues.put(KEY_LOGRECORD, dataRecord.toString());
-        initialValues.put(KEY_TIME, timeStr);
-
-        mBuffer.add(initialValues);
-
-
+        initialValues.put(KEY_LOGGER, record.logger);
+        initialValues.put(KEY_LOGRECORD, record.json);
+        initialValues.put(KEY_TIME, record.time);
+        initialValues.put(KEY_TAG, record.tag);
+        initialValues.put(KEY_LEVEL, record.level);
+        initialValues.put(KEY_TIMESTAMP, record.timestamp);
+        initialValues.put(KEY_MESSAGE, record.message);
+        if (record.clientTime > 0)
+            initialValues.put(KEY_CLIENT_TIME, record.clientTime);
+        initialValues.put(KEY_FLUSH_TIME, flushTime);
+        if (record.fields != null)
+            initialValues.put(KEY_FIELDS, record.fields);
+        return initialValues;
     }
 
-
-
-
     /**
-     * Opens a new thread and flush the cached log records into the
-     * database. 
+     * Flushes the given log records into the database, opening it if
+     * needed.
+     *
+     * @param records       records to insert, in logging order
+     * @param flushTime     time of the flush, stored with the records
      */
-    public synchronized void flushDb()
+    public synchronized void insertRecords(List<LogRecord> records,
+            long flushTime)
     {
-        mTempBuffer = mBuffer;
-        mBuffer = new HashSet<ContentValues>();
-
-        Log.i(TAG, "flushDB called to flush " + mTempBuffer.size() 
+        Log.i(TAG, "insertRecords called to flush " + records.size() 
                 + " records.");
 
 
@@ -290,19 +343,19 @@ public class SystemLogDbAdaptor
             {
                 Log.e(TAG, "Could not open DB to flush records" , 
                         se);
-                SystemLogWakeLock.releaseCpuLock();
                 return;
             }
         }
         mFlushLock = true;
 
         Log.i(TAG, "Flusshing " 
-                + mTempBuffer.size() + " records.");
+                + records.size() + " records.");
 
         long retVal = 0;
-        for (ContentValues value : mTempBuffer)
+        for (LogRecord record : records)
         {
-            retVal = mDb.insert(DATABASE_TABLE, null, value);
+            retVal = mDb.insert(DATABASE_TABLE, null, 
+                    toContentValues(record, flushTime));
             if (retVal == -1)
             {
                 Log.i(TAG, "Trying to recreate the database.");
@@ -318,7 +371,6 @@ public class SystemLogDbAdaptor
         }
 
         mFlushLock = false;
-        SystemLogWakeLock.releaseCpuLock();
         //mWL.release();
 
 
@@ -408,26 +460,250 @@ public class SystemLogDbAdaptor
      */
     public synchronized boolean deleteRange(long fromId, long toId) 
     {
+        return deleteRange(fromId, toId, null);
+    }
 
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID 
-                + " BETWEEN " 
-                + fromId
-                + " AND "
-                + toId, null) > 0;
+    /**
+     * Deletes the entries between the given ID boundries that match
+     * the given selection.
+     * 
+     * @param fromId        id of the first log record to delete
+     * @param toId          id of the last log record to delete
+     * @param selection     selection of the records, null for all
+     * @return              true if deleted, false otherwise
+     */
+    public synchronized boolean deleteRange(long fromId, long toId,
+            String selection) 
+    {
+
+        return mDb.delete(DATABASE_TABLE, 
+                Selections.rangeSelection(fromId, toId, selection), 
+                null) > 0;
 
     }
 
+    /**
+     * Returns a Cursor over the number of records and the time of the
+     * oldest record for each log level. Records logged before levels
+     * were stored are counted under a NULL level and time.
+     *
+     * @param selection     SQL selection, null for all records
+     * @return              Cursor over level, count and oldest time
+     */
+    public synchronized RecordCursor fetchBacklog(String selection)
+    {
+        return new AndroidRecordCursor(mDb.query(DATABASE_TABLE, 
+                new String[] {KEY_LEVEL, "count(*)", 
+                    "min(" + KEY_TIMESTAMP + ")"}, selection,
+                null, KEY_LEVEL, null, null));
+    }
+
+
+    /**
+     * Returns the generation of the log table. The generation
+     * changes every time the table is created and record IDs start
+     * over. This method assumes that the database has been opened.
+     *
+     * @return              generation of the log table
+     */
+    public synchronized long getGeneration()
+    {
+        String value = getMeta(META_GENERATION);
+        if (value != null)
+            return Long.parseLong(value);
+
+        long generation = Calendar.getInstance().getTimeInMillis();
+        setGeneration(generation);
+        return generation;
+    }
+
+    private void setGeneration(long generation)
+    {
+        putMeta(META_GENERATION, String.valueOf(generation));
+    }
+
+    /**
+     * Returns the value stored under the given key in the meta
+     * table. This method assumes that the database has been opened.
+     *
+     * @param key           meta key
+     * @return              stored value, or null
+     */
+    public synchronized String getMeta(String key)
+    {
+        Cursor c = mDb.query(META_TABLE, new String[] {"value"}, 
+                "key = ?", new String[] {key}, null, null, null);
+        try
+        {
+            if (c.moveToFirst())
+                return c.getString(0);
+            return null;
+        }
+        finally
+        {
+            c.close();
+        }
+    }
+
+    /**
+     * Stores a value under the given key in the meta table. This
+     * method assumes that the database has been opened.
+     *
+     * @param key           meta key
+     * @param value         value to store
+     */
+    public synchronized void putMeta(String key, String value)
+    {
+        mDb.execSQL("INSERT OR REPLACE INTO " + META_TABLE 
+                + " (key, value) VALUES (?, ?)", 
+                new Object[] {key, value});
+    }
+
+
+    /**
+     * Records that the batch with the given ID and range is about to
+     * be posted. Recording the same batch again has no effect.
+     *
+     * @param batchId       ID of the batch
+     * @param fromId        id of the first log record in the batch
+     * @param toId          id of the last log record in the batch
+     * @param selection     selection of the records within the
+     *                      range, null for all
+     * @param destination   URL the batch is posted to
+     */
+    public synchronized void putInflightBatch(String batchId, 
+            long fromId, long toId, String selection, 
+            String destination)
+    {
+        mDb.execSQL("INSERT OR REPLACE INTO " + INFLIGHT_TABLE 
+                + " (batch_id, from_id, to_id, created, selection, "
+                + "destination) VALUES (?, ?, ?, ?, ?, ?)", 
+                new Object[] {batchId, fromId, toId, 
+                    Calendar.getInstance().getTimeInMillis(), 
+                    selection, destination});
+    }
+
+    /**
+     * Deletes the record of an in-flight batch.
+     *
+     * @param batchId       ID of the batch
+     */
+    public synchronized void deleteInflightBatch(String batchId)
+    {
+        mDb.delete(INFLIGHT_TABLE, KEY_BATCH_ID + " = ?", 
+                new String[] {batchId});
+    }
+
+    /**
+     * Returns a Cursor over the in-flight batches posted to the given
+     * destination, ordered by their first record ID.
+     *
+     * @param destination   URL the batches were posted to
+     * @param isDefault     also return the batches posted before
+     *                      destinations were recorded
+     * @return              Cursor over in-flight batches
+     */
+    public synchronized RecordCursor fetchInflightBatches(
+            String destination, boolean isDefault)
+    {
+        String selection = KEY_DESTINATION + " = ?";
+        if (isDefault)
+            selection += " OR " + KEY_DESTINATION + " IS NULL";
+        return new AndroidRecordCursor(mDb.query(INFLIGHT_TABLE, 
+                new String[] {KEY_BATCH_ID, KEY_FROM_ID, KEY_TO_ID, 
+                    KEY_SELECTION}, selection, 
+                new String[] {destination}, null, null, KEY_FROM_ID));
+    }
+
+    /**
+     * Deletes the records of a batch that the server has received,
+     * together with its in-flight entry, in one transaction.
+     *
+     * @param batchId       ID of the batch
+     * @param fromId        id of the first log record to delete
+     * @param toId          id of the last log record to delete
+     * @param selection     selection of the records within the
+     *                      range, null for all
+     * @return              true if records were deleted
+     */
+    public synchronized boolean completeBatch(String batchId, 
+            long fromId, long toId, String selection)
+    {
+        boolean deleted;
+        mDb.beginTransaction();
+        try
+        {
+            deleted = deleteRange(fromId, toId, selection);
+            deleteInflightBatch(batchId);
+            mDb.setTransactionSuccessful();
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+        return deleted;
+    }
+
 
     /**
      * Returns a Cursor over the list of all logrecords in the database
      * 
      * @return              Cursor over all notes
      */
-    public synchronized Cursor fetchAllEntries() 
+    public synchronized RecordCursor fetchAllEntries() 
+    {
+        return fetchEntries(null);
+    }
+
+    /**
+     * Returns a Cursor over the logrecords that match the given
+     * selection, in ID order.
+     * 
+     * @param selection     SQL selection, null for all records
+     * @return              Cursor over the matching records
+     */
+    public synchronized RecordCursor fetchEntries(String selection) 
+    {
+
+        return new AndroidRecordCursor(mDb.query(DATABASE_TABLE, 
+                new String[] {KEY_ROWID, KEY_LOGGER,
+                KEY_TIME, KEY_LOGRECORD, KEY_TAG, KEY_LEVEL, KEY_TIMESTAMP,
+                KEY_MESSAGE, KEY_CLIENT_TIME, KEY_FLUSH_TIME, KEY_FIELDS},
+                selection, null, null, null, KEY_ROWID));
+    }
+
+    /**
+     * Returns a Cursor over at most limit logrecords that match the
+     * given selection, in ID order.
+     * 
+     * @param selection     SQL selection, null for all records
+     * @param limit         maximum number of records
+     * @return              Cursor over the matching records
+     */
+    public synchronized RecordCursor fetchEntries(String selection, 
+            int limit) 
     {
 
-        return mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_LOGGER,
-                KEY_TIME, KEY_LOGRECORD}, null, null, null, null, null);
+        return new AndroidRecordCursor(mDb.query(DATABASE_TABLE, 
+                new String[] {KEY_ROWID, KEY_LOGGER,
+                KEY_TIME, KEY_LOGRECORD, KEY_TAG, KEY_LEVEL, KEY_TIMESTAMP,
+                KEY_MESSAGE, KEY_CLIENT_TIME, KEY_FLUSH_TIME, KEY_FIELDS},
+                selection, null, null, null, KEY_ROWID,
+                Integer.toString(limit)));
+    }
+
+    /**
+     * Returns a Cursor over the number of records of each logger that
+     * match the given selection.
+     *
+     * @param selection     SQL selection, null for all records
+     * @return              Cursor over logger and count
+     */
+    public synchronized RecordCursor fetchLoggerBacklog(String selection)
+    {
+        return new AndroidRecordCursor(mDb.query(DATABASE_TABLE, 
+                new String[] {KEY_LOGGER, "count(*)"}, selection, null, 
+                KEY_LOGGER, null, null));
     }
 
     /**
@@ -9,61 +9,266 @@ package edu.ucla.cens.systemlog;
 
 import android.content.Context;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 
-import java.lang.Thread;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 
 
 /**
  * Manages a static WakeLock to gaurantee that the phone
  * does not go to sleep before upload task is over.
- * 
+ *
+ * Components take named holds on the lock. The holds are counted, and
+ * the phone is kept awake as long as any hold is outstanding, so one
+ * component releasing its hold cannot drop the hold of another. Every
+ * hold has a timeout after which it is released even if its owner
+ * never does, for example because it died with an exception.
+ *
+ * A hold is released either through the Hold object returned by
+ * acquire(), or by its reason when it is handed over between
+ * components, as from the alarm receiver to the service.
+ *
+ * The time the lock was held, in total and by reason, is kept so the
+ * battery cost of SystemLog can be measured.
  *
  * @author      Hossein Falaki
  */
-public class SystemLogWakeLock 
+public class SystemLogWakeLock
 {
 
     private static final String TAG = "SystemLogWakeLock";
 
+    /** Reasons for holding the lock */
+    public static final String REASON_ALARM = "alarm";
+    public static final String REASON_UPLOAD = "upload";
+
+    /** Timeouts of the holds. An alarm hold only has to last until
+     * the service has handled the alarm */
+    public static final long ALARM_TIMEOUT = 60 * 1000;
+    public static final long UPLOAD_TIMEOUT = 15 * 60 * 1000;
+
+
+    /**
+     * One hold on the lock.
+     */
+    public static class Hold
+    {
+        private final String mReason;
+        private final long mStart;
+        private ScheduledFuture<?> mTimeout;
+        private boolean mReleased;
+
+        private Hold(String reason, long start)
+        {
+            mReason = reason;
+            mStart = start;
+        }
+
+        /**
+         * Releases the hold. Does nothing if it has been released
+         * already, or has timed out.
+         */
+        public void release()
+        {
+            SystemLogWakeLock.release(this, false);
+        }
+    }
+
+    /**
+     * Accounting of the holds of one reason.
+     */
+    private static class ReasonStats
+    {
+        long acquisitions;
+        long timeouts;
+        long heldTime;
+        final LinkedList<Hold> outstanding = new LinkedList<Hold>();
+    }
+
+
     private static PowerManager.WakeLock sCpuWakeLock;
 
+    /** Releases holds that time out */
+    private static ScheduledExecutorService sTimer;
+
+    /** Accounting by reason */
+    private static final TreeMap<String, ReasonStats> sReasons =
+        new TreeMap<String, ReasonStats>();
+
+    /** Number of outstanding holds of all reasons */
+    private static int sHolds;
+
+    /** Time the lock was taken last, and total time it was held
+     * before that */
+    private static long sHeldSince;
+    private static long sHeldTime;
 
-    public static void acquireCpuWakeLock(Context context)
+
+    /**
+     * Takes a hold on the lock.
+     *
+     * @param   context     context used to create the lock
+     * @param   reason      name the hold is accounted under
+     * @param   timeout     time in milliseconds after which the hold
+     *                      is released in any case
+     * @return              the hold
+     */
+    public static synchronized Hold acquire(Context context,
+            String reason, long timeout)
     {
-        Log.i(TAG, "Acquiring cpu wake lock");
+        Log.i(TAG, "Acquiring cpu wake lock for " + reason);
 
-        if (sCpuWakeLock != null)
-            return;
+        if (sCpuWakeLock == null)
+        {
+            PowerManager pm = (PowerManager) context.getSystemService(
+                    Context.POWER_SERVICE);
+            sCpuWakeLock = pm.newWakeLock(
+                    PowerManager.PARTIAL_WAKE_LOCK,
+                    "SystemLog");
+            sCpuWakeLock.setReferenceCounted(false);
+        }
 
+        long now = SystemClock.elapsedRealtime();
+        if (sHolds++ == 0)
+        {
+            sCpuWakeLock.acquire();
+            sHeldSince = now;
+        }
 
-        PowerManager pm = (PowerManager) context.getSystemService(
-                context.POWER_SERVICE);
-        sCpuWakeLock = pm.newWakeLock(
-                PowerManager.PARTIAL_WAKE_LOCK, 
-                "SystemLog");
+        final Hold hold = new Hold(reason, now);
+        ReasonStats stats = getReason(reason);
+        stats.acquisitions++;
+        stats.outstanding.add(hold);
 
-        sCpuWakeLock.acquire();
+        if (sTimer == null)
+        {
+            sTimer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "SystemLogWakeLockTimeout");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        hold.mTimeout = sTimer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                release(hold, true);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
 
+        return hold;
     }
 
+    /**
+     * Releases the oldest outstanding hold of the given reason.
+     *
+     * @param   reason      reason the hold was taken for
+     */
+    public static synchronized void release(String reason)
+    {
+        ReasonStats stats = sReasons.get(reason);
+        if ((stats == null) || stats.outstanding.isEmpty())
+        {
+            Log.i(TAG, "No cpu wake lock held for " + reason);
+            return;
+        }
+        release(stats.outstanding.getFirst(), false);
+    }
 
-    public static void releaseCpuLock()
+    /**
+     * Returns the time the lock was held since the process started.
+     *
+     * @return              held time in milliseconds
+     */
+    public static synchronized long getHeldTime()
     {
-        Log.i(TAG, "Releaseing cpu wake lock");
+        long time = sHeldTime;
+        if (sHolds > 0)
+            time += SystemClock.elapsedRealtime() - sHeldSince;
+        return time;
+    }
 
-        if (sCpuWakeLock != null)
+    /**
+     * Returns the accounting of the lock in a human readable form:
+     * the total held time, and the number of holds, timeouts and the
+     * held time of each reason.
+     *
+     * @return              summary of the lock
+     */
+    public static synchronized String getStats()
+    {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder sb = new StringBuilder();
+        sb.append("held=").append(getHeldTime()).append("ms")
+            .append(" holds=").append(sHolds);
+        for (Map.Entry<String, ReasonStats> e : sReasons.entrySet())
         {
-            if (sCpuWakeLock.isHeld())
-                sCpuWakeLock.release();
-            sCpuWakeLock = null;
+            ReasonStats stats = e.getValue();
+            long held = stats.heldTime;
+            for (Hold hold : stats.outstanding)
+                held += now - hold.mStart;
+            sb.append(" ").append(e.getKey())
+                .append("(holds=").append(stats.acquisitions)
+                .append(" timeouts=").append(stats.timeouts)
+                .append(" held=").append(held).append("ms)");
         }
+        return sb.toString();
     }
 
 
+    private static ReasonStats getReason(String reason)
+    {
+        ReasonStats stats = sReasons.get(reason);
+        if (stats == null)
+        {
+            stats = new ReasonStats();
+            sReasons.put(reason, stats);
+        }
+        return stats;
+    }
+
+    private static synchronized void release(Hold hold, boolean timedOut)
+    {
+        if (hold.mReleased)
+            return;
+        hold.mReleased = true;
 
+        long now = SystemClock.elapsedRealtime();
+        ReasonStats stats = getReason(hold.mReason);
+        stats.outstanding.remove(hold);
+        stats.heldTime += now - hold.mStart;
+        if (timedOut)
+        {
+            stats.timeouts++;
+            Log.w(TAG, "Cpu wake lock for " + hold.mReason
+                    + " timed out");
+        }
+        else
+        {
+            Log.i(TAG, "Releasing cpu wake lock for " + hold.mReason);
+            hold.mTimeout.cancel(false);
+        }
 
+        if (--sHolds == 0)
+        {
+            if (sCpuWakeLock.isHeld())
+                sCpuWakeLock.release();
+            sHeldTime += now - sHeldSince;
+        }
+    }
 }
-
@@ -0,0 +1,113 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * A transport carries the batches of one upload run to a
+ * destination: a server over HTTP (UploadSession), files on the card
+ * (FileTransport) or a collector on a socket (SocketTransport).
+ * Transports are opened by Transports.open() for the scheme of the
+ * destination URL. Uploader does everything else, whatever the
+ * transport: reading batches from the store, retries, pipelining and
+ * deleting the batches once the transport has acknowledged them.
+ *
+ * A transport acknowledges a batch with the status code send()
+ * returns, in the terms of HTTP: ACCEPTED or ALREADY_REPORTED if the
+ * destination has the batch, UNSUPPORTED_TYPE if it does not take
+ * its format, any other code if it failed. A transport is used by one
+ * thread at a time, except for abort().
+ *
+ * @author  Hossein Falaki
+ */
+public interface Transport
+{
+    /**
+     * Writes the body of one batch. May be called more than once for
+     * the same batch if the transport has to reconnect, and must
+     * write the same content every time.
+     */
+    interface BodyWriter
+    {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+
+    /** The destination stored the batch */
+    int ACCEPTED = 200;
+
+    /** The destination had already stored a batch with the ID of the
+     * batch (208 Already Reported) */
+    int ALREADY_REPORTED = 208;
+
+    /** The destination does not take the format of the batch */
+    int UNSUPPORTED_TYPE = 415;
+
+
+    /**
+     * Returns the batch formats the destination always takes, in the
+     * syntax of the formats header, or null if the destination
+     * advertises them with its acknowledgements.
+     *
+     * @return              formats, or null
+     */
+    String getFormats();
+
+    /**
+     * Returns true if batches do not leave the phone, so they need no
+     * network and have no round trip worth pipelining.
+     */
+    boolean isLocal();
+
+    /**
+     * Sends one batch and returns the acknowledgement of the
+     * destination.
+     *
+     * @param   contentType     content type of the body
+     * @param   body            writer of the body
+     * @return                  status code, see above
+     * @throws  IOException     if the batch could not be sent
+     */
+    int send(String contentType, BodyWriter body) throws IOException;
+
+    /**
+     * Fails the send in progress, if any, and every later send. May
+     * be called on any thread.
+     */
+    void abort();
+
+    /**
+     * Returns the message that came with the last acknowledgement,
+     * or null.
+     */
+    String getResponseMessage();
+
+    /**
+     * Returns the delay the destination asked for with the last
+     * acknowledgement in milliseconds, or -1.
+     */
+    long getRetryAfter();
+
+    /**
+     * Returns the formats advertised with the last acknowledgement,
+     * or null.
+     */
+    String getServerFormats();
+
+    /** Numbers of batches acknowledged, of TLS handshakes and of
+     * sends retried on a new connection */
+    int getPostCount();
+    int getHandshakeCount();
+    int getReconnectCount();
+
+    /**
+     * Releases the resources of the transport at the end of the run.
+     */
+    void close();
+}
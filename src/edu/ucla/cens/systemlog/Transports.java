@@ -0,0 +1,131 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+
+
+/**
+ * Opens the transport of a destination URL by its scheme:
+ *
+ * <ul>
+ * <li>http: and https: post to a server, see UploadSession.</li>
+ * <li>file: writes to segment files in a directory, see
+ * FileTransport.</li>
+ * <li>tcp: sends to a collector listening on a socket, see
+ * SocketTransport.</li>
+ * </ul>
+ *
+ * @author  Hossein Falaki
+ */
+public class Transports
+{
+    private Transports()
+    {
+    }
+
+
+    /**
+     * Opens a transport to the given destination.
+     *
+     * @param   url         destination URL
+     * @param   chunkSize   size of the chunks the body is streamed in
+     * @param   timeout     connect and read timeout in milliseconds
+     * @return              the transport
+     * @throws  IOException if the URL is not a valid destination or
+     *          has a scheme no transport handles
+     */
+    public static Transport open(String url, int chunkSize, int timeout)
+        throws IOException
+    {
+        String scheme = getScheme(url);
+        if (scheme.equals("file"))
+            return new FileTransport(url);
+        if (scheme.equals("tcp"))
+            return new SocketTransport(url, timeout);
+        if (scheme.equals("http") || scheme.equals("https"))
+            return new UploadSession(url, chunkSize, timeout);
+        throw new IOException("Unsupported scheme " + scheme
+                + ", use http, https, file or tcp");
+    }
+
+    /**
+     * Checks that a URL is a destination a transport can be opened
+     * to.
+     *
+     * @param   url         destination URL
+     * @throws  IllegalArgumentException if it is not
+     */
+    public static void check(String url)
+    {
+        try
+        {
+            open(url, 1, 1).close();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Bad URL: " + url + " ("
+                    + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Returns true if the status code means the destination has the
+     * batch, either because it stored it now or because it had
+     * already received a batch with the same ID.
+     *
+     * @param   status      status code returned by send()
+     * @return              true if the batch can be deleted
+     */
+    public static boolean isAccepted(int status)
+    {
+        return (status == Transport.ACCEPTED)
+            || (status == Transport.ALREADY_REPORTED);
+    }
+
+    /**
+     * Parses the query of a URL, "a=1&amp;b=2", into a map.
+     *
+     * @param   uri         URL to parse
+     * @return              parameters by name, empty if none
+     */
+    static HashMap<String, String> parseQuery(URI uri)
+    {
+        HashMap<String, String> params = new HashMap<String, String>();
+        String query = uri.getQuery();
+        if (query == null)
+            return params;
+
+        for (String param : query.split("&"))
+        {
+            int eq = param.indexOf('=');
+            if (eq < 0)
+                params.put(param, "");
+            else
+                params.put(param.substring(0, eq),
+                        param.substring(eq + 1));
+        }
+        return params;
+    }
+
+    private static String getScheme(String url) throws IOException
+    {
+        try
+        {
+            String scheme = new URI(url).getScheme();
+            if (scheme == null)
+                throw new IOException("No scheme");
+            return scheme.toLowerCase();
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
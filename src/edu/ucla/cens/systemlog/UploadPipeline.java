@@ -0,0 +1,303 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Posts encoded batches with more than one batch in flight.
+ *
+ * Batches are handed to a small pool of worker threads, each of
+ * which owns a transport, for example a kept-alive UploadSession,
+ * so the round trip of one
+ * batch overlaps with the transfer of the next ones. Results are
+ * acknowledged strictly in submission order, on the thread that
+ * calls submit() and finish(). Once a batch fails, neither it nor
+ * any batch submitted after it is acknowledged, even if a later
+ * batch reached the server. Records are therefore only deleted as a
+ * contiguous prefix of the ID order.
+ *
+ * Unlike the stop-and-wait upload, which streams records from the
+ * cursor, every batch in flight is held in memory as an encoded
+ * byte array.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadPipeline
+{
+    /**
+     * One encoded batch together with the outcome of its post.
+     */
+    public static class Batch
+    {
+        /** ID range and number of the records in the batch */
+        public final long firstId, lastId;
+        public final int count;
+
+        /** Stable batch ID sent with the post */
+        public final String batchId;
+
+        /** Content type of the encoded body */
+        public final String contentType;
+
+        /** Encoded request body */
+        public final byte[] body;
+
+        /** Status code of the transport, or -1 if the post failed with an
+         * exception */
+        public int responseCode = -1;
+
+        /** Retry-After requested by the server in milliseconds, or
+         * -1 */
+        public long retryAfter = -1;
+
+        /** Upload formats advertised in the response, or null */
+        public String serverFormats;
+
+        /** Time the post took in milliseconds */
+        public long latency;
+
+        /** Data of the caller, handed back untouched */
+        public Object tag;
+
+        /** Times of the records, handed back untouched */
+        public BatchTrace trace;
+
+        public Batch(String batchId, long firstId, long lastId, 
+                int count, String contentType, byte[] body)
+        {
+            this.batchId = batchId;
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.count = count;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Receives the batches that were acknowledged, in ID order.
+     */
+    public interface Listener
+    {
+        void onAcknowledged(Batch batch);
+    }
+
+
+    private final ExecutorService mExecutor;
+    private final BlockingQueue<Transport> mSessions;
+    private final Transport[] mAllSessions;
+    private final Listener mListener;
+    private final int mDepth;
+
+    /** Batches in flight, in submission order */
+    private final LinkedList<Future<Batch>> mInFlight;
+
+    /** First batch that failed, if any */
+    private Batch mFailed;
+
+
+    /**
+     * Constructor - creates a pipeline with the given number of
+     * batches in flight.
+     *
+     * @param   dest            URL batches are posted to
+     * @param   depth           maximum number of batches in flight
+     * @param   chunkSize       chunk size for streaming the body
+     * @param   timeout         connect and read timeout in
+     *                          milliseconds
+     * @param   listener        receives acknowledged batches
+     * @throws  IOException     if dest is not a valid destination
+     */
+    public UploadPipeline(String dest, int depth, int chunkSize,
+            int timeout, Listener listener)
+        throws IOException
+    {
+        mDepth = Math.max(1, depth);
+        mListener = listener;
+        mInFlight = new LinkedList<Future<Batch>>();
+
+        mSessions = new ArrayBlockingQueue<Transport>(mDepth);
+        mAllSessions = new Transport[mDepth];
+        for (int i = 0; i < mDepth; i++)
+        {
+            mAllSessions[i] = Transports.open(dest, chunkSize, timeout);
+            mSessions.add(mAllSessions[i]);
+        }
+
+        mExecutor = Executors.newFixedThreadPool(mDepth,
+                new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "SystemLogUploadWorker");
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Queues a batch for posting. Blocks while the pipeline is full
+     * and acknowledges every batch at the head of the pipeline that
+     * has completed.
+     *
+     * @param   batch           batch to post
+     * @return                  false if an earlier batch has failed,
+     *                          in which case the batch is not queued
+     */
+    public boolean submit(final Batch batch) throws InterruptedException
+    {
+        acknowledge(false);
+        while ((mFailed == null) && (mInFlight.size() >= mDepth))
+            acknowledge(true);
+
+        if (mFailed != null)
+            return false;
+
+        mInFlight.add(mExecutor.submit(new Callable<Batch>()
+        {
+            public Batch call() throws InterruptedException
+            {
+                Transport session = mSessions.take();
+                long start = System.currentTimeMillis();
+                try
+                {
+                    batch.responseCode = session.send(batch.contentType,
+                            new Transport.BodyWriter()
+                    {
+                        public void writeTo(OutputStream out)
+                            throws IOException
+                        {
+                            out.write(batch.body);
+                        }
+                    });
+                    batch.retryAfter = session.getRetryAfter();
+                    batch.serverFormats = session.getServerFormats();
+                }
+                catch (IOException e)
+                {
+                    batch.responseCode = -1;
+                }
+                finally
+                {
+                    batch.latency = System.currentTimeMillis() - start;
+                    mSessions.put(session);
+                }
+                return batch;
+            }
+        }));
+        return true;
+    }
+
+    /**
+     * Waits for all batches in flight and acknowledges them.
+     *
+     * @return                  true if every submitted batch was
+     *                          acknowledged
+     */
+    public boolean finish() throws InterruptedException
+    {
+        while (!mInFlight.isEmpty())
+            acknowledge(true);
+        return mFailed == null;
+    }
+
+    /**
+     * Returns the first batch that failed, or null.
+     *
+     * @return                  failed batch
+     */
+    public Batch getFailedBatch()
+    {
+        return mFailed;
+    }
+
+    /**
+     * Adds the connection counters of all worker sessions to the
+     * given stats object.
+     *
+     * @param   stats           stats to update
+     */
+    public void addSessionStats(UploadStats stats)
+    {
+        for (Transport session : mAllSessions)
+        {
+            stats.handshakes += session.getHandshakeCount();
+            stats.reconnects += session.getReconnectCount();
+        }
+    }
+
+    /**
+     * Fails every batch in flight and every batch submitted later as
+     * quickly as possible. May be called on any thread.
+     */
+    public void abort()
+    {
+        for (Transport session : mAllSessions)
+            session.abort();
+    }
+
+    /**
+     * Stops the worker threads. Batches still in flight are not
+     * acknowledged.
+     */
+    public void shutdown()
+    {
+        mExecutor.shutdownNow();
+        for (Transport session : mAllSessions)
+            session.close();
+    }
+
+
+    /**
+     * Acknowledges completed batches from the head of the pipeline.
+     *
+     * @param   block           wait for the head batch if it has not
+     *                          completed yet
+     */
+    private void acknowledge(boolean block) throws InterruptedException
+    {
+        while (!mInFlight.isEmpty())
+        {
+            Future<Batch> head = mInFlight.getFirst();
+            if (!block && !head.isDone())
+                return;
+            block = false;
+
+            Batch batch;
+            try
+            {
+                batch = head.get();
+            }
+            catch (ExecutionException e)
+            {
+                throw new RuntimeException(e.getCause());
+            }
+            mInFlight.removeFirst();
+
+            if (mFailed != null)
+                continue;
+
+            if (Transports.isAccepted(batch.responseCode))
+                mListener.onAcknowledged(batch);
+            else
+                mFailed = batch;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Decides whether records may be uploaded now, and which ones.
+ *
+ * A policy is a list of rules. Each rule names the log levels it
+ * applies to and the conditions under which they may be uploaded.
+ * The records that may be uploaded are those of the levels of every
+ * rule whose conditions hold. Rules are written one per line, or
+ * separated by ';', as space separated terms:
+ *
+ * <pre>
+ * levels=error,warning age&gt;=10m network=any
+ * levels=verbose network=wifi charging
+ * levels=all charging battery&gt;=30 window=22:00-06:00
+ * </pre>
+ *
+ * <ul>
+ * <li>levels=a,b or levels=all: levels the rule applies to. Only a
+ * rule for all levels uploads records logged before levels were
+ * stored.</li>
+ * <li>network=any, network=wifi or network=unmetered: network that
+ * has to be up. Without this term any network will do.</li>
+ * <li>charging: the phone has to be plugged in.</li>
+ * <li>battery&gt;=N: battery level of at least N percent.</li>
+ * <li>age&gt;=D: the oldest record of the rule's levels is at least
+ * D old, for example 90s, 10m, 2h or 1d. A number without a unit
+ * is taken as seconds.</li>
+ * <li>backlog&gt;=N: at least N records of the rule's levels.</li>
+ * <li>window=HH:MM-HH:MM: local time of day. The window wraps
+ * around midnight if it ends before it starts.</li>
+ * </ul>
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadPolicy
+{
+    /** Network types */
+    public static final int NETWORK_NONE = 0;
+    public static final int NETWORK_MOBILE = 1;
+    public static final int NETWORK_WIFI = 2;
+
+    /** Rules used when none are configured. Uploads everything while
+     * the phone is charging, as SystemLog always did */
+    public static final String DEFAULT_RULES =
+        "levels=all charging network=any";
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+
+    /**
+     * Snapshot of the state the rules are evaluated against.
+     */
+    public static class Conditions
+    {
+        public boolean charging;
+
+        /** Battery level in percent, -1 if unknown */
+        public int batteryPercent = -1;
+
+        /** One of the NETWORK_ constants */
+        public int network = NETWORK_NONE;
+
+        /** Set if traffic on the current network is charged */
+        public boolean metered;
+
+        /** Local time of day in minutes since midnight */
+        public int minuteOfDay;
+
+        /** Wall clock time of the snapshot in milliseconds */
+        public long now;
+
+        /** Record count and oldest record time per level. Records
+         * without a level are kept under null */
+        private final HashMap<String, long[]> mBacklog =
+            new HashMap<String, long[]>();
+
+        /**
+         * Copies the device state of the given snapshot. The backlog
+         * is not copied.
+         *
+         * @param   other       snapshot to copy
+         */
+        public void copyDeviceState(Conditions other)
+        {
+            charging = other.charging;
+            batteryPercent = other.batteryPercent;
+            network = other.network;
+            metered = other.metered;
+            minuteOfDay = other.minuteOfDay;
+            now = other.now;
+        }
+
+        /**
+         * Adds records of one level to the backlog.
+         *
+         * @param   level       log level, or null
+         * @param   count       number of records
+         * @param   oldestTime  time of the oldest record in
+         *                      milliseconds, 0 if unknown
+         */
+        public void addBacklog(String level, long count, long oldestTime)
+        {
+            long[] entry = mBacklog.get(level);
+            if (entry == null)
+            {
+                mBacklog.put(level, new long[] {count, oldestTime});
+            }
+            else
+            {
+                entry[0] += count;
+                entry[1] = Math.min(entry[1], oldestTime);
+            }
+        }
+
+        public void clearBacklog()
+        {
+            mBacklog.clear();
+        }
+
+        /**
+         * Returns the number of records of the given levels.
+         *
+         * @param   levels      levels to count, null for all
+         * @return              number of records
+         */
+        public long getBacklog(Set<String> levels)
+        {
+            long count = 0;
+            for (Map.Entry<String, long[]> e : mBacklog.entrySet())
+            {
+                if ((levels == null) || levels.contains(e.getKey()))
+                    count += e.getValue()[0];
+            }
+            return count;
+        }
+
+        /**
+         * Returns the age of the oldest record of the given levels.
+         *
+         * @param   levels      levels to look at, null for all
+         * @return              age in milliseconds, -1 if there are
+         *                      no such records
+         */
+        public long getOldestAge(Set<String> levels)
+        {
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, long[]> e : mBacklog.entrySet())
+            {
+                if ((e.getValue()[0] > 0)
+                        && ((levels == null)
+                            || levels.contains(e.getKey())))
+                    oldest = Math.min(oldest, e.getValue()[1]);
+            }
+            return (oldest == Long.MAX_VALUE) ? -1 : now - oldest;
+        }
+    }
+
+
+    /**
+     * One rule of a policy.
+     */
+    static class Rule
+    {
+        final String text;
+        Set<String> levels;
+        int network = NETWORK_MOBILE;
+        boolean unmetered;
+        boolean charging;
+        int minBattery = -1;
+        long minAge = -1;
+        long minBacklog = -1;
+        int windowStart = -1, windowEnd = -1;
+
+        Rule(String text)
+        {
+            this.text = text;
+        }
+
+        /**
+         * Returns true if the conditions on the device state hold.
+         */
+        boolean holdsOn(Conditions c)
+        {
+            if (c.network < network)
+                return false;
+            if (unmetered && c.metered)
+                return false;
+            if (charging && !c.charging)
+                return false;
+            if ((minBattery >= 0) && (c.batteryPercent < minBattery))
+                return false;
+            if (windowStart >= 0)
+            {
+                int m = c.minuteOfDay;
+                boolean inside = (windowStart <= windowEnd)
+                    ? ((m >= windowStart) && (m < windowEnd))
+                    : ((m >= windowStart) || (m < windowEnd));
+                if (!inside)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if all conditions hold, including those on the
+         * backlog.
+         */
+        boolean matches(Conditions c)
+        {
+            if (!holdsOn(c))
+                return false;
+            if (c.getBacklog(levels) == 0)
+                return false;
+            if ((minBacklog >= 0) && (c.getBacklog(levels) < minBacklog))
+                return false;
+            if ((minAge >= 0) && (c.getOldestAge(levels) < minAge))
+                return false;
+            return true;
+        }
+
+        public String toString()
+        {
+            return text;
+        }
+    }
+
+
+    /**
+     * Outcome of evaluating a policy.
+     */
+    public static class Decision
+    {
+        private final ArrayList<Rule> mRules = new ArrayList<Rule>();
+        private Set<String> mLevels = new HashSet<String>();
+
+        /**
+         * Returns true if any rule allows an upload.
+         */
+        public boolean isAllowed()
+        {
+            return !mRules.isEmpty();
+        }
+
+        /**
+         * Returns the levels that may be uploaded.
+         *
+         * @return              set of levels, or null for all records
+         */
+        public Set<String> getLevels()
+        {
+            return mLevels;
+        }
+
+        /**
+         * Returns true if the device conditions of every rule that
+         * allowed the upload still hold. Otherwise the upload should
+         * be stopped and the policy evaluated again.
+         *
+         * @param   c           current device state
+         */
+        public boolean stillHolds(Conditions c)
+        {
+            for (Rule rule : mRules)
+            {
+                if (!rule.holdsOn(c))
+                    return false;
+            }
+            return true;
+        }
+
+        public String toString()
+        {
+            if (mRules.isEmpty())
+                return "no rule matched";
+            return ((mLevels == null) ? "all levels" : mLevels.toString())
+                + " by " + mRules;
+        }
+
+        void add(Rule rule)
+        {
+            mRules.add(rule);
+            if (rule.levels == null)
+                mLevels = null;
+            else if (mLevels != null)
+                mLevels.addAll(rule.levels);
+        }
+    }
+
+
+    private final ArrayList<Rule> mRules;
+    private final String mSpec;
+
+
+    private UploadPolicy(String spec, ArrayList<Rule> rules)
+    {
+        mSpec = spec;
+        mRules = rules;
+    }
+
+
+    /**
+     * Parses a policy.
+     *
+     * @param   spec        rules as described above
+     * @return              the policy
+     * @throws  IllegalArgumentException if a rule cannot be parsed
+     */
+    public static UploadPolicy parse(String spec)
+    {
+        ArrayList<Rule> rules = new ArrayList<Rule>();
+        for (String line : spec.split("[;\n]"))
+        {
+            line = line.trim();
+            if ((line.length() == 0) || line.startsWith("#"))
+                continue;
+            rules.add(parseRule(line));
+        }
+        return new UploadPolicy(spec, rules);
+    }
+
+    /**
+     * Evaluates the policy.
+     *
+     * @param   c           current state, including the backlog
+     * @return              the decision
+     */
+    public Decision evaluate(Conditions c)
+    {
+        Decision decision = new Decision();
+        for (Rule rule : mRules)
+        {
+            if (rule.matches(c))
+                decision.add(rule);
+        }
+        return decision;
+    }
+
+    public String toString()
+    {
+        return mSpec;
+    }
+
+
+    private static Rule parseRule(String text)
+    {
+        Rule rule = new Rule(text);
+        for (String term : text.split("\\s+"))
+        {
+            if (term.equals("charging"))
+            {
+                rule.charging = true;
+            }
+            else if (term.startsWith("levels="))
+            {
+                String value = term.substring(7);
+                if (!value.equals("all"))
+                    rule.levels = new HashSet<String>(
+                            Arrays.asList(value.split(",")));
+            }
+            else if (term.startsWith("network="))
+            {
+                String value = term.substring(8);
+                if (value.equals("any"))
+                    rule.network = NETWORK_MOBILE;
+                else if (value.equals("wifi"))
+                    rule.network = NETWORK_WIFI;
+                else if (value.equals("unmetered"))
+                    rule.unmetered = true;
+                else
+                    throw new IllegalArgumentException(
+                            "Unknown network: " + term);
+            }
+            else if (term.startsWith("battery>="))
+            {
+                rule.minBattery = parseInt(term, 9);
+            }
+            else if (term.startsWith("backlog>="))
+            {
+                rule.minBacklog = parseInt(term, 9);
+            }
+            else if (term.startsWith("age>="))
+            {
+                rule.minAge = parseDuration(term, 5);
+            }
+            else if (term.startsWith("window="))
+            {
+                String[] ends = term.substring(7).split("-");
+                if (ends.length != 2)
+                    throw new IllegalArgumentException(
+                            "Bad window: " + term);
+                rule.windowStart = parseTime(ends[0], term);
+                rule.windowEnd = parseTime(ends[1], term);
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown term: "
+                        + term);
+            }
+        }
+        return rule;
+    }
+
+    private static int parseInt(String term, int start)
+    {
+        try
+        {
+            return Integer.parseInt(term.substring(start));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Bad number: " + term);
+        }
+    }
+
+    /**
+     * Parses a duration of whole seconds, minutes, hours or days
+     * ("90s", "10m", "2h", "1d"). A number without a unit is taken
+     * as seconds.
+     *
+     * @throws  IllegalArgumentException if the value is empty, has
+     *          another unit or does not fit in a long
+     */
+    private static long parseDuration(String term, int start)
+    {
+        String value = term.substring(start);
+        if (value.length() == 0)
+            throw new IllegalArgumentException("Bad duration: " + term);
+
+        long unit;
+        char last = value.charAt(value.length() - 1);
+        if (Character.isDigit(last))
+            unit = 1000;
+        else if (last == 's')
+            unit = 1000;
+        else if (last == 'm')
+            unit = 60 * 1000;
+        else if (last == 'h')
+            unit = 60 * 60 * 1000;
+        else if (last == 'd')
+            unit = 24 * 60 * 60 * 1000;
+        else
+            throw new IllegalArgumentException("Bad duration: " + term);
+
+        if (!Character.isDigit(last))
+            value = value.substring(0, value.length() - 1);
+
+        // Long.parseLong would also take a sign
+        if (value.length() == 0)
+            throw new IllegalArgumentException("Bad duration: " + term);
+        for (int i = 0; i < value.length(); i++)
+            if ((value.charAt(i) < '0') || (value.charAt(i) > '9'))
+                throw new IllegalArgumentException("Bad duration: "
+                        + term);
+        try
+        {
+            long count = Long.parseLong(value);
+            if (count > Long.MAX_VALUE / unit)
+                throw new NumberFormatException();
+            return count * unit;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Bad duration: " + term);
+        }
+    }
+
+    private static int parseTime(String value, String term)
+    {
+        String[] parts = value.split(":");
+        try
+        {
+            int minutes = Integer.parseInt(parts[0]) * 60;
+            if (parts.length > 1)
+                minutes += Integer.parseInt(parts[1]);
+            if ((minutes < 0) || (minutes > MINUTES_PER_DAY))
+                throw new NumberFormatException();
+            return minutes;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Bad time: " + term);
+        }
+    }
+}
@@ -0,0 +1,562 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Uploads the records of each destination of the routing table with
+ * its own Uploader.
+ *
+ * Every destination has its own in-flight batches, connections,
+ * batch size, server formats and retry state, and the destinations
+ * are uploaded to in parallel, each on its own thread. A destination
+ * that is backing off after failures is skipped while the others go
+ * on, and a destination that is still uploading when the others are
+ * done is left to finish in the background, so a slow or failing
+ * endpoint does not hold back the rest.
+ *
+ * Settings such as the upload policy are passed on to the Uploader
+ * of every destination. A listener is told when the upload of each
+ * destination starts and returns, so the device can be kept awake
+ * for the uploads that go on in the background.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadRouter
+{
+    /** Tag used for log messages */
+    private static final String TAG = "SystemLogUploadRouter";
+
+    /** Time an upload waits for the other destinations once the
+     * first one is done, and asks to be retried after for those still
+     * running */
+    static final long SLOW_DESTINATION_WAIT = 30 * 1000;
+
+    /**
+     * Notified when the upload of a destination starts and when it
+     * returns, which may be after tryUpload() has returned.
+     */
+    public interface Listener
+    {
+        /**
+         * Called before the upload of a destination starts.
+         *
+         * @param   destination     URL of the destination
+         */
+        void onUploadStarted(String destination);
+
+        /**
+         * Called once the upload of a destination has returned.
+         *
+         * @param   destination     URL of the destination
+         */
+        void onUploadReturned(String destination);
+    }
+
+    private final RecordStore mDbAdaptor;
+    private final String mDevice;
+    private final EngineMetrics mMetrics;
+
+    /** Runs the uploads of the destinations */
+    private final ExecutorService mExecutor;
+
+    /** Uploader of each destination, in the order of the table */
+    private final LinkedHashMap<String, Uploader> mUploaders =
+        new LinkedHashMap<String, Uploader>();
+
+    /** Upload of each destination that has not returned yet */
+    private final HashMap<Uploader, Future<Long>> mRunning =
+        new HashMap<Uploader, Future<Long>>();
+
+    private Listener mListener;
+
+    /** Table to apply before the next upload, or null */
+    private RoutingTable mNewTable;
+
+    private long mSlowWait = SLOW_DESTINATION_WAIT;
+
+    /** Settings passed on to new uploaders */
+    private UploadPolicy mPolicy =
+        UploadPolicy.parse(UploadPolicy.DEFAULT_RULES);
+    private int mPipelineDepth = 1;
+    private int mPriorityShare = Uploader.DEFAULT_PRIORITY_SHARE;
+    private final HashMap<String, Integer> mLoggerWeights =
+        new HashMap<String, Integer>();
+
+
+    /**
+     * Constructor - creates a router that sends every record to the
+     * default destination until a routing table is set.
+     *
+     * @param   dbAdaptor       record store
+     * @param   device          device identifier (IMEI) sent with the
+     *                          records
+     * @param   metrics         counters the uploads are added to
+     */
+    public UploadRouter(RecordStore dbAdaptor, String device,
+            EngineMetrics metrics)
+    {
+        mDbAdaptor = dbAdaptor;
+        mDevice = device;
+        mMetrics = metrics;
+        mNewTable = RoutingTable.parse("");
+        applyRoutes();
+
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "SystemLogRouteUploader");
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Sets the routing table. Takes effect with the next upload.
+     * Destinations that stay in the table keep their state.
+     *
+     * @param   table       routing table
+     */
+    public synchronized void setRoutes(RoutingTable table)
+    {
+        mNewTable = table;
+    }
+
+    public synchronized void setPolicy(UploadPolicy policy)
+    {
+        mPolicy = policy;
+        for (Uploader uploader : mUploaders.values())
+            uploader.setPolicy(policy);
+    }
+
+    public synchronized void setPipelineDepth(int depth)
+    {
+        mPipelineDepth = depth;
+        for (Uploader uploader : mUploaders.values())
+            uploader.setPipelineDepth(depth);
+    }
+
+    public synchronized void setPriorityShare(int percent)
+    {
+        mPriorityShare = percent;
+        for (Uploader uploader : mUploaders.values())
+            uploader.setPriorityShare(percent);
+    }
+
+    public synchronized void setLoggerWeight(String logger, int weight)
+    {
+        mLoggerWeights.put(logger, weight);
+        for (Uploader uploader : mUploaders.values())
+            uploader.setLoggerWeight(logger, weight);
+    }
+
+    public synchronized void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * Sets how long an upload waits for slow destinations, see
+     * SLOW_DESTINATION_WAIT.
+     *
+     * @param   wait        time in milliseconds
+     */
+    public synchronized void setSlowDestinationWait(long wait)
+    {
+        mSlowWait = wait;
+    }
+
+    /**
+     * Uploads to every destination that is neither backing off nor
+     * still uploading, in parallel. See Uploader.tryUpload().
+     *
+     * Waits until every destination is done, but no longer than the
+     * slow destination wait after the first one is done. Destinations
+     * that take longer go on in the background and are not started
+     * again until they return.
+     *
+     * @param   conditions  current device state
+     * @return              delay in milliseconds before the next
+     *                      upload attempt, the shortest of the delays
+     *                      the destinations need, or 0 if none needs
+     *                      one
+     */
+    public long tryUpload(UploadPolicy.Conditions conditions)
+    {
+        ArrayList<Uploader> uploaders;
+        long slowWait;
+        synchronized (this)
+        {
+            applyRoutes();
+            uploaders = new ArrayList<Uploader>(mUploaders.values());
+            slowWait = mSlowWait;
+        }
+
+        long delay = 0;
+        boolean leftOver = false;
+        ArrayList<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (Uploader uploader : uploaders)
+        {
+            Future<Long> running = getRunning(uploader);
+            if (running != null)
+            {
+                EngineLog.i(TAG, uploader.getDestination()
+                        + " still uploading");
+                futures.add(running);
+                leftOver = true;
+                continue;
+            }
+
+            long wait = uploader.getBackoffDelay();
+            if (wait > 0)
+            {
+                EngineLog.i(TAG, uploader.getDestination()
+                        + " backing off for " + wait + " ms");
+                delay = shorter(delay, wait);
+                continue;
+            }
+            futures.add(start(uploader, conditions));
+        }
+
+        boolean interrupted = waitForUploads(futures, leftOver, slowWait);
+        for (Future<Long> future : futures)
+        {
+            if (!future.isDone())
+            {
+                delay = shorter(delay, slowWait);
+                continue;
+            }
+            try
+            {
+                delay = shorter(delay, future.get());
+            }
+            catch (InterruptedException e)
+            {
+                // Not thrown, the upload is done
+            }
+            catch (ExecutionException e)
+            {
+                EngineLog.e(TAG, "Upload failed", e.getCause());
+            }
+            catch (CancellationException e)
+            {
+                // Shut down before it started
+            }
+        }
+
+        if ((delay == 0) && !interrupted)
+        {
+            mDbAdaptor.open();
+            try
+            {
+                mDbAdaptor.tickle();
+            }
+            finally
+            {
+                mDbAdaptor.close();
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return delay;
+    }
+
+    /**
+     * Makes the running uploads of all destinations stop as soon as
+     * possible. See Uploader.cancel().
+     */
+    public void cancel()
+    {
+        for (Uploader uploader : getUploaders())
+            uploader.cancel();
+    }
+
+    /**
+     * Clears an earlier cancel() before a new upload, on the
+     * destinations that are not uploading. A cancel of an upload that
+     * goes on in the background stays in force.
+     */
+    public synchronized void clearCancel()
+    {
+        for (Uploader uploader : mUploaders.values())
+        {
+            if (!mRunning.containsKey(uploader))
+                uploader.clearCancel();
+        }
+    }
+
+    /**
+     * Returns whether the policy decision of a running upload no
+     * longer holds in the given device state, so that the upload
+     * should be cancelled.
+     *
+     * @param   conditions  current device state
+     * @return              true if an upload is no longer allowed
+     */
+    public boolean isDisallowed(UploadPolicy.Conditions conditions)
+    {
+        for (Uploader uploader : getUploaders())
+        {
+            UploadPolicy.Decision decision = uploader.getDecision();
+            if ((decision != null) && !decision.stillHolds(conditions))
+            {
+                EngineLog.i(TAG, "Upload to " + uploader.getDestination()
+                        + " no longer allowed");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns how long uploads should wait because of earlier
+     * failures, which is 0 as soon as one destination may be
+     * uploaded to.
+     *
+     * @return              wait time in milliseconds
+     */
+    public long getBackoffDelay()
+    {
+        long delay = 0;
+        for (Uploader uploader : getUploaders())
+        {
+            long wait = uploader.getBackoffDelay();
+            if (wait == 0)
+                return 0;
+            delay = shorter(delay, wait);
+        }
+        return delay;
+    }
+
+    /**
+     * Returns the statistics of the last run of each destination.
+     *
+     * @return              stats by destination URL, null if a
+     *                      destination has not run yet
+     */
+    public synchronized Map<String, UploadStats> getLastStats()
+    {
+        LinkedHashMap<String, UploadStats> stats =
+            new LinkedHashMap<String, UploadStats>();
+        for (Uploader uploader : mUploaders.values())
+            stats.put(uploader.getDestination(), uploader.getLastStats());
+        return stats;
+    }
+
+    /**
+     * Stops the upload threads. The caller cancels the running
+     * upload first.
+     */
+    public void shutdown()
+    {
+        mExecutor.shutdown();
+    }
+
+
+    private synchronized ArrayList<Uploader> getUploaders()
+    {
+        return new ArrayList<Uploader>(mUploaders.values());
+    }
+
+    private synchronized Future<Long> getRunning(Uploader uploader)
+    {
+        return mRunning.get(uploader);
+    }
+
+    /**
+     * Starts the upload of one destination on its own thread. The
+     * upload counts as running until it has returned and the listener
+     * has been told, so the next one is not started before.
+     */
+    private Future<Long> start(final Uploader uploader,
+            UploadPolicy.Conditions conditions)
+    {
+        final UploadPolicy.Conditions own = new UploadPolicy.Conditions();
+        own.copyDeviceState(conditions);
+
+        FutureTask<Long> future = new FutureTask<Long>(
+                new Callable<Long>()
+        {
+            public Long call()
+            {
+                try
+                {
+                    return uploader.tryUpload(own);
+                }
+                finally
+                {
+                    mDbAdaptor.close();
+                }
+            }
+        })
+        {
+            protected void done()
+            {
+                synchronized (UploadRouter.this)
+                {
+                    mRunning.remove(uploader);
+                    if (mListener != null)
+                        mListener.onUploadReturned(
+                                uploader.getDestination());
+                    // Wakes waitForUploads()
+                    UploadRouter.this.notifyAll();
+                }
+            }
+        };
+
+        synchronized (this)
+        {
+            mRunning.put(uploader, future);
+            if (mListener != null)
+                mListener.onUploadStarted(uploader.getDestination());
+        }
+
+        // Keeps the database open until the destination is done,
+        // which may be after this run returns
+        mDbAdaptor.open();
+        try
+        {
+            mExecutor.execute(future);
+        }
+        catch (RuntimeException e)
+        {
+            // Returns it
+            future.cancel(false);
+            mDbAdaptor.close();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Waits until every upload is done, or until the slow destination
+     * wait has passed since the first one was done. Uploads left over
+     * from an earlier run count as done already.
+     *
+     * @return              true if the thread was interrupted, in
+     *                      which case the uploads are cancelled and
+     *                      waited for so that none is running when
+     *                      the next one starts
+     */
+    private synchronized boolean waitForUploads(
+            ArrayList<Future<Long>> futures, boolean leftOver,
+            long slowWait)
+    {
+        boolean interrupted = false;
+        long deadline = leftOver ? now() + slowWait : Long.MAX_VALUE;
+        while (true)
+        {
+            int done = 0;
+            for (Future<Long> future : futures)
+            {
+                if (future.isDone())
+                    done++;
+            }
+            if (done == futures.size())
+                return interrupted;
+            if ((done > 0) && (deadline == Long.MAX_VALUE)
+                    && !interrupted)
+                deadline = now() + slowWait;
+
+            long left = deadline - now();
+            if (left <= 0)
+                return false;
+            try
+            {
+                // Woken by every upload that returns
+                wait((deadline == Long.MAX_VALUE) ? 0 : left);
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+                deadline = Long.MAX_VALUE;
+                cancel();
+            }
+        }
+    }
+
+    private static long now()
+    {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Creates or updates the uploader of every destination of the
+     * new table. Waits while a destination is still uploading, since
+     * its uploader may not be changed then.
+     */
+    private void applyRoutes()
+    {
+        if (mNewTable == null)
+            return;
+        if (!mRunning.isEmpty())
+        {
+            EngineLog.i(TAG, "Routes changed, applied once "
+                    + mRunning.size() + " uploads return");
+            return;
+        }
+
+        LinkedHashMap<String, Uploader> uploaders =
+            new LinkedHashMap<String, Uploader>();
+        for (Map.Entry<String, String> route
+                : mNewTable.getSelections(Uploader.CUSTOM_URL).entrySet())
+        {
+            Uploader uploader = mUploaders.get(route.getKey());
+            if (uploader == null)
+                uploader = newUploader(route.getKey());
+            uploader.setRouteSelection(route.getValue());
+            uploaders.put(route.getKey(), uploader);
+            EngineLog.i(TAG, "Route to " + route.getKey() + ": "
+                    + ((route.getValue() == null) ? "all records"
+                        : route.getValue()));
+        }
+
+        mUploaders.clear();
+        mUploaders.putAll(uploaders);
+        mNewTable = null;
+    }
+
+    private Uploader newUploader(String url)
+    {
+        Uploader uploader = new Uploader(mDbAdaptor, mDevice, url, mMetrics);
+        uploader.setPolicy(mPolicy);
+        uploader.setPipelineDepth(mPipelineDepth);
+        uploader.setPriorityShare(mPriorityShare);
+        for (Map.Entry<String, Integer> e : mLoggerWeights.entrySet())
+            uploader.setLoggerWeight(e.getKey(), e.getValue());
+        return uploader;
+    }
+
+    /**
+     * Returns the shorter of two delays, where 0 means no delay is
+     * needed.
+     */
+    private static long shorter(long delay, long other)
+    {
+        if (delay == 0)
+            return other;
+        if (other == 0)
+            return delay;
+        return Math.min(delay, other);
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs uploads on one dedicated thread.
+ *
+ * The scheduler is always in exactly one of four states:
+ *
+ * <ul>
+ * <li>IDLE: no upload is running or scheduled.</li>
+ * <li>RUNNING: an upload is queued or running on the upload
+ * thread.</li>
+ * <li>BACKING_OFF: the last upload failed and its retry is
+ * scheduled.</li>
+ * <li>CANCELLED: the running upload has been asked to stop and has
+ * not returned yet.</li>
+ * </ul>
+ *
+ * All transitions happen under the scheduler lock, so two triggers
+ * can never start two uploads. A trigger that arrives while an upload
+ * is running is merged into it: the upload makes one more pass when
+ * it is done, which picks up the records logged in the meantime, no
+ * matter how many triggers arrived.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadScheduler
+{
+    /** Tag used for log messages */
+    private static final String TAG = "SystemLogUploadScheduler";
+
+    /** States of the scheduler */
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_BACKING_OFF = 2;
+    public static final int STATE_CANCELLED = 3;
+
+    private static final String[] STATE_NAMES = {"idle", "running",
+        "backing off", "cancelled"};
+
+    /**
+     * The upload job run by the scheduler.
+     */
+    public interface Task
+    {
+        /**
+         * Runs one upload. Called on the upload thread.
+         *
+         * @return              delay in milliseconds before the upload
+         *                      should be retried, or 0
+         */
+        long run();
+
+        /**
+         * Asks the running upload to stop as soon as possible. Called
+         * on any thread.
+         */
+        void cancel();
+
+        /**
+         * Clears an earlier cancel() before a new upload starts.
+         */
+        void clearCancel();
+    }
+
+    /**
+     * Notified when a failed upload has been scheduled for a retry,
+     * so the device can be woken up for it.
+     */
+    public interface Listener
+    {
+        void onBackoff(long delay);
+    }
+
+
+    private final Task mTask;
+    private final Listener mListener;
+    private final Clock mClock;
+    private final ScheduledExecutorService mExecutor;
+
+    private int mState = STATE_IDLE;
+
+    /** Set when a trigger arrived while an upload was running */
+    private boolean mRequested;
+
+    /** Elapsed time after which a backing off upload may be retried */
+    private long mBackoffUntil;
+
+    /** Queued, running or scheduled upload */
+    private Future<?> mFuture;
+
+    /** Set once the queued upload has started running */
+    private boolean mStarted;
+
+    /** Counters */
+    private int mRuns;
+    private int mMergedTriggers;
+    private int mCancels;
+
+    private final Runnable mRunner = new Runnable()
+    {
+        public void run()
+        {
+            runTask();
+        }
+    };
+
+    private final Runnable mRetrier = new Runnable()
+    {
+        public void run()
+        {
+            synchronized (UploadScheduler.this)
+            {
+                if (mState != STATE_BACKING_OFF)
+                    return;
+                setState(STATE_RUNNING);
+                mStarted = false;
+            }
+            runTask();
+        }
+    };
+
+
+    /**
+     * Constructor - creates the scheduler and its upload thread.
+     *
+     * @param   task            upload job
+     * @param   listener        notified of scheduled retries
+     * @param   clock           clock the retries are timed with
+     */
+    public UploadScheduler(Task task, Listener listener, Clock clock)
+    {
+        mTask = task;
+        mClock = clock;
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "SystemLogUploader");
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Asks for an upload. Starts one if the scheduler is idle, or if
+     * it is backing off and the retry is due. A request that arrives
+     * while an upload is running is merged into that upload.
+     *
+     * @return                  true if a new upload was started
+     */
+    public synchronized boolean request()
+    {
+        if (mExecutor.isShutdown())
+            return false;
+
+        switch (mState)
+        {
+            case STATE_IDLE:
+                start();
+                return true;
+
+            case STATE_BACKING_OFF:
+                if (now() < mBackoffUntil)
+                {
+                    EngineLog.i(TAG, "Backing off for another "
+                            + (mBackoffUntil - now()) + " ms");
+                    return false;
+                }
+                // The retry is due, most likely woken by the alarm.
+                mFuture.cancel(false);
+                start();
+                return true;
+
+            default:
+                // Running, or a cancelled upload is still winding
+                // down. Either way one more pass follows it.
+                mRequested = true;
+                mMergedTriggers++;
+                EngineLog.i(TAG, "Upload already " + STATE_NAMES[mState]
+                        + ", trigger merged");
+                return false;
+        }
+    }
+
+    /**
+     * Stops the running upload, or the scheduled retry, as soon as
+     * possible. Triggers merged into the upload are dropped.
+     */
+    public synchronized void cancel()
+    {
+        mRequested = false;
+
+        if ((mState == STATE_RUNNING) && !mStarted)
+        {
+            EngineLog.i(TAG, "Cancelling queued upload");
+            mCancels++;
+            mFuture.cancel(false);
+            setState(STATE_IDLE);
+        }
+        else if (mState == STATE_RUNNING)
+        {
+            EngineLog.i(TAG, "Cancelling upload");
+            mCancels++;
+            setState(STATE_CANCELLED);
+            mTask.cancel();
+            // Interrupts a backoff sleep inside the upload
+            mFuture.cancel(true);
+        }
+        else if (mState == STATE_BACKING_OFF)
+        {
+            EngineLog.i(TAG, "Cancelling scheduled retry");
+            mFuture.cancel(false);
+            setState(STATE_IDLE);
+        }
+    }
+
+    /**
+     * Drops the scheduled retry of a failed upload, if there is one.
+     * A running upload goes on.
+     *
+     * @return                  true if a retry was dropped
+     */
+    public synchronized boolean cancelRetry()
+    {
+        if (mState != STATE_BACKING_OFF)
+            return false;
+
+        EngineLog.i(TAG, "Cancelling scheduled retry");
+        mFuture.cancel(false);
+        setState(STATE_IDLE);
+        return true;
+    }
+
+    /**
+     * Cancels any upload and stops the upload thread.
+     */
+    public void shutdown()
+    {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    public synchronized int getState()
+    {
+        return mState;
+    }
+
+    public synchronized int getRunCount()
+    {
+        return mRuns;
+    }
+
+    public synchronized int getMergedTriggerCount()
+    {
+        return mMergedTriggers;
+    }
+
+    public synchronized int getCancelCount()
+    {
+        return mCancels;
+    }
+
+
+    private void start()
+    {
+        setState(STATE_RUNNING);
+        mRequested = false;
+        mStarted = false;
+        mFuture = mExecutor.submit(mRunner);
+    }
+
+    /**
+     * Runs the task on the upload thread and decides the next state.
+     */
+    private void runTask()
+    {
+        synchronized (this)
+        {
+            if (mState != STATE_RUNNING)
+                return;
+            mStarted = true;
+            mTask.clearCancel();
+            mRequested = false;
+        }
+
+        long delay = 0;
+        try
+        {
+            delay = mTask.run();
+        }
+        catch (RuntimeException e)
+        {
+            EngineLog.e(TAG, "Upload failed", e);
+        }
+
+        synchronized (this)
+        {
+            mRuns++;
+            // Do not carry an interrupt meant for this run into the
+            // next one.
+            Thread.interrupted();
+
+            if (mState == STATE_CANCELLED)
+            {
+                // Only triggers that arrived after the cancel start
+                // another pass.
+                if (mRequested)
+                    start();
+                else
+                    setState(STATE_IDLE);
+            }
+            else if (delay > 0)
+            {
+                setState(STATE_BACKING_OFF);
+                mBackoffUntil = now() + delay;
+                mFuture = mExecutor.schedule(mRetrier, delay,
+                        TimeUnit.MILLISECONDS);
+                mListener.onBackoff(delay);
+            }
+            else if (mRequested)
+            {
+                EngineLog.i(TAG, "Running merged upload request");
+                start();
+            }
+            else
+            {
+                setState(STATE_IDLE);
+            }
+        }
+    }
+
+    private void setState(int state)
+    {
+        if (state != mState)
+        {
+            EngineLog.i(TAG, STATE_NAMES[mState] + " -> " + STATE_NAMES[state]);
+            mState = state;
+        }
+    }
+
+    private long now()
+    {
+        return mClock.elapsedRealtime();
+    }
+}
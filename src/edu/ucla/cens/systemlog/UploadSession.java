@@ -0,0 +1,457 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+
+/**
+ * An upload session posts any number of batches to one destination
+ * over a single persistent (keep-alive) HTTP connection.
+ * The connection is handed back to the platform connection pool
+ * after every post by reading the response body to the end and
+ * closing the stream instead of calling disconnect(). If a post
+ * fails on a connection that has already been used, the session
+ * drops the connection and retries the post once on a new one,
+ * since the server may have closed an idle connection.
+ *
+ * The session counts posts and TLS handshakes so the caller can
+ * report how many batches were sent per handshake.
+ *
+ * This is the transport of http: and https: destinations. Its status
+ * codes are the HTTP response codes.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadSession implements Transport
+{
+    /** Response header in which the server lists the upload
+     * formats it accepts, for example "form, columnar-1" */
+    public static final String FORMATS_HEADER = "X-SystemLog-Formats";
+
+
+    /** Destination of all posts in this session */
+    private final URL mUrl;
+
+    /** Size of the chunks used for streaming the request body */
+    private final int mChunkSize;
+
+    /** Connect and read timeout in milliseconds */
+    private final int mTimeout;
+
+    /** Socket factory that counts TLS handshakes. One instance is
+     * used for the whole session so pooled connections are reused */
+    private final CountingSocketFactory mSocketFactory;
+
+    /** Response message of the last post */
+    private String mResponseMessage;
+
+    /** Formats advertised by the server in the last response */
+    private String mServerFormats;
+
+    /** Delay requested by the last response, -1 if none */
+    private long mRetryAfter = -1;
+
+    /** Set once a post has completed on the current connection */
+    private boolean mConnectionUsed;
+
+    /** Connection of the post in progress, or null */
+    private volatile HttpURLConnection mActive;
+
+    /** Set by abort(), fails every later post */
+    private volatile boolean mAborted;
+
+    private int mPostCount;
+    private int mReconnectCount;
+
+    /** Scratch buffer used to drain response bodies */
+    private final byte[] mDrainBuffer = new byte[512];
+
+
+    /**
+     * Constructor - creates a session for the given destination.
+     * No connection is opened until the first post.
+     *
+     * @param   dest            URL that batches are posted to
+     * @param   chunkSize       chunk size for streaming the body
+     * @param   timeout         connect and read timeout in
+     *                          milliseconds
+     * @throws  MalformedURLException if dest is not a valid URL
+     */
+    public UploadSession(String dest, int chunkSize, int timeout)
+        throws MalformedURLException
+    {
+        mUrl = new URL(dest);
+        mChunkSize = chunkSize;
+        mTimeout = timeout;
+
+        if ("https".equalsIgnoreCase(mUrl.getProtocol()))
+        {
+            mSocketFactory = new CountingSocketFactory(
+                    HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        else
+        {
+            mSocketFactory = null;
+        }
+    }
+
+
+    /**
+     * Posts one body and returns the HTTP response code. The
+     * response body is always read completely so the connection
+     * can carry the next post.
+     *
+     * @param   contentType     value of the Content-type header
+     * @param   body            writer for the request body
+     * @return                  HTTP response code
+     * @throws  IOException     if the post failed even after a
+     *                          reconnect
+     */
+    public int send(String contentType, BodyWriter body)
+        throws IOException
+    {
+        if (mAborted)
+            throw new IOException("Upload session aborted");
+
+        try
+        {
+            return postOnce(contentType, body);
+        }
+        catch (IOException e)
+        {
+            if (!mConnectionUsed || mAborted)
+                throw e;
+
+            // The pooled connection has most likely been closed by
+            // the server. Try once more on a fresh connection.
+            mConnectionUsed = false;
+            mReconnectCount++;
+            return postOnce(contentType, body);
+        }
+    }
+
+    /**
+     * Fails the post in progress, if any, and every later post. May
+     * be called on any thread. Closing the connection unblocks a post
+     * that is waiting for the network well before its timeout.
+     */
+    public void abort()
+    {
+        mAborted = true;
+        HttpURLConnection con = mActive;
+        if (con != null)
+            con.disconnect();
+    }
+
+    /**
+     * Returns null: the server advertises its formats in its
+     * responses.
+     */
+    public String getFormats()
+    {
+        return null;
+    }
+
+    public boolean isLocal()
+    {
+        return false;
+    }
+
+    /**
+     * Does nothing, the connection goes back to the platform pool.
+     */
+    public void close()
+    {
+    }
+
+    /**
+     * Returns the HTTP response message of the last post.
+     *
+     * @return                  response message, or null
+     */
+    public String getResponseMessage()
+    {
+        return mResponseMessage;
+    }
+
+    /**
+     * Returns the delay the server asked for in the Retry-After
+     * header of the last response.
+     *
+     * @return                  delay in milliseconds, or -1 if the
+     *                          last response had no Retry-After
+     */
+    public long getRetryAfter()
+    {
+        return mRetryAfter;
+    }
+
+    /**
+     * Returns the upload formats the server listed in the last
+     * response.
+     *
+     * @return                  value of the formats header, or null
+     *                          if the server did not send one
+     */
+    public String getServerFormats()
+    {
+        return mServerFormats;
+    }
+
+    /**
+     * Returns the number of posts that received a response.
+     *
+     * @return                  number of completed posts
+     */
+    public int getPostCount()
+    {
+        return mPostCount;
+    }
+
+    /**
+     * Returns the number of TLS handshakes done by this session.
+     * Always zero for plain HTTP destinations.
+     *
+     * @return                  number of handshakes
+     */
+    public int getHandshakeCount()
+    {
+        return (mSocketFactory == null) ? 0
+            : mSocketFactory.getHandshakeCount();
+    }
+
+    /**
+     * Returns the number of times a failed post was retried on a
+     * new connection.
+     *
+     * @return                  number of reconnects
+     */
+    public int getReconnectCount()
+    {
+        return mReconnectCount;
+    }
+
+
+    private int postOnce(String contentType, BodyWriter body)
+        throws IOException
+    {
+        HttpURLConnection con = (HttpURLConnection) mUrl.openConnection();
+
+        if (mSocketFactory != null)
+        {
+            ((HttpsURLConnection) con).setSSLSocketFactory(
+                    mSocketFactory);
+        }
+
+        int respCode;
+        mRetryAfter = -1;
+        mActive = con;
+        try
+        {
+            if (mAborted)
+                throw new IOException("Upload session aborted");
+
+            con.setRequestMethod("POST");
+            con.setUseCaches(false);
+            con.setDoOutput(true);
+            con.setDoInput(true);
+            con.setChunkedStreamingMode(mChunkSize);
+            con.setConnectTimeout(mTimeout);
+            con.setReadTimeout(mTimeout);
+            con.setRequestProperty("Content-type", contentType);
+
+            OutputStream out = con.getOutputStream();
+            body.writeTo(out);
+            out.close();
+
+            respCode = con.getResponseCode();
+            mResponseMessage = con.getResponseMessage();
+            mRetryAfter = parseRetryAfter(
+                    con.getHeaderField("Retry-After"));
+            mServerFormats = con.getHeaderField(FORMATS_HEADER);
+
+            drain(respCode < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? con.getInputStream() : con.getErrorStream());
+        }
+        catch (IOException e)
+        {
+            // Make sure a broken connection does not go back to the
+            // pool.
+            con.disconnect();
+            throw e;
+        }
+        finally
+        {
+            mActive = null;
+        }
+
+        mConnectionUsed = true;
+        mPostCount++;
+        return respCode;
+    }
+
+    /**
+     * Parses a Retry-After header, which is either a number of
+     * seconds or an HTTP date.
+     *
+     * @param   value           header value, may be null
+     * @return                  delay in milliseconds, or -1
+     */
+    static long parseRetryAfter(String value)
+    {
+        if (value == null)
+            return -1;
+
+        value = value.trim();
+        try
+        {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException e)
+        {
+            // Not a number, try an HTTP date
+        }
+
+        try
+        {
+            SimpleDateFormat sdf = new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            long when = sdf.parse(value).getTime();
+            return Math.max(0, when - System.currentTimeMillis());
+        }
+        catch (ParseException e)
+        {
+            return -1;
+        }
+    }
+
+    private void drain(InputStream in) throws IOException
+    {
+        if (in == null)
+            return;
+
+        try
+        {
+            while (in.read(mDrainBuffer) != -1)
+                ;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * SSLSocketFactory wrapper that counts completed handshakes.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory
+    {
+        private final SSLSocketFactory mDelegate;
+        private final AtomicInteger mHandshakes = new AtomicInteger();
+
+        private final HandshakeCompletedListener mListener =
+            new HandshakeCompletedListener()
+        {
+            public void handshakeCompleted(HandshakeCompletedEvent e)
+            {
+                mHandshakes.incrementAndGet();
+            }
+        };
+
+        CountingSocketFactory(SSLSocketFactory delegate)
+        {
+            mDelegate = delegate;
+        }
+
+        int getHandshakeCount()
+        {
+            return mHandshakes.get();
+        }
+
+        private Socket watch(Socket s)
+        {
+            if (s instanceof SSLSocket)
+                ((SSLSocket) s).addHandshakeCompletedListener(mListener);
+            return s;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException
+        {
+            return watch(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port,
+                boolean autoClose) throws IOException
+        {
+            return watch(mDelegate.createSocket(s, host, port,
+                        autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port)
+            throws IOException
+        {
+            return watch(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port,
+                InetAddress localHost, int localPort) throws IOException
+        {
+            return watch(mDelegate.createSocket(host, port, localHost,
+                        localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port)
+            throws IOException
+        {
+            return watch(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port,
+                InetAddress localAddress, int localPort)
+            throws IOException
+        {
+            return watch(mDelegate.createSocket(address, port,
+                        localAddress, localPort));
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * SystemLog
+ *
+ * Copyright (C) 2009 Hossein Falaki
+ */
+package edu.ucla.cens.systemlog;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Statistics of one tryUpload() run.
+ *
+ * @author  Hossein Falaki
+ */
+public class UploadStats
+{
+    /**
+     * Statistics of the records of one logger.
+     */
+    public static class LoggerStats
+    {
+        /** Number of records waiting when the run started */
+        public long backlog;
+
+        /** Number of records posted successfully */
+        public int records;
+
+        /** Number of encoded bytes posted successfully */
+        public long bytes;
+    }
+
+
+    /** Number of batches posted successfully */
+    public int batches;
+
+    /** Number of records posted successfully */
+    public int records;
+
+    /** Number of those records that came from the priority lane */
+    public int priorityRecords;
+
+    /** Number of encoded bytes posted successfully */
+    public long bytes;
+
+    /** Number of failed posts */
+    public int failures;
+
+    /** Number of failed posts that were retried within the run */
+    public int retries;
+
+    /** Number of TLS handshakes */
+    public int handshakes;
+
+    /** Number of posts retried on a new connection */
+    public int reconnects;
+
+    /** Adaptive batch size in bytes at the end of the run */
+    public int batchTargetBytes;
+
+    /** Wall clock duration of the run in milliseconds */
+    public long elapsed;
+
+    /** Statistics per logger name */
+    private final TreeMap<String, LoggerStats> mLoggers =
+        new TreeMap<String, LoggerStats>();
+
+
+    /**
+     * Returns the statistics of the given logger, creating them if
+     * needed.
+     *
+     * @param   logger          logger name
+     * @return                  stats of the logger
+     */
+    public LoggerStats getLogger(String logger)
+    {
+        LoggerStats stats = mLoggers.get(logger);
+        if (stats == null)
+        {
+            stats = new LoggerStats();
+            mLoggers.put(logger, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the statistics of every logger that had records.
+     *
+     * @return                  stats by logger name
+     */
+    public Map<String, LoggerStats> getLoggers()
+    {
+        return mLoggers;
+    }
+
+    /**
+     * Returns the rate at which the records of the given logger were
+     * uploaded during the run.
+     *
+     * @param   logger          logger name
+     * @return                  records per second
+     */
+    public double getDrainRate(String logger)
+    {
+        LoggerStats stats = mLoggers.get(logger);
+        return ((stats == null) || (elapsed == 0)) ? 0.0
+            : stats.records * 1000.0 / elapsed;
+    }
+
+
+    /**
+     * Returns the average number of batches sent per TLS handshake,
+     * or zero if no handshake was observed.
+     *
+     * @return                  batches per handshake
+     */
+    public double getBatchesPerHandshake()
+    {
+        return (handshakes == 0) ? 0.0
+            : ((double) batches) / handshakes;
+    }
+
+    /**
+     * Returns the average encoded size of a posted batch.
+     *
+     * @return                  average batch size in bytes
+     */
+    public long getAverageBatchBytes()
+    {
+        return (batches == 0) ? 0 : bytes / batches;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "batches=" + batches
+            + " records=" + records
+            + " priorityRecords=" + priorityRecords
+            + " bytes=" + bytes
+            + " failures=" + failures
+            + " retries=" + retries
+            + " handshakes=" + handshakes
+            + " batchesPerHandshake=" + getBatchesPerHandshake()
+            + " reconnects=" + reconnects
+            + " avgBatchBytes=" + getAverageBatchBytes()
+            + " batchTargetBytes=" + batchTargetBytes
+            + " elapsed=" + elapsed + "ms"
+            + " loggers=" + loggersToString();
+    }
+
+    private String loggersToString()
+    {
+        StringBuilder sb = new StringBuilder("{");
+        String sep = "";
+        for (Map.Entry<String, LoggerStats> e : mLoggers.entrySet())
+        {
+            LoggerStats stats = e.getValue();
+            sb.append(sep).append(e.getKey())
+                .append(": backlog=").append(stats.backlog)
+                .append(" records=").append(stats.records)
+                .append(" rate=").append(getDrainRate(e.getKey()))
+                .append("/s");
+            sep = ", ";
+        }
+        return sb.append("}").toString();
+    }
+}
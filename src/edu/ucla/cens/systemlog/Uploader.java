@@ -5,32 +5,17 @@
  */
 package edu.ucla.cens.systemlog;
 
-import android.database.Cursor;
-import android.util.Log;
-import android.database.SQLException;
-import android.net.NetworkInfo;
-import android.net.ConnectivityManager;
 
-import java.lang.ProcessBuilder;
-import java.util.HashSet;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.DataOutputStream;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
 
 
 
@@ -38,11 +23,14 @@ import java.io.InputStream;
 
 /**
  * This class implements mechanisms to upload data collected by
- * SystemLog.
- * It is passed a pointer to a Database Adaptor object upon creation.
- * Each time the upload() method is called a new thread is spawned.
- * The new thread will read all the records in the
- * database and uploaded and then delete them.
+ * SystemLog to one destination.
+ * It is passed a pointer to a Database Adaptor object, the
+ * destination URL and the selection of the records that go there.
+ * Each time tryUpload() is called, by the UploadRouter, the upload
+ * policy picks the records that may be uploaded now. Those records
+ * are read from the database, uploaded and then deleted. Error and
+ * warning records are uploaded ahead of the rest of the backlog, see
+ * uploadLanes().
  *
  * @author  Hossein Falaki
  */
@@ -52,19 +40,74 @@ public class Uploader
     private static final String TAG = "SystemLogUploader";
 
     /** Database adaptor object */
-    private SystemLogDbAdaptor mDbAdaptor;
+    private RecordStore mDbAdaptor;
+
+    /** URL the batches are posted to */
+    private final String mUrl;
+
+    /** Meta key of the formats advertised by the destination */
+    private final String mFormatsKey;
+
+    /** Selection of the records routed to the destination, null for
+     * all records */
+    private volatile String mRouteSelection;
+
+    /** Limits of the adaptive batch size, in encoded bytes */
+    private static final int MIN_BATCH_BYTES = 4 * 1024;
+    private static final int MAX_BATCH_BYTES = 512 * 1024;
+    private static final int INITIAL_BATCH_BYTES = 32 * 1024;
+
+    /** Bytes added to the batch size after a fast post */
+    private static final int BATCH_BYTES_STEP = 16 * 1024;
+
+    /** Posts faster than this (in milliseconds) grow the batch */
+    private static final long LOW_LATENCY = 2000;
+
+    /** Content type of the legacy form post */
+    private static final String FORM_CONTENT_TYPE =
+        "application/x-www-form-urlencoded";
+
+    /** Meta key under which the formats advertised by the default
+     * server are kept between runs. Other destinations add their
+     * URL to the key */
+    private static final String META_FORMATS = "server_formats";
+
+    /** Connect and read timeout of a post in milliseconds */
+    private static final int POST_TIMEOUT = 30 * 1000;
+
+    /** Size of the encoding buffer and of each HTTP chunk */
+    private static final int STREAM_BUFFER_SIZE = 4096;
+
+    /** Retry policy parameters. Delays are in milliseconds */
+    private static final long RETRY_BASE_DELAY = 2 * 1000;
+    private static final long RETRY_MAX_DELAY = 30 * 60 * 1000;
+    private static final int RETRY_BUDGET = 3;
+    private static final int BREAKER_THRESHOLD = 8;
+    private static final long BREAKER_COOLDOWN = 30 * 60 * 1000;
 
+    /** Longest backoff that is waited out inside a run. Longer
+     * delays end the run and the next attempt is scheduled */
+    private static final long MAX_INLINE_DELAY = 10 * 1000;
 
-    private NetworkInfo mWiFi;
+    /** Levels of the records in the priority lane */
+    private static final List<String> PRIORITY_LEVELS =
+        Arrays.asList("error", "warning");
 
-    /** Maximum number of records that will be read and deleted at a
-     * time*/
-    private static final int MAX_UPLOAD_SIZE = 100;
+    /** Number of batches in one round of the lanes. The priority
+     * lane is read again at the start of every round */
+    private static final int LANE_ROUND_BATCHES = 8;
 
-    /** After this number of failiurs upload will abort */
-    private static final int MAX_FAIL_COUNT = 50;
+    /** Default share of each round, in percent, that the priority
+     * lane may take while the bulk lane has records */
+    public static final int DEFAULT_PRIORITY_SHARE = 75;
 
-    private static final boolean WIFI_ONLY = SystemLog.WIFI_ONLY;
+    /** Upload weights of the loggers. A logger with weight w gets
+     * w times the upload bandwidth of a logger with weight 1 */
+    public static final int DEFAULT_LOGGER_WEIGHT = 1;
+    public static final int MAX_LOGGER_WEIGHT = 100;
+
+    /** Most records read from a logger queue for one batch */
+    private static final int QUEUE_READ_LIMIT = 1000;
 
 
     /** Upload location of systemlog.cens server */
@@ -75,7 +118,7 @@ public class Uploader
 
 
     /** Upload location of systemlog.ohmage server */
-    private static final String CUSTOM_URL 
+    static final String CUSTOM_URL 
         = "https://systemlog.ohmage.org/systemlog/logs/put/";
 
 
@@ -87,257 +130,1530 @@ public class Uploader
 
 
 
-    private static final String IMEI = SystemLog.IMEI;
+    /** Device identifier (IMEI) sent with the records */
+    private final String mDevice;
+
+    /** Process-wide counters the runs are added to */
+    private final EngineMetrics mMetrics;
+
+
+    /** Chooses the size of each batch. Kept across runs so the
+     * size learned on the current link is not lost */
+    private final BatchSizeController mBatchSize;
+
+    /** Decides when failed posts are retried. Kept across runs so
+     * the backoff and the circuit breaker span runs */
+    private final RetryPolicy mRetryPolicy;
+
+    /** Number of batches in flight. 1 is stop-and-wait */
+    private int mPipelineDepth = 1;
+
+    /** Share of each round for the priority lane, in percent */
+    private volatile int mPriorityShare = DEFAULT_PRIORITY_SHARE;
+
+    /** Upload weight of each logger name. Loggers without a weight
+     * have DEFAULT_LOGGER_WEIGHT */
+    private final HashMap<String, Integer> mLoggerWeights =
+        new HashMap<String, Integer>();
+
+    /** Reusable encoder that streams records into a connection */
+    private final FormEncoder mEncoder;
+
+    /** Encoder of the columnar format */
+    private final ColumnarBatchEncoder mColumnarEncoder;
+
+    /** Set while the server accepts the columnar format */
+    private boolean mColumnar;
+
+    /** Set while the destination takes the lines format, one JSON
+     * record per line, instead of the form post */
+    private boolean mLines;
+
+    /** Formats last advertised by the server, or null */
+    private String mServerFormats;
+
+    /** Cursor column indices used while encoding a batch */
+    private int mIdIndex, mLogIndex, mLoggerIndex, mTagIndex, 
+            mLevelIndex, mTimestampIndex, mMessageIndex, mClientTimeIndex,
+            mFlushTimeIndex, mFieldsIndex;
+
+    /** Reused to add the fields of structured records to their JSON */
+    private final StringBuilder mRecordBuilder = new StringBuilder();
+
+    /** Times of the records of the batch being encoded */
+    private BatchTrace mTrace;
+
+    /** ID range and size of the most recently encoded batch */
+    private long mFirstId, mLastId;
+    private int mBatchCount;
+
+    /** Encoded size of the most recently posted batch */
+    private long mBatchBytes;
+
+    /** ID of the most recently encoded batch */
+    private String mBatchId;
+
+    /** Generation of the log table, part of every batch ID */
+    private long mGeneration;
+
+    /** Batches of earlier runs that were posted without a definite
+     * answer, ordered by their first record ID */
+    private final LinkedList<InflightBatch> mPending =
+        new LinkedList<InflightBatch>();
+
+    /** Earlier batch that the next batch re-sends, or null */
+    private InflightBatch mResend;
+
+    /** Selection of the records of the current cursor within their
+     * ID range, null for all records */
+    private String mSelection;
+
+    /** Decides which records may be uploaded */
+    private volatile UploadPolicy mPolicy =
+        UploadPolicy.parse(UploadPolicy.DEFAULT_RULES);
+
+    /** Decision of the policy for the running upload, or null */
+    private volatile UploadPolicy.Decision mDecision;
+
+    /** Statistics of the last upload run */
+    private volatile UploadStats mLastStats;
+
+    /** Set by cancel(), makes the running upload stop */
+    private volatile boolean mCancelled;
+
+    /** Thread running tryUpload(), or null */
+    private Thread mThread;
+
+    /** Transport and pipeline of the running upload, if any, so that
+     * cancel() can abort them */
+    private volatile Transport mSession;
+    private volatile UploadPipeline mPipeline;
+
+
+    /**
+     * Batch that was posted in an earlier run without a definite
+     * answer from the server.
+     */
+    private static class InflightBatch
+    {
+        final String batchId;
+        final long firstId, lastId;
+        final String selection;
+
+        InflightBatch(String batchId, long firstId, long lastId,
+                String selection)
+        {
+            this.batchId = batchId;
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.selection = selection;
+        }
+    }
+
+    /**
+     * Records of one logger within a lane, read one batch at a time.
+     */
+    private static class LoggerQueue
+    {
+        final String logger;
+        final String selection;
+        final boolean priority;
+        final int weight;
+
+        /** Bytes the queue may still send in its current turn */
+        long deficit;
+
+        /** Set while the queue is in the middle of its turn */
+        boolean inTurn;
+
+        /** Last record ID put into a batch, -1 if none */
+        long lastId = -1;
+
+        LoggerQueue(String logger, String selection, boolean priority,
+                int weight)
+        {
+            this.logger = logger;
+            this.selection = selection;
+            this.priority = priority;
+            this.weight = weight;
+        }
+
+        /**
+         * Returns the selection of the records after the last one put
+         * into a batch.
+         */
+        String getUnsentSelection()
+        {
+            return (lastId < 0) ? selection 
+                : RecordStore.KEY_ROWID + " > " + lastId 
+                + " AND (" + selection + ")";
+        }
+    }
+
+    /**
+     * Records of some log levels, kept in one queue per logger.
+     */
+    private static class Lane
+    {
+        final String selection;
+        final boolean priority;
+
+        /** Queues of all loggers seen in this run */
+        final HashMap<String, LoggerQueue> queues =
+            new HashMap<String, LoggerQueue>();
+
+        /** Queues that may have records, in round robin order */
+        final LinkedList<LoggerQueue> active = 
+            new LinkedList<LoggerQueue>();
+
+        /** Set once the backlog of the lane has been counted */
+        boolean counted;
+
+        Lane(String selection, boolean priority)
+        {
+            this.selection = selection;
+            this.priority = priority;
+        }
 
+        boolean isDrained()
+        {
+            return active.isEmpty();
+        }
+
+        public String toString()
+        {
+            return priority ? "priority lane" : "bulk lane";
+        }
+    }
 
 
     /**
      * Constructor - creates an uploader object with access to the
      * given database adaptor object. 
      *
-     * @param   dbAdaptor       database adaptor object
+     * @param   dbAdaptor       record store
+     * @param   device          device identifier (IMEI)
+     * @param   url             destination of the batches
+     * @param   metrics         counters the runs are added to
      */
-    public Uploader(SystemLogDbAdaptor dbAdaptor, NetworkInfo wifi)
+    public Uploader(RecordStore dbAdaptor, String device, String url,
+            EngineMetrics metrics)
     {
         this.mDbAdaptor = dbAdaptor;
-        this.mWiFi = wifi;
+        this.mDevice = device;
+        this.mMetrics = metrics;
+        this.mUrl = url;
+        this.mFormatsKey = CUSTOM_URL.equals(url) ? META_FORMATS
+            : META_FORMATS + " " + url;
+        this.mEncoder = new FormEncoder(STREAM_BUFFER_SIZE);
+        this.mColumnarEncoder = new ColumnarBatchEncoder(mDevice,
+                LogRecord.VER, STREAM_BUFFER_SIZE);
+        this.mBatchSize = new BatchSizeController(MIN_BATCH_BYTES,
+                MAX_BATCH_BYTES, INITIAL_BATCH_BYTES, BATCH_BYTES_STEP,
+                LOW_LATENCY);
+        this.mRetryPolicy = new RetryPolicy(RETRY_BASE_DELAY,
+                RETRY_MAX_DELAY, RETRY_BUDGET, BREAKER_THRESHOLD,
+                BREAKER_COOLDOWN);
+    }
+
+
+
+
+
+    /**
+     * Returns the URL the batches are posted to.
+     */
+    public String getDestination()
+    {
+        return mUrl;
+    }
+
+    /**
+     * Sets the records that are routed to this destination. Takes
+     * effect with the next upload.
+     *
+     * @param   selection   SQL selection, null for all records
+     */
+    public void setRouteSelection(String selection)
+    {
+        mRouteSelection = selection;
+    }
+
+    /**
+     * Sets the number of batches that may be in flight at the same
+     * time. With a depth of 1 each batch is streamed from the
+     * database and acknowledged before the next one is read. With a
+     * larger depth batches are encoded into memory and posted by a
+     * pool of workers, which hides the round trip time on slow
+     * links at the cost of holding up to depth batches in memory.
+     *
+     * @param   depth       number of batches in flight
+     */
+    public void setPipelineDepth(int depth)
+    {
+        mPipelineDepth = Math.max(1, depth);
+    }
+
+
+    /**
+     * Sets the share of each round of batches that the priority lane
+     * may take while other records wait. The priority lane always
+     * gets at least one batch per round and takes whole rounds once
+     * the other records are uploaded.
+     *
+     * @param   percent     share in percent, 1 to 100
+     */
+    public void setPriorityShare(int percent)
+    {
+        mPriorityShare = Math.max(1, Math.min(100, percent));
+    }
+
+
+    /**
+     * Sets the upload weight of a logger. While several loggers have
+     * records waiting, each gets a share of the upload proportional
+     * to its weight, so a chatty logger cannot hold back the others.
+     *
+     * @param   logger      logger name
+     * @param   weight      weight, 1 to MAX_LOGGER_WEIGHT
+     */
+    public void setLoggerWeight(String logger, int weight)
+    {
+        synchronized (mLoggerWeights)
+        {
+            mLoggerWeights.put(logger, 
+                    Math.max(1, Math.min(MAX_LOGGER_WEIGHT, weight)));
+        }
     }
 
+    private int getLoggerWeight(String logger)
+    {
+        synchronized (mLoggerWeights)
+        {
+            Integer weight = mLoggerWeights.get(logger);
+            return (weight == null) ? DEFAULT_LOGGER_WEIGHT : weight;
+        }
+    }
 
 
+    /**
+     * Sets the policy that decides which records may be uploaded.
+     * Takes effect with the next upload.
+     *
+     * @param   policy      upload policy
+     */
+    public void setPolicy(UploadPolicy policy)
+    {
+        mPolicy = policy;
+    }
 
+    /**
+     * Returns the decision of the policy for the running upload.
+     * May be called on any thread.
+     *
+     * @return              decision, or null if no upload is
+     *                      running or the destination is on the phone
+     */
+    public UploadPolicy.Decision getDecision()
+    {
+        return mDecision;
+    }
 
-    public void tryUpload()
+    /**
+     * Makes the running upload stop as soon as possible. The post in
+     * progress is aborted and its records stay in the database. May
+     * be called on any thread. A cancelled upload is not counted as
+     * a failure.
+     */
+    public void cancel()
     {
+        mCancelled = true;
 
-        Log.i(TAG, "tryUpload started");
-        Cursor  c = null;
-        boolean postResult = false;
-        boolean noError = true;
+        // Ends a backoff sleep inside the upload
+        synchronized (this)
+        {
+            if (mThread != null)
+                mThread.interrupt();
+        }
 
+        Transport session = mSession;
+        if (session != null)
+            session.abort();
+        UploadPipeline pipeline = mPipeline;
+        if (pipeline != null)
+            pipeline.abort();
+    }
+
+    /**
+     * Clears an earlier cancel() so that the next upload can run.
+     */
+    public void clearCancel()
+    {
+        mCancelled = false;
+    }
+
+    /**
+     * Reads the records routed to this destination in batches, posts
+     * each batch to the server and deletes the records that were
+     * successfully posted.
+     * The backlog of each log level is added to the given conditions
+     * before the upload policy is evaluated. Only records of the
+     * levels that the policy allows are uploaded. Batches that an
+     * earlier run posted without getting an answer are re-sent
+     * first, whatever their levels. Then error and warning records
+     * go ahead of the others, see uploadLanes().
+     * Records are encoded straight from the cursor into the
+     * connection, so the memory needed for a post does not grow
+     * with the batch size.
+     * A failed post is retried after a short backoff while the retry
+     * budget of the run lasts. Otherwise the run ends and the delay
+     * after which the caller should schedule the next attempt is
+     * returned. The upload ends early, without a retry, when it is
+     * cancelled.
+     *
+     * @param   conditions  current device state
+     * @return              delay in milliseconds before the next
+     *                      upload attempt, or 0 if no retry is needed
+     */
+    public long tryUpload(UploadPolicy.Conditions conditions)
+    {
+
+        EngineLog.i(TAG, "tryUpload started for " + mUrl);
+        long delay = 0;
+        long startTime = System.currentTimeMillis();
+        UploadStats stats = new UploadStats();
+        Transport session = null;
+
+        mRetryPolicy.startRun();
+        synchronized (this)
+        {
+            mThread = Thread.currentThread();
+        }
 
         try
         {
+            // One transport, and therefore one kept-alive connection,
+            // carries all the batches of this run.
+            session = Transports.open(mUrl, STREAM_BUFFER_SIZE,
+                    POST_TIMEOUT);
+            mSession = session;
+            if (mCancelled)
+                session.abort();
+
             mDbAdaptor.open();
+            mGeneration = mDbAdaptor.getGeneration();
+            mServerFormats = (session.getFormats() != null)
+                ? session.getFormats() : mDbAdaptor.getMeta(mFormatsKey);
+            mColumnar = hasFormat(mServerFormats, 
+                    ColumnarBatchEncoder.FORMAT);
+            mLines = hasFormat(mServerFormats, FileTransport.FORMAT);
+
+            if (session.isLocal())
+            {
+                // Batches that stay on the phone need no network
+                UploadPolicy.Conditions local = 
+                    new UploadPolicy.Conditions();
+                local.copyDeviceState(conditions);
+                local.network = UploadPolicy.NETWORK_WIFI;
+                local.metered = false;
+                conditions = local;
+            }
+
+            UploadPolicy.Decision decision = evaluatePolicy(conditions);
+            if (decision.isAllowed())
+            {
+                EngineLog.i(TAG, "Uploading " + decision);
+                if (!session.isLocal())
+                    mDecision = decision;
+
+                loadPendingBatches();
+                delay = resendPending(session, stats);
+
+                if ((delay == 0) && mayContinue())
+                    delay = uploadLanes(session, decision.getLevels(),
+                            stats);
+            }
+            else
+            {
+                EngineLog.i(TAG, "Not uploading, " + decision);
+            }
+        }
+        catch (Exception e)
+        {
+            EngineLog.e(TAG, "Exception", e);
+            delay = mCancelled ? 0 
+                : mRetryPolicy.getWaitTime(System.currentTimeMillis());
+        }
+
+        mDecision = null;
+        mDbAdaptor.close();
+        finishStats(stats, session, startTime);
+        synchronized (this)
+        {
+            mThread = null;
+            // Do not carry an interrupt from cancel() into the next
+            // task of the thread.
+            Thread.interrupted();
+        }
+        return delay;
+    }
+
+    /**
+     * Adds the backlog of each log level to the conditions and
+     * evaluates the upload policy.
+     *
+     * @param   conditions  current device state
+     * @return              decision of the policy
+     */
+    private UploadPolicy.Decision evaluatePolicy(
+            UploadPolicy.Conditions conditions)
+    {
+        conditions.clearBacklog();
+        RecordCursor c = mDbAdaptor.fetchBacklog(mRouteSelection);
+        try
+        {
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+            {
+                conditions.addBacklog(c.isNull(0) ? null : c.getString(0),
+                        c.getLong(1), c.getLong(2));
+            }
+        }
+        finally
+        {
+            c.close();
+        }
+        return mPolicy.evaluate(conditions);
+    }
 
-            c = mDbAdaptor.fetchAllEntries();
-            int logIndex = c.getColumnIndex(
-                    SystemLogDbAdaptor.KEY_LOGRECORD);
-            int idIndex = c.getColumnIndex(
-                    SystemLogDbAdaptor.KEY_ROWID);
-            int timeIndex = c.getColumnIndex(
-                    SystemLogDbAdaptor.KEY_TIME);
-            int loggerIndex = c.getColumnIndex(
-                    SystemLogDbAdaptor.KEY_LOGGER);
+    private void readColumnIndices(RecordCursor c)
+    {
+        mLogIndex = c.getColumnIndex(
+                RecordStore.KEY_LOGRECORD);
+        mIdIndex = c.getColumnIndex(
+                RecordStore.KEY_ROWID);
+        mLoggerIndex = c.getColumnIndex(
+                RecordStore.KEY_LOGGER);
+        mTagIndex = c.getColumnIndex(
+                RecordStore.KEY_TAG);
+        mLevelIndex = c.getColumnIndex(
+                RecordStore.KEY_LEVEL);
+        mTimestampIndex = c.getColumnIndex(
+                RecordStore.KEY_TIMESTAMP);
+        mMessageIndex = c.getColumnIndex(
+                RecordStore.KEY_MESSAGE);
+        mClientTimeIndex = c.getColumnIndex(
+                RecordStore.KEY_CLIENT_TIME);
+        mFlushTimeIndex = c.getColumnIndex(
+                RecordStore.KEY_FLUSH_TIME);
+        mFieldsIndex = c.getColumnIndex(
+                RecordStore.KEY_FIELDS);
+    }
 
+    /**
+     * Returns the typed fields of the record at the cursor, or null if
+     * it has none.
+     */
+    private byte[] getFields(RecordCursor c)
+    {
+        return (mFieldsIndex < 0) ? null : c.getBlob(mFieldsIndex);
+    }
 
-            Integer id, pId;
-            HashSet<Integer> keySet = new HashSet<Integer>();
-            String newRecord, newTime;
-            ArrayList<String> content;
+    /**
+     * Returns the JSON record at the cursor. The fields of a
+     * structured record are added to it as a "fields" object.
+     */
+    private CharSequence getRecord(RecordCursor c)
+    {
+        String json = c.getString(mLogIndex);
+        byte[] fields = getFields(c);
+        if (fields == null)
+            return json;
+
+        StringBuilder sb = mRecordBuilder;
+        sb.setLength(0);
+        sb.append(json, 0, json.lastIndexOf('}'));
+        sb.append(",\"fields\":");
+        LogFields.appendJson(fields, sb);
+        sb.append('}');
+        return sb;
+    }
 
-            int failCount = 0;
-            int dbSize =  c.getCount();
-            int readCount = 0;
+    /**
+     * Adds the times of the record at the cursor to the trace of the
+     * current batch.
+     */
+    private void traceRecord(RecordCursor c)
+    {
+        mTrace.add(c.getLong(mClientTimeIndex), 
+                c.getLong(mFlushTimeIndex));
+    }
 
+    /**
+     * Re-sends the batches that earlier runs posted without getting
+     * an answer, each with its original range, selection and ID.
+     *
+     * @param   session     transport to use
+     * @param   stats       stats of the current run
+     * @return              delay in milliseconds before the next
+     *                      upload attempt, or 0 if all succeeded
+     */
+    private long resendPending(Transport session, UploadStats stats)
+        throws InterruptedException
+    {
+        while (!mPending.isEmpty() && mayContinue())
+        {
+            InflightBatch pending = mPending.removeFirst();
+            mSelection = pending.selection;
+            RecordCursor c = mDbAdaptor.fetchEntries(
+                    Selections.rangeSelection(pending.firstId,
+                        pending.lastId, pending.selection));
+            try
+            {
+                int count = c.getCount();
+                if (count == 0)
+                {
+                    // The records are gone
+                    mDbAdaptor.deleteInflightBatch(pending.batchId);
+                    continue;
+                }
 
+                EngineLog.i(TAG, "Re-sending batch " + pending.batchId);
+                readColumnIndices(c);
+                c.moveToFirst();
+                long delay = uploadBatches(session, c, pending,
+                        Integer.MAX_VALUE, stats);
+                if (delay > 0)
+                    return delay;
+            }
+            finally
+            {
+                c.close();
+            }
+        }
+        return 0;
+    }
 
-            c.moveToFirst();
+    /**
+     * Uploads the records the policy allows in two lanes. Error and
+     * warning records make up the priority lane, all other records
+     * the bulk lane, so a new error does not wait behind a large
+     * backlog of verbose records.
+     *
+     * Batches are sent in rounds of LANE_ROUND_BATCHES. Every round
+     * looks for new records in the priority lane, so that errors
+     * logged during a long upload wait for one round at most, and
+     * gives it up to its share of the round. The bulk lane gets the
+     * rest of the round, or all of it while the priority lane is
+     * empty. Within a lane the loggers share the upload by weight,
+     * see uploadLane(). The lanes select disjoint records and every
+     * batch is deleted by its range together with the selection of
+     * its logger queue, so each record is still uploaded exactly
+     * once.
+     *
+     * @param   session     transport to use
+     * @param   levels      levels the policy allows, null for all
+     * @param   stats       stats of the current run
+     * @return              delay in milliseconds before the next
+     *                      upload attempt, or 0 if all succeeded
+     */
+    private long uploadLanes(Transport session, Set<String> levels,
+            UploadStats stats)
+        throws IOException, InterruptedException
+    {
+        Lane urgent = null;
+        Lane bulk = null;
+        if (levels == null)
+        {
+            urgent = newLane(Selections.levelSelection(
+                        PRIORITY_LEVELS), true);
+            bulk = newLane(Selections.otherLevelSelection(
+                        PRIORITY_LEVELS), false);
+        }
+        else
+        {
+            Set<String> urgentLevels = new HashSet<String>(levels);
+            urgentLevels.retainAll(PRIORITY_LEVELS);
+            Set<String> bulkLevels = new HashSet<String>(levels);
+            bulkLevels.removeAll(PRIORITY_LEVELS);
+            if (!urgentLevels.isEmpty())
+                urgent = newLane(Selections.levelSelection(
+                            urgentLevels), true);
+            if (!bulkLevels.isEmpty())
+                bulk = newLane(Selections.levelSelection(
+                            bulkLevels), false);
+        }
 
+        int urgentQuota = Math.max(1, 
+                LANE_ROUND_BATCHES * mPriorityShare / 100);
+        // Local transports have no round trip to hide
+        UploadPipeline pipeline = ((mPipelineDepth > 1) 
+                && !session.isLocal()) ? startPipeline(stats) : null;
+        long delay = 0;
+        try
+        {
+            if (bulk != null)
+                refreshLane(bulk, stats);
 
-            while ((dbSize > 0) && SystemLog.isPlugged() && noError)
+            while ((delay == 0) && mayContinue())
             {
+                boolean bulkWaiting = (bulk != null) && !bulk.isDrained();
+                boolean urgentWaiting = false;
+                if (urgent != null)
+                {
+                    refreshLane(urgent, stats);
+                    delay = uploadLane(session, pipeline, urgent,
+                            bulkWaiting ? urgentQuota 
+                            : LANE_ROUND_BATCHES, stats);
+                    urgentWaiting = !urgent.isDrained();
+                }
 
-                /* Check WiFi connectivity before using airtime if in
-                 * WIFI_ONLY mode.
-                */
-                if (WIFI_ONLY)
+                int bulkQuota = urgentWaiting 
+                    ? LANE_ROUND_BATCHES - urgentQuota 
+                    : LANE_ROUND_BATCHES;
+                if ((delay == 0) && bulkWaiting && (bulkQuota > 0)
+                        && mayContinue())
                 {
-                    //if (!mWiFi.isConnected())
-                    if( mWiFi == null && mWiFi.getType() != ConnectivityManager.TYPE_WIFI )
-                    {
-                        break;
-                    }
+                    delay = uploadLane(session, pipeline, bulk, 
+                            bulkQuota, stats);
+                }
+
+                if ((pipeline != null) 
+                        && (pipeline.getFailedBatch() != null))
+                    break;
+                if (!urgentWaiting && ((bulk == null) || bulk.isDrained()))
+                    break;
+            }
+
+            if (pipeline != null)
+                delay = finishPipeline(pipeline, stats);
+        }
+        finally
+        {
+            if (pipeline != null)
+            {
+                mPipeline = null;
+                pipeline.addSessionStats(stats);
+                pipeline.shutdown();
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Creates a lane for the records of the destination that match
+     * the given selection.
+     */
+    private Lane newLane(String selection, boolean priority)
+    {
+        return new Lane(Selections.andSelection(mRouteSelection,
+                    selection), priority);
+    }
+
+    /**
+     * Adds a queue for every logger that has records in the lane and
+     * does not have an active queue.
+     *
+     * @param   lane        lane to refresh
+     * @param   stats       stats of the current run
+     */
+    private void refreshLane(Lane lane, UploadStats stats)
+    {
+        RecordCursor c = mDbAdaptor.fetchLoggerBacklog(lane.selection);
+        try
+        {
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+            {
+                String logger = c.getString(0);
+                LoggerQueue queue = lane.queues.get(logger);
+                if (queue == null)
+                {
+                    queue = new LoggerQueue(logger, 
+                            Selections.loggerSelection(logger,
+                                lane.selection), lane.priority, 
+                            getLoggerWeight(logger));
+                    lane.queues.put(logger, queue);
                 }
-                
-                Log.i(TAG, "Total DB size is: " + dbSize);
-                int maxCount = (MAX_UPLOAD_SIZE > dbSize) 
-                    ? dbSize : MAX_UPLOAD_SIZE;
+                if (!lane.active.contains(queue))
+                    lane.active.add(queue);
+                if (!lane.counted)
+                    stats.getLogger(logger).backlog += c.getLong(1);
+            }
+        }
+        finally
+        {
+            c.close();
+        }
+        lane.counted = true;
+    }
 
-                content = new ArrayList<String>();
-                pId = -1;
+    /**
+     * Uploads up to maxBatches batches from the logger queues of a
+     * lane, using deficit round robin. On its turn a queue is given
+     * its weight times the target batch size in bytes and sends
+     * batches until that is used up. The last batch of a turn may go
+     * over, and the excess is taken from the next turn, so over time
+     * each logger with records waiting gets a share of the bytes
+     * proportional to its weight, whatever the other loggers log.
+     * A queue that runs out of records leaves the round robin and
+     * loses what is left of its turn.
+     *
+     * @param   session     transport to use without a pipeline
+     * @param   pipeline    pipeline to submit to, or null
+     * @param   lane        lane to upload from
+     * @param   maxBatches  maximum number of batches to send
+     * @param   stats       stats of the current run
+     * @return              delay in milliseconds before the next
+     *                      upload attempt, or 0 if all succeeded
+     */
+    private long uploadLane(Transport session, 
+            UploadPipeline pipeline, Lane lane, int maxBatches,
+            UploadStats stats)
+        throws IOException, InterruptedException
+    {
+        long delay = 0;
+        int batches = 0;
 
-                for (int i = 0; i < maxCount; i++)
+        while ((batches < maxBatches) && !lane.isDrained() 
+                && (delay == 0) && mayContinue())
+        {
+            if ((pipeline != null) && (pipeline.getFailedBatch() != null))
+                break;
+
+            LoggerQueue queue = lane.active.getFirst();
+            if (!queue.inTurn)
+            {
+                queue.deficit += (long) queue.weight 
+                    * mBatchSize.getTargetBytes();
+                queue.inTurn = true;
+            }
+
+            RecordCursor c = mDbAdaptor.fetchEntries(
+                    queue.getUnsentSelection(), QUEUE_READ_LIMIT);
+            try
+            {
+                if (!c.moveToFirst())
                 {
+                    lane.active.removeFirst();
+                    queue.deficit = 0;
+                    queue.inTurn = false;
+                    continue;
+                }
 
-                    id = c.getInt(idIndex);
-                    if ((pId != -1) && (id != (pId + 1)))
-                    {
-                        Log.i(TAG, "Cursor jumped.");
-                        noError = false;
+                mSelection = queue.selection;
+                readColumnIndices(c);
+                long bytes;
+                if (pipeline != null)
+                {
+                    bytes = submitBatch(pipeline, queue, c);
+                    if (bytes < 0)
                         break;
-                    }
-                    
-                    newRecord =  c.getString(logIndex);
+                }
+                else
+                {
+                    UploadStats.LoggerStats loggerStats =
+                        stats.getLogger(queue.logger);
+                    int records = stats.records;
+                    long sent = stats.bytes;
+                    delay = uploadBatches(session, c, null, 1, stats);
+                    loggerStats.records += stats.records - records;
+                    loggerStats.bytes += stats.bytes - sent;
+                    if (queue.priority)
+                        stats.priorityRecords += stats.records - records;
+                    bytes = mBatchBytes;
+                }
 
+                queue.lastId = mLastId;
+                batches++;
+                queue.deficit -= bytes;
+                if (queue.deficit <= 0)
+                {
+                    queue.inTurn = false;
+                    lane.active.addLast(lane.active.removeFirst());
+                }
+            }
+            finally
+            {
+                c.close();
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Uploads the records of the cursor one batch at a time, each
+     * batch acknowledged before the next one is read.
+     *
+     * A failed batch is retried with the ID and range of its first
+     * attempt, since the server may have stored it and only the
+     * response was lost. The smaller batch size after a failure
+     * applies from the next new batch on.
+     *
+     * @param   session     transport to use
+     * @param   c           cursor positioned at the first record
+     * @param   resend      earlier batch that the cursor holds, or
+     *                      null
+     * @param   maxBatches  maximum number of batches to send
+     * @param   stats       stats of the current run
+     * @return              delay in milliseconds before the next
+     *                      upload attempt, or 0 if all succeeded
+     */
+    private long uploadBatches(Transport session, RecordCursor c,
+            InflightBatch resend, int maxBatches, UploadStats stats)
+        throws InterruptedException
+    {
+        boolean postResult;
+        int dbSize = c.getCount() - c.getPosition();
 
-                    content.add(URLEncoder.encode(newRecord));
-                    keySet.add(id);
-                    readCount++;
-                    pId = id;
+        for (int batches = 0; (batches < maxBatches) && (dbSize > 0) 
+                && mayContinue(); batches++)
+        {
+            EngineLog.i(TAG, "Total DB size is: " + dbSize);
 
-                    c.moveToNext();
-                    
-                }
-                
-                dbSize -= readCount;
+            int batchStart = c.getPosition();
+            InflightBatch attempt = resend;
 
-                do
+            do
+            {
+                // Rewind to the first record of the batch so a
+                // retry encodes exactly the same records.
+                c.moveToPosition(batchStart);
+                mResend = attempt;
+                clearBatch();
+                int maxBytes = mBatchSize.getTargetBytes();
+                long postStart = System.currentTimeMillis();
+                postResult =  doPost(session, c, dbSize, maxBytes);
+                if (postResult)
                 {
-                    postResult =  doPost("data=" 
-                            + content.toString(), CUSTOM_URL);
-                    if (postResult)
+                    mBatchSize.onSuccess(mBatchBytes, 
+                            System.currentTimeMillis() - postStart);
+                    mRetryPolicy.onSuccess();
+                    mTrace.onAcknowledged(mMetrics, 
+                            System.currentTimeMillis());
+                    stats.batches++;
+                    stats.records += mBatchCount;
+                    stats.bytes += mBatchBytes;
+                    EngineLog.i(TAG, "Deleting [" 
+                            + mFirstId + ", " + mLastId + "]"); 
+
+                    if( !mDbAdaptor.completeBatch(mBatchId, mFirstId, 
+                                mLastId, mSelection) )
                     {
-                        failCount = 0;
-                        long fromId = Collections.min(keySet);
-                        long toId = Collections.max(keySet);
-                        Log.i(TAG, "Deleting [" 
-                                + fromId + ", " + toId + "]"); 
-
-                        if( !mDbAdaptor.deleteRange(fromId, toId) )
-                        {
-                            Log.e(TAG, "Error deleting range [" 
-                                    + fromId 
-                                    + ", " + toId
-                                    + "]");
-                        }
-
+                        EngineLog.e(TAG, "Error deleting range [" 
+                                + mFirstId 
+                                + ", " + mLastId
+                                + "]");
                     }
-                    else
+
+                }
+                else if (mCancelled)
+                {
+                    EngineLog.i(TAG, "Upload cancelled");
+                    return 0;
+                }
+                else
+                {
+                    // Once the batch has its ID and is in flight, the
+                    // retry has to be the same batch. A post that
+                    // failed before its batch was encoded has no ID.
+                    if ((attempt == null) && (mBatchId != null))
+                        attempt = new InflightBatch(mBatchId, mFirstId,
+                                mLastId, mSelection);
+                    mBatchSize.onFailure();
+                    stats.failures++;
+                    long delay = mRetryPolicy.onFailure(
+                            System.currentTimeMillis(),
+                            session.getRetryAfter());
+
+                    if ((delay > MAX_INLINE_DELAY) 
+                            || !mRetryPolicy.takeRetry())
                     {
-                        Log.e(TAG, "Post failed");
-                        failCount++;
+                        EngineLog.e(TAG, "Post failed. Will try again in " 
+                                + delay + " ms");
+                        return delay;
                     }
-                    keySet.clear();
+
+                    EngineLog.e(TAG, "Post failed. Retrying in " 
+                            + delay + " ms");
+                    stats.retries++;
+                    Thread.sleep(delay);
                 }
-                while ((!postResult) && (failCount < MAX_FAIL_COUNT));
+            }
+            while (!postResult);
 
-                if (failCount >= MAX_FAIL_COUNT)
-                {
-                    Log.e(TAG, "Too many post failiurs. "
-                            + "Will try at another time");
+            dbSize -= mBatchCount;
+        }
+        return 0;
+    }
 
-                    c.close();
-                    mDbAdaptor.close();
-                    SystemLogWakeLock.releaseCpuLock();
-                    return;
-                }
+    /**
+     * Returns true while the upload may go on with the next batch.
+     */
+    private boolean mayContinue()
+    {
+        return !mCancelled;
+    }
 
-            }
-            c.close();
-            mDbAdaptor.tickle();
-            mDbAdaptor.close();
-            SystemLogWakeLock.releaseCpuLock();
-            return;
-            
+    /**
+     * Returns how long uploads should wait because of earlier
+     * failures. While the circuit breaker is open this is the rest
+     * of the cool-down period.
+     *
+     * @return              wait time in milliseconds, 0 if an upload
+     *                      may start now
+     */
+    public long getBackoffDelay()
+    {
+        return mRetryPolicy.getWaitTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the statistics of the last completed upload run.
+     *
+     * @return              stats of the last run, or null
+     */
+    public UploadStats getLastStats()
+    {
+        return mLastStats;
+    }
+
+
+    private void finishStats(UploadStats stats, Transport session,
+            long startTime)
+    {
+        mSession = null;
+        if (session != null)
+        {
+            session.close();
+            stats.handshakes += session.getHandshakeCount();
+            stats.reconnects += session.getReconnectCount();
         }
-        catch (Exception e)
+        stats.elapsed = System.currentTimeMillis() - startTime;
+        stats.batchTargetBytes = mBatchSize.getTargetBytes();
+        mLastStats = stats;
+        mMetrics.addUpload(stats);
+        EngineLog.i(TAG, "Upload stats: " + stats);
+    }
+
+
+    /**
+     * Creates the pipeline that posts the batches of the current run
+     * with several batches in flight. Batches are acknowledged, and
+     * their records deleted, strictly in submission order. After the
+     * first failed batch no more batches are taken and no later batch
+     * is deleted, even if it reached the server.
+     *
+     * @param   stats       stats of the current run
+     * @return              the pipeline
+     */
+    private UploadPipeline startPipeline(final UploadStats stats)
+        throws IOException
+    {
+        UploadPipeline pipeline = new UploadPipeline(mUrl,
+                mPipelineDepth, STREAM_BUFFER_SIZE, POST_TIMEOUT,
+                new UploadPipeline.Listener()
         {
-            Log.e(TAG, "Exception", e);
-            if (c != null)
+            public void onAcknowledged(UploadPipeline.Batch batch)
             {
-                c.close();
+                LoggerQueue queue = (LoggerQueue) batch.tag;
+                UploadStats.LoggerStats loggerStats = 
+                    stats.getLogger(queue.logger);
+                updateFormats(batch.serverFormats);
+                mBatchSize.onSuccess(batch.body.length, batch.latency);
+                mRetryPolicy.onSuccess();
+                batch.trace.onAcknowledged(mMetrics, 
+                        System.currentTimeMillis());
+                stats.batches++;
+                stats.records += batch.count;
+                stats.bytes += batch.body.length;
+                loggerStats.records += batch.count;
+                loggerStats.bytes += batch.body.length;
+                if (queue.priority)
+                    stats.priorityRecords += batch.count;
+
+                if (!mDbAdaptor.completeBatch(batch.batchId, 
+                            batch.firstId, batch.lastId, queue.selection))
+                {
+                    EngineLog.e(TAG, "Error deleting range [" 
+                            + batch.firstId 
+                            + ", " + batch.lastId
+                            + "]");
+                }
             }
+        });
 
-            mDbAdaptor.close();
-            SystemLogWakeLock.releaseCpuLock();
+        mPipeline = pipeline;
+        if (mCancelled)
+            pipeline.abort();
+        return pipeline;
+    }
+
+    /**
+     * Encodes one batch from the cursor of a logger queue into memory
+     * and submits it to the pipeline. If the pipeline refuses the
+     * batch because an earlier one failed, the batch was never posted
+     * and is taken out of flight, so its records are read again as a
+     * new batch by a later run.
+     *
+     * @param   pipeline    pipeline of the current run
+     * @param   queue       logger queue the records belong to
+     * @param   c           cursor positioned at the first record
+     * @return              encoded size of the batch in bytes, or -1
+     *                      if the pipeline refused it
+     */
+    private long submitBatch(UploadPipeline pipeline, LoggerQueue queue,
+            RecordCursor c)
+        throws IOException, InterruptedException
+    {
+        int dbSize = c.getCount() - c.getPosition();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                INITIAL_BATCH_BYTES);
+
+        int batchStart = c.getPosition();
+        int maxBytes = mBatchSize.getTargetBytes();
+        mResend = null;
+        boolean columnar = mColumnar 
+            && scanColumnarBatch(c, dbSize, maxBytes);
+
+        c.moveToPosition(batchStart);
+        if (columnar)
+        {
+            writeColumnarBatch(c, buffer);
         }
+        else
+        {
+            mEncoder.reset(buffer);
+            writeBatch(c, dbSize, maxBytes);
+            mEncoder.reset(null);
+        }
+
+        UploadPipeline.Batch batch = new UploadPipeline.Batch(
+                mBatchId, mFirstId, mLastId, mBatchCount, 
+                getContentType(columnar), buffer.toByteArray());
+        batch.tag = queue;
+        batch.trace = mTrace;
+        if (!pipeline.submit(batch))
+        {
+            mDbAdaptor.deleteInflightBatch(mBatchId);
+            return -1;
+        }
+        return batch.body.length;
+    }
 
+    /**
+     * Waits for the batches in flight and handles the first failed
+     * batch, if any.
+     *
+     * @param   pipeline    pipeline of the current run
+     * @param   stats       stats of the current run
+     * @return              delay in milliseconds before the next
+     *                      upload attempt, or 0 if all succeeded
+     */
+    private long finishPipeline(UploadPipeline pipeline, 
+            UploadStats stats)
+        throws InterruptedException
+    {
+        pipeline.finish();
 
+        UploadPipeline.Batch failed = pipeline.getFailedBatch();
+        if (failed == null)
+            return 0;
 
+        if (mCancelled)
+        {
+            EngineLog.i(TAG, "Upload cancelled");
+            return 0;
+        }
+
+        updateFormats(failed.serverFormats);
+        if ((failed.responseCode == Transport.UNSUPPORTED_TYPE)
+                && ColumnarBatchEncoder.CONTENT_TYPE.equals(failed.contentType))
+        {
+            // Not a failure of the link. The batch stays in flight,
+            // so the next run re-sends its range with the same ID in
+            // the form format. Retry after the shortest delay without
+            // backing off.
+            disableColumnar();
+            return RETRY_BASE_DELAY;
+        }
+
+        mBatchSize.onFailure();
+        stats.failures++;
+        long delay = mRetryPolicy.onFailure(System.currentTimeMillis(),
+                failed.retryAfter);
+        EngineLog.e(TAG, "Pipelined post of [" + failed.firstId + ", " 
+                + failed.lastId + "] failed. Will try again in " 
+                + delay + " ms");
+        return delay;
     }
 
 
-    private boolean doPost(String content, String dest) 
+    /**
+     * Reads the in-flight batches left by earlier runs.
+     */
+    private void loadPendingBatches()
     {
-
-        //Log.i(TAG, "Uploading: " + content);
-        OutputStream out;
-        byte[] buff;
-        int respCode;
-        String respMsg = "";
-        HttpURLConnection con;
-        URL url;
+        mPending.clear();
+        RecordCursor c = mDbAdaptor.fetchInflightBatches(mUrl, 
+                CUSTOM_URL.equals(mUrl));
         try
         {
-            url = new URL(dest);
+            int idIndex = c.getColumnIndex(RecordStore.KEY_BATCH_ID);
+            int fromIndex = c.getColumnIndex(RecordStore.KEY_FROM_ID);
+            int toIndex = c.getColumnIndex(RecordStore.KEY_TO_ID);
+            int selIndex = c.getColumnIndex(
+                    RecordStore.KEY_SELECTION);
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext())
+            {
+                mPending.add(new InflightBatch(c.getString(idIndex),
+                            c.getLong(fromIndex), c.getLong(toIndex),
+                            c.isNull(selIndex) ? null 
+                            : c.getString(selIndex)));
+            }
         }
-        catch (MalformedURLException e)
+        finally
         {
-            Log.e(TAG, "Exception", e);
-            return false;
+            c.close();
         }
 
+        if (!mPending.isEmpty())
+            EngineLog.i(TAG, mPending.size() + " batches to re-send");
+    }
 
-        try
+    /**
+     * Forgets the last batch, so that a post that fails before its
+     * batch is encoded is not taken for the batch sent before it.
+     */
+    private void clearBatch()
+    {
+        mFirstId = -1;
+        mLastId = -1;
+        mBatchCount = 0;
+        mBatchId = null;
+    }
+
+    /**
+     * Starts a new batch at the current cursor position and returns
+     * the last record ID it may include. A batch that re-sends an
+     * earlier one has to cover the same range.
+     */
+    private long startBatch()
+    {
+        clearBatch();
+        mTrace = new BatchTrace(System.currentTimeMillis());
+        return (mResend != null) ? mResend.lastId : Long.MAX_VALUE;
+    }
+
+    /**
+     * Encodes up to maxCount records starting at the current cursor
+     * position as the "data=" form field. The batch is closed after
+     * the record that brings it to maxBytes encoded bytes. The
+     * records are written as a list of URL-encoded JSON records, the
+     * same format that ArrayList.toString() used to produce.
+     * The IDs need not be consecutive. A batch is deleted as its ID
+     * range together with the selection of the cursor, which matches
+     * exactly the records of the batch.
+     *
+     * The batch ID follows as the "batch=" field, since it is only
+     * known once the range is known. The batch is recorded as in
+     * flight before the post completes, so a lost response leads to
+     * a re-send with the same ID.
+     *
+     * While the destination takes the lines format the records are
+     * written as they are, one per line, without the form fields.
+     *
+     * On return mFirstId, mLastId, mBatchCount and mBatchId describe
+     * the records that were written and the cursor points to the
+     * first record after them.
+     *
+     * @param   c           cursor positioned at the first record
+     * @param   maxCount    maximum number of records to write
+     * @param   maxBytes    target size of the batch in bytes
+     */
+    private void writeBatch(RecordCursor c, int maxCount, int maxBytes) 
+        throws IOException
+    {
+        long id;
+        long rangeLimit = startBatch();
+        if (mResend != null)
+            maxBytes = Integer.MAX_VALUE;
+
+        boolean lines = mLines;
+        if (!lines)
+            mEncoder.writeRaw("data=[");
+        for (int i = 0; (i < maxCount) 
+                && (mEncoder.getByteCount() < maxBytes); i++)
         {
-            con = (HttpURLConnection) url.openConnection();
+            id = c.getLong(mIdIndex);
+            if (id > rangeLimit)
+                break;
+
+            if (lines)
+            {
+                mEncoder.writeUtf8(getRecord(c));
+                mEncoder.writeRaw("\n");
+            }
+            else
+            {
+                if (mFirstId != -1)
+                    mEncoder.writeRaw(", ");
+                mEncoder.writeEncoded(getRecord(c));
+            }
+            traceRecord(c);
+
+            if (mFirstId == -1)
+                mFirstId = id;
+            mLastId = id;
+            mBatchCount++;
+
+            c.moveToNext();
         }
-        catch (IOException e)
+        assignBatchId();
+        if (!lines)
         {
-            Log.e(TAG, "Exception", e);
-            return false;
+            mEncoder.writeRaw("]");
+            mEncoder.writeRaw("&batch=");
+            mEncoder.writeRaw(mBatchId);
         }
+        mEncoder.flush();
+    }
 
+    /**
+     * Sets mBatchId for the range mFirstId to mLastId. A re-sent
+     * batch keeps its ID. A new batch is recorded as in flight before
+     * it is posted.
+     */
+    private void assignBatchId()
+    {
+        if (mResend != null)
+        {
+            mBatchId = mResend.batchId;
+        }
+        else
+        {
+            mBatchId = BatchId.create(mDevice, mGeneration, mFirstId, 
+                    mLastId, mSelection);
+            mDbAdaptor.putInflightBatch(mBatchId, mFirstId, mLastId,
+                    mSelection, mUrl);
+        }
+    }
 
-        try
+    /**
+     * First pass of a columnar batch. Collects the logger, tag, level
+     * and time of up to maxCount records starting at the current
+     * cursor position, under the same limits as writeBatch(). Records
+     * created before the columnar fields were stored have no
+     * timestamp and end the batch, so they are sent in the form
+     * format.
+     *
+     * On success the batch ID is assigned and mFirstId, mLastId and
+     * mBatchCount describe the batch. The cursor
+     * position is undefined on return.
+     *
+     * @param   c           cursor positioned at the first record
+     * @param   maxCount    maximum number of records to include
+     * @param   maxBytes    target size of the batch in bytes
+     * @return              false if the batch has to be sent in the
+     *                      form format
+     */
+    private boolean scanColumnarBatch(RecordCursor c, int maxCount, 
+            int maxBytes)
+    {
+        long id;
+        long rangeLimit = startBatch();
+        if (mResend != null)
+            maxBytes = Integer.MAX_VALUE;
+
+        mColumnarEncoder.begin();
+        for (int i = 0; (i < maxCount) 
+                && (mColumnarEncoder.getEstimatedSize() < maxBytes); i++)
         {
-            con.setRequestMethod("POST");
+            id = c.getLong(mIdIndex);
+            if ((id > rangeLimit) || c.isNull(mTimestampIndex))
+                break;
+
+            String message = c.getString(mMessageIndex);
+            mColumnarEncoder.addRecord(c.getLong(mTimestampIndex),
+                    c.getString(mLoggerIndex), c.getString(mTagIndex),
+                    c.getString(mLevelIndex), 
+                    (message == null) ? 0 : message.length(), getFields(c));
+
+            if (mFirstId == -1)
+                mFirstId = id;
+            mLastId = id;
+            mBatchCount++;
+
+            c.moveToNext();
         }
-        catch (java.net.ProtocolException e)
+
+        // A re-sent batch has to cover its whole range again.
+        if ((mBatchCount == 0) 
+                || ((mResend != null) && (mLastId != mResend.lastId)))
+            return false;
+
+        assignBatchId();
+        return true;
+    }
+
+    /**
+     * Second pass of a columnar batch. Writes the batch collected by
+     * scanColumnarBatch() and streams its messages from the cursor.
+     * On return the cursor points to the first record after the
+     * batch.
+     *
+     * @param   c           cursor positioned at the first record of
+     *                      the batch
+     * @param   out         stream to write to
+     */
+    private void writeColumnarBatch(RecordCursor c, OutputStream out)
+        throws IOException
+    {
+        // Written again if the post is retried on a new connection
+        mTrace = new BatchTrace(System.currentTimeMillis());
+        long t0 = mColumnarEncoder.getFirstTime();
+        mColumnarEncoder.writeHead(out, mBatchId, 
+                TimeZone.getDefault().getOffset(t0));
+        for (int i = 0; i < mBatchCount; i++)
         {
-            Log.e(TAG, "Exception", e);
+            mColumnarEncoder.writeMessage(c.getString(mMessageIndex));
+            traceRecord(c);
+            c.moveToNext();
+        }
+        mColumnarEncoder.finish();
+        mBatchBytes = mColumnarEncoder.getByteCount();
+    }
+
+    /**
+     * Remembers the upload formats advertised by the server. The
+     * columnar format is used only while the server lists it.
+     *
+     * @param   formats     value of the formats header, or null
+     */
+    private void updateFormats(String formats)
+    {
+        if ((formats == null) || formats.equals(mServerFormats))
+            return;
+
+        mServerFormats = formats;
+        mColumnar = hasFormat(formats, ColumnarBatchEncoder.FORMAT);
+        mLines = hasFormat(formats, FileTransport.FORMAT);
+        mDbAdaptor.putMeta(mFormatsKey, formats);
+        EngineLog.i(TAG, "Server formats: " + formats);
+    }
+
+    /**
+     * Stops using the columnar format until the server advertises it
+     * again.
+     */
+    private void disableColumnar()
+    {
+        EngineLog.i(TAG, "Server rejected the columnar format");
+        mColumnar = false;
+        mServerFormats = "";
+        mDbAdaptor.putMeta(mFormatsKey, mServerFormats);
+    }
+
+    /**
+     * Returns the content type of a batch in the format in use.
+     *
+     * @param   columnar    whether the batch is columnar
+     */
+    private String getContentType(boolean columnar)
+    {
+        if (columnar)
+            return ColumnarBatchEncoder.CONTENT_TYPE;
+        return mLines ? FileTransport.CONTENT_TYPE : FORM_CONTENT_TYPE;
+    }
+
+    private static boolean hasFormat(String formats, String format)
+    {
+        if (formats == null)
             return false;
+
+        for (String f : formats.split(","))
+        {
+            if (f.trim().equals(format))
+                return true;
         }
-        con.setUseCaches(false);
-        con.setDoOutput(true);
-        con.setDoInput(true);
-        con.setRequestProperty("Content-type", 
-                "application/x-www-form-urlencoded");
+        return false;
+    }
+
+
+    /**
+     * Posts one batch over the given transport.
+     *
+     * @param   session     transport to use
+     * @param   c           cursor positioned at the first record
+     * @param   maxCount    maximum number of records to post
+     * @param   maxBytes    target size of the batch in bytes
+     * @return              true if the server accepted the batch
+     */
+    private boolean doPost(Transport session, final RecordCursor c, 
+            final int maxCount, final int maxBytes) 
+    {
+        final int batchStart = c.getPosition();
+        final boolean columnar = mColumnar 
+            && scanColumnarBatch(c, maxCount, maxBytes);
+        c.moveToPosition(batchStart);
+        int respCode;
 
         try
         {
-            con.connect();
-            out = con.getOutputStream();
-            buff = content.getBytes("UTF8");
-            out.write(buff);
-            out.flush();
-
+            respCode = session.send(getContentType(columnar),
+                    new Transport.BodyWriter()
+            {
+                public void writeTo(OutputStream out) throws IOException
+                {
+                    c.moveToPosition(batchStart);
+                    if (columnar)
+                    {
+                        writeColumnarBatch(c, out);
+                        return;
+                    }
 
-            respMsg = con.getResponseMessage();
-            respCode = con.getResponseCode();
+                    mEncoder.reset(out);
+                    try
+                    {
+                        writeBatch(c, maxCount, maxBytes);
+                        mBatchBytes = mEncoder.getByteCount();
+                    }
+                    finally
+                    {
+                        mEncoder.reset(null);
+                    }
+                }
+            });
         }
         catch (IOException e)
         {
-            Log.e(TAG, "Exception", e);
-            con.disconnect();
+            EngineLog.e(TAG, "Exception", e);
             return false;
         }
 
+        updateFormats(session.getServerFormats());
 
-
-        if (respCode == HttpURLConnection.HTTP_OK)
+        if (columnar 
+                && (respCode == Transport.UNSUPPORTED_TYPE))
         {
-            con.disconnect();
-            return true;
+            // Send the same range again, with the same ID, in the
+            // form format.
+            disableColumnar();
+            if (mResend == null)
+                mResend = new InflightBatch(mBatchId, mFirstId, mLastId,
+                        mSelection);
+            c.moveToPosition(batchStart);
+            return doPost(session, c, maxCount, maxBytes);
         }
-        else
+
+
+        if (!Transports.isAccepted(respCode))
         {
-            Log.e(TAG, "post failed with error: " 
-                    + respMsg);
-            con.disconnect();
+            EngineLog.e(TAG, "post failed with error: " 
+                    + session.getResponseMessage());
             return false;
         }
+        if (respCode == Transport.ALREADY_REPORTED)
+            EngineLog.i(TAG, "Server already had batch " + mBatchId);
+        return true;
     }
 
 